@@ -0,0 +1,179 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.blecore.scan.AdvertisementParser;
+import com.ironxiao.blecore.scan.ScanDeduper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Filtering raw scan records, as done for every advertisement the scanner reports.
+ * <p>
+ * The {@code ...ScanRecord} benchmarks are the path the framework takes: every
+ * record is first parsed into a {@link ScanRecord} with lists, maps and copies of
+ * all its fields, which the filter then looks at.
+ */
+@State(Scope.Thread)
+public class AdvertisementParserBenchmark {
+    private static final int UUID_SERVER = 0x1ff9;
+    private static final int MANUFACTURE_ID = 0xAAA;
+    private static final byte[] MANUFACTURE = "Nologic".getBytes();
+    private static final UUID SERVER_UUID = uuid16(UUID_SERVER);
+
+    /** What bleServer advertises. */
+    private final byte[] serverRecord = {
+            0x02, 0x01, 0x06,
+            0x05, 0x09, 'X', 'i', 'a', 'o',
+            0x02, 0x0A, 0x07,
+            0x0A, (byte) 0xFF, (byte) 0xAA, 0x0A, 'N', 'o', 'l', 'o', 'g', 'i', 'c',
+            0x03, 0x03, (byte) 0xF9, 0x1F,
+            0x00, 0x00, 0x00, 0x00
+    };
+
+    /** A typical beacon that has to be rejected. */
+    private final byte[] otherRecord = {
+            0x02, 0x01, 0x06,
+            0x1A, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10,
+            0x00, 0x01, 0x00, 0x02, (byte) 0xC5
+    };
+
+    @Benchmark
+    public boolean matchServer() {
+        return AdvertisementParser.matches(serverRecord, UUID_SERVER, MANUFACTURE_ID, MANUFACTURE);
+    }
+
+    @Benchmark
+    public boolean rejectOther() {
+        return AdvertisementParser.matches(otherRecord, UUID_SERVER, MANUFACTURE_ID, MANUFACTURE);
+    }
+
+    @Benchmark
+    public int findManufacturerData() {
+        return AdvertisementParser.findManufacturerData(serverRecord, MANUFACTURE_ID);
+    }
+
+    @Benchmark
+    public int hashRecord() {
+        return ScanDeduper.hash(serverRecord);
+    }
+
+    @Benchmark
+    public boolean matchServerScanRecord(Blackhole blackhole) {
+        ScanRecord record = ScanRecord.parseFromBytes(serverRecord);
+        //The framework hands the record out with the result
+        blackhole.consume(record);
+        return record.matches(SERVER_UUID, MANUFACTURE_ID, MANUFACTURE);
+    }
+
+    @Benchmark
+    public boolean rejectOtherScanRecord(Blackhole blackhole) {
+        ScanRecord record = ScanRecord.parseFromBytes(otherRecord);
+        blackhole.consume(record);
+        return record.matches(SERVER_UUID, MANUFACTURE_ID, MANUFACTURE);
+    }
+
+    private static UUID uuid16(int uuid16) {
+        return new UUID(0x0000000000001000L | (long) uuid16 << 32, 0x800000805F9B34FBL);
+    }
+
+    /**
+     * What {@code android.bluetooth.le.ScanRecord.parseFromBytes} does, which needs
+     * the framework and cannot run here: each AD structure is copied out into the
+     * field it belongs to.
+     */
+    static final class ScanRecord {
+        final List<UUID> serviceUuids = new ArrayList<>();
+        final Map<Integer, byte[]> manufacturerData = new HashMap<>();
+        final Map<UUID, byte[]> serviceData = new HashMap<>();
+        int advertiseFlags = -1;
+        int txPowerLevel = Integer.MIN_VALUE;
+        String deviceName;
+        byte[] bytes;
+
+        static ScanRecord parseFromBytes(byte[] scanRecord) {
+            ScanRecord record = new ScanRecord();
+            int i = 0;
+            while (i < scanRecord.length) {
+                int length = scanRecord[i++] & 0xFF;
+                if (length == 0 || i + length > scanRecord.length)
+                    break;
+                int type = scanRecord[i] & 0xFF;
+                int data = i + 1;
+                int dataLength = length - 1;
+                switch (type) {
+                    case 0x01:
+                        record.advertiseFlags = scanRecord[data] & 0xFF;
+                        break;
+                    case 0x02:
+                    case 0x03:
+                        parseServiceUuids(scanRecord, data, dataLength, 2, record.serviceUuids);
+                        break;
+                    case 0x06:
+                    case 0x07:
+                        parseServiceUuids(scanRecord, data, dataLength, 16, record.serviceUuids);
+                        break;
+                    case 0x08:
+                    case 0x09:
+                        record.deviceName = new String(Arrays.copyOfRange(scanRecord, data, data + dataLength));
+                        break;
+                    case 0x0A:
+                        record.txPowerLevel = scanRecord[data];
+                        break;
+                    case 0x16:
+                        record.serviceData.put(uuid16((scanRecord[data] & 0xFF) | (scanRecord[data + 1] & 0xFF) << 8),
+                                Arrays.copyOfRange(scanRecord, data + 2, data + dataLength));
+                        break;
+                    case 0xFF:
+                        record.manufacturerData.put((scanRecord[data] & 0xFF) | (scanRecord[data + 1] & 0xFF) << 8,
+                                Arrays.copyOfRange(scanRecord, data + 2, data + dataLength));
+                        break;
+                    default:
+                        break;
+                }
+                i += length;
+            }
+            record.bytes = scanRecord;
+            return record;
+        }
+
+        private static void parseServiceUuids(byte[] scanRecord, int offset, int length, int uuidLength,
+                                              List<UUID> uuids) {
+            for (; length >= uuidLength; offset += uuidLength, length -= uuidLength) {
+                byte[] bytes = Arrays.copyOfRange(scanRecord, offset, offset + uuidLength);
+                if (uuidLength == 2) {
+                    uuids.add(uuid16((bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8));
+                } else {
+                    long lsb = 0;
+                    long msb = 0;
+                    for (int k = 0; k < 8; k++) {
+                        lsb |= (bytes[k] & 0xFFL) << (8 * k);
+                        msb |= (bytes[8 + k] & 0xFFL) << (8 * k);
+                    }
+                    uuids.add(new UUID(msb, lsb));
+                }
+            }
+        }
+
+        /**
+         * What {@code ScanFilter.matches} checks for our filter.
+         */
+        boolean matches(UUID service, int companyId, byte[] prefix) {
+            if (!serviceUuids.contains(service))
+                return false;
+            byte[] data = manufacturerData.get(companyId);
+            return data != null && data.length >= prefix.length
+                    && Arrays.equals(Arrays.copyOf(data, prefix.length), prefix);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.bleclient.connect.DeviceCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Startup cost of the known-device cache: opening a file with a few devices, and
+ * remembering a device after a connection.
+ */
+@State(Scope.Benchmark)
+public class DeviceCacheBenchmark {
+    private static final int DEVICES = 16;
+    private static final UUID UUID_SERVER = UUID.fromString("00001ff9-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_NOTIFY = UUID.fromString("00001ffc-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CAPABILITIES = UUID.fromString("00001ffd-0000-1000-8000-00805f9b34fb");
+
+    private File loadFile;
+    private File putFile;
+    private DeviceCache putCache;
+    private DeviceCache.KnownDevice device;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        loadFile = File.createTempFile("devices", ".bin");
+        DeviceCache cache = DeviceCache.open(loadFile);
+        for (int i = 0; i < DEVICES; i++)
+            cache.put(device(String.format("AA:BB:CC:DD:EE:%02X", i), i));
+        cache.close();
+
+        putFile = File.createTempFile("devices-put", ".bin");
+        putCache = DeviceCache.open(putFile);
+        device = device("11:22:33:44:55:66", 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        putCache.close();
+        loadFile.delete();
+        putFile.delete();
+    }
+
+    private static DeviceCache.KnownDevice device(String address, long millis) {
+        return new DeviceCache.KnownDevice(address, UUID_SERVER,
+                Arrays.asList(UUID_WRITE, UUID_NOTIFY, UUID_CAPABILITIES), 247, millis);
+    }
+
+    @Benchmark
+    public DeviceCache.KnownDevice openAndLookUp() throws IOException {
+        DeviceCache cache = DeviceCache.open(loadFile);
+        try {
+            return cache.mostRecent();
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Benchmark
+    public int put() throws IOException {
+        putCache.put(new DeviceCache.KnownDevice(device.getAddress(), device.getServiceUuid(),
+                device.getCharacteristics(), device.getMtu(), now++));
+        return putCache.size();
+    }
+}
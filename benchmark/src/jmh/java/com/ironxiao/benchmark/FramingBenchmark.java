@@ -0,0 +1,79 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.blecore.transfer.FrameAssembler;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splitting a payload into frames on the client and reassembling it on the server.
+ */
+@State(Scope.Thread)
+public class FramingBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"23", "185", "517"})
+    public int mtu;
+
+    private byte[] payload;
+    private byte[][] frames;
+    private final FrameAssembler clientAssembler = new FrameAssembler();
+    private final com.ironxiao.blecore.transfer.FrameAssembler serverAssembler = new com.ironxiao.blecore.transfer.FrameAssembler();
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) i;
+        List<byte[]> list = new ArrayList<>();
+        FrameSplitter splitter = new FrameSplitter(payload, mtu);
+        while (splitter.hasNext())
+            list.add(splitter.next());
+        frames = list.toArray(new byte[0][]);
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        FrameSplitter splitter = new FrameSplitter(payload, mtu);
+        while (splitter.hasNext())
+            blackhole.consume(splitter.next());
+    }
+
+    @Benchmark
+    public byte[] assemble() {
+        for (byte[] frame : frames) {
+            if (clientAssembler.onFrame(frame))
+                return clientAssembler.getPayload();
+        }
+        return null;
+    }
+
+    @Benchmark
+    public byte[] assembleOnServer() {
+        for (byte[] frame : frames) {
+            if (serverAssembler.onFrame(frame, 0, frame.length))
+                return serverAssembler.getPayload();
+        }
+        return null;
+    }
+
+    @Benchmark
+    public byte[] roundTrip() {
+        FrameSplitter splitter = new FrameSplitter(payload, mtu);
+        while (splitter.hasNext()) {
+            byte[] frame = splitter.next();
+            if (serverAssembler.onFrame(frame, 0, frame.length))
+                return serverAssembler.getPayload();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,62 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.bleclient.metrics.Counter;
+import com.ironxiao.bleclient.metrics.Histogram;
+import com.ironxiao.bleclient.metrics.MetricsRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Cost of recording on the hot path, alone and from several callback threads.
+ * Run with {@code -prof gc} to check that recording does not allocate.
+ */
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final Histogram histogram = registry.histogram("gatt.write", "us");
+    private final Counter counter = registry.counter("scan.found");
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < 10000; i++)
+            histogram.record(i * 31);
+    }
+
+    @State(Scope.Thread)
+    public static class Values {
+        long next;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            next = Thread.currentThread().getId() * 7919;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void recordUncontended(Values values) {
+        histogram.record((values.next += 7919) & 0xFFFFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Values values) {
+        histogram.record((values.next += 7919) & 0xFFFFF);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void increment() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public long percentile() {
+        return histogram.getValueAtPercentile(99);
+    }
+}
@@ -0,0 +1,47 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.provision.ProvisioningRecord;
+import com.ironxiao.blecore.provision.WifiCredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary provisioning record against the {@code WIFI:} text form it replaces,
+ * see {@link WifiCredentialsBenchmark}.
+ */
+@State(Scope.Thread)
+public class ProvisioningCodecBenchmark {
+    private final ProvisioningRecord record = new ProvisioningRecord.Builder()
+            .setSsid("goke_ofice")
+            .setPassword("goke!wifi")
+            .build();
+    private final byte[] encoded = ProvisioningCodec.encode(record);
+    private final ByteBuffer buffer = ByteBuffer.allocate(encoded.length);
+
+    @Benchmark
+    public byte[] encode() {
+        return ProvisioningCodec.encode(record);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeInto() {
+        buffer.clear();
+        ProvisioningCodec.encode(record, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ProvisioningRecord decode() {
+        return ProvisioningCodec.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public ProvisioningRecord roundTrip() {
+        return ProvisioningCodec.decode(ByteBuffer.wrap(ProvisioningCodec.encode(record)));
+    }
+}
@@ -0,0 +1,118 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.bleserver.gatt.GattServerHandler;
+import com.ironxiao.bleserver.gatt.GattServerTransport;
+import com.ironxiao.bleserver.gatt.RequestDispatcher;
+import com.ironxiao.bleserver.session.SessionTable;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Time a GATT write callback spends before it returns, with the request handled
+ * inline or queued for the worker pool. Four threads stand in for binder threads
+ * of eight clients.
+ */
+@State(Scope.Benchmark)
+public class RequestDispatcherBenchmark {
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_NOTIFY = UUID.fromString("00001ffc-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CAPABILITIES = UUID.fromString("00001ffd-0000-1000-8000-00805f9b34fb");
+    private static final int CLIENTS = 8;
+
+    @Param({"inline", "queued"})
+    public String mode;
+
+    private final String[] addresses = new String[CLIENTS];
+    private byte[] frame;
+    private ExecutorService pool;
+    private GattServerHandler handler;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            next = (int) Thread.currentThread().getId();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        RequestDispatcher dispatcher;
+        if (mode.equals("queued")) {
+            pool = Executors.newFixedThreadPool(2);
+            dispatcher = new RequestDispatcher(pool, RequestDispatcher.DEFAULT_MAX_PENDING);
+        } else {
+            dispatcher = new RequestDispatcher(RequestDispatcher.DIRECT, Integer.MAX_VALUE);
+        }
+        GattServerTransport transport = new GattServerTransport() {
+            @Override
+            public void sendResponse(String address, int requestId, int status, int offset, byte[] value) {
+            }
+
+            @Override
+            public boolean notify(String address, UUID characteristic, byte[] value) {
+                return true;
+            }
+
+            @Override
+            public void cancelConnection(String address) {
+            }
+        };
+        handler = new GattServerHandler(new SessionTable(CLIENTS, 60 * 1000), transport,
+                UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, new GattServerHandler.Listener() {
+            @Override
+            public void onConnectionStateChange(String address, boolean connected) {
+            }
+
+            @Override
+            public void onPayload(String address, ByteBuffer payload) {
+                //What the app does with a provisioning record
+                new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            }
+
+            @Override
+            public void onDescriptorWrite(String address, UUID descriptor, byte[] value) {
+            }
+        }, dispatcher, new GattServerHandler.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                //The transport never refuses a notification, so nothing is retried
+                task.run();
+            }
+        });
+        for (int i = 0; i < CLIENTS; i++) {
+            addresses[i] = String.format("AA:BB:CC:DD:EE:%02X", i);
+            handler.onConnectionStateChange(addresses[i], true);
+        }
+        frame = new FrameSplitter(("{\"ssid\":\"goke_ofice\",\"password\":\"goke!wifi\",\"security\":\"WPA\"}").getBytes(), 247).next();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdownNow();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void writeCallback(Cursor cursor) {
+        handler.onCharacteristicWriteRequest(addresses[cursor.next++ & (CLIENTS - 1)], cursor.next,
+                UUID_WRITE, false, true, 0, frame);
+    }
+}
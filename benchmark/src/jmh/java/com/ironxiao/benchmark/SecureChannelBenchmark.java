@@ -0,0 +1,84 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.blecore.secure.SecureChannel;
+import com.ironxiao.blecore.secure.SecureClient;
+import com.ironxiao.blecore.secure.SecureServer;
+import com.ironxiao.blecore.secure.TicketStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Per-payload cost of the encrypted channel at the sizes of one default frame,
+ * one 2M frame and a typical provisioning record, and the cost of a handshake
+ * with and without a session ticket.
+ */
+@State(Scope.Thread)
+public class SecureChannelBenchmark {
+    @Param({"20", "244", "1024"})
+    public int payloadSize;
+
+    private static final String SERVER = "AA:BB:CC:DD:EE:01";
+
+    private final SecureRandom random = new SecureRandom();
+    private final TicketStore<String> clientTickets =
+            new TicketStore<>(TicketStore.DEFAULT_CAPACITY, TicketStore.DEFAULT_LIFETIME_MILLIS);
+    private final TicketStore<ByteBuffer> serverTickets =
+            new TicketStore<>(TicketStore.DEFAULT_CAPACITY, TicketStore.DEFAULT_LIFETIME_MILLIS);
+
+    private byte[] payload;
+    private SecureChannel clientChannel;
+    private SecureServer server;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        //A fresh channel per iteration, counters never run out
+        SecureClient client = new SecureClient(random, clientTickets);
+        server = new SecureServer(random, serverTickets);
+        handshake(client, server);
+        clientChannel = client.getChannel();
+    }
+
+    private static void handshake(SecureClient client, SecureServer server) {
+        byte[] message = client.start(SERVER, 0);
+        while (message != null) {
+            byte[] answer = server.onMessage(message, 0, message.length, 0);
+            message = answer == null ? null : client.onMessage(answer, 0, answer.length, 0);
+        }
+    }
+
+    @Benchmark
+    public int seal() {
+        return clientChannel.seal(payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public ByteBuffer sealAndOpen() {
+        int length = clientChannel.seal(payload, 0, payload.length);
+        return server.open(clientChannel.getBuffer(), 0, length);
+    }
+
+    @Benchmark
+    public SecureChannel fullHandshake() {
+        SecureClient client = new SecureClient(random, new TicketStore<String>(1, TicketStore.DEFAULT_LIFETIME_MILLIS));
+        handshake(client, new SecureServer(random, serverTickets));
+        return client.getChannel();
+    }
+
+    @Benchmark
+    public SecureChannel resumedHandshake() {
+        //Every resumption leaves the next ticket in the store
+        SecureClient client = new SecureClient(random, clientTickets);
+        handshake(client, new SecureServer(random, serverTickets));
+        return client.getChannel();
+    }
+}
@@ -0,0 +1,70 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.bleserver.session.ClientSession;
+import com.ironxiao.bleserver.session.SessionTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Session lookups from several binder threads while clients come and go.
+ */
+@State(Scope.Benchmark)
+public class SessionTableBenchmark {
+    private static final int SESSIONS = 32;
+
+    private final SessionTable table = new SessionTable(SESSIONS + 8, 60 * 1000);
+    private final String[] addresses = new String[SESSIONS];
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            next = (int) (Thread.currentThread().getId() * 7);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < SESSIONS; i++) {
+            addresses[i] = String.format("AA:BB:CC:DD:%02X:%02X", i >> 8, i & 0xFF);
+            table.open(addresses[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ClientSession getUncontended(Cursor cursor) {
+        return table.get(addresses[cursor.next++ & (SESSIONS - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ClientSession getContended(Cursor cursor) {
+        return table.get(addresses[cursor.next++ & (SESSIONS - 1)]);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public ClientSession churnGet(Cursor cursor) {
+        return table.get(addresses[cursor.next++ & (SESSIONS - 1)]);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public ClientSession churnReconnect(Cursor cursor) {
+        String address = addresses[cursor.next++ & (SESSIONS - 1)];
+        table.onDisconnected(address);
+        return table.open(address);
+    }
+}
@@ -0,0 +1,70 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.blecore.transfer.Crc32c;
+import com.ironxiao.blecore.transfer.TransferCodec;
+import com.ironxiao.blecore.transfer.TransferReceiver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums and the server side of a resumable transfer. {@code crc32} is the
+ * platform's CRC-32 for reference, Android has no CRC-32C of its own.
+ */
+@State(Scope.Thread)
+public class TransferBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private byte[] payload;
+    private byte[] begin;
+    private byte[][] chunks;
+    private final CRC32 crc32 = new CRC32();
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) (i * 31);
+        begin = TransferCodec.begin(1, payloadSize, Crc32c.compute(payload, 0, payloadSize));
+        List<byte[]> list = new ArrayList<>();
+        for (int offset = 0; offset < payloadSize; offset += CHUNK_SIZE)
+            list.add(TransferCodec.chunk(1, 0, payload, offset, Math.min(CHUNK_SIZE, payloadSize - offset)));
+        chunks = list.toArray(new byte[0][]);
+    }
+
+    @Benchmark
+    public int crc32c() {
+        return Crc32c.compute(payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public long crc32() {
+        crc32.reset();
+        crc32.update(payload, 0, payload.length);
+        return crc32.getValue();
+    }
+
+    @Benchmark
+    public byte[] chunk() {
+        return TransferCodec.chunk(1, 0, payload, 0, Math.min(CHUNK_SIZE, payloadSize));
+    }
+
+    @Benchmark
+    public byte[] receive() {
+        TransferReceiver receiver = new TransferReceiver(payloadSize);
+        receiver.onMessage(begin, 0, begin.length);
+        for (byte[] chunk : chunks)
+            receiver.onMessage(chunk, 0, chunk.length);
+        return receiver.getPayload();
+    }
+}
@@ -0,0 +1,32 @@
+package com.ironxiao.benchmark;
+
+import com.ironxiao.blecore.provision.WifiCredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building and parsing the {@code WIFI:S:...;T:WPA;P:...;;} credential string.
+ */
+@State(Scope.Thread)
+public class WifiCredentialsBenchmark {
+    private final WifiCredentials credentials = new WifiCredentials("goke_ofice", WifiCredentials.SECURITY_WPA, "goke!wifi", false);
+    private final String text = credentials.toWifiString();
+    private final byte[] bytes = text.getBytes();
+
+    @Benchmark
+    public byte[] build() {
+        return credentials.toWifiString().getBytes();
+    }
+
+    @Benchmark
+    public WifiCredentials parse() {
+        return WifiCredentials.parse(new String(bytes));
+    }
+
+    @Benchmark
+    public WifiCredentials roundTrip() {
+        return WifiCredentials.parse(new String(credentials.toWifiString().getBytes()));
+    }
+}
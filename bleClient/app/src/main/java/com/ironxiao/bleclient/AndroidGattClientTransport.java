@@ -0,0 +1,287 @@
+package com.ironxiao.bleclient;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+
+import com.ironxiao.bleclient.gatt.GattClientTransport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link GattClientTransport} over {@link BluetoothGatt}. Framework callbacks arrive
+ * on binder threads and are re-posted to the given handler; callbacks of a
+ * {@link BluetoothGatt} that was already closed are dropped.
+ * <p>
+ * Characteristics of the service are indexed by UUID once discovery finishes, so
+ * every write finds its characteristic with one hash lookup.
+ */
+class AndroidGattClientTransport extends BluetoothGattCallback implements GattClientTransport {
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final UUID serviceUuid;
+    private final Handler handler;
+    private Callback callback;
+    private volatile BluetoothGatt gatt;
+    private volatile Map<UUID, BluetoothGattCharacteristic> characteristics = Collections.emptyMap();
+
+    AndroidGattClientTransport(Context context, BluetoothAdapter adapter, UUID serviceUuid, Handler handler) {
+        this.context = context.getApplicationContext();
+        this.adapter = adapter;
+        this.serviceUuid = serviceUuid;
+        this.handler = handler;
+    }
+
+    BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    /**
+     * @return the characteristics of the service, empty before discovery
+     */
+    List<UUID> getCharacteristicUuids() {
+        return new ArrayList<>(characteristics.keySet());
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public boolean connect(String address) {
+        close();
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+        return gatt != null;
+    }
+
+    @Override
+    public boolean reconnect() {
+        return gatt != null && gatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        if (gatt != null)
+            gatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        characteristics = Collections.emptyMap();
+        if (gatt != null) {
+            gatt.close();
+            gatt = null;
+        }
+    }
+
+    @Override
+    public boolean isConnected(String address) {
+        return gatt != null && gatt.getDevice().getAddress().equals(address);
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID characteristic) {
+        return characteristic(characteristic) != null;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return gatt != null && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID uuid) {
+        BluetoothGattCharacteristic characteristic = characteristic(uuid);
+        return characteristic != null && gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID uuid, byte[] value, int writeType) {
+        BluetoothGattCharacteristic characteristic = characteristic(uuid);
+        if (characteristic == null)
+            return false;
+        characteristic.setWriteType(writeType);
+        characteristic.setValue(value);
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID uuid, boolean enable) {
+        BluetoothGattCharacteristic characteristic = characteristic(uuid);
+        return characteristic != null && gatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID characteristicUuid, UUID descriptorUuid, byte[] value) {
+        BluetoothGattCharacteristic characteristic = characteristic(characteristicUuid);
+        if (characteristic == null)
+            return false;
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUuid);
+        if (descriptor == null)
+            return false;
+        descriptor.setValue(value);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return gatt != null && gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean setPreferredPhy(int txPhyMask, int rxPhyMask) {
+        if (gatt == null)
+            return false;
+        int wanted = txPhyMask | rxPhyMask;
+        if ((wanted & PHY_LE_2M_MASK) != 0 && !adapter.isLe2MPhySupported())
+            return false;
+        gatt.setPreferredPhy(txPhyMask, rxPhyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
+    private BluetoothGattCharacteristic characteristic(UUID uuid) {
+        return gatt == null ? null : characteristics.get(uuid);
+    }
+
+    private void indexCharacteristics(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(serviceUuid);
+        if (service == null) {
+            characteristics = Collections.emptyMap();
+            return;
+        }
+        Map<UUID, BluetoothGattCharacteristic> index = new HashMap<>();
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics())
+            index.put(characteristic.getUuid(), characteristic);
+        characteristics = index;
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) {
+        if (gatt != this.gatt)
+            return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onConnectionStateChange(newState == BluetoothProfile.STATE_CONNECTED, status);
+            }
+        });
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+        if (gatt != this.gatt)
+            return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onMtuChanged(mtu, status);
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+        if (gatt != this.gatt)
+            return;
+        //Built before the callback is posted, so it is complete when the callback runs
+        if (status == BluetoothGatt.GATT_SUCCESS)
+            indexCharacteristics(gatt);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onServicesDiscovered(status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+        if (gatt != this.gatt)
+            return;
+        final UUID uuid = characteristic.getUuid();
+        final byte[] value = copy(characteristic.getValue());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCharacteristicRead(uuid, value, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+        if (gatt != this.gatt)
+            return;
+        final UUID uuid = characteristic.getUuid();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCharacteristicWrite(uuid, status);
+            }
+        });
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+        if (gatt != this.gatt)
+            return;
+        final UUID characteristic = descriptor.getCharacteristic().getUuid();
+        final UUID uuid = descriptor.getUuid();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onDescriptorWrite(characteristic, uuid, status);
+            }
+        });
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        if (gatt != this.gatt)
+            return;
+        final UUID uuid = characteristic.getUuid();
+        //The characteristic is reused for the next notification before the handler runs
+        final byte[] value = copy(characteristic.getValue());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCharacteristicChanged(uuid, value);
+            }
+        });
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+        if (gatt != this.gatt)
+            return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onPhyUpdate(txPhy, rxPhy, status);
+            }
+        });
+    }
+
+    private static byte[] copy(byte[] value) {
+        return value == null ? null : value.clone();
+    }
+}
@@ -0,0 +1,93 @@
+package com.ironxiao.bleclient;
+
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.ironxiao.blecore.scan.AdvertisementParser;
+import com.ironxiao.blecore.scan.ScanDeduper;
+import com.ironxiao.blecore.scan.ServerStatus;
+
+import java.util.List;
+
+/**
+ * Scan callback that batches advertisements and only passes devices that are
+ * new or changed on to {@link ScanProcess#onFound(ScanResult)}.
+ * <p>
+ * Hardware scan filters are not reliable on every chipset, so each scan record is
+ * also checked against the service UUID and manufacturer data in software.
+ * Servers advertising that they are busy are skipped, and provisioned ones too if
+ * asked; they are reported once their status changes.
+ * <p>
+ * Results arrive on the UI thread and are handled, batch by batch, on the given
+ * handler's thread, where {@link #reset()} must be called as well.
+ */
+class BatchedScanStage extends ScanCallback {
+    static final long REPORT_DELAY_MILLIS = 500;
+    private static final int MAX_DEVICES = 256;
+    private static final int RSSI_THRESHOLD = 6;
+
+    private final ScanProcess scanProcess;
+    private final int serviceUuid16;
+    private final int manufacturerId;
+    private final byte[] manufacturerData;
+    private final Handler handler;
+    private final ScanDeduper deduper = new ScanDeduper(MAX_DEVICES, RSSI_THRESHOLD);
+    private volatile boolean skipProvisioned;
+
+    BatchedScanStage(ScanProcess scanProcess, Handler handler, int serviceUuid16, int manufacturerId,
+                     byte[] manufacturerData) {
+        this.scanProcess = scanProcess;
+        this.handler = handler;
+        this.serviceUuid16 = serviceUuid16;
+        this.manufacturerId = manufacturerId;
+        this.manufacturerData = manufacturerData;
+    }
+
+    void setSkipProvisioned(boolean skipProvisioned) {
+        this.skipProvisioned = skipProvisioned;
+    }
+
+    void reset() {
+        deduper.clear();
+    }
+
+    @Override
+    public void onScanResult(int callbackType, final ScanResult result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                offer(result, SystemClock.elapsedRealtime());
+            }
+        });
+    }
+
+    @Override
+    public void onBatchScanResults(final List<ScanResult> results) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                long now = SystemClock.elapsedRealtime();
+                for (int i = 0, n = results.size(); i < n; i++)
+                    offer(results.get(i), now);
+            }
+        });
+    }
+
+    private void offer(ScanResult result, long nowMillis) {
+        ScanRecord record = result.getScanRecord();
+        byte[] bytes = record == null ? null : record.getBytes();
+        if (!AdvertisementParser.matches(bytes, serviceUuid16, manufacturerId, manufacturerData))
+            return;
+        //Not offered to the deduper, so the server is new once it has room again
+        int status = ServerStatus.find(bytes, manufacturerId, manufacturerData);
+        if (ServerStatus.isBusy(status) || (skipProvisioned && ServerStatus.isProvisioned(status)))
+            return;
+        int dataHash = ScanDeduper.hash(bytes);
+        long address = ScanDeduper.parseAddress(result.getDevice().getAddress());
+        if (deduper.offer(address, result.getRssi(), dataHash, nowMillis) != ScanDeduper.RESULT_UNCHANGED)
+            scanProcess.onFound(result);
+    }
+}
@@ -0,0 +1,740 @@
+package com.ironxiao.bleclient;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.ironxiao.bleclient.connect.DeviceCache;
+import com.ironxiao.bleclient.connect.ReconnectPolicy;
+import com.ironxiao.bleclient.gatt.ClientConnection;
+import com.ironxiao.bleclient.gatt.FleetProvisioner;
+import com.ironxiao.bleclient.gatt.GattClientTransport;
+import com.ironxiao.bleclient.gatt.GattMetrics;
+import com.ironxiao.bleclient.gatt.GattOperationQueue;
+import com.ironxiao.bleclient.gatt.LinkTuner;
+import com.ironxiao.bleclient.gatt.ResumableSender;
+import com.ironxiao.bleclient.metrics.Counter;
+import com.ironxiao.bleclient.metrics.Histogram;
+import com.ironxiao.bleclient.metrics.MetricsRegistry;
+import com.ironxiao.blecore.BleProtocol;
+import com.ironxiao.blecore.android.BleScan;
+import com.ironxiao.blecore.android.BleSupport;
+import com.ironxiao.blecore.android.ForegroundNotification;
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.provision.ProvisioningRecord;
+import com.ironxiao.blecore.scan.ScanScheduler;
+import com.ironxiao.blecore.secure.SecureClient;
+import com.ironxiao.blecore.secure.TicketStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.List;
+
+import static com.ironxiao.blecore.BleProtocol.MANUFACTURE_ID;
+import static com.ironxiao.blecore.BleProtocol.UUID_CAPABILITIES;
+import static com.ironxiao.blecore.BleProtocol.UUID_CCCD;
+import static com.ironxiao.blecore.BleProtocol.UUID_NOTIFY;
+import static com.ironxiao.blecore.BleProtocol.UUID_SERVER;
+import static com.ironxiao.blecore.BleProtocol.UUID_SERVER_16;
+import static com.ironxiao.blecore.BleProtocol.UUID_WRITE;
+
+/**
+ * Scans, connects and provisions, independent of any activity.
+ * <p>
+ * The scanner, the connection to the current server with its reconnects, the
+ * fleet and the metrics all live here and run on one event thread: GATT
+ * callbacks, scan batches, timers and the requests of bound activities are all
+ * posted to it, so none of them wait for the UI thread and a rotation or the app
+ * going to the background leaves the link as it is. Started with
+ * {@link #ACTION_START} the service runs in the foreground until
+ * {@link #stopWhenIdle()}; activities bind to it to show what happens, see
+ * {@link Listener}.
+ */
+public class BleClientService extends Service implements ScanProcess {
+    private static final String TAG = "XL_BLE_CLIENT";
+
+    public static final String ACTION_START = "com.ironxiao.bleclient.action.START";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final ProvisioningRecord TEST_RECORD = new ProvisioningRecord.Builder()
+            .setSsid("goke_ofice")
+            .setSecurity(ProvisioningRecord.SECURITY_WPA)
+            .setPassword("goke!wifi")
+            .build();
+
+    private static final long METRICS_DUMP_INTERVAL_MILLIS = 60 * 1000;
+
+    public interface Listener {
+        /** Something worth showing happened; called on the UI thread. */
+        public void onEvent(String text);
+
+        /** Scanning or provisioning started or stopped; called on the UI thread. */
+        public void onStateChanged();
+    }
+
+    public class LocalBinder extends Binder {
+        public BleClientService getService() {
+            return BleClientService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread eventThread;
+
+    private Handler handler;
+
+    //Only touched on the UI thread
+    private Listener listener;
+
+    private boolean started;
+
+    private boolean stopWhenIdle;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Histogram scanToFound = metrics.histogram("scan.to_found", "ms");
+    private final Histogram connectLatency = metrics.histogram("connect", "ms");
+    private final Histogram payloadRoundTrip = metrics.histogram("payload.round_trip", "ms");
+    private final Histogram sendThroughput = metrics.histogram("send.throughput", "B/s");
+    private final Counter devicesFound = metrics.counter("scan.found");
+    private final Counter disconnects = metrics.counter("disconnects");
+    private long scanStartNanos;
+    private long connectStartNanos;
+    private long sendStartNanos;
+
+    private final Runnable dumpMetricsTask = new Runnable() {
+        @Override
+        public void run() {
+            log("metrics:\n" + metrics.dump());
+            handler.postDelayed(this, METRICS_DUMP_INTERVAL_MILLIS);
+        }
+    };
+
+    private BluetoothAdapter bluetoothAdapter;
+
+    private ScanResult targetScanResult;
+
+    private String targetAddress;
+
+    private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy(500, 30 * 1000, 8, 10 * 1000);
+
+    private final Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    private BluetoothLeScanner bluetoothLeScanner;
+
+    private final GattOperationQueue.Scheduler scheduler = new GattOperationQueue.Scheduler() {
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            handler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    };
+
+    private AndroidGattClientTransport transport;
+
+    private ClientConnection connection;
+
+    //Lets servers we provisioned before skip the key exchange, for this connection and the fleet
+    private final TicketStore<String> sessionTickets =
+            new TicketStore<>(TicketStore.DEFAULT_CAPACITY, TicketStore.DEFAULT_LIFETIME_MILLIS);
+    private final SecureClient secureClient = new SecureClient(new SecureRandom(), sessionTickets);
+
+    //Sends payloads in chunks a reconnect can resume, if the server supports it
+    private ResumableSender resumableSender;
+
+    private final ResumableSender.Listener resumableListener = new ResumableSender.Listener() {
+        @Override
+        public void onTransferProgress(int ackedBytes, int totalBytes) {
+            if (BuildConfig.DEBUG)
+                log("transfer " + ackedBytes + "/" + totalBytes);
+        }
+
+        @Override
+        public void onTransferComplete(int bytes) {
+            if (sendStartNanos != 0) {
+                payloadRoundTrip.record((System.nanoTime() - sendStartNanos) / 1000000);
+                sendStartNanos = 0;
+            }
+            publish("ACK:" + bytes);
+        }
+
+        @Override
+        public void onTransferFailed(int reason) {
+            sendStartNanos = 0;
+            log("transfer failed, reason: " + reason);
+            publish("send msg fail!");
+        }
+    };
+
+    private final ResumableSender.Sealer sealer = new ResumableSender.Sealer() {
+        @Override
+        public byte[] seal(byte[] payload) {
+            return connection.seal(payload);
+        }
+    };
+
+    private DeviceCache deviceCache;
+
+    //Non-null while provisioning every server the scan finds
+    private FleetProvisioner fleet;
+
+    private final FleetProvisioner.Listener fleetListener = new FleetProvisioner.Listener() {
+        @Override
+        public void onDeviceProvisioned(String address, int bytes, long elapsedMillis) {
+            if (BuildConfig.DEBUG)
+                log("provisioned " + address + " in " + elapsedMillis + " ms");
+        }
+
+        @Override
+        public void onDeviceFailed(String address, int reason) {
+            if (BuildConfig.DEBUG)
+                log("provisioning " + address + " failed, reason: " + reason);
+        }
+
+        @Override
+        public void onIdle() {
+            if (fleet == null)
+                return;
+            log("fleet idle: " + fleet.getProvisionedCount() + " provisioned, " + fleet.getFailedCount()
+                    + " failed, peak " + fleet.getPeakConnections() + " links, " + fleet.getBytesPerSecond() + " B/s");
+            //Nobody is watching any more, finish with what we provisioned
+            if (stopWhenIdle) {
+                stopFleet();
+                scanLeDeviceCommon(false);
+            }
+        }
+    };
+
+    private final ClientConnection.Listener connectionListener = new ClientConnection.Listener() {
+        @Override
+        public void onConnected() {
+            if (connectStartNanos != 0) {
+                connectLatency.record((System.nanoTime() - connectStartNanos) / 1000000);
+                connectStartNanos = 0;
+            }
+            connection.enableSecurity(secureClient, targetAddress);
+            BleClientService.this.onConnect(transport.getGatt());
+        }
+
+        @Override
+        public void onDisconnected(int status) {
+            disconnects.increment();
+            if (BuildConfig.DEBUG)
+                log("onConnectionStateChange: disconnected, status: " + status);
+            resumableSender.onLinkLost();
+            BleClientService.this.onDisConnect(transport.getGatt());
+        }
+
+        @Override
+        public void onReady() {
+            canMsg = true;
+            BluetoothGatt gatt = transport.getGatt();
+            rememberDevice(gatt.getDevice().getAddress());
+            BleClientService.this.onServiceFound(gatt, gatt.getService(UUID_SERVER));
+            resumableSender.onLinkReady();
+        }
+
+        @Override
+        public void onPayload(byte[] payload) {
+            if (resumableSender.onPayload(payload))
+                return;
+            if (sendStartNanos != 0) {
+                payloadRoundTrip.record((System.nanoTime() - sendStartNanos) / 1000000);
+                sendStartNanos = 0;
+            }
+            String text = new String(payload);
+            if (BuildConfig.DEBUG)
+                log("onNotification: " + text);
+            publish(text);
+        }
+
+        @Override
+        public void onSendComplete(int bytes, long bytesPerSecond) {
+            sendThroughput.record(bytesPerSecond);
+            resumableSender.pump();
+            if (!BuildConfig.DEBUG)
+                return;
+            LinkTuner tuner = connection.getLinkTuner();
+            log("send msg success! " + bytes + " bytes, " + bytesPerSecond + " B/s, mtu " + connection.getMtu()
+                    + ", phy " + tuner.getTxPhy() + "/" + tuner.getRxPhy());
+        }
+
+        @Override
+        public void onSendFailed(int status) {
+            if (BuildConfig.DEBUG)
+                log("send msg fail! status: " + status);
+            //The server asks for what got lost
+            resumableSender.pump();
+        }
+    };
+
+    private BatchedScanStage leScanCallback;
+
+    private static final List<ScanFilter> scanFilters = BleScan.serverFilters();
+
+    private final ScanScheduler scanScheduler = new ScanScheduler(new ScanScheduler.Clock() {
+        @Override
+        public long nowMillis() {
+            return SystemClock.elapsedRealtime();
+        }
+    });
+
+    //Mode the scanner actually runs in
+    private int scanMode = ScanScheduler.MODE_OFF;
+
+    //What bound activities show, written on the event thread
+    private volatile boolean scanning;
+    private volatile boolean provisioningAll;
+
+    private final Runnable scanTask = new Runnable() {
+        @Override
+        public void run() {
+            applyScanMode();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        eventThread = new HandlerThread("ble-client");
+        eventThread.start();
+        handler = new Handler(eventThread.getLooper());
+        leScanCallback = new BatchedScanStage(this, handler, UUID_SERVER_16, MANUFACTURE_ID, BleProtocol.manufactureData());
+        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
+        transport = new AndroidGattClientTransport(this, bluetoothAdapter, UUID_SERVER, handler);
+        connection = new ClientConnection(transport, scheduler, UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES,
+                connectionListener);
+        connection.getQueue().setObserver(new GattMetrics(metrics));
+        resumableSender = new ResumableSender(new ResumableSender.Link() {
+            @Override
+            public boolean send(byte[] message) {
+                return connection.send(message);
+            }
+        }, scheduler, resumableListener, ResumableSender.DEFAULT_CHUNK_SIZE, ResumableSender.DEFAULT_WINDOW,
+                ResumableSender.DEFAULT_STALL_TIMEOUT_MILLIS);
+        if (BuildConfig.DEBUG)
+            handler.postDelayed(dumpMetricsTask, METRICS_DUMP_INTERVAL_MILLIS);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deviceCache = DeviceCache.open(new File(getFilesDir(), "devices.bin"));
+                } catch (IOException e) {
+                    log("device cache unavailable: " + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Also reconnects after the system recreated the service, which comes
+     * without an intent.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, ForegroundNotification.build(this, MainActivity.class,
+                R.mipmap.ic_launcher, getString(R.string.app_name), getString(R.string.client_running)));
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopWhenIdle = false;
+                if (started)
+                    return;
+                started = true;
+                connectKnownDevice();
+            }
+        });
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Call on the UI thread; null when the activity goes away.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    public boolean isProvisioningAll() {
+        return provisioningAll;
+    }
+
+    /**
+     * Scans for a server and connects to the first one found.
+     */
+    public void startScan() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopFleet();
+                scanLeDeviceCommon(true);
+            }
+        });
+    }
+
+    public void stopScan() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                scanLeDeviceCommon(false);
+            }
+        });
+    }
+
+    /**
+     * Scans and provisions every server found, several at a time, on links of
+     * their own. The scan keeps running until stopped.
+     */
+    public void startProvisioningAll() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (fleet != null)
+                    return;
+                startFleet();
+                scanLeDeviceCommon(true);
+            }
+        });
+    }
+
+    public void stopProvisioningAll() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopFleet();
+                scanLeDeviceCommon(false);
+            }
+        });
+    }
+
+    /**
+     * Sends the test record to the connected server.
+     */
+    public void sendMsg() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendTestRecord();
+            }
+        });
+    }
+
+    /**
+     * Leaves the foreground and ends the service once no fleet is provisioning
+     * and no activity is bound; a new start cancels this.
+     */
+    public void stopWhenIdle() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopWhenIdle = true;
+                stopIfIdle();
+            }
+        });
+    }
+
+    private void stopIfIdle() {
+        if (!stopWhenIdle || fleet != null)
+            return;
+        started = false;
+        stopForeground(true);
+        stopSelf();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        listener = null;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                shutDown();
+            }
+        });
+        eventThread.quitSafely();
+    }
+
+    private void shutDown() {
+        handler.removeCallbacks(reconnectTask);
+        handler.removeCallbacks(dumpMetricsTask);
+        handler.removeCallbacks(scanTask);
+        if (scanMode != ScanScheduler.MODE_OFF)
+            bluetoothLeScanner.stopScan(leScanCallback);
+        targetAddress = null;
+        if (fleet != null)
+            fleet.cancel();
+        transport.close();
+        resumableSender.cancel();
+        connection.release();
+        if (deviceCache != null) {
+            try {
+                deviceCache.close();
+            } catch (IOException e) {
+                log("cannot close device cache: " + e);
+            }
+        }
+    }
+
+    /**
+     * Connects straight to the last provisioning server instead of scanning for it.
+     */
+    private void connectKnownDevice() {
+        if (deviceCache == null || !BleSupport.btEnabled(bluetoothAdapter))
+            return;
+        DeviceCache.KnownDevice known = deviceCache.mostRecent();
+        if (known == null || !known.hasCharacteristic(UUID_WRITE))
+            return;
+        log("direct connect " + known.getAddress() + ", last mtu " + known.getMtu());
+        handler.removeCallbacks(reconnectTask);
+        reconnectPolicy.reset();
+        targetAddress = known.getAddress();
+        connectStartNanos = System.nanoTime();
+        transport.connect(targetAddress);
+    }
+
+    private void rememberDevice(String address) {
+        if (deviceCache == null)
+            return;
+        try {
+            deviceCache.put(new DeviceCache.KnownDevice(address, UUID_SERVER, transport.getCharacteristicUuids(),
+                    connection.getMtu(), System.currentTimeMillis()));
+        } catch (IOException e) {
+            log("cannot remember " + address + ": " + e);
+        }
+    }
+
+    private void startFleet() {
+        fleet = new FleetProvisioner(new FleetProvisioner.TransportFactory() {
+            @Override
+            public GattClientTransport create(String address) {
+                return new AndroidGattClientTransport(BleClientService.this, bluetoothAdapter, UUID_SERVER, handler);
+            }
+        }, scheduler, ReconnectPolicy.SYSTEM_CLOCK, UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES,
+                new FleetProvisioner.PayloadSource() {
+                    @Override
+                    public byte[] payloadFor(String address) {
+                        return ProvisioningCodec.encode(TEST_RECORD);
+                    }
+                }, fleetListener, FleetProvisioner.DEFAULT_MAX_CONNECTIONS,
+                FleetProvisioner.DEFAULT_JOB_TIMEOUT_MILLIS, FleetProvisioner.DEFAULT_MAX_ATTEMPTS);
+        fleet.setOperationObserver(new GattMetrics(metrics));
+        fleet.setSessionTickets(sessionTickets);
+        leScanCallback.setSkipProvisioned(true);
+        provisioningAll = true;
+        notifyStateChanged();
+    }
+
+    private void stopFleet() {
+        if (fleet == null)
+            return;
+        fleet.cancel();
+        fleet = null;
+        leScanCallback.setSkipProvisioned(false);
+        provisioningAll = false;
+        notifyStateChanged();
+        stopIfIdle();
+    }
+
+    private void scanLeDeviceCommon(final boolean enable) {
+        if (enable) {
+            log("Start LeScan !");
+            leScanCallback.reset();
+            scanStartNanos = System.nanoTime();
+            scanScheduler.start();
+        } else {
+            scanScheduler.stop();
+            log("Stop LeScan !");
+        }
+        scanning = enable;
+        notifyStateChanged();
+        applyScanMode();
+    }
+
+    /**
+     * Restarts the scanner if the scheduler picked another mode, and comes back
+     * when it may pick the next one.
+     */
+    private void applyScanMode() {
+        handler.removeCallbacks(scanTask);
+        int mode = scanScheduler.update();
+        if (mode != scanMode) {
+            if (scanMode != ScanScheduler.MODE_OFF)
+                bluetoothLeScanner.stopScan(leScanCallback);
+            if (mode != ScanScheduler.MODE_OFF)
+                bluetoothLeScanner.startScan(scanFilters, BleScan.settings(bluetoothAdapter, mode, BatchedScanStage.REPORT_DELAY_MILLIS), leScanCallback);
+            if (BuildConfig.DEBUG)
+                log("scan mode " + scanMode + " -> " + mode);
+            scanMode = mode;
+        }
+        long delay = scanScheduler.nextUpdateDelayMillis();
+        if (delay != ScanScheduler.NO_UPDATE)
+            handler.postDelayed(scanTask, delay);
+    }
+
+    private void sendTestRecord() {
+        if (!connection.isConnected()) {
+            log("write test msg 0");
+            return;
+        }
+        //The record carries the Wi-Fi password, never send it in the clear
+        if (!connection.isSecure()) {
+            log("write test msg 2: no encrypted channel");
+            return;
+        }
+        byte[] record = ProvisioningCodec.encode(TEST_RECORD);
+        //A resumed transfer is sealed again under the keys of the link it resumes on
+        boolean started = connection.supportsResume() ? resumableSender.start(record, sealer)
+                : connection.send(connection.seal(record));
+        if (!started) {
+            log("write test msg 1");
+            return;
+        }
+        sendStartNanos = System.nanoTime();
+    }
+
+    private void connectBleDevice(ScanResult scanResultToConnect) {
+        if (scanResultToConnect == null)
+            return;
+        String address = scanResultToConnect.getDevice().getAddress();
+        //Already connected this device
+        if (transport.isConnected(address) && connection.isConnected())
+            return;
+        log("real connect");
+        handler.removeCallbacks(reconnectTask);
+        reconnectPolicy.reset();
+        targetAddress = address;
+        connectStartNanos = System.nanoTime();
+        transport.connect(address);
+    }
+
+    /**
+     * Reconnects to the last device without scanning. The first retry reuses the
+     * existing link, which keeps its discovered services; later retries start from
+     * a fresh one, as a stuck GATT client often needs.
+     */
+    private void reconnect() {
+        if (targetAddress == null)
+            return;
+        if (BuildConfig.DEBUG)
+            log("reconnect " + targetAddress + ", attempt: " + reconnectPolicy.getAttempts());
+        connectStartNanos = System.nanoTime();
+        if (reconnectPolicy.getAttempts() <= 1 && transport.reconnect())
+            return;
+        transport.connect(targetAddress);
+    }
+
+    @Override
+    public void onFound(final ScanResult result) {
+        devicesFound.increment();
+        if (scanStartNanos != 0) {
+            scanToFound.record((System.nanoTime() - scanStartNanos) / 1000000);
+            scanStartNanos = 0;
+        }
+        if (BuildConfig.DEBUG)
+            log("onFound:" + result.getDevice());
+        if (fleet != null) {
+            fleet.onDeviceFound(result.getDevice().getAddress());
+            //More servers are likely around, look harder for a while
+            scanScheduler.onMatch();
+            applyScanMode();
+            return;
+        }
+        canMsg = false;
+        if (targetScanResult == null)
+            targetScanResult = result;
+        scanLeDeviceCommon(false);
+        connectBleDevice(targetScanResult);
+    }
+
+    @Override
+    public void onConnect(BluetoothGatt gatt) {
+        log("onConnect: " + gatt.getDevice());
+        reconnectPolicy.onConnected();
+    }
+
+    @Override
+    public void onDisConnect(BluetoothGatt gatt) {
+        log("onDisconnect");
+        canMsg = false;
+        long delay = reconnectPolicy.onDisconnected();
+        if (targetAddress == null || delay == ReconnectPolicy.GIVE_UP) {
+            log("give up reconnecting");
+            resumableSender.cancel();
+            transport.close();
+            targetScanResult = null;
+            targetAddress = null;
+            return;
+        }
+        handler.postDelayed(reconnectTask, delay);
+    }
+
+    private boolean canMsg;
+
+    @Override
+    public void onServiceFound(BluetoothGatt gatt, BluetoothGattService service) {
+        log("onService found");
+    }
+
+    private void publish(final String text) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null)
+                    listener.onEvent(text);
+            }
+        });
+    }
+
+    private void notifyStateChanged() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null)
+                    listener.onStateChanged();
+            }
+        });
+    }
+
+    /**
+     * Debug builds only. Callers on hot paths check {@code BuildConfig.DEBUG}
+     * themselves, so release builds don't even build the message.
+     */
+    private static void log(String log) {
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, log);
+    }
+}
@@ -0,0 +1,298 @@
+package com.ironxiao.bleclient.connect;
+
+import com.ironxiao.blecore.scan.ScanDeduper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Peripherals we connected to before, with the GATT layout they had, kept in an
+ * append-only file so the app can reconnect on startup without scanning.
+ * <p>
+ * The file is a 8 byte header followed by records of
+ * {@code type:u8 length:u16 body crc32:u32}; a later record for an address replaces
+ * the earlier one. Loading maps the file once and stops at the first torn or corrupt
+ * record, which is cut off. Once most records are stale the file is rewritten in
+ * place; a crash during that at worst costs the cache, never a wrong entry.
+ * <p>
+ * All methods are synchronized; writes go straight to disk.
+ */
+public class DeviceCache {
+    private static final int MAGIC = 0x424C4443; //"BLDC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+    private static final int RECORD_OVERHEAD = 1 + 2 + 4;
+    private static final int ADDRESS_SIZE = 6;
+    private static final int MAX_CHARACTERISTICS = 255;
+
+    /** Rewrite once there are this many more records than devices. */
+    private static final int COMPACT_SLACK = 32;
+
+    public static final class KnownDevice {
+        private final String address;
+        private final UUID serviceUuid;
+        private final List<UUID> characteristics;
+        private final int mtu;
+        private final long lastConnectedMillis;
+
+        public KnownDevice(String address, UUID serviceUuid, List<UUID> characteristics, int mtu, long lastConnectedMillis) {
+            if (characteristics.size() > MAX_CHARACTERISTICS)
+                throw new IllegalArgumentException("Too many characteristics: " + characteristics.size());
+            this.address = address.toUpperCase();
+            this.serviceUuid = serviceUuid;
+            this.characteristics = Collections.unmodifiableList(new ArrayList<>(characteristics));
+            this.mtu = mtu;
+            this.lastConnectedMillis = lastConnectedMillis;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public UUID getServiceUuid() {
+            return serviceUuid;
+        }
+
+        public List<UUID> getCharacteristics() {
+            return characteristics;
+        }
+
+        public boolean hasCharacteristic(UUID characteristic) {
+            return characteristics.contains(characteristic);
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        public long getLastConnectedMillis() {
+            return lastConnectedMillis;
+        }
+    }
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    //Insertion order is recency order: put() moves a device to the end
+    private final LinkedHashMap<String, KnownDevice> devices = new LinkedHashMap<>();
+    private int records;
+    private int droppedBytes;
+
+    private DeviceCache(File file) throws IOException {
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+    }
+
+    /**
+     * Opens the cache, creating the file if needed. A file that is not a cache of
+     * this version is started over.
+     */
+    public static DeviceCache open(File file) throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        try {
+            cache.load();
+        } catch (IOException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    public synchronized KnownDevice get(String address) {
+        return devices.get(address.toUpperCase());
+    }
+
+    /**
+     * @return the device we connected to last, or null if the cache is empty
+     */
+    public synchronized KnownDevice mostRecent() {
+        KnownDevice last = null;
+        for (KnownDevice device : devices.values())
+            last = device;
+        return last;
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    /**
+     * @return bytes cut off a torn or corrupt tail when the cache was opened
+     */
+    public int getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public synchronized void put(KnownDevice device) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(ADDRESS_SIZE + 8 + 2 + 16 + 1 + 16 * device.characteristics.size());
+        putAddress(body, device.address);
+        body.putLong(device.lastConnectedMillis);
+        body.putShort((short) device.mtu);
+        putUuid(body, device.serviceUuid);
+        body.put((byte) device.characteristics.size());
+        for (UUID characteristic : device.characteristics)
+            putUuid(body, characteristic);
+        append(RECORD_PUT, body);
+        devices.remove(device.address);
+        devices.put(device.address, device);
+        compactIfNeeded();
+    }
+
+    public synchronized void remove(String address) throws IOException {
+        address = address.toUpperCase();
+        if (devices.remove(address) == null)
+            return;
+        ByteBuffer body = ByteBuffer.allocate(ADDRESS_SIZE);
+        putAddress(body, address);
+        append(RECORD_REMOVE, body);
+        compactIfNeeded();
+    }
+
+    public synchronized void close() throws IOException {
+        raf.close();
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            writeHeader();
+            return;
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+            channel.truncate(0);
+            writeHeader();
+            return;
+        }
+        CRC32 crc = new CRC32();
+        while (map.remaining() >= RECORD_OVERHEAD) {
+            int start = map.position();
+            int type = map.get() & 0xFF;
+            int length = map.getShort() & 0xFFFF;
+            if (map.remaining() < length + 4) {
+                map.position(start);
+                break;
+            }
+            ByteBuffer body = map.slice();
+            body.limit(length);
+            map.position(map.position() + length);
+            crc.reset();
+            for (int i = start; i < start + 3 + length; i++)
+                crc.update(map.get(i));
+            if (map.getInt() != (int) crc.getValue() || !apply(type, body)) {
+                map.position(start);
+                break;
+            }
+            records++;
+        }
+        if (map.position() < size) {
+            droppedBytes = (int) (size - map.position());
+            channel.truncate(map.position());
+        }
+        channel.position(map.position());
+    }
+
+    /**
+     * @return false if the record is malformed
+     */
+    private boolean apply(int type, ByteBuffer body) {
+        if (body.remaining() < ADDRESS_SIZE)
+            return false;
+        String address = getAddress(body);
+        if (type == RECORD_REMOVE) {
+            devices.remove(address);
+            return true;
+        }
+        if (type != RECORD_PUT || body.remaining() < 8 + 2 + 16 + 1)
+            return false;
+        long lastConnectedMillis = body.getLong();
+        int mtu = body.getShort() & 0xFFFF;
+        UUID serviceUuid = getUuid(body);
+        int count = body.get() & 0xFF;
+        if (body.remaining() != count * 16)
+            return false;
+        List<UUID> characteristics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            characteristics.add(getUuid(body));
+        devices.remove(address);
+        devices.put(address, new KnownDevice(address, serviceUuid, characteristics, mtu, lastConnectedMillis));
+        return true;
+    }
+
+    private void append(int type, ByteBuffer body) throws IOException {
+        body.flip();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + body.remaining());
+        record.put((byte) type);
+        record.putShort((short) body.remaining());
+        record.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining())
+            channel.write(record);
+        records++;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (records <= devices.size() + COMPACT_SLACK)
+            return;
+        channel.truncate(0);
+        channel.position(0);
+        writeHeader();
+        records = 0;
+        List<KnownDevice> live = new ArrayList<>(devices.values());
+        devices.clear();
+        for (KnownDevice device : live)
+            put(device);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    private static void putAddress(ByteBuffer buffer, String address) {
+        long value = ScanDeduper.parseAddress(address);
+        for (int shift = 40; shift >= 0; shift -= 8)
+            buffer.put((byte) (value >>> shift));
+    }
+
+    private static String getAddress(ByteBuffer buffer) {
+        StringBuilder address = new StringBuilder(17);
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            int b = buffer.get() & 0xFF;
+            if (i > 0)
+                address.append(':');
+            address.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)));
+            address.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        }
+        return address.toString();
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
@@ -0,0 +1,92 @@
+package com.ironxiao.bleclient.connect;
+
+import java.util.Random;
+
+/**
+ * Decides when to retry a lost connection.
+ * <p>
+ * The first retry is immediate, because most drops on a flaky link recover at
+ * once. Further retries back off exponentially from {@code baseDelayMillis} up to
+ * {@code maxDelayMillis} with "equal jitter": half of the delay is fixed and half
+ * is random, so many phones losing the same peripheral do not retry in lockstep.
+ * A connection that stayed up for {@code stableMillis} resets the backoff.
+ */
+public class ReconnectPolicy {
+
+    public interface Clock {
+        public long nowMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** Returned by {@link #onDisconnected()} once {@code maxAttempts} is used up. */
+    public static final long GIVE_UP = -1;
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private final long stableMillis;
+    private final Clock clock;
+    private final Random random;
+
+    private int attempts;
+    private long connectedAtMillis = -1;
+
+    public ReconnectPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts, long stableMillis) {
+        this(baseDelayMillis, maxDelayMillis, maxAttempts, stableMillis, SYSTEM_CLOCK, new Random());
+    }
+
+    public ReconnectPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts, long stableMillis, Clock clock, Random random) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+        this.stableMillis = stableMillis;
+        this.clock = clock;
+        this.random = random;
+    }
+
+    public synchronized void onConnected() {
+        connectedAtMillis = clock.nowMillis();
+    }
+
+    /**
+     * Called for a dropped link as well as for a failed connection attempt.
+     *
+     * @return delay before the next attempt, or {@link #GIVE_UP}
+     */
+    public synchronized long onDisconnected() {
+        if (connectedAtMillis >= 0 && clock.nowMillis() - connectedAtMillis >= stableMillis)
+            attempts = 0;
+        connectedAtMillis = -1;
+        if (attempts >= maxAttempts)
+            return GIVE_UP;
+        return delayFor(attempts++);
+    }
+
+    public synchronized void reset() {
+        attempts = 0;
+        connectedAtMillis = -1;
+    }
+
+    /**
+     * @return attempts made since the last reset, the first retry being attempt 1
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    private long delayFor(int attempt) {
+        if (attempt == 0)
+            return 0;
+        long delay = baseDelayMillis << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > maxDelayMillis)
+            delay = maxDelayMillis;
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
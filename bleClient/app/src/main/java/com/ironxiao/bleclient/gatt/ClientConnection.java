@@ -0,0 +1,421 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.bleclient.transfer.BulkSender;
+import com.ironxiao.blecore.secure.SecureClient;
+import com.ironxiao.blecore.secure.SecureCodec;
+import com.ironxiao.blecore.transfer.Compression;
+import com.ironxiao.blecore.transfer.FrameAssembler;
+import com.ironxiao.blecore.transfer.FrameCodec;
+import com.ironxiao.blecore.transfer.PayloadCompressor;
+import com.ironxiao.blecore.transfer.TransferCodec;
+
+import java.util.UUID;
+
+/**
+ * Client side of the provisioning protocol on top of a {@link GattClientTransport}.
+ * <p>
+ * After a connection comes up it requests a large MTU, discovers services unless
+ * the transport still knows them, and subscribes to the notify characteristic.
+ * If the server has a capabilities characteristic, a payload codec is negotiated
+ * through it. Payloads are then framed to the MTU and written as a pipeline of
+ * write-without-response; framed notifications are reassembled into payloads.
+ * If the server offers credits, the pipeline is limited to a window of frames
+ * the server has not consumed yet, see {@link GattFrameTransport}.
+ * With security enabled and a server that offers it, an encrypted channel is set
+ * up before the connection is ready, see {@link SecureCodec}; payloads for it are
+ * sealed with {@link #seal}. A server that does not answer the handshake in time
+ * leaves the connection ready without one.
+ * While a payload is being sent the {@link LinkTuner} keeps the link fast.
+ * <p>
+ * All methods, including the transport callbacks, must be called on one thread.
+ */
+public class ClientConnection implements GattClientTransport.Callback {
+    public static final int PREFERRED_MTU = 512;
+    public static final long HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+
+    public interface Listener {
+        public void onConnected();
+
+        public void onDisconnected(int status);
+
+        /** Services are known and notifications are enabled. */
+        public void onReady();
+
+        public void onPayload(byte[] payload);
+
+        public void onSendComplete(int bytes, long bytesPerSecond);
+
+        public void onSendFailed(int status);
+    }
+
+    private final GattClientTransport transport;
+    private final GattOperationQueue queue;
+    private final GattOperationQueue.Scheduler scheduler;
+    private final UUID writeUuid;
+    private final UUID notifyUuid;
+    private final UUID cccdUuid;
+    private final UUID capabilitiesUuid;
+    private final Listener listener;
+    private final FrameAssembler notifyAssembler = new FrameAssembler();
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private final GattFrameTransport frameTransport;
+    private final BulkSender bulkSender;
+    private final LinkTuner linkTuner;
+
+    private int mtu = FrameCodec.DEFAULT_MTU;
+    private boolean connected;
+    private boolean ready;
+    private int codec = Compression.CODEC_NONE;
+    private int serverCapabilities;
+    private SecureClient secure;
+    private String secureServer;
+    private boolean handshaking;
+
+    private final Runnable handshakeTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!handshaking)
+                return;
+            if (bulkSender.isBusy()) {
+                bulkSender.cancel();
+                linkTuner.onTransferFinished();
+            }
+            finishHandshake();
+        }
+    };
+
+    private final GattFrameTransport.Listener frameListener = new GattFrameTransport.Listener() {
+        @Override
+        public void onFrameWritten() {
+            bulkSender.pump();
+        }
+
+        @Override
+        public void onFrameFailed(int status) {
+            bulkSender.cancel();
+            linkTuner.onTransferFinished();
+            if (handshaking)
+                finishHandshake();
+            else
+                listener.onSendFailed(status);
+        }
+
+        @Override
+        public void onWindowOpened() {
+            bulkSender.pump();
+        }
+    };
+
+    private final BulkSender.Listener bulkSenderListener = new BulkSender.Listener() {
+        @Override
+        public void onTransferComplete(int bytes, long elapsedNanos) {
+            linkTuner.onTransferFinished();
+            if (handshaking)
+                return;
+            listener.onSendComplete(bytes, bulkSender.getBytesPerSecond());
+        }
+    };
+
+    public ClientConnection(GattClientTransport transport, GattOperationQueue.Scheduler scheduler,
+                            UUID writeUuid, UUID notifyUuid, UUID cccdUuid, Listener listener) {
+        this(transport, scheduler, writeUuid, notifyUuid, cccdUuid, null, listener);
+    }
+
+    /**
+     * @param capabilitiesUuid characteristic to negotiate a payload codec through,
+     *                         or null to always send payloads as they are
+     */
+    public ClientConnection(GattClientTransport transport, GattOperationQueue.Scheduler scheduler,
+                            UUID writeUuid, UUID notifyUuid, UUID cccdUuid, UUID capabilitiesUuid, Listener listener) {
+        this.transport = transport;
+        this.queue = new GattOperationQueue(scheduler);
+        this.scheduler = scheduler;
+        this.writeUuid = writeUuid;
+        this.notifyUuid = notifyUuid;
+        this.cccdUuid = cccdUuid;
+        this.capabilitiesUuid = capabilitiesUuid;
+        this.listener = listener;
+        this.linkTuner = new LinkTuner(transport, scheduler, GattClientTransport.PRIORITY_BALANCED,
+                LinkTuner.DEFAULT_RELAX_DELAY_MILLIS);
+        this.frameTransport = new GattFrameTransport(queue, transport, scheduler, writeUuid, frameListener);
+        this.bulkSender = new BulkSender(frameTransport, bulkSenderListener);
+        transport.setCallback(this);
+    }
+
+    /**
+     * Sets up an encrypted channel on every connection to a server that offers one.
+     *
+     * @param secure shares its ticket store with the app's other connections
+     * @param server key of the server's ticket, e.g. its address
+     */
+    public void enableSecurity(SecureClient secure, String server) {
+        this.secure = secure;
+        this.secureServer = server;
+    }
+
+    /**
+     * @return true if payloads can be sealed for the server
+     */
+    public boolean isSecure() {
+        return ready && secure != null && secure.isEstablished();
+    }
+
+    /**
+     * @return the payload sealed for the server, or null without a channel
+     */
+    public byte[] seal(byte[] payload) {
+        return isSecure() ? secure.getChannel().seal(payload) : null;
+    }
+
+    /**
+     * Frames and sends a payload, compressed if a codec was negotiated. Sealed
+     * payloads and transfer messages are sent as they are: ciphertext does not
+     * compress, deflating it only costs time.
+     *
+     * @return false if the link is not ready or a send is still running
+     */
+    public boolean send(byte[] payload) {
+        if (handshaking)
+            return false;
+        return sendPayload(payload);
+    }
+
+    private boolean sendPayload(byte[] payload) {
+        if (!connected || !transport.hasCharacteristic(writeUuid))
+            return false;
+        if (bulkSender.isBusy())
+            return false;
+        linkTuner.onTransferStarted();
+        if (codec == Compression.CODEC_NONE) {
+            bulkSender.start(payload, mtu);
+        } else {
+            boolean opaque = SecureCodec.type(payload) != 0 || TransferCodec.type(payload) != 0;
+            //The compressor buffer stays untouched until the send is done
+            int length = compressor.encode(payload, opaque ? Compression.CODEC_NONE : codec);
+            bulkSender.start(compressor.getBuffer(), length, mtu);
+        }
+        return true;
+    }
+
+    /**
+     * @return the negotiated {@code Compression.CODEC_*}
+     */
+    public int getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return true if the server takes resumable transfers, see {@link ResumableSender}
+     */
+    public boolean supportsResume() {
+        return ready && (serverCapabilities & TransferCodec.CAPABILITY_RESUME) != 0;
+    }
+
+    /**
+     * Frees the compressor; the connection cannot send afterwards.
+     */
+    public void release() {
+        compressor.release();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public GattFrameTransport getFrameTransport() {
+        return frameTransport;
+    }
+
+    public LinkTuner getLinkTuner() {
+        return linkTuner;
+    }
+
+    public GattOperationQueue getQueue() {
+        return queue;
+    }
+
+    public GattClientTransport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public void onConnectionStateChange(boolean connected, int status) {
+        if (connected && status == GattClientTransport.STATUS_SUCCESS) {
+            this.connected = true;
+            linkTuner.onConnected();
+            listener.onConnected();
+            queue.submit(new GattOperations.RequestMtu(transport, PREFERRED_MTU));
+            //Services discovered on an earlier connection of this link are still valid
+            if (transport.hasCharacteristic(writeUuid))
+                enableNotifications();
+            else
+                queue.submit(new GattOperations.DiscoverServices(transport));
+            return;
+        }
+        this.connected = false;
+        ready = false;
+        mtu = FrameCodec.DEFAULT_MTU;
+        codec = Compression.CODEC_NONE;
+        serverCapabilities = 0;
+        handshaking = false;
+        scheduler.cancel(handshakeTimeoutTask);
+        if (secure != null)
+            secure.reset();
+        queue.clear();
+        notifyAssembler.reset();
+        bulkSender.cancel();
+        frameTransport.reset();
+        linkTuner.onDisconnected();
+        listener.onDisconnected(status);
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        if (status == GattClientTransport.STATUS_SUCCESS)
+            this.mtu = mtu;
+        queue.onComplete(GattOperation.TYPE_REQUEST_MTU, null, status);
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+        if (status == GattClientTransport.STATUS_SUCCESS)
+            enableNotifications();
+        queue.onComplete(GattOperation.TYPE_DISCOVER_SERVICES, null, status);
+    }
+
+    @Override
+    public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        if (characteristic.equals(capabilitiesUuid))
+            serverCapabilities = status == GattClientTransport.STATUS_SUCCESS && value != null && value.length > 0 ? value[0] & 0xFF : 0;
+        queue.onComplete(GattOperation.TYPE_READ_CHARACTERISTIC, characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        queue.onComplete(GattOperation.TYPE_WRITE_CHARACTERISTIC, characteristic, status);
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+        queue.onComplete(GattOperation.TYPE_WRITE_DESCRIPTOR, descriptor, status);
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+        if (!notifyUuid.equals(characteristic))
+            return;
+        if (!notifyAssembler.onFrame(value))
+            return;
+        byte[] payload = notifyAssembler.getPayload();
+        if (TransferCodec.type(payload) == TransferCodec.TYPE_CREDIT)
+            frameTransport.onCredit(TransferCodec.creditConsumed(payload, 0), TransferCodec.creditDropped(payload, 0));
+        else if (handshaking)
+            onHandshakeMessage(payload);
+        else
+            listener.onPayload(payload);
+    }
+
+    @Override
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        linkTuner.onPhyUpdate(txPhy, rxPhy, status);
+    }
+
+    private void enableNotifications() {
+        if (!transport.hasCharacteristic(notifyUuid)) {
+            negotiateCodec();
+            return;
+        }
+        queue.submit(new GattOperations.SetNotification(transport, notifyUuid, true));
+        queue.submit(new GattOperations.WriteDescriptor(transport, notifyUuid, cccdUuid, ENABLE_NOTIFICATION_VALUE) {
+            @Override
+            protected void onComplete(int status) {
+                if (status == GattClientTransport.STATUS_SUCCESS)
+                    negotiateCodec();
+            }
+        });
+    }
+
+    /**
+     * Reads which codecs the server decodes and announces the one we will use,
+     * followed by the credits feature if the server has it. Servers without the
+     * characteristic get plain payloads without codec byte.
+     */
+    private void negotiateCodec() {
+        if (capabilitiesUuid == null || !transport.hasCharacteristic(capabilitiesUuid)) {
+            onReady();
+            return;
+        }
+        serverCapabilities = 0;
+        queue.submit(new GattOperations.ReadCharacteristic(transport, capabilitiesUuid) {
+            @Override
+            protected void onComplete(int status) {
+                if (status == GattOperation.STATUS_CANCELLED)
+                    return;
+                final boolean credits = (serverCapabilities & TransferCodec.CAPABILITY_CREDITS) != 0;
+                final int choice = (serverCapabilities & Compression.CAPABILITY_DEFLATE) != 0
+                        ? Compression.CODEC_DEFLATE : Compression.CODEC_NONE;
+                if (choice == Compression.CODEC_NONE && !credits) {
+                    onReady();
+                    return;
+                }
+                byte[] value = credits
+                        ? new byte[]{(byte) choice, (byte) TransferCodec.CAPABILITY_CREDITS}
+                        : new byte[]{(byte) choice};
+                queue.submit(new GattOperations.WriteCharacteristic(transport, capabilitiesUuid, value,
+                        GattClientTransport.WRITE_TYPE_DEFAULT, false) {
+                    @Override
+                    protected void onComplete(int status) {
+                        if (status == GattOperation.STATUS_CANCELLED)
+                            return;
+                        if (status == GattClientTransport.STATUS_SUCCESS) {
+                            codec = choice;
+                            if (credits)
+                                frameTransport.enableCredits();
+                        }
+                        onReady();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sets up the encrypted channel if we want one and the server offers it.
+     */
+    private void onReady() {
+        if (secure == null || (serverCapabilities & SecureCodec.CAPABILITY_SECURE) == 0) {
+            finishHandshake();
+            return;
+        }
+        handshaking = true;
+        scheduler.schedule(handshakeTimeoutTask, HANDSHAKE_TIMEOUT_MILLIS);
+        if (!sendPayload(secure.start(secureServer, System.currentTimeMillis())))
+            finishHandshake();
+    }
+
+    private void onHandshakeMessage(byte[] payload) {
+        //Anything else, e.g. a NAK, ends the handshake without a channel
+        byte[] next = SecureCodec.type(payload) != 0
+                ? secure.onMessage(payload, 0, payload.length, System.currentTimeMillis())
+                : null;
+        if (next == null || !sendPayload(next))
+            finishHandshake();
+    }
+
+    private void finishHandshake() {
+        handshaking = false;
+        scheduler.cancel(handshakeTimeoutTask);
+        ready = true;
+        listener.onReady();
+    }
+}
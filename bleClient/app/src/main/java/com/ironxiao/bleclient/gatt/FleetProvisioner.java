@@ -0,0 +1,353 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.bleclient.connect.ReconnectPolicy;
+import com.ironxiao.blecore.secure.SecureClient;
+import com.ironxiao.blecore.secure.TicketStore;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Provisions many peripherals at once, e.g. a rack of units found by one scan.
+ * <p>
+ * Found devices wait in a FIFO queue; up to {@code maxConnections} of them are
+ * worked on in parallel, each with its own transport and {@link ClientConnection}:
+ * connect, set up the link, send the device's payload and wait for its ACK. A job
+ * that fails or takes longer than {@code jobTimeoutMillis} is retried at the back of
+ * the queue until {@code maxAttempts} is used up. Every finished job frees its slot
+ * for the next device, so the scan can keep running while jobs complete.
+ * <p>
+ * With {@link #setSessionTickets} every job sets up an encrypted channel and only
+ * sends the payload sealed; a retried job resumes with the ticket of its last
+ * attempt instead of repeating the key exchange.
+ * <p>
+ * All methods, including the transport callbacks, must be called on one thread.
+ */
+public class FleetProvisioner {
+    /** Android controllers typically handle 7 LE links; leave one for others. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 6;
+    public static final long DEFAULT_JOB_TIMEOUT_MILLIS = 30 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+
+    public static final int FAILURE_TIMEOUT = 1;
+    public static final int FAILURE_DISCONNECTED = 2;
+    public static final int FAILURE_SEND = 3;
+    public static final int FAILURE_NAK = 4;
+    public static final int FAILURE_CONNECT = 5;
+    /** The device set up no encrypted channel, see {@link #setSessionTickets}. */
+    public static final int FAILURE_INSECURE = 6;
+
+    public interface TransportFactory {
+        public GattClientTransport create(String address);
+    }
+
+    public interface PayloadSource {
+        public byte[] payloadFor(String address);
+    }
+
+    public interface Listener {
+        public void onDeviceProvisioned(String address, int bytes, long elapsedMillis);
+
+        /**
+         * @param reason one of the {@code FAILURE_} values of the last attempt
+         */
+        public void onDeviceFailed(String address, int reason);
+
+        /** No job is running or waiting. */
+        public void onIdle();
+    }
+
+    private final TransportFactory transportFactory;
+    private final GattOperationQueue.Scheduler scheduler;
+    private final ReconnectPolicy.Clock clock;
+    private final UUID writeUuid;
+    private final UUID notifyUuid;
+    private final UUID cccdUuid;
+    private final UUID capabilitiesUuid;
+    private final PayloadSource payloadSource;
+    private final Listener listener;
+    private final int maxConnections;
+    private final long jobTimeoutMillis;
+    private final int maxAttempts;
+
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private final Map<String, Job> active = new HashMap<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private final Set<String> finished = new HashSet<>();
+    private GattOperationQueue.Observer operationObserver;
+    private TicketStore<String> sessionTickets;
+    private SecureRandom random;
+
+    private int provisioned;
+    private int failed;
+    private long bytes;
+    private long firstStartMillis = -1;
+    private long lastFinishMillis = -1;
+    private int peakConnections;
+    private boolean pumping;
+
+    public FleetProvisioner(TransportFactory transportFactory, GattOperationQueue.Scheduler scheduler,
+                            ReconnectPolicy.Clock clock, UUID writeUuid, UUID notifyUuid, UUID cccdUuid,
+                            UUID capabilitiesUuid, PayloadSource payloadSource, Listener listener,
+                            int maxConnections, long jobTimeoutMillis, int maxAttempts) {
+        this.transportFactory = transportFactory;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.writeUuid = writeUuid;
+        this.notifyUuid = notifyUuid;
+        this.cccdUuid = cccdUuid;
+        this.capabilitiesUuid = capabilitiesUuid;
+        this.payloadSource = payloadSource;
+        this.listener = listener;
+        this.maxConnections = maxConnections;
+        this.jobTimeoutMillis = jobTimeoutMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Every job's operation queue reports to this observer, e.g. {@link GattMetrics}.
+     */
+    public void setOperationObserver(GattOperationQueue.Observer observer) {
+        this.operationObserver = observer;
+    }
+
+    /**
+     * Payloads of jobs started from now on are only sent over an encrypted channel.
+     *
+     * @param tickets session tickets by device address, may be shared with other connections
+     */
+    public void setSessionTickets(TicketStore<String> tickets) {
+        this.sessionTickets = tickets;
+        if (random == null)
+            random = new SecureRandom();
+    }
+
+    /**
+     * Queues a device for provisioning. Devices already queued, running or
+     * finished are ignored, so scan results can be passed on as they come.
+     *
+     * @return true if the device was queued
+     */
+    public boolean onDeviceFound(String address) {
+        if (finished.contains(address) || active.containsKey(address) || attempts.containsKey(address))
+            return false;
+        attempts.put(address, 0);
+        pending.add(address);
+        pump();
+        return true;
+    }
+
+    /**
+     * Drops waiting devices and aborts running jobs without reporting them.
+     */
+    public void cancel() {
+        pending.clear();
+        for (Job job : active.values().toArray(new Job[0]))
+            job.close();
+        active.clear();
+        attempts.clear();
+    }
+
+    public boolean isIdle() {
+        return active.isEmpty() && pending.isEmpty();
+    }
+
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public int getProvisionedCount() {
+        return provisioned;
+    }
+
+    public int getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * @return most jobs that ran at the same time
+     */
+    public int getPeakConnections() {
+        return peakConnections;
+    }
+
+    /**
+     * @return payload bytes acknowledged by all devices
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return time from the first job start to the last job end so far
+     */
+    public long getElapsedMillis() {
+        if (firstStartMillis < 0)
+            return 0;
+        long end = isIdle() && lastFinishMillis >= 0 ? lastFinishMillis : clock.nowMillis();
+        return end - firstStartMillis;
+    }
+
+    /**
+     * @return acknowledged payload bytes per second over all devices
+     */
+    public long getBytesPerSecond() {
+        long elapsed = getElapsedMillis();
+        return elapsed <= 0 ? 0 : bytes * 1000 / elapsed;
+    }
+
+    private void pump() {
+        //A job that fails right away in start() ends up here again
+        if (pumping)
+            return;
+        pumping = true;
+        try {
+            while (active.size() < maxConnections && !pending.isEmpty()) {
+                String address = pending.poll();
+                attempts.put(address, attempts.get(address) + 1);
+                Job job = new Job(address, payloadSource.payloadFor(address));
+                active.put(address, job);
+                peakConnections = Math.max(peakConnections, active.size());
+                if (firstStartMillis < 0)
+                    firstStartMillis = clock.nowMillis();
+                job.start();
+            }
+        } finally {
+            pumping = false;
+        }
+        if (isIdle())
+            listener.onIdle();
+    }
+
+    private void onJobDone(Job job, int failure) {
+        if (active.get(job.address) != job)
+            return;
+        active.remove(job.address);
+        job.close();
+        lastFinishMillis = clock.nowMillis();
+        if (failure == 0) {
+            provisioned++;
+            bytes += job.payload.length;
+            attempts.remove(job.address);
+            finished.add(job.address);
+            listener.onDeviceProvisioned(job.address, job.payload.length, lastFinishMillis - job.startMillis);
+        } else if (attempts.get(job.address) < maxAttempts) {
+            pending.add(job.address);
+        } else {
+            failed++;
+            attempts.remove(job.address);
+            finished.add(job.address);
+            listener.onDeviceFailed(job.address, failure);
+        }
+        pump();
+    }
+
+    /**
+     * One attempt at provisioning one device.
+     */
+    private class Job implements ClientConnection.Listener {
+        final String address;
+        final byte[] payload;
+        final GattClientTransport transport;
+        final ClientConnection connection;
+        long startMillis;
+        boolean sent;
+        boolean closed;
+
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                onJobDone(Job.this, FAILURE_TIMEOUT);
+            }
+        };
+
+        Job(String address, byte[] payload) {
+            this.address = address;
+            this.payload = payload;
+            this.transport = transportFactory.create(address);
+            this.connection = new ClientConnection(transport, scheduler, writeUuid, notifyUuid, cccdUuid,
+                    capabilitiesUuid, this);
+            if (operationObserver != null)
+                connection.getQueue().setObserver(operationObserver);
+            if (sessionTickets != null)
+                connection.enableSecurity(new SecureClient(random, sessionTickets), address);
+        }
+
+        void start() {
+            startMillis = clock.nowMillis();
+            scheduler.schedule(timeout, jobTimeoutMillis);
+            if (!transport.connect(address))
+                onJobDone(this, FAILURE_CONNECT);
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            scheduler.cancel(timeout);
+            transport.close();
+            connection.release();
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected(int status) {
+            if (!closed)
+                onJobDone(this, FAILURE_DISCONNECTED);
+        }
+
+        @Override
+        public void onReady() {
+            if (closed || sent)
+                return;
+            if (sessionTickets != null && !connection.isSecure()) {
+                onJobDone(this, FAILURE_INSECURE);
+                return;
+            }
+            sent = connection.send(sessionTickets != null ? connection.seal(payload) : payload);
+            if (!sent)
+                onJobDone(this, FAILURE_SEND);
+        }
+
+        @Override
+        public void onPayload(byte[] reply) {
+            if (closed || !sent)
+                return;
+            onJobDone(this, startsWith(reply, ACK) ? 0 : FAILURE_NAK);
+        }
+
+        @Override
+        public void onSendComplete(int bytes, long bytesPerSecond) {
+        }
+
+        @Override
+        public void onSendFailed(int status) {
+            if (!closed)
+                onJobDone(this, FAILURE_SEND);
+        }
+    }
+
+    private static final byte[] ACK = {'A', 'C', 'K', ':'};
+
+    private static boolean startsWith(byte[] value, byte[] prefix) {
+        if (value.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (value[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+}
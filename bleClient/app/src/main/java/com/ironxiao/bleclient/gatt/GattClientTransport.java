@@ -0,0 +1,102 @@
+package com.ironxiao.bleclient.gatt;
+
+import java.util.UUID;
+
+/**
+ * The GATT client operations the app needs, on the characteristics of one service.
+ * <p>
+ * Like {@code BluetoothGatt}, a transport runs one operation at a time: a call made
+ * while another operation is outstanding returns false. Results arrive on the
+ * {@link Callback}, always on the same thread.
+ */
+public interface GattClientTransport {
+    /** Same values as {@code BluetoothGattCharacteristic.WRITE_TYPE_*}. */
+    public static final int WRITE_TYPE_NO_RESPONSE = 1;
+    public static final int WRITE_TYPE_DEFAULT = 2;
+
+    public static final int STATUS_SUCCESS = 0;
+
+    /** Same values as {@code BluetoothGatt.CONNECTION_PRIORITY_*}. */
+    public static final int PRIORITY_BALANCED = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_LOW_POWER = 2;
+
+    /** Same values as {@code BluetoothDevice.PHY_LE_*} and {@code PHY_LE_*_MASK}. */
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_CODED = 3;
+    public static final int PHY_LE_1M_MASK = 1;
+    public static final int PHY_LE_2M_MASK = 2;
+
+    public interface Callback {
+        public void onConnectionStateChange(boolean connected, int status);
+
+        public void onMtuChanged(int mtu, int status);
+
+        public void onServicesDiscovered(int status);
+
+        public void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        public void onCharacteristicWrite(UUID characteristic, int status);
+
+        public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status);
+
+        public void onCharacteristicChanged(UUID characteristic, byte[] value);
+
+        public void onPhyUpdate(int txPhy, int rxPhy, int status);
+    }
+
+    public void setCallback(Callback callback);
+
+    /**
+     * Opens a new connection to the device, dropping any previous one.
+     */
+    public boolean connect(String address);
+
+    /**
+     * Reconnects the current link, keeping what was discovered on it.
+     *
+     * @return false if there is no link to reuse
+     */
+    public boolean reconnect();
+
+    public void disconnect();
+
+    public void close();
+
+    public boolean isConnected(String address);
+
+    /**
+     * @return true if services are discovered and the characteristic exists
+     */
+    public boolean hasCharacteristic(UUID characteristic);
+
+    public boolean requestMtu(int mtu);
+
+    public boolean discoverServices();
+
+    public boolean readCharacteristic(UUID characteristic);
+
+    public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType);
+
+    /**
+     * Enables local delivery of notifications; completes synchronously.
+     */
+    public boolean setCharacteristicNotification(UUID characteristic, boolean enable);
+
+    public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value);
+
+    /**
+     * Asks the controller for a different connection interval. Takes effect some
+     * time later, has no callback and does not count as an outstanding operation.
+     */
+    public boolean requestConnectionPriority(int priority);
+
+    /**
+     * Asks for the given PHYs; the result arrives on {@link Callback#onPhyUpdate}.
+     * Does not count as an outstanding operation.
+     *
+     * @return false if the local controller does not support the PHYs
+     */
+    public boolean setPreferredPhy(int txPhyMask, int rxPhyMask);
+}
@@ -0,0 +1,194 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.bleclient.transfer.FrameTransport;
+import com.ironxiao.blecore.transfer.AimdWindow;
+import com.ironxiao.blecore.transfer.TransferCodec;
+
+import java.util.UUID;
+
+/**
+ * Sends frames as write-without-response to one characteristic.
+ * <p>
+ * Android still reports each write in {@code onCharacteristicWrite} and rejects
+ * a new one until then, so only one frame is handed to the queue at a time and
+ * those callbacks clock the writes. A write the stack refuses, usually because
+ * the controller's buffers are full, is tried again after a short pause instead
+ * of failing the payload.
+ * <p>
+ * Once the server sends credits ({@link #enableCredits()}), no more than a window
+ * of frames it has not consumed yet may be on the way. The window grows while
+ * credits come back and halves when the stack refuses a write or the server
+ * reports dropped frames, see {@link AimdWindow}. If credits stop coming while
+ * frames are on the way, they are written off and the window halves as well.
+ * <p>
+ * All methods must be called on the connection's thread.
+ */
+public class GattFrameTransport implements FrameTransport {
+    public static final int DEFAULT_INITIAL_WINDOW = 8;
+    public static final int DEFAULT_MAX_WINDOW = 64;
+    public static final long RETRY_DELAY_MILLIS = 10;
+    /** Refused writes of one frame in a row before it fails. */
+    public static final int MAX_RETRIES = 5;
+    public static final long CREDIT_TIMEOUT_MILLIS = 1000;
+
+    public interface Listener {
+        public void onFrameWritten();
+
+        public void onFrameFailed(int status);
+
+        /** Credits made room for more frames. */
+        public void onWindowOpened();
+    }
+
+    private final GattOperationQueue queue;
+    private final GattClientTransport transport;
+    private final GattOperationQueue.Scheduler scheduler;
+    private final UUID characteristic;
+    private final Listener listener;
+    private final AimdWindow window = new AimdWindow(DEFAULT_INITIAL_WINDOW, TransferCodec.CREDIT_INTERVAL,
+            DEFAULT_MAX_WINDOW);
+    private boolean writing;
+    private byte[] retryFrame;
+    private int retries;
+
+    private boolean credits;
+    //Frames written since credits were enabled, and the server's counts of them
+    private int written;
+    private int consumed;
+    private int dropped;
+    private int writtenOff;
+
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            byte[] frame = retryFrame;
+            retryFrame = null;
+            if (frame != null)
+                write(frame);
+        }
+    };
+
+    private final Runnable creditTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!credits || getInFlight() == 0)
+                return;
+            writtenOff += getInFlight();
+            window.onCongestion();
+            listener.onWindowOpened();
+        }
+    };
+
+    public GattFrameTransport(GattOperationQueue queue, GattClientTransport transport,
+                              GattOperationQueue.Scheduler scheduler, UUID characteristic, Listener listener) {
+        this.queue = queue;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.characteristic = characteristic;
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean send(byte[] frame) {
+        if (writing || retryFrame != null)
+            return false;
+        if (credits && getInFlight() >= window.get())
+            return false;
+        write(frame);
+        return true;
+    }
+
+    /**
+     * The server notifies credits from now on; see {@code TransferCodec.CAPABILITY_CREDITS}.
+     */
+    public void enableCredits() {
+        credits = true;
+        written = 0;
+        consumed = 0;
+        dropped = 0;
+        writtenOff = 0;
+    }
+
+    public boolean creditsEnabled() {
+        return credits;
+    }
+
+    /**
+     * Takes a credit the server notified.
+     *
+     * @param consumedFrames frames the server consumed so far
+     * @param droppedFrames  frames the server had no room for so far
+     */
+    public void onCredit(int consumedFrames, int droppedFrames) {
+        if (!credits)
+            return;
+        int newlyConsumed = consumedFrames - consumed;
+        int newlyDropped = droppedFrames - dropped;
+        consumed = consumedFrames;
+        dropped = droppedFrames;
+        //Frames that were written off on a timeout turned up after all
+        int late = Math.min(writtenOff, Math.max(0, consumed + dropped + writtenOff - written));
+        writtenOff -= late;
+        if (newlyDropped > 0)
+            window.onCongestion();
+        window.onAcked(newlyConsumed);
+        scheduler.cancel(creditTimeoutTask);
+        if (getInFlight() > 0)
+            scheduler.schedule(creditTimeoutTask, CREDIT_TIMEOUT_MILLIS);
+        listener.onWindowOpened();
+    }
+
+    /**
+     * @return frames written that no credit accounted for yet
+     */
+    public int getInFlight() {
+        return Math.max(0, written - consumed - dropped - writtenOff);
+    }
+
+    public AimdWindow getWindow() {
+        return window;
+    }
+
+    /**
+     * Forgets the link, e.g. on disconnect. The window starts over as well.
+     */
+    public void reset() {
+        scheduler.cancel(retryTask);
+        scheduler.cancel(creditTimeoutTask);
+        retryFrame = null;
+        retries = 0;
+        credits = false;
+        window.reset();
+    }
+
+    private void write(final byte[] frame) {
+        writing = true;
+        queue.submit(new GattOperations.WriteCharacteristic(transport, characteristic, frame, GattClientTransport.WRITE_TYPE_NO_RESPONSE, false) {
+            @Override
+            protected void onComplete(int status) {
+                writing = false;
+                if (status == GattClientTransport.STATUS_SUCCESS) {
+                    retries = 0;
+                    onWritten();
+                    listener.onFrameWritten();
+                } else if (status == GattOperation.STATUS_REJECTED && retries < MAX_RETRIES) {
+                    retries++;
+                    window.onCongestion();
+                    retryFrame = frame;
+                    scheduler.schedule(retryTask, RETRY_DELAY_MILLIS);
+                } else {
+                    retries = 0;
+                    listener.onFrameFailed(status);
+                }
+            }
+        });
+    }
+
+    private void onWritten() {
+        if (!credits)
+            return;
+        written++;
+        scheduler.cancel(creditTimeoutTask);
+        scheduler.schedule(creditTimeoutTask, CREDIT_TIMEOUT_MILLIS);
+    }
+}
@@ -0,0 +1,52 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.bleclient.metrics.Histogram;
+import com.ironxiao.bleclient.metrics.MetricsRegistry;
+import com.ironxiao.bleclient.metrics.StatusCounter;
+
+/**
+ * Records GATT operation latencies per operation type, in microseconds, and counts
+ * every completion status, including rejections and timeouts.
+ */
+public class GattMetrics implements GattOperationQueue.Observer {
+    private final Histogram mtu;
+    private final Histogram discovery;
+    private final Histogram read;
+    private final Histogram write;
+    private final Histogram descriptorWrite;
+    private final StatusCounter statuses;
+
+    public GattMetrics(MetricsRegistry registry) {
+        mtu = registry.histogram("gatt.mtu", "us");
+        discovery = registry.histogram("gatt.discovery", "us");
+        read = registry.histogram("gatt.read", "us");
+        write = registry.histogram("gatt.write", "us");
+        descriptorWrite = registry.histogram("gatt.descriptor_write", "us");
+        statuses = registry.statusCounter("gatt.status");
+    }
+
+    @Override
+    public void onOperationComplete(int type, int status, long elapsedNanos) {
+        statuses.increment(status);
+        Histogram histogram = histogramFor(type);
+        if (histogram != null && status == GattClientTransport.STATUS_SUCCESS)
+            histogram.record(elapsedNanos / 1000);
+    }
+
+    private Histogram histogramFor(int type) {
+        switch (type) {
+            case GattOperation.TYPE_REQUEST_MTU:
+                return mtu;
+            case GattOperation.TYPE_DISCOVER_SERVICES:
+                return discovery;
+            case GattOperation.TYPE_READ_CHARACTERISTIC:
+                return read;
+            case GattOperation.TYPE_WRITE_CHARACTERISTIC:
+                return write;
+            case GattOperation.TYPE_WRITE_DESCRIPTOR:
+                return descriptorWrite;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ironxiao.bleclient.gatt;
+
+import java.util.UUID;
+
+/**
+ * One request to the GATT client, e.g. a characteristic write.
+ * <p>
+ * Android keeps a single operation outstanding per connection, so operations are
+ * run one after the other by {@link GattOperationQueue}.
+ */
+public abstract class GattOperation {
+    public static final int TYPE_REQUEST_MTU = 1;
+    public static final int TYPE_DISCOVER_SERVICES = 2;
+    public static final int TYPE_READ_CHARACTERISTIC = 3;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 4;
+    public static final int TYPE_WRITE_DESCRIPTOR = 5;
+    public static final int TYPE_SET_NOTIFICATION = 6;
+
+    /** Completion status when the stack refused to start the operation. */
+    public static final int STATUS_REJECTED = -1;
+    /** Completion status when no callback arrived in time. */
+    public static final int STATUS_TIMEOUT = -2;
+    /** Completion status for operations dropped by {@link GattOperationQueue#clear()}. */
+    public static final int STATUS_CANCELLED = -3;
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final int type;
+    private final UUID uuid;
+    private final String coalesceKey;
+    private final long timeoutMillis;
+
+    /**
+     * @param uuid        characteristic or descriptor the operation targets, null if none
+     * @param coalesceKey operations with the same non-null key replace each other while
+     *                    still pending, so only the latest one runs
+     */
+    protected GattOperation(int type, UUID uuid, String coalesceKey, long timeoutMillis) {
+        this.type = type;
+        this.uuid = uuid;
+        this.coalesceKey = coalesceKey;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Hands the operation to the stack.
+     *
+     * @return false if the stack refused it
+     */
+    protected abstract boolean execute();
+
+    /**
+     * Called once with the callback status, or one of the {@code STATUS_} values.
+     */
+    protected void onComplete(int status) {
+    }
+
+    /**
+     * Operations whose framework call has no callback, such as
+     * {@code setCharacteristicNotification}, complete as soon as they are executed.
+     */
+    protected boolean isSynchronous() {
+        return type == TYPE_SET_NOTIFICATION;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    boolean matches(int type, UUID uuid) {
+        return this.type == type && (this.uuid == null || uuid == null || this.uuid.equals(uuid));
+    }
+}
@@ -0,0 +1,165 @@
+package com.ironxiao.bleclient.gatt;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.UUID;
+
+/**
+ * Runs {@link GattOperation}s one at a time.
+ * <p>
+ * The next operation starts as soon as the matching {@code BluetoothGattCallback}
+ * method reports the current one through {@link #onComplete(int, UUID, int)}, or
+ * when the current one times out. The stack still reports a timed out operation
+ * eventually; that late callback is swallowed instead of completing a later
+ * operation of the same kind. An {@link Observer} sees how long each operation
+ * took and how it ended.
+ */
+public class GattOperationQueue {
+
+    /**
+     * Timer used for operation timeouts, e.g. backed by a {@code Handler}.
+     */
+    public interface Scheduler {
+        public void schedule(Runnable task, long delayMillis);
+
+        public void cancel(Runnable task);
+    }
+
+    public interface Observer {
+        /**
+         * Called on the completing thread, under the queue lock; must not block.
+         *
+         * @param elapsedNanos from handing the operation to the stack until its callback
+         */
+        public void onOperationComplete(int type, int status, long elapsedNanos);
+    }
+
+    private final Scheduler scheduler;
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<>();
+    //Timed out, their callbacks still to come, oldest first
+    private final ArrayDeque<GattOperation> timedOut = new ArrayDeque<>();
+    private GattOperation current;
+    private Runnable currentTimeout;
+    private long currentStartNanos;
+    private int timeouts;
+    private Observer observer;
+
+    public GattOperationQueue(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public synchronized void setObserver(Observer observer) {
+        this.observer = observer;
+    }
+
+    public synchronized void submit(GattOperation operation) {
+        String key = operation.getCoalesceKey();
+        if (key != null) {
+            for (Iterator<GattOperation> it = pending.iterator(); it.hasNext(); ) {
+                GattOperation queued = it.next();
+                if (key.equals(queued.getCoalesceKey())) {
+                    it.remove();
+                    queued.onComplete(GattOperation.STATUS_CANCELLED);
+                    break;
+                }
+            }
+        }
+        pending.add(operation);
+        next();
+    }
+
+    /**
+     * Reports a GATT callback. Callbacks that do not belong to the running
+     * operation, or that arrive late for one that timed out, are ignored.
+     *
+     * @return true if the callback completed the running operation
+     */
+    public synchronized boolean onComplete(int type, UUID uuid, int status) {
+        //The stack answers in order, so the oldest matching timed out operation is meant
+        for (Iterator<GattOperation> it = timedOut.iterator(); it.hasNext(); ) {
+            if (it.next().matches(type, uuid)) {
+                it.remove();
+                return false;
+            }
+        }
+        if (current == null || !current.matches(type, uuid))
+            return false;
+        finish(status);
+        return true;
+    }
+
+    /**
+     * Drops the running and all pending operations, e.g. on disconnect.
+     */
+    public synchronized void clear() {
+        timedOut.clear();
+        GattOperation running = current;
+        current = null;
+        if (running != null) {
+            scheduler.cancel(currentTimeout);
+            currentTimeout = null;
+            running.onComplete(GattOperation.STATUS_CANCELLED);
+        }
+        GattOperation queued;
+        while ((queued = pending.poll()) != null)
+            queued.onComplete(GattOperation.STATUS_CANCELLED);
+    }
+
+    public synchronized boolean isIdle() {
+        return current == null && pending.isEmpty();
+    }
+
+    public synchronized int size() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    public synchronized int getTimeouts() {
+        return timeouts;
+    }
+
+    private void finish(int status) {
+        GattOperation done = current;
+        current = null;
+        scheduler.cancel(currentTimeout);
+        currentTimeout = null;
+        if (observer != null)
+            observer.onOperationComplete(done.getType(), status, System.nanoTime() - currentStartNanos);
+        done.onComplete(status);
+        next();
+    }
+
+    private void next() {
+        while (current == null && !pending.isEmpty()) {
+            GattOperation operation = pending.poll();
+            current = operation;
+            currentStartNanos = System.nanoTime();
+            if (!operation.execute()) {
+                current = null;
+                if (observer != null)
+                    observer.onOperationComplete(operation.getType(), GattOperation.STATUS_REJECTED, 0);
+                operation.onComplete(GattOperation.STATUS_REJECTED);
+            } else if (operation.isSynchronous()) {
+                current = null;
+                operation.onComplete(0);
+            } else {
+                currentTimeout = timeoutFor(operation);
+                scheduler.schedule(currentTimeout, operation.getTimeoutMillis());
+            }
+        }
+    }
+
+    private Runnable timeoutFor(final GattOperation operation) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GattOperationQueue.this) {
+                    if (current != operation)
+                        return;
+                    timeouts++;
+                    timedOut.add(operation);
+                    finish(GattOperation.STATUS_TIMEOUT);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+package com.ironxiao.bleclient.gatt;
+
+import java.util.UUID;
+
+/**
+ * {@link GattOperation}s backed by a {@link GattClientTransport}. Override
+ * {@code onComplete} to act on the result.
+ */
+public class GattOperations {
+
+    private GattOperations() {
+    }
+
+    public static class RequestMtu extends GattOperation {
+        private final GattClientTransport transport;
+        private final int mtu;
+
+        public RequestMtu(GattClientTransport transport, int mtu) {
+            super(TYPE_REQUEST_MTU, null, "mtu", DEFAULT_TIMEOUT_MILLIS);
+            this.transport = transport;
+            this.mtu = mtu;
+        }
+
+        @Override
+        protected boolean execute() {
+            return transport.requestMtu(mtu);
+        }
+    }
+
+    public static class DiscoverServices extends GattOperation {
+        private final GattClientTransport transport;
+
+        public DiscoverServices(GattClientTransport transport) {
+            super(TYPE_DISCOVER_SERVICES, null, "discover", 3 * DEFAULT_TIMEOUT_MILLIS);
+            this.transport = transport;
+        }
+
+        @Override
+        protected boolean execute() {
+            return transport.discoverServices();
+        }
+    }
+
+    public static class SetNotification extends GattOperation {
+        private final GattClientTransport transport;
+        private final boolean enable;
+
+        public SetNotification(GattClientTransport transport, UUID characteristic, boolean enable) {
+            super(TYPE_SET_NOTIFICATION, characteristic, "notify:" + characteristic, DEFAULT_TIMEOUT_MILLIS);
+            this.transport = transport;
+            this.enable = enable;
+        }
+
+        @Override
+        protected boolean execute() {
+            return transport.setCharacteristicNotification(getUuid(), enable);
+        }
+    }
+
+    public static class ReadCharacteristic extends GattOperation {
+        private final GattClientTransport transport;
+
+        public ReadCharacteristic(GattClientTransport transport, UUID characteristic) {
+            super(TYPE_READ_CHARACTERISTIC, characteristic, "read:" + characteristic, DEFAULT_TIMEOUT_MILLIS);
+            this.transport = transport;
+        }
+
+        @Override
+        protected boolean execute() {
+            return transport.readCharacteristic(getUuid());
+        }
+    }
+
+    /**
+     * The value is applied when the write runs, so queued writes to the same
+     * characteristic do not overwrite each other.
+     */
+    public static class WriteCharacteristic extends GattOperation {
+        private final GattClientTransport transport;
+        private final byte[] value;
+        private final int writeType;
+
+        /**
+         * @param coalesce true if a newer write of the same characteristic may replace
+         *                 this one while it is still queued
+         */
+        public WriteCharacteristic(GattClientTransport transport, UUID characteristic, byte[] value, int writeType, boolean coalesce) {
+            super(TYPE_WRITE_CHARACTERISTIC, characteristic, coalesce ? "write:" + characteristic : null, DEFAULT_TIMEOUT_MILLIS);
+            this.transport = transport;
+            this.value = value;
+            this.writeType = writeType;
+        }
+
+        @Override
+        protected boolean execute() {
+            return transport.writeCharacteristic(getUuid(), value, writeType);
+        }
+    }
+
+    public static class WriteDescriptor extends GattOperation {
+        private final GattClientTransport transport;
+        private final UUID characteristic;
+        private final byte[] value;
+
+        public WriteDescriptor(GattClientTransport transport, UUID characteristic, UUID descriptor, byte[] value) {
+            super(TYPE_WRITE_DESCRIPTOR, descriptor, "descriptor:" + characteristic + "/" + descriptor, DEFAULT_TIMEOUT_MILLIS);
+            this.transport = transport;
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+
+        @Override
+        protected boolean execute() {
+            return transport.writeDescriptor(characteristic, getUuid(), value);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ironxiao.bleclient.gatt;
+
+/**
+ * Trades battery for throughput only while a bulk transfer runs.
+ * <p>
+ * When a transfer starts the connection priority goes to HIGH, which shortens the
+ * connection interval to 7.5-15 ms, and the 2M PHY is requested if the controller
+ * has it. Once transfers stop for {@code relaxDelayMillis} the priority drops back
+ * to the idle one, so back-to-back payloads don't make the link flap. The PHY is
+ * left alone: 2M needs half the airtime for the same bytes and costs nothing idle.
+ * <p>
+ * The tuner also remembers what the link ended up with, for logging and metrics.
+ * All methods must be called on the transport's callback thread.
+ */
+public class LinkTuner {
+    public static final long DEFAULT_RELAX_DELAY_MILLIS = 2000;
+
+    private final GattClientTransport transport;
+    private final GattOperationQueue.Scheduler scheduler;
+    private final int idlePriority;
+    private final long relaxDelayMillis;
+
+    private final Runnable relax = new Runnable() {
+        @Override
+        public void run() {
+            relaxPending = false;
+            boosted = false;
+            requestPriority(idlePriority);
+        }
+    };
+
+    private boolean connected;
+    private boolean boosted;
+    private boolean relaxPending;
+    private boolean phyRequested;
+    private boolean phy2mUnavailable;
+    private int priority = GattClientTransport.PRIORITY_BALANCED;
+    private int txPhy = GattClientTransport.PHY_LE_1M;
+    private int rxPhy = GattClientTransport.PHY_LE_1M;
+    private int boosts;
+
+    /**
+     * @param idlePriority {@code PRIORITY_BALANCED} or {@code PRIORITY_LOW_POWER}
+     */
+    public LinkTuner(GattClientTransport transport, GattOperationQueue.Scheduler scheduler,
+                     int idlePriority, long relaxDelayMillis) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.idlePriority = idlePriority;
+        this.relaxDelayMillis = relaxDelayMillis;
+    }
+
+    public void onConnected() {
+        connected = true;
+        //Every new connection starts out balanced
+        priority = GattClientTransport.PRIORITY_BALANCED;
+        if (idlePriority != priority)
+            requestPriority(idlePriority);
+    }
+
+    public void onDisconnected() {
+        if (relaxPending)
+            scheduler.cancel(relax);
+        connected = false;
+        boosted = false;
+        relaxPending = false;
+        phyRequested = false;
+        phy2mUnavailable = false;
+        priority = GattClientTransport.PRIORITY_BALANCED;
+        txPhy = GattClientTransport.PHY_LE_1M;
+        rxPhy = GattClientTransport.PHY_LE_1M;
+    }
+
+    public void onTransferStarted() {
+        if (!connected)
+            return;
+        if (relaxPending) {
+            scheduler.cancel(relax);
+            relaxPending = false;
+        }
+        if (!boosted) {
+            boosted = true;
+            boosts++;
+            requestPriority(GattClientTransport.PRIORITY_HIGH);
+        }
+        if (txPhy != GattClientTransport.PHY_LE_2M && !phyRequested && !phy2mUnavailable) {
+            phyRequested = transport.setPreferredPhy(GattClientTransport.PHY_LE_2M_MASK, GattClientTransport.PHY_LE_2M_MASK);
+            phy2mUnavailable = !phyRequested;
+        }
+    }
+
+    public void onTransferFinished() {
+        if (!boosted || relaxPending)
+            return;
+        relaxPending = true;
+        scheduler.schedule(relax, relaxDelayMillis);
+    }
+
+    /**
+     * Also called for PHY changes the peer started.
+     */
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        phyRequested = false;
+        if (status != GattClientTransport.STATUS_SUCCESS) {
+            //Don't ask again for every payload if the peer can't do it
+            phy2mUnavailable = true;
+            return;
+        }
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public boolean isBoosted() {
+        return boosted;
+    }
+
+    /**
+     * @return how often the link was raised to HIGH priority
+     */
+    public int getBoosts() {
+        return boosts;
+    }
+
+    private void requestPriority(int priority) {
+        if (transport.requestConnectionPriority(priority))
+            this.priority = priority;
+    }
+}
@@ -0,0 +1,318 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.blecore.transfer.Crc32c;
+import com.ironxiao.blecore.transfer.TransferCodec;
+
+import java.util.Random;
+
+/**
+ * Client side of a resumable transfer, see {@link TransferCodec}.
+ * <p>
+ * The payload goes out in chunks of {@code chunkSize} bytes over a {@link Link},
+ * usually {@link ClientConnection#send}. Up to {@code window} chunks may wait for
+ * their ack; every {@code window / 2}th chunk and the last one ask for an ack, so
+ * the window keeps moving while acks are on their way. A resend request or a lost
+ * link only costs the chunks after the offset the server holds: once the link is
+ * back, {@link #onLinkReady()} asks the server for that offset and goes on from
+ * there. If acks stop coming on a live link the sender asks again; after
+ * {@code MAX_STALLS} tries without progress the transfer fails.
+ * <p>
+ * A payload started with a {@link Sealer} is sealed under the link's encrypted
+ * channel, whose keys do not survive the link. After a reconnect it is sealed
+ * again under the new channel and sent from the start as a new transfer; the
+ * server drops the old one.
+ * <p>
+ * All methods must be called on one thread.
+ */
+public class ResumableSender {
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 5 * 1000;
+    public static final int MAX_STALLS = 3;
+
+    /** The server refused the payload, or its digest did not match. */
+    public static final int FAILURE_REJECTED = 1;
+    /** No ack for {@code MAX_STALLS} stall timeouts in a row. */
+    public static final int FAILURE_TIMEOUT = 2;
+    /** A sealed payload could not be sealed again, the new link has no channel. */
+    public static final int FAILURE_NO_CHANNEL = 3;
+
+    public interface Link {
+        /**
+         * @return false if the link cannot take the message right now; the sender
+         * tries again on its next {@link #pump()}
+         */
+        public boolean send(byte[] message);
+    }
+
+    public interface Sealer {
+        /**
+         * @return the payload sealed under the live channel, or null if there is none
+         */
+        public byte[] seal(byte[] payload);
+    }
+
+    public interface Listener {
+        public void onTransferProgress(int ackedBytes, int totalBytes);
+
+        public void onTransferComplete(int bytes);
+
+        /**
+         * @param reason one of the {@code FAILURE_} values
+         */
+        public void onTransferFailed(int reason);
+    }
+
+    private final Link link;
+    private final GattOperationQueue.Scheduler scheduler;
+    private final Listener listener;
+    private final int chunkSize;
+    private final int window;
+    private final int ackEvery;
+    private final long stallTimeoutMillis;
+    private int nextId = new Random().nextInt();
+
+    private byte[] payload;
+    //Unsealed payload, kept to seal it again on a new link
+    private byte[] plain;
+    private Sealer sealer;
+    private int id;
+    private int digest;
+    //Bytes the server confirmed, and the offset of the next chunk to send
+    private int acked;
+    private int next;
+    private byte[] pendingMessage;
+    private int pendingLength;
+    private boolean linkUp;
+    private boolean needBegin;
+    private boolean awaitingBegin;
+    private int stalls;
+
+    private final Runnable stallTask = new Runnable() {
+        @Override
+        public void run() {
+            onStall();
+        }
+    };
+
+    public ResumableSender(Link link, GattOperationQueue.Scheduler scheduler, Listener listener,
+                           int chunkSize, int window, long stallTimeoutMillis) {
+        this.link = link;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.ackEvery = Math.max(1, window / 2);
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /**
+     * Starts sending a payload; it goes out once the link is ready. The array must
+     * not change until the transfer completes, fails or is cancelled.
+     *
+     * @return false if a transfer is still running
+     */
+    public boolean start(byte[] payload) {
+        if (this.payload != null)
+            return false;
+        begin(payload);
+        return true;
+    }
+
+    /**
+     * Starts sending a payload sealed under the live channel.
+     *
+     * @return false if a transfer is still running or there is no channel
+     */
+    public boolean start(byte[] payload, Sealer sealer) {
+        if (this.payload != null)
+            return false;
+        byte[] sealed = sealer.seal(payload);
+        if (sealed == null)
+            return false;
+        plain = payload;
+        this.sealer = sealer;
+        begin(sealed);
+        return true;
+    }
+
+    public void cancel() {
+        payload = null;
+        plain = null;
+        sealer = null;
+        pendingMessage = null;
+        scheduler.cancel(stallTask);
+    }
+
+    public boolean isBusy() {
+        return payload != null;
+    }
+
+    /**
+     * @return bytes the server confirmed so far
+     */
+    public int getAcked() {
+        return acked;
+    }
+
+    /**
+     * Services and notifications are set up; resumes a running transfer.
+     */
+    public void onLinkReady() {
+        boolean relinked = !linkUp;
+        linkUp = true;
+        stalls = 0;
+        if (relinked && sealer != null && payload != null) {
+            //What the server holds is sealed under the old link's keys
+            byte[] sealed = sealer.seal(plain);
+            if (sealed == null) {
+                cancel();
+                listener.onTransferFailed(FAILURE_NO_CHANNEL);
+                return;
+            }
+            begin(sealed);
+            return;
+        }
+        restart();
+    }
+
+    public void onLinkLost() {
+        linkUp = false;
+        awaitingBegin = false;
+        pendingMessage = null;
+        scheduler.cancel(stallTask);
+    }
+
+    /**
+     * Hands the link a message if it can take one. Call it whenever the link
+     * finished sending, successfully or not; a lost chunk is resent on the
+     * server's request.
+     */
+    public void pump() {
+        if (payload == null || !linkUp)
+            return;
+        if (needBegin) {
+            if (pendingMessage == null)
+                pendingMessage = TransferCodec.begin(id, payload.length, digest);
+            if (!link.send(pendingMessage))
+                return;
+            pendingMessage = null;
+            needBegin = false;
+            awaitingBegin = true;
+            armStallTimer();
+            return;
+        }
+        if (awaitingBegin)
+            return;
+        while (next < payload.length && next - acked < window * chunkSize) {
+            if (pendingMessage == null) {
+                pendingLength = Math.min(chunkSize, payload.length - next);
+                boolean last = next + pendingLength == payload.length;
+                int flags = last || (next / chunkSize + 1) % ackEvery == 0 ? TransferCodec.FLAG_ACK_REQUESTED : 0;
+                pendingMessage = TransferCodec.chunk(id, flags, payload, next, pendingLength);
+            }
+            if (!link.send(pendingMessage))
+                return;
+            next += pendingLength;
+            pendingMessage = null;
+            armStallTimer();
+        }
+    }
+
+    /**
+     * Takes the acks out of the server's notifications.
+     *
+     * @return true if the payload was an ack, which the caller should not handle
+     */
+    public boolean onPayload(byte[] message) {
+        if (TransferCodec.type(message) != TransferCodec.TYPE_ACK)
+            return false;
+        if (payload == null || TransferCodec.ackId(message, 0) != id)
+            return true;
+        int offset = TransferCodec.ackOffset(message, 0);
+        switch (TransferCodec.ackStatus(message, 0)) {
+            case TransferCodec.STATUS_OK:
+                if (awaitingBegin) {
+                    awaitingBegin = false;
+                    acked = offset;
+                    next = offset;
+                    pendingMessage = null;
+                } else if (offset > acked) {
+                    acked = offset;
+                }
+                onProgress();
+                break;
+            case TransferCodec.STATUS_RESEND:
+                if (awaitingBegin)
+                    break;
+                acked = Math.max(acked, offset);
+                next = offset;
+                pendingMessage = null;
+                onProgress();
+                break;
+            case TransferCodec.STATUS_COMPLETE:
+                int bytes = payload.length;
+                cancel();
+                listener.onTransferComplete(bytes);
+                return true;
+            case TransferCodec.STATUS_UNKNOWN:
+                acked = 0;
+                next = 0;
+                restart();
+                return true;
+            case TransferCodec.STATUS_FAILED:
+                cancel();
+                listener.onTransferFailed(FAILURE_REJECTED);
+                return true;
+            default:
+                return true;
+        }
+        pump();
+        return true;
+    }
+
+    private void onProgress() {
+        stalls = 0;
+        if (next > acked || awaitingBegin)
+            armStallTimer();
+        else
+            scheduler.cancel(stallTask);
+        listener.onTransferProgress(acked, payload.length);
+    }
+
+    private void begin(byte[] payload) {
+        this.payload = payload;
+        id = nextId++;
+        digest = Crc32c.compute(payload, 0, payload.length);
+        acked = 0;
+        next = 0;
+        stalls = 0;
+        restart();
+    }
+
+    /**
+     * Asks the server where the transfer stands before sending on.
+     */
+    private void restart() {
+        needBegin = true;
+        awaitingBegin = false;
+        pendingMessage = null;
+        pump();
+    }
+
+    private void onStall() {
+        if (payload == null || !linkUp)
+            return;
+        if (++stalls > MAX_STALLS) {
+            cancel();
+            listener.onTransferFailed(FAILURE_TIMEOUT);
+            return;
+        }
+        restart();
+    }
+
+    private void armStallTimer() {
+        scheduler.cancel(stallTask);
+        scheduler.schedule(stallTask, stallTimeoutMillis);
+    }
+}
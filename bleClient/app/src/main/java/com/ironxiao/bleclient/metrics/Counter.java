@@ -0,0 +1,31 @@
+package com.ironxiao.bleclient.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count, safe to bump from any thread.
+ */
+public class Counter {
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        count.addAndGet(delta);
+    }
+
+    public long get() {
+        return count.get();
+    }
+}
@@ -0,0 +1,121 @@
+package com.ironxiao.bleclient.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, in the style of HdrHistogram.
+ * <p>
+ * Values below 32 get a bucket each; above that every power of two is split into
+ * 16 buckets, so a bucket is never wider than 1/16 of its values and percentiles are
+ * within about 6%. The whole {@code long} range fits into a fixed array, so
+ * {@link #record(long)} is a few atomic increments and never allocates or locks.
+ */
+public class Histogram {
+    private static final int PRECISION_BITS = 5;
+    private static final int LINEAR = 1 << PRECISION_BITS;
+    private static final int SUB_BUCKETS = LINEAR >> 1;
+    private static final int BUCKETS = (64 - PRECISION_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return unit of the recorded values, e.g. "us", used in dumps only
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //Lost a race with a larger or concurrent value, read again
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the largest value of the bucket the percentile falls into, never more
+     * than the maximum recorded; 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (PRECISION_BITS - 1);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long lowestValue(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+
+    static long highestValue(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+}
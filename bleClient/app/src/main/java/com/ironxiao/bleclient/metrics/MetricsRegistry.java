@@ -0,0 +1,79 @@
+package com.ironxiao.bleclient.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Named counters and histograms of one process.
+ * <p>
+ * Instruments are created up front and kept by the code that records into them, so
+ * the hot path never looks anything up. Registration is synchronized; recording is
+ * lock-free. {@link #dump()} renders a snapshot for the log.
+ */
+public class MetricsRegistry {
+    private final List<Counter> counters = new ArrayList<>();
+    private final List<Histogram> histograms = new ArrayList<>();
+    private final List<StatusCounter> statusCounters = new ArrayList<>();
+
+    /**
+     * @return the counter of that name, created on first use
+     */
+    public synchronized Counter counter(String name) {
+        for (Counter counter : counters) {
+            if (counter.getName().equals(name))
+                return counter;
+        }
+        Counter counter = new Counter(name);
+        counters.add(counter);
+        return counter;
+    }
+
+    public synchronized Histogram histogram(String name, String unit) {
+        for (Histogram histogram : histograms) {
+            if (histogram.getName().equals(name))
+                return histogram;
+        }
+        Histogram histogram = new Histogram(name, unit);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    public synchronized StatusCounter statusCounter(String name) {
+        for (StatusCounter counter : statusCounters) {
+            if (counter.getName().equals(name))
+                return counter;
+        }
+        StatusCounter counter = new StatusCounter(name);
+        statusCounters.add(counter);
+        return counter;
+    }
+
+    /**
+     * One line per instrument, e.g.
+     * {@code gatt.write count=120 mean=15000 p50=14847 p99=30719 max=31002 us}.
+     * Histograms nothing was recorded into are left out.
+     */
+    public synchronized String dump() {
+        StringBuilder out = new StringBuilder();
+        for (Counter counter : counters)
+            out.append(counter.getName()).append(' ').append(counter.get()).append('\n');
+        for (StatusCounter counter : statusCounters) {
+            out.append(counter.getName());
+            counter.appendTo(out);
+            out.append('\n');
+        }
+        for (Histogram histogram : histograms) {
+            if (histogram.getCount() == 0)
+                continue;
+            out.append(histogram.getName())
+                    .append(" count=").append(histogram.getCount())
+                    .append(" mean=").append(histogram.getMean())
+                    .append(" p50=").append(histogram.getValueAtPercentile(50))
+                    .append(" p90=").append(histogram.getValueAtPercentile(90))
+                    .append(" p99=").append(histogram.getValueAtPercentile(99))
+                    .append(" max=").append(histogram.getMax())
+                    .append(' ').append(histogram.getUnit()).append('\n');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,60 @@
+package com.ironxiao.bleclient.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts occurrences per status code, e.g. GATT callback statuses.
+ * <p>
+ * Codes from {@code -16} to {@code 511} are counted individually, which covers the
+ * ATT errors, {@code GATT_FAILURE} (0x101) and our own negative queue statuses;
+ * anything else lands in one "other" slot.
+ */
+public class StatusCounter {
+    private static final int MIN_STATUS = -16;
+    private static final int MAX_STATUS = 511;
+    private static final int OTHER = MAX_STATUS - MIN_STATUS + 1;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(OTHER + 1);
+
+    StatusCounter(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment(int status) {
+        counts.incrementAndGet(status < MIN_STATUS || status > MAX_STATUS ? OTHER : status - MIN_STATUS);
+    }
+
+    public long get(int status) {
+        return status < MIN_STATUS || status > MAX_STATUS ? 0 : counts.get(status - MIN_STATUS);
+    }
+
+    public long getOther() {
+        return counts.get(OTHER);
+    }
+
+    /**
+     * Appends {@code status=count} pairs for every status seen, e.g. {@code 0=12 0x85=1}.
+     */
+    void appendTo(StringBuilder out) {
+        for (int i = 0; i < OTHER; i++) {
+            long count = counts.get(i);
+            if (count == 0)
+                continue;
+            int status = i + MIN_STATUS;
+            out.append(' ');
+            if (status > 9)
+                out.append("0x").append(Integer.toHexString(status));
+            else
+                out.append(status);
+            out.append('=').append(count);
+        }
+        long other = counts.get(OTHER);
+        if (other > 0)
+            out.append(" other=").append(other);
+    }
+}
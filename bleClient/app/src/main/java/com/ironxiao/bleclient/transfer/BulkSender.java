@@ -0,0 +1,87 @@
+package com.ironxiao.bleclient.transfer;
+
+import com.ironxiao.blecore.transfer.FrameSplitter;
+
+/**
+ * Pushes a payload through a {@link FrameTransport} as a pipeline of frames.
+ * <p>
+ * {@link #pump()} sends frames until the transport reports it is busy; call it
+ * again whenever the transport can take more, e.g. from {@code onCharacteristicWrite}.
+ */
+public class BulkSender {
+
+    public interface Listener {
+        public void onTransferComplete(int bytes, long elapsedNanos);
+    }
+
+    private final FrameTransport transport;
+    private final Listener listener;
+
+    private FrameSplitter splitter;
+    private byte[] pendingFrame;
+    private int payloadLength;
+    private long startNanos;
+    private long elapsedNanos;
+
+    public BulkSender(FrameTransport transport, Listener listener) {
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    public void start(byte[] payload, int mtu) {
+        start(payload, payload.length, mtu);
+    }
+
+    /**
+     * Sends the first {@code length} bytes of {@code payload}. The array must not
+     * change until the transfer completes or is cancelled.
+     */
+    public void start(byte[] payload, int length, int mtu) {
+        splitter = new FrameSplitter(payload, length, mtu);
+        pendingFrame = null;
+        payloadLength = length;
+        startNanos = System.nanoTime();
+        elapsedNanos = 0;
+        pump();
+    }
+
+    public void pump() {
+        while (splitter != null) {
+            if (pendingFrame == null) {
+                if (!splitter.hasNext()) {
+                    finish();
+                    return;
+                }
+                pendingFrame = splitter.next();
+            }
+            if (!transport.send(pendingFrame))
+                return;
+            pendingFrame = null;
+        }
+    }
+
+    public boolean isBusy() {
+        return splitter != null;
+    }
+
+    public void cancel() {
+        splitter = null;
+        pendingFrame = null;
+    }
+
+    /**
+     * Throughput of the last completed transfer, or 0 if none finished yet.
+     */
+    public long getBytesPerSecond() {
+        if (elapsedNanos <= 0)
+            return 0;
+        return payloadLength * 1_000_000_000L / elapsedNanos;
+    }
+
+    private void finish() {
+        splitter = null;
+        elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        if (listener != null)
+            listener.onTransferComplete(payloadLength, elapsedNanos);
+    }
+}
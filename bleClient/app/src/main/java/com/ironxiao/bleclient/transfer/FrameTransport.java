@@ -0,0 +1,13 @@
+package com.ironxiao.bleclient.transfer;
+
+/**
+ * Link that carries frames to the peer, e.g. a GATT characteristic.
+ */
+public interface FrameTransport {
+
+    /**
+     * @return false if the link cannot take the frame right now. The sender
+     * retries the same frame on its next {@link BulkSender#pump()}.
+     */
+    public boolean send(byte[] frame);
+}
@@ -0,0 +1,142 @@
+package com.ironxiao.bleclient.connect;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DeviceCacheTest {
+    private static final UUID UUID_SERVER = UUID.fromString("00001ff9-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_NOTIFY = UUID.fromString("00001ffc-0000-1000-8000-00805f9b34fb");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DeviceCache.KnownDevice device(String address, long millis) {
+        return new DeviceCache.KnownDevice(address, UUID_SERVER, Arrays.asList(UUID_WRITE, UUID_NOTIFY), 247, millis);
+    }
+
+    @Test
+    public void survivesReopen() throws IOException {
+        File file = folder.newFile("devices.bin");
+        DeviceCache cache = DeviceCache.open(file);
+        cache.put(device("11:22:33:44:55:66", 1000));
+        cache.put(device("aa:bb:cc:dd:ee:ff", 2000));
+        cache.close();
+
+        cache = DeviceCache.open(file);
+        assertEquals(2, cache.size());
+        DeviceCache.KnownDevice known = cache.get("AA:BB:CC:DD:EE:FF");
+        assertEquals(UUID_SERVER, known.getServiceUuid());
+        assertEquals(Arrays.asList(UUID_WRITE, UUID_NOTIFY), known.getCharacteristics());
+        assertTrue(known.hasCharacteristic(UUID_WRITE));
+        assertEquals(247, known.getMtu());
+        assertEquals(2000, known.getLastConnectedMillis());
+        assertEquals("AA:BB:CC:DD:EE:FF", cache.mostRecent().getAddress());
+        assertEquals(0, cache.getDroppedBytes());
+        cache.close();
+    }
+
+    @Test
+    public void laterRecordsWin() throws IOException {
+        File file = folder.newFile("devices.bin");
+        DeviceCache cache = DeviceCache.open(file);
+        cache.put(device("11:22:33:44:55:66", 1000));
+        cache.put(device("AA:BB:CC:DD:EE:FF", 2000));
+        cache.put(new DeviceCache.KnownDevice("11:22:33:44:55:66", UUID_SERVER,
+                Collections.singletonList(UUID_WRITE), 23, 3000));
+        cache.remove("AA:BB:CC:DD:EE:FF");
+        cache.close();
+
+        cache = DeviceCache.open(file);
+        assertEquals(1, cache.size());
+        assertNull(cache.get("AA:BB:CC:DD:EE:FF"));
+        assertEquals(23, cache.mostRecent().getMtu());
+        assertEquals(3000, cache.mostRecent().getLastConnectedMillis());
+        cache.close();
+    }
+
+    @Test
+    public void cutsTornTail() throws IOException {
+        File file = folder.newFile("devices.bin");
+        DeviceCache cache = DeviceCache.open(file);
+        cache.put(device("11:22:33:44:55:66", 1000));
+        cache.put(device("AA:BB:CC:DD:EE:FF", 2000));
+        cache.close();
+
+        //Crash in the middle of the second record
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 10);
+        raf.close();
+
+        cache = DeviceCache.open(file);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("11:22:33:44:55:66"));
+        assertTrue(cache.getDroppedBytes() > 0);
+
+        //Appending continues after the last good record
+        cache.put(device("AA:BB:CC:DD:EE:FF", 3000));
+        cache.close();
+        cache = DeviceCache.open(file);
+        assertEquals(2, cache.size());
+        assertEquals(0, cache.getDroppedBytes());
+        cache.close();
+    }
+
+    @Test
+    public void dropsCorruptRecord() throws IOException {
+        File file = folder.newFile("devices.bin");
+        DeviceCache cache = DeviceCache.open(file);
+        cache.put(device("11:22:33:44:55:66", 1000));
+        cache.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(20);
+        raf.write(0x5A);
+        raf.close();
+
+        cache = DeviceCache.open(file);
+        assertEquals(0, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void startsOverOnForeignFile() throws IOException {
+        File file = folder.newFile("devices.bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write("not a device cache".getBytes());
+        raf.close();
+
+        DeviceCache cache = DeviceCache.open(file);
+        assertEquals(0, cache.size());
+        cache.put(device("11:22:33:44:55:66", 1000));
+        cache.close();
+        assertEquals(1, DeviceCache.open(file).size());
+    }
+
+    @Test
+    public void compactsStaleRecords() throws IOException {
+        File file = folder.newFile("devices.bin");
+        DeviceCache cache = DeviceCache.open(file);
+        for (int i = 0; i < 500; i++)
+            cache.put(device("11:22:33:44:55:66", i));
+        long length = file.length();
+        cache.close();
+        assertTrue(length < 100 * 40);
+
+        cache = DeviceCache.open(file);
+        assertEquals(1, cache.size());
+        assertEquals(499, cache.mostRecent().getLastConnectedMillis());
+        cache.close();
+    }
+}
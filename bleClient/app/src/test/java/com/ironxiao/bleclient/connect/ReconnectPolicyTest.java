@@ -0,0 +1,62 @@
+package com.ironxiao.bleclient.connect;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+    private static class ManualClock implements ReconnectPolicy.Clock {
+        long now;
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+
+    @Test
+    public void backoffDoublesWithinJitterBounds() {
+        ReconnectPolicy policy = new ReconnectPolicy(500, 30000, 10, 10000, clock, new Random(1));
+        assertEquals(0, policy.onDisconnected());
+        long expected = 500;
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long cap = Math.min(expected, 30000);
+            long delay = policy.onDisconnected();
+            assertTrue("attempt " + attempt + ": " + delay, delay >= cap / 2 && delay <= cap);
+            expected *= 2;
+        }
+        assertEquals(ReconnectPolicy.GIVE_UP, policy.onDisconnected());
+    }
+
+    @Test
+    public void jitterSpreadsRetries() {
+        ReconnectPolicy first = new ReconnectPolicy(1000, 30000, 10, 10000, clock, new Random(17));
+        ReconnectPolicy second = new ReconnectPolicy(1000, 30000, 10, 10000, clock, new Random(42));
+        first.onDisconnected();
+        second.onDisconnected();
+        assertNotEquals(first.onDisconnected(), second.onDisconnected());
+    }
+
+    @Test
+    public void stableConnectionResetsBackoff() {
+        ReconnectPolicy policy = new ReconnectPolicy(500, 30000, 10, 10000, clock, new Random(1));
+        policy.onDisconnected();
+        policy.onDisconnected();
+        policy.onDisconnected();
+        assertEquals(3, policy.getAttempts());
+
+        policy.onConnected();
+        clock.now += 9999;
+        assertTrue(policy.onDisconnected() > 0);
+
+        policy.onConnected();
+        clock.now += 10000;
+        assertEquals(0, policy.onDisconnected());
+        assertEquals(1, policy.getAttempts());
+    }
+}
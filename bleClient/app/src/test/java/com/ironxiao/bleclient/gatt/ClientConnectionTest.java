@@ -0,0 +1,561 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.blecore.secure.SecureClient;
+import com.ironxiao.blecore.secure.SecureCodec;
+import com.ironxiao.blecore.secure.TicketStore;
+import com.ironxiao.blecore.transfer.AimdWindow;
+import com.ironxiao.blecore.transfer.Compression;
+import com.ironxiao.blecore.transfer.TransferCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ClientConnectionTest {
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_NOTIFY = UUID.fromString("00001ffc-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CAPABILITIES = UUID.fromString("00001ffd-0000-1000-8000-00805f9b34fb");
+    private static final String ADDRESS = "11:22:33:44:55:66";
+    private static final long INTERVAL_MILLIS = 15;
+
+    private static class RecordingListener implements ClientConnection.Listener {
+        final List<byte[]> payloads = new ArrayList<>();
+        int connected;
+        int disconnected;
+        int ready;
+        int sent = -1;
+        int failedStatus;
+
+        @Override
+        public void onConnected() {
+            connected++;
+        }
+
+        @Override
+        public void onDisconnected(int status) {
+            disconnected++;
+        }
+
+        @Override
+        public void onReady() {
+            ready++;
+        }
+
+        @Override
+        public void onPayload(byte[] payload) {
+            payloads.add(payload);
+        }
+
+        @Override
+        public void onSendComplete(int bytes, long bytesPerSecond) {
+            sent = bytes;
+        }
+
+        @Override
+        public void onSendFailed(int status) {
+            failedStatus = status;
+        }
+    }
+
+    private final RecordingListener listener = new RecordingListener();
+
+    private ClientConnection connect(LoopbackGattClientTransport link) {
+        ClientConnection connection = new ClientConnection(link, link, UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, listener);
+        link.connect(ADDRESS);
+        link.runFor(1000);
+        return connection;
+    }
+
+    private ClientConnection connect(LoopbackGattClientTransport link, SecureClient secure) {
+        ClientConnection connection = new ClientConnection(link, link, UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, listener);
+        connection.enableSecurity(secure, ADDRESS);
+        link.connect(ADDRESS);
+        link.runFor(1000);
+        return connection;
+    }
+
+    private static int frameCount(int length, int mtu) {
+        int frameSize = mtu - 3;
+        int rest = length - (frameSize - 7);
+        return 1 + Math.max(0, (rest + frameSize - 4) / (frameSize - 3));
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++)
+            payload[i] = (byte) (i * 31 + 7);
+        return payload;
+    }
+
+    @Test
+    public void negotiatesMtuAndSubscribes() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+
+        assertEquals(1, listener.connected);
+        assertEquals(1, listener.ready);
+        assertTrue(connection.isReady());
+        assertEquals(247, connection.getMtu());
+        assertTrue(link.subscribed);
+        assertTrue(connection.getQueue().isIdle());
+        assertEquals(0, link.rejected);
+    }
+
+    @Test
+    public void sendsPayloadAndReceivesAck() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+        byte[] payload = payload(4096);
+
+        assertTrue(connection.send(payload));
+        link.runFor(10 * 1000);
+
+        assertEquals(4096, listener.sent);
+        assertEquals(1, link.received.size());
+        assertTrue(Arrays.equals(payload, link.received.get(0)));
+        assertEquals(1, listener.payloads.size());
+        assertEquals("ACK:4096", new String(listener.payloads.get(0)));
+        assertEquals(0, link.rejected);
+    }
+
+    @Test
+    public void throughputFollowsMtuAndConnectionInterval() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+        byte[] payload = payload(16 * 1024);
+
+        long start = link.now();
+        connection.send(payload);
+        link.runFor(60 * 1000);
+        assertEquals(payload.length, listener.sent);
+
+        //One frame per connection interval
+        int frames = link.framesWritten;
+        assertEquals(frameCount(payload.length, 247), frames);
+        assertTrue(link.now() - start >= frames * INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void smallMtuNeedsMoreFrames() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 23, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+        assertEquals(23, connection.getMtu());
+
+        connection.send(payload(400));
+        link.runFor(60 * 1000);
+
+        assertEquals(400, listener.sent);
+        assertEquals(frameCount(400, 23), link.framesWritten);
+        assertEquals("ACK:400", new String(listener.payloads.get(0)));
+    }
+
+    @Test
+    public void rejectsSecondSendWhileBusy() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+
+        assertTrue(connection.send(payload(2048)));
+        assertFalse(connection.send(payload(16)));
+        link.runFor(10 * 1000);
+
+        assertEquals(2048, listener.sent);
+        assertTrue(connection.send(payload(16)));
+    }
+
+    @Test
+    public void lostFrameDropsPayload() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0.2, 42);
+        ClientConnection connection = connect(link);
+
+        connection.send(payload(8192));
+        link.runFor(60 * 1000);
+
+        assertTrue(link.framesLost > 0);
+        assertTrue(link.received.isEmpty());
+        assertTrue(link.assembler.getDroppedFrames() > 0);
+        assertTrue(listener.payloads.isEmpty());
+    }
+
+    @Test
+    public void disconnectClearsStateAndReconnectSkipsDiscovery() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+
+        link.disconnect();
+        link.runFor(1000);
+        assertEquals(1, listener.disconnected);
+        assertFalse(connection.isConnected());
+        assertFalse(connection.send(payload(16)));
+
+        assertTrue(link.reconnect());
+        link.runFor(1000);
+        assertEquals(2, listener.ready);
+        assertTrue(link.subscribed);
+        assertTrue(connection.send(payload(16)));
+    }
+
+    private static byte[] jsonConfig() {
+        StringBuilder json = new StringBuilder("{\"wifi\":{\"ssid\":\"goke_ofice\",\"password\":\"goke!wifi\",\"security\":\"WPA2\",\"hidden\":false},");
+        json.append("\"devices\":[");
+        for (int i = 0; i < 40; i++)
+            json.append("{\"name\":\"sensor-").append(i).append("\",\"enabled\":true,\"interval\":60},");
+        json.append("{}]}");
+        return json.toString().getBytes();
+    }
+
+    @Test
+    public void plainPayloadsWithoutCapabilities() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+        assertEquals(Compression.CODEC_NONE, connection.getCodec());
+
+        byte[] payload = jsonConfig();
+        connection.send(payload);
+        link.runFor(10 * 1000);
+        assertEquals(payload.length, (int) link.receivedLengths.get(0));
+    }
+
+    @Test
+    public void negotiatesDeflateAndCompressesJson() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, Compression.CAPABILITY_DEFLATE);
+        ClientConnection connection = connect(link);
+
+        assertTrue(connection.isReady());
+        assertEquals(Compression.CODEC_DEFLATE, connection.getCodec());
+        assertEquals(Compression.CODEC_DEFLATE, link.codec);
+
+        byte[] payload = jsonConfig();
+        connection.send(payload);
+        link.runFor(10 * 1000);
+
+        assertTrue(Arrays.equals(payload, link.received.get(0)));
+        assertTrue(link.receivedLengths.get(0) * 4 < payload.length);
+        assertTrue(link.framesWritten < frameCount(payload.length, 247));
+    }
+
+    @Test
+    public void incompressiblePayloadIsSentPlainAfterNegotiation() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, Compression.CAPABILITY_DEFLATE);
+        ClientConnection connection = connect(link);
+
+        byte[] payload = new byte[600];
+        new Random(3).nextBytes(payload);
+        connection.send(payload);
+        link.runFor(10 * 1000);
+
+        assertTrue(Arrays.equals(payload, link.received.get(0)));
+        assertEquals(payload.length + 1, (int) link.receivedLengths.get(0));
+    }
+
+    @Test
+    public void codecIsResetOnDisconnect() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, 0);
+        ClientConnection connection = connect(link);
+        assertTrue(connection.isReady());
+        assertEquals(Compression.CODEC_NONE, connection.getCodec());
+
+        link.setCapabilities(UUID_CAPABILITIES, Compression.CAPABILITY_DEFLATE);
+        link.disconnect();
+        link.runFor(1000);
+        assertEquals(Compression.CODEC_NONE, connection.getCodec());
+        link.reconnect();
+        link.runFor(1000);
+        assertEquals(Compression.CODEC_DEFLATE, connection.getCodec());
+    }
+
+    @Test
+    public void boostsLinkDuringTransferAndRelaxesAfter() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+        LinkTuner tuner = connection.getLinkTuner();
+        assertEquals(GattClientTransport.PRIORITY_BALANCED, tuner.getPriority());
+        assertTrue(link.priorities.isEmpty());
+
+        connection.send(payload(4096));
+        assertEquals(GattClientTransport.PRIORITY_HIGH, tuner.getPriority());
+        link.runFor(1000);
+        assertEquals(4096, listener.sent);
+        assertEquals(GattClientTransport.PHY_LE_2M, tuner.getTxPhy());
+        assertEquals(GattClientTransport.PHY_LE_2M, tuner.getRxPhy());
+        assertTrue(tuner.isBoosted());
+
+        link.runFor(LinkTuner.DEFAULT_RELAX_DELAY_MILLIS);
+        assertFalse(tuner.isBoosted());
+        assertEquals(Arrays.asList(GattClientTransport.PRIORITY_HIGH, GattClientTransport.PRIORITY_BALANCED), link.priorities);
+        assertEquals(GattClientTransport.PHY_LE_2M, tuner.getTxPhy());
+    }
+
+    @Test
+    public void backToBackTransfersStayBoosted() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(connection.send(payload(1024)));
+            link.runFor(500);
+        }
+        assertEquals(1, connection.getLinkTuner().getBoosts());
+        assertEquals(1, link.phyRequests);
+        assertEquals(Arrays.asList(GattClientTransport.PRIORITY_HIGH), link.priorities);
+    }
+
+    @Test
+    public void staysOn1mWithout2mSupport() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setPhy2mSupported(false);
+        ClientConnection connection = connect(link);
+
+        connection.send(payload(1024));
+        link.runFor(10 * 1000);
+        assertEquals(1024, listener.sent);
+        assertEquals(GattClientTransport.PHY_LE_1M, connection.getLinkTuner().getTxPhy());
+        assertEquals(0, link.phyRequests);
+    }
+
+    @Test
+    public void disconnectResetsLinkParameters() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+        connection.send(payload(4096));
+        link.runFor(100);
+
+        link.disconnect();
+        link.runFor(LinkTuner.DEFAULT_RELAX_DELAY_MILLIS * 2);
+        LinkTuner tuner = connection.getLinkTuner();
+        assertFalse(tuner.isBoosted());
+        assertEquals(GattClientTransport.PRIORITY_BALANCED, tuner.getPriority());
+        assertEquals(GattClientTransport.PHY_LE_1M, tuner.getTxPhy());
+        assertEquals(Arrays.asList(GattClientTransport.PRIORITY_HIGH), link.priorities);
+    }
+
+    private LoopbackGattClientTransport slowServer(int capabilities) {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, capabilities);
+        //Takes a frame every three intervals and holds six at most
+        link.setServerQueue(6, 3 * INTERVAL_MILLIS);
+        return link;
+    }
+
+    @Test
+    public void creditsKeepSlowServerFromDropping() {
+        LoopbackGattClientTransport link = slowServer(TransferCodec.CAPABILITY_CREDITS);
+        ClientConnection connection = connect(link);
+        GattFrameTransport frames = connection.getFrameTransport();
+        assertTrue(frames.creditsEnabled());
+        assertTrue(link.credits);
+        assertEquals(Compression.CODEC_NONE, link.codec);
+
+        byte[] payload = payload(16 * 1024);
+        connection.send(payload);
+        link.runFor(60 * 1000);
+
+        assertEquals(payload.length, listener.sent);
+        //The window found the server's limit after a few drops
+        assertTrue(frames.getWindow().getDecreases() > 0);
+        assertTrue(link.framesDropped > 0 && link.framesDropped < 4);
+        assertTrue(frames.getWindow().get() <= 6);
+        assertEquals(0, frames.getInFlight());
+        //Credits are taken out, they never reach the listener
+        assertTrue(listener.payloads.isEmpty());
+    }
+
+    @Test
+    public void windowFittingTheServerLosesNothing() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, TransferCodec.CAPABILITY_CREDITS);
+        link.setServerQueue(GattFrameTransport.DEFAULT_MAX_WINDOW, 3 * INTERVAL_MILLIS);
+        ClientConnection connection = connect(link);
+
+        byte[] payload = payload(16 * 1024);
+        connection.send(payload);
+        link.runFor(60 * 1000);
+
+        assertTrue(Arrays.equals(payload, link.received.get(0)));
+        assertEquals(1, listener.payloads.size());
+        assertEquals("ACK:" + payload.length, new String(listener.payloads.get(0)));
+        assertEquals(0, link.framesDropped);
+        assertEquals(0, connection.getFrameTransport().getInFlight());
+    }
+
+    @Test
+    public void withoutCreditsSlowServerDropsFrames() {
+        LoopbackGattClientTransport link = slowServer(0);
+        ClientConnection connection = connect(link);
+        assertFalse(connection.getFrameTransport().creditsEnabled());
+        assertFalse(link.credits);
+
+        connection.send(payload(16 * 1024));
+        link.runFor(60 * 1000);
+
+        assertTrue(link.framesDropped > 10);
+        assertTrue(link.received.isEmpty());
+    }
+
+    @Test
+    public void windowGrowsWhileServerKeepsUp() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, TransferCodec.CAPABILITY_CREDITS | Compression.CAPABILITY_DEFLATE);
+        ClientConnection connection = connect(link);
+        assertEquals(Compression.CODEC_DEFLATE, link.codec);
+
+        byte[] payload = new byte[32 * 1024];
+        new Random(9).nextBytes(payload);
+        connection.send(payload);
+        link.runFor(60 * 1000);
+
+        assertTrue(Arrays.equals(payload, link.received.get(0)));
+        AimdWindow window = connection.getFrameTransport().getWindow();
+        assertTrue(window.get() > GattFrameTransport.DEFAULT_INITIAL_WINDOW);
+        assertEquals(0, window.getDecreases());
+    }
+
+    @Test
+    public void retriesWritesTheStackRefuses() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, TransferCodec.CAPABILITY_CREDITS);
+        ClientConnection connection = connect(link);
+        byte[] payload = payload(4096);
+
+        connection.send(payload);
+        link.rejectWrites = 3;
+        link.runFor(10 * 1000);
+
+        assertEquals(3, link.rejected);
+        assertEquals(0, listener.failedStatus);
+        assertTrue(Arrays.equals(payload, link.received.get(0)));
+        AimdWindow window = connection.getFrameTransport().getWindow();
+        assertEquals(1, window.getDecreases());
+    }
+
+    @Test
+    public void failsAfterTooManyRefusedWrites() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        ClientConnection connection = connect(link);
+
+        connection.send(payload(4096));
+        link.rejectWrites = GattFrameTransport.MAX_RETRIES + 10;
+        link.runFor(10 * 1000);
+
+        assertEquals(GattOperation.STATUS_REJECTED, listener.failedStatus);
+        assertEquals(GattFrameTransport.MAX_RETRIES + 1, link.rejected);
+    }
+
+    @Test
+    public void lostCreditsDoNotStallTheWindow() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0.2, 42);
+        link.setCapabilities(UUID_CAPABILITIES, TransferCodec.CAPABILITY_CREDITS);
+        ClientConnection connection = connect(link);
+
+        connection.send(payload(16 * 1024));
+        link.runFor(60 * 1000);
+
+        //Lost frames never get a credit; they are written off instead
+        assertTrue(link.framesLost > 0);
+        assertEquals(16 * 1024, listener.sent);
+        assertEquals(0, connection.getFrameTransport().getInFlight());
+    }
+
+    @Test
+    public void creditsEndWithConnection() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, TransferCodec.CAPABILITY_CREDITS);
+        ClientConnection connection = connect(link);
+        assertTrue(connection.getFrameTransport().creditsEnabled());
+
+        link.setCapabilities(UUID_CAPABILITIES, 0);
+        link.disconnect();
+        link.runFor(1000);
+        assertFalse(connection.getFrameTransport().creditsEnabled());
+        link.reconnect();
+        link.runFor(1000);
+        assertTrue(connection.isReady());
+        assertFalse(connection.getFrameTransport().creditsEnabled());
+    }
+
+    @Test
+    public void setsUpEncryptedChannelBeforeReady() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, Compression.CAPABILITY_DEFLATE);
+        link.setSecure(new TicketStore<ByteBuffer>(4, 60 * 1000));
+        SecureClient secure = new SecureClient(new SecureRandom(), new TicketStore<String>(4, 60 * 1000));
+        ClientConnection connection = connect(link, secure);
+
+        assertEquals(1, listener.ready);
+        assertTrue(connection.isSecure());
+        assertFalse(secure.isResumed());
+        //The handshake is no send of the app's
+        assertEquals(-1, listener.sent);
+        assertTrue(listener.payloads.isEmpty());
+
+        byte[] payload = jsonConfig();
+        assertTrue(connection.send(connection.seal(payload)));
+        link.runFor(10 * 1000);
+        assertArrayEquals(payload, link.received.get(0));
+        //Ciphertext goes out plain despite the negotiated codec
+        assertEquals(1 + payload.length + SecureCodec.DATA_OVERHEAD, (int) link.receivedLengths.get(link.receivedLengths.size() - 1));
+        assertEquals("ACK:" + payload.length, new String(listener.payloads.get(0)));
+    }
+
+    @Test
+    public void reconnectResumesEncryptedChannel() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, 0);
+        link.setSecure(new TicketStore<ByteBuffer>(4, 60 * 1000));
+        SecureClient secure = new SecureClient(new SecureRandom(), new TicketStore<String>(4, 60 * 1000));
+        ClientConnection connection = connect(link, secure);
+
+        link.disconnect();
+        link.runFor(1000);
+        assertFalse(connection.isSecure());
+        assertNull(connection.seal(payload(16)));
+        link.reconnect();
+        link.runFor(1000);
+
+        assertEquals(2, listener.ready);
+        assertTrue(connection.isSecure());
+        assertTrue(secure.isResumed());
+        connection.send(connection.seal(payload(16)));
+        link.runFor(1000);
+        assertArrayEquals(payload(16), link.received.get(0));
+    }
+
+    @Test
+    public void unansweredHandshakeLeavesLinkPlain() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, 0);
+        link.setSecure(new TicketStore<ByteBuffer>(4, 60 * 1000));
+        link.silentHandshake = true;
+        ClientConnection connection = connect(link, new SecureClient(new SecureRandom(), new TicketStore<String>(4, 60 * 1000)));
+
+        assertEquals(0, listener.ready);
+        assertFalse(connection.send(payload(16)));
+        link.runFor(ClientConnection.HANDSHAKE_TIMEOUT_MILLIS);
+        assertEquals(1, listener.ready);
+        assertFalse(connection.isSecure());
+        assertNull(connection.seal(payload(16)));
+        assertTrue(connection.send(payload(16)));
+    }
+
+    @Test
+    public void noHandshakeWithServersThatDoNotOfferIt() {
+        LoopbackGattClientTransport link = new LoopbackGattClientTransport(UUID_WRITE, UUID_NOTIFY, 247, INTERVAL_MILLIS, 0, 1);
+        link.setCapabilities(UUID_CAPABILITIES, Compression.CAPABILITY_DEFLATE);
+        ClientConnection connection = connect(link, new SecureClient(new SecureRandom(), new TicketStore<String>(4, 60 * 1000)));
+
+        assertEquals(1, listener.ready);
+        assertFalse(connection.isSecure());
+        assertEquals(0, link.framesWritten);
+    }
+}
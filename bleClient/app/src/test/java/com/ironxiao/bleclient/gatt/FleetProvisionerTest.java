@@ -0,0 +1,204 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.blecore.secure.TicketStore;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class FleetProvisionerTest {
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_NOTIFY = UUID.fromString("00001ffc-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CAPABILITIES = UUID.fromString("00001ffd-0000-1000-8000-00805f9b34fb");
+    private static final long INTERVAL_MILLIS = 30;
+
+    private final LoopbackGattClientTransport.Clock clock = new LoopbackGattClientTransport.Clock();
+    private final Map<String, List<LoopbackGattClientTransport>> links = new HashMap<>();
+    private final Set<String> unreachable = new HashSet<>();
+    private final Set<String> secure = new HashSet<>();
+    private final TicketStore<ByteBuffer> serverTickets = new TicketStore<>(16, 60 * 1000);
+    private final List<String> provisioned = new ArrayList<>();
+    private final Map<String, Integer> failed = new HashMap<>();
+    private int idle;
+
+    private final FleetProvisioner.TransportFactory factory = new FleetProvisioner.TransportFactory() {
+        @Override
+        public GattClientTransport create(String address) {
+            LoopbackGattClientTransport link = new LoopbackGattClientTransport(clock, UUID_WRITE, UUID_NOTIFY,
+                    247, INTERVAL_MILLIS, 0, address.hashCode());
+            link.unreachable = unreachable.contains(address);
+            if (secure.contains(address)) {
+                link.setCapabilities(UUID_CAPABILITIES, 0);
+                link.setSecure(serverTickets);
+            }
+            if (!links.containsKey(address))
+                links.put(address, new ArrayList<LoopbackGattClientTransport>());
+            links.get(address).add(link);
+            return link;
+        }
+    };
+
+    private final FleetProvisioner.PayloadSource payloads = new FleetProvisioner.PayloadSource() {
+        @Override
+        public byte[] payloadFor(String address) {
+            return ("{\"device\":\"" + address + "\",\"ssid\":\"goke_ofice\",\"password\":\"goke!wifi\"}").getBytes();
+        }
+    };
+
+    private final FleetProvisioner.Listener listener = new FleetProvisioner.Listener() {
+        @Override
+        public void onDeviceProvisioned(String address, int bytes, long elapsedMillis) {
+            provisioned.add(address);
+        }
+
+        @Override
+        public void onDeviceFailed(String address, int reason) {
+            failed.put(address, reason);
+        }
+
+        @Override
+        public void onIdle() {
+            idle++;
+        }
+    };
+
+    private FleetProvisioner fleet(int maxConnections) {
+        return new FleetProvisioner(factory, clock, clock, UUID_WRITE, UUID_NOTIFY, UUID_CCCD, null,
+                payloads, listener, maxConnections, 5000, 2);
+    }
+
+    private static String address(int i) {
+        return String.format("AA:BB:CC:DD:EE:%02X", i);
+    }
+
+    private int connectedLinks() {
+        int connected = 0;
+        for (Map.Entry<String, List<LoopbackGattClientTransport>> entry : links.entrySet()) {
+            for (LoopbackGattClientTransport link : entry.getValue()) {
+                if (link.isConnected(entry.getKey()))
+                    connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Runs until the fleet is idle and returns the most links that were up at once.
+     */
+    private int runUntilIdle(FleetProvisioner fleet) {
+        int peak = 0;
+        for (int i = 0; i < 10000 && !fleet.isIdle(); i++) {
+            clock.runFor(10);
+            peak = Math.max(peak, connectedLinks());
+        }
+        assertTrue(fleet.isIdle());
+        return peak;
+    }
+
+    @Test
+    public void provisionsRackWithinConnectionLimit() {
+        FleetProvisioner fleet = fleet(6);
+        for (int i = 0; i < 20; i++)
+            assertTrue(fleet.onDeviceFound(address(i)));
+        assertEquals(6, fleet.getActiveCount());
+        assertEquals(14, fleet.getPendingCount());
+
+        int peak = runUntilIdle(fleet);
+
+        assertEquals(20, provisioned.size());
+        assertEquals(20, fleet.getProvisionedCount());
+        assertEquals(0, fleet.getFailedCount());
+        assertEquals(6, fleet.getPeakConnections());
+        assertTrue(peak <= 6);
+        assertEquals(1, idle);
+        for (int i = 0; i < 20; i++)
+            assertEquals(1, links.get(address(i)).get(0).received.size());
+        assertTrue(fleet.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void parallelJobsFinishSooner() {
+        FleetProvisioner serial = fleet(1);
+        for (int i = 0; i < 12; i++)
+            serial.onDeviceFound(address(i));
+        runUntilIdle(serial);
+        long serialMillis = serial.getElapsedMillis();
+
+        FleetProvisioner parallel = fleet(6);
+        for (int i = 0; i < 12; i++)
+            parallel.onDeviceFound(address(100 + i));
+        runUntilIdle(parallel);
+
+        assertEquals(24, provisioned.size());
+        assertTrue(parallel.getElapsedMillis() * 4 < serialMillis);
+        assertTrue(parallel.getBytesPerSecond() > serial.getBytesPerSecond() * 4);
+    }
+
+    @Test
+    public void ignoresDevicesSeenBefore() {
+        FleetProvisioner fleet = fleet(2);
+        assertTrue(fleet.onDeviceFound(address(1)));
+        assertFalse(fleet.onDeviceFound(address(1)));
+        runUntilIdle(fleet);
+        assertFalse(fleet.onDeviceFound(address(1)));
+        assertEquals(1, links.get(address(1)).size());
+    }
+
+    @Test
+    public void unreachableDeviceIsRetriedThenReported() {
+        unreachable.add(address(3));
+        FleetProvisioner fleet = fleet(2);
+        for (int i = 0; i < 6; i++)
+            fleet.onDeviceFound(address(i));
+
+        runUntilIdle(fleet);
+
+        assertEquals(5, provisioned.size());
+        assertEquals(Integer.valueOf(FleetProvisioner.FAILURE_TIMEOUT), failed.get(address(3)));
+        assertEquals(2, links.get(address(3)).size());
+        assertEquals(1, fleet.getFailedCount());
+    }
+
+    @Test
+    public void cancelStopsEverything() {
+        FleetProvisioner fleet = fleet(3);
+        for (int i = 0; i < 10; i++)
+            fleet.onDeviceFound(address(i));
+        clock.runFor(INTERVAL_MILLIS * 2);
+        fleet.cancel();
+        clock.runFor(60 * 1000);
+
+        assertTrue(fleet.isIdle());
+        assertTrue(provisioned.isEmpty());
+        assertEquals(0, connectedLinks());
+    }
+
+    @Test
+    public void sendsSealedPayloadsOnlyWithSessionTickets() {
+        secure.add(address(1));
+        FleetProvisioner fleet = new FleetProvisioner(factory, clock, clock, UUID_WRITE, UUID_NOTIFY, UUID_CCCD,
+                UUID_CAPABILITIES, payloads, listener, 2, 5000, 2);
+        fleet.setSessionTickets(new TicketStore<String>(16, 60 * 1000));
+        fleet.onDeviceFound(address(1));
+        fleet.onDeviceFound(address(2));
+
+        runUntilIdle(fleet);
+
+        assertEquals(Arrays.asList(address(1)), provisioned);
+        assertArrayEquals(payloads.payloadFor(address(1)), links.get(address(1)).get(0).received.get(0));
+        assertEquals(FleetProvisioner.FAILURE_INSECURE, (int) failed.get(address(2)));
+        for (LoopbackGattClientTransport link : links.get(address(2)))
+            assertEquals(0, link.framesWritten);
+    }
+}
@@ -0,0 +1,199 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.bleclient.metrics.MetricsRegistry;
+import com.ironxiao.bleclient.metrics.StatusCounter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+
+    private static class ManualScheduler implements GattOperationQueue.Scheduler {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            tasks.remove(task);
+        }
+
+        void fireAll() {
+            for (Runnable task : new ArrayList<>(tasks)) {
+                tasks.remove(task);
+                task.run();
+            }
+        }
+    }
+
+    private static class RecordingOperation extends GattOperation {
+        final List<String> log;
+        final String name;
+        boolean accept = true;
+        int status = Integer.MIN_VALUE;
+
+        RecordingOperation(List<String> log, String name, int type, String coalesceKey) {
+            super(type, UUID_WRITE, coalesceKey, DEFAULT_TIMEOUT_MILLIS);
+            this.log = log;
+            this.name = name;
+        }
+
+        @Override
+        protected boolean execute() {
+            log.add(name);
+            return accept;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            this.status = status;
+        }
+    }
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final GattOperationQueue queue = new GattOperationQueue(scheduler);
+    private final List<String> executed = new ArrayList<>();
+
+    @Test
+    public void runsOneOperationAtATime() {
+        RecordingOperation mtu = new RecordingOperation(executed, "mtu", GattOperation.TYPE_REQUEST_MTU, null);
+        RecordingOperation discover = new RecordingOperation(executed, "discover", GattOperation.TYPE_DISCOVER_SERVICES, null);
+        queue.submit(mtu);
+        queue.submit(discover);
+        assertEquals(1, executed.size());
+
+        assertFalse(queue.onComplete(GattOperation.TYPE_DISCOVER_SERVICES, null, 0));
+        assertTrue(queue.onComplete(GattOperation.TYPE_REQUEST_MTU, null, 0));
+        assertEquals(0, mtu.status);
+        assertEquals(2, executed.size());
+
+        queue.onComplete(GattOperation.TYPE_DISCOVER_SERVICES, null, 0);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void timeoutMovesToNextOperation() {
+        RecordingOperation first = new RecordingOperation(executed, "first", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        RecordingOperation second = new RecordingOperation(executed, "second", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        queue.submit(first);
+        queue.submit(second);
+        scheduler.fireAll();
+
+        assertEquals(GattOperation.STATUS_TIMEOUT, first.status);
+        assertEquals(1, queue.getTimeouts());
+        assertEquals(2, executed.size());
+        assertEquals(1, scheduler.tasks.size());
+    }
+
+    @Test
+    public void lateCallbackOfTimedOutOperationIsSwallowed() {
+        RecordingOperation first = new RecordingOperation(executed, "first", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        RecordingOperation second = new RecordingOperation(executed, "second", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        queue.submit(first);
+        queue.submit(second);
+        scheduler.fireAll();
+
+        //The callback meant for the first write must not complete the second
+        assertFalse(queue.onComplete(GattOperation.TYPE_WRITE_CHARACTERISTIC, UUID_WRITE, 0x85));
+        assertEquals(Integer.MIN_VALUE, second.status);
+
+        assertTrue(queue.onComplete(GattOperation.TYPE_WRITE_CHARACTERISTIC, UUID_WRITE, 0));
+        assertEquals(0, second.status);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void clearForgetsTimedOutOperations() {
+        queue.submit(new RecordingOperation(executed, "lost", GattOperation.TYPE_WRITE_CHARACTERISTIC, null));
+        scheduler.fireAll();
+        queue.clear();
+
+        //A new link owes no callbacks of the old one
+        RecordingOperation write = new RecordingOperation(executed, "write", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        queue.submit(write);
+        assertTrue(queue.onComplete(GattOperation.TYPE_WRITE_CHARACTERISTIC, UUID_WRITE, 0));
+        assertEquals(0, write.status);
+    }
+
+    @Test
+    public void rejectedOperationDoesNotBlockQueue() {
+        RecordingOperation rejected = new RecordingOperation(executed, "rejected", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        rejected.accept = false;
+        RecordingOperation next = new RecordingOperation(executed, "next", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        queue.submit(rejected);
+        queue.submit(next);
+
+        assertEquals(GattOperation.STATUS_REJECTED, rejected.status);
+        assertEquals(2, executed.size());
+    }
+
+    @Test
+    public void pendingWritesWithSameKeyAreCoalesced() {
+        queue.submit(new RecordingOperation(executed, "running", GattOperation.TYPE_REQUEST_MTU, null));
+        RecordingOperation stale = new RecordingOperation(executed, "stale", GattOperation.TYPE_WRITE_CHARACTERISTIC, "write");
+        RecordingOperation latest = new RecordingOperation(executed, "latest", GattOperation.TYPE_WRITE_CHARACTERISTIC, "write");
+        queue.submit(stale);
+        queue.submit(latest);
+        assertEquals(GattOperation.STATUS_CANCELLED, stale.status);
+        assertEquals(2, queue.size());
+
+        queue.onComplete(GattOperation.TYPE_REQUEST_MTU, null, 0);
+        assertEquals("latest", executed.get(1));
+    }
+
+    @Test
+    public void synchronousOperationCompletesOnExecute() {
+        RecordingOperation notify = new RecordingOperation(executed, "notify", GattOperation.TYPE_SET_NOTIFICATION, null);
+        queue.submit(notify);
+
+        assertEquals(0, notify.status);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void clearCancelsEverything() {
+        RecordingOperation running = new RecordingOperation(executed, "running", GattOperation.TYPE_REQUEST_MTU, null);
+        RecordingOperation queued = new RecordingOperation(executed, "queued", GattOperation.TYPE_DISCOVER_SERVICES, null);
+        queue.submit(running);
+        queue.submit(queued);
+        queue.clear();
+
+        assertEquals(GattOperation.STATUS_CANCELLED, running.status);
+        assertEquals(GattOperation.STATUS_CANCELLED, queued.status);
+        assertTrue(queue.isIdle());
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void metricsSeeLatencyAndStatus() {
+        MetricsRegistry registry = new MetricsRegistry();
+        queue.setObserver(new GattMetrics(registry));
+        RecordingOperation mtu = new RecordingOperation(executed, "mtu", GattOperation.TYPE_REQUEST_MTU, null);
+        RecordingOperation write = new RecordingOperation(executed, "write", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        RecordingOperation rejected = new RecordingOperation(executed, "rejected", GattOperation.TYPE_WRITE_CHARACTERISTIC, null);
+        rejected.accept = false;
+        queue.submit(mtu);
+        queue.submit(write);
+        queue.submit(rejected);
+
+        queue.onComplete(GattOperation.TYPE_REQUEST_MTU, null, 0);
+        queue.onComplete(GattOperation.TYPE_WRITE_CHARACTERISTIC, UUID_WRITE, 0x85);
+
+        assertEquals(1, registry.histogram("gatt.mtu", "us").getCount());
+        //Failed writes are counted by status but not timed
+        assertEquals(0, registry.histogram("gatt.write", "us").getCount());
+        StatusCounter statuses = registry.statusCounter("gatt.status");
+        assertEquals(1, statuses.get(0));
+        assertEquals(1, statuses.get(0x85));
+        assertEquals(1, statuses.get(GattOperation.STATUS_REJECTED));
+    }
+}
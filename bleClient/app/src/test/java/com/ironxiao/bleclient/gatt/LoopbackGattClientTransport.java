@@ -0,0 +1,556 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.bleclient.connect.ReconnectPolicy;
+import com.ironxiao.blecore.secure.SecureCodec;
+import com.ironxiao.blecore.secure.SecureServer;
+import com.ironxiao.blecore.secure.TicketStore;
+import com.ironxiao.blecore.transfer.Compression;
+import com.ironxiao.blecore.transfer.FrameAssembler;
+import com.ironxiao.blecore.transfer.FrameCodec;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+import com.ironxiao.blecore.transfer.TransferCodec;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * In-process GATT link to a fake provisioning peripheral, driven by a virtual clock.
+ * <p>
+ * Every operation completes one connection interval after it was started and, like
+ * {@code BluetoothGatt}, a second operation is rejected while one is outstanding.
+ * Writes longer than the negotiated MTU fail, and write-without-response frames are
+ * dropped at the given loss rate. The peripheral reassembles frames written to the
+ * write characteristic and, once subscribed, notifies {@code "ACK:" + length}. With
+ * {@link #setCapabilities} it also offers codecs and decodes compressed payloads,
+ * and notifies credits to a central that asks for them. {@link #setServerQueue}
+ * makes the peripheral slow to consume frames and drop those it has no room for,
+ * and {@link #rejectWrites} has the stack refuse write commands as if the
+ * controller's buffers were full. {@link #setSecure} has the peripheral answer
+ * handshakes and open sealed payloads.
+ * Priority requests are recorded and a 2M PHY request is granted one interval
+ * later unless {@link #setPhy2mSupported} turned it off.
+ * <p>
+ * The loop also serves as the {@link GattOperationQueue.Scheduler} so that operation
+ * timeouts run on virtual time. Several loopbacks can share one clock to simulate a
+ * central with many links.
+ */
+class LoopbackGattClientTransport implements GattClientTransport, GattOperationQueue.Scheduler {
+    static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+    static final int GATT_FAILURE = 0x101;
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long order;
+        final Runnable task;
+
+        Event(long time, long order, Runnable task) {
+            this.time = time;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time)
+                return time < other.time ? -1 : 1;
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    /** Virtual time and the events waiting for it. */
+    static class Clock implements GattOperationQueue.Scheduler, ReconnectPolicy.Clock {
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+        private long now;
+        private long order;
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+
+        /**
+         * Runs events until none are left or the virtual clock passes the limit.
+         */
+        void runFor(long millis) {
+            long end = now + millis;
+            while (!events.isEmpty() && events.peek().time <= end) {
+                Event event = events.poll();
+                now = event.time;
+                event.task.run();
+            }
+            now = Math.max(now, end);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            events.add(new Event(now + delayMillis, order++, task));
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            for (Event event : events) {
+                if (event.task == task) {
+                    events.remove(event);
+                    return;
+                }
+            }
+        }
+    }
+
+    private final Clock clock;
+    private final UUID writeUuid;
+    private final UUID notifyUuid;
+    private final int maxMtu;
+    private final long intervalMillis;
+    private final double lossRate;
+    private final Random random;
+
+    private Callback callback;
+    private String address;
+    private boolean connected;
+    private boolean discovered;
+    private boolean busy;
+    private int mtu = FrameCodec.DEFAULT_MTU;
+
+    //Peripheral side
+    final FrameAssembler assembler = new FrameAssembler();
+    final List<byte[]> received = new ArrayList<>();
+    final List<Integer> receivedLengths = new ArrayList<>();
+    private UUID capabilitiesUuid;
+    private int capabilities;
+    int codec = Compression.CODEC_NONE;
+    boolean subscribed;
+    int framesWritten;
+    int framesLost;
+    int rejected;
+    final List<Integer> priorities = new ArrayList<>();
+    /** The peripheral never answers connection attempts. */
+    boolean unreachable;
+    int phyRequests;
+    private boolean phy2mSupported = true;
+    boolean credits;
+    int framesConsumed;
+    int framesDropped;
+    private int creditedFrames;
+    private boolean creditPending;
+    private int serverQueueLimit = Integer.MAX_VALUE;
+    private long serverFrameMillis;
+    private int serverQueued;
+    private long serverBusyUntil;
+    /** Write commands the stack still refuses. */
+    int rejectWrites;
+    private SecureServer secure;
+    /** Handshake messages are swallowed instead of answered. */
+    boolean silentHandshake;
+
+    LoopbackGattClientTransport(UUID writeUuid, UUID notifyUuid, int maxMtu, long intervalMillis,
+                                double lossRate, long seed) {
+        this(new Clock(), writeUuid, notifyUuid, maxMtu, intervalMillis, lossRate, seed);
+    }
+
+    LoopbackGattClientTransport(Clock clock, UUID writeUuid, UUID notifyUuid, int maxMtu, long intervalMillis,
+                                double lossRate, long seed) {
+        this.clock = clock;
+        this.writeUuid = writeUuid;
+        this.notifyUuid = notifyUuid;
+        this.maxMtu = maxMtu;
+        this.intervalMillis = intervalMillis;
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+    }
+
+    void setCapabilities(UUID capabilitiesUuid, int capabilities) {
+        this.capabilitiesUuid = capabilitiesUuid;
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * The peripheral takes {@code frameMillis} per frame and holds at most
+     * {@code limit} frames waiting for it; more are dropped.
+     */
+    void setServerQueue(int limit, long frameMillis) {
+        this.serverQueueLimit = limit;
+        this.serverFrameMillis = frameMillis;
+    }
+
+    /**
+     * Answers handshakes with tickets from the store; also sets
+     * {@code CAPABILITY_SECURE} once capabilities are set.
+     */
+    void setSecure(TicketStore<ByteBuffer> tickets) {
+        secure = new SecureServer(new SecureRandom(), tickets);
+    }
+
+    void setPhy2mSupported(boolean supported) {
+        this.phy2mSupported = supported;
+    }
+
+    long now() {
+        return clock.nowMillis();
+    }
+
+    /**
+     * Runs events until none are left or the virtual clock passes the limit.
+     */
+    void runFor(long millis) {
+        clock.runFor(millis);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        clock.schedule(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        clock.cancel(task);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public boolean connect(String address) {
+        this.address = address;
+        discovered = false;
+        busy = false;
+        mtu = FrameCodec.DEFAULT_MTU;
+        if (unreachable)
+            return true;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                connected = true;
+                callback.onConnectionStateChange(true, STATUS_SUCCESS);
+            }
+        }, intervalMillis);
+        return true;
+    }
+
+    @Override
+    public boolean reconnect() {
+        if (address == null)
+            return false;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                connected = true;
+                callback.onConnectionStateChange(true, STATUS_SUCCESS);
+            }
+        }, intervalMillis);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (!connected)
+            return;
+        connected = false;
+        busy = false;
+        mtu = FrameCodec.DEFAULT_MTU;
+        subscribed = false;
+        codec = Compression.CODEC_NONE;
+        credits = false;
+        serverQueued = 0;
+        assembler.reset();
+        if (secure != null)
+            secure.reset();
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                callback.onConnectionStateChange(false, STATUS_SUCCESS);
+            }
+        }, intervalMillis);
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+        address = null;
+        discovered = false;
+    }
+
+    @Override
+    public boolean isConnected(String address) {
+        return connected && address.equals(this.address);
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID characteristic) {
+        return discovered && (writeUuid.equals(characteristic) || notifyUuid.equals(characteristic)
+                || characteristic.equals(capabilitiesUuid));
+    }
+
+    @Override
+    public boolean requestMtu(final int requested) {
+        if (!begin())
+            return false;
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                mtu = Math.max(FrameCodec.DEFAULT_MTU, Math.min(requested, maxMtu));
+                callback.onMtuChanged(mtu, STATUS_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!begin())
+            return false;
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                discovered = true;
+                callback.onServicesDiscovered(STATUS_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(final UUID characteristic) {
+        if (!begin())
+            return false;
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                byte[] value = characteristic.equals(capabilitiesUuid) ? new byte[]{(byte) (capabilities | (secure != null ? SecureCodec.CAPABILITY_SECURE : 0))}
+                        : new byte[0];
+                callback.onCharacteristicRead(characteristic, value,
+                        hasCharacteristic(characteristic) ? STATUS_SUCCESS : GATT_FAILURE);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(final UUID characteristic, final byte[] value, final int writeType) {
+        if (!hasCharacteristic(characteristic))
+            return false;
+        if (connected && !busy && writeType == WRITE_TYPE_NO_RESPONSE && rejectWrites > 0) {
+            rejectWrites--;
+            rejected++;
+            return false;
+        }
+        if (!begin())
+            return false;
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                if (value.length > mtu - FrameCodec.ATT_OVERHEAD) {
+                    callback.onCharacteristicWrite(characteristic, GATT_INVALID_ATTRIBUTE_LENGTH);
+                    return;
+                }
+                if (writeType == WRITE_TYPE_NO_RESPONSE && random.nextDouble() < lossRate)
+                    framesLost++;
+                else
+                    onPeripheralWrite(characteristic, value);
+                callback.onCharacteristicWrite(characteristic, STATUS_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID characteristic, boolean enable) {
+        return hasCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(final UUID characteristic, final UUID descriptor, final byte[] value) {
+        if (!begin())
+            return false;
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                if (notifyUuid.equals(characteristic))
+                    subscribed = value.length > 0 && (value[0] & 0x01) != 0;
+                callback.onDescriptorWrite(characteristic, descriptor, STATUS_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (!connected)
+            return false;
+        priorities.add(priority);
+        return true;
+    }
+
+    @Override
+    public boolean setPreferredPhy(final int txPhyMask, final int rxPhyMask) {
+        if (!connected || !phy2mSupported)
+            return false;
+        phyRequests++;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!connected)
+                    return;
+                int txPhy = (txPhyMask & PHY_LE_2M_MASK) != 0 ? PHY_LE_2M : PHY_LE_1M;
+                int rxPhy = (rxPhyMask & PHY_LE_2M_MASK) != 0 ? PHY_LE_2M : PHY_LE_1M;
+                callback.onPhyUpdate(txPhy, rxPhy, STATUS_SUCCESS);
+            }
+        }, intervalMillis);
+        return true;
+    }
+
+    private boolean begin() {
+        if (!connected || busy) {
+            rejected++;
+            return false;
+        }
+        busy = true;
+        return true;
+    }
+
+    private void complete(final Runnable result) {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!connected)
+                    return;
+                busy = false;
+                result.run();
+            }
+        }, intervalMillis);
+    }
+
+    private void onPeripheralWrite(UUID characteristic, final byte[] value) {
+        if (characteristic.equals(capabilitiesUuid)) {
+            codec = value[0];
+            credits = value.length > 1 && (value[1] & TransferCodec.CAPABILITY_CREDITS) != 0;
+            framesConsumed = 0;
+            framesDropped = 0;
+            creditedFrames = 0;
+            creditPending = false;
+            return;
+        }
+        if (!writeUuid.equals(characteristic))
+            return;
+        framesWritten++;
+        if (serverFrameMillis == 0) {
+            consume(value);
+            return;
+        }
+        if (serverQueued >= serverQueueLimit) {
+            framesDropped++;
+            if (credits && !creditPending) {
+                creditPending = true;
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connected && creditPending)
+                            notifyCredit();
+                    }
+                }, intervalMillis);
+            }
+            return;
+        }
+        serverQueued++;
+        serverBusyUntil = Math.max(serverBusyUntil, now()) + serverFrameMillis;
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!connected)
+                    return;
+                serverQueued--;
+                consume(value);
+            }
+        }, serverBusyUntil - now());
+    }
+
+    private void consume(byte[] value) {
+        framesConsumed++;
+        boolean payloadEnd = assembler.onFrame(value);
+        if (payloadEnd) {
+            receivedLengths.add(assembler.getPayload().length);
+            byte[] payload = decode(assembler.getPayload());
+            if (secure != null && SecureCodec.type(payload) != 0)
+                onSecureMessage(payload);
+            else
+                onPayload(payload);
+        }
+        if (credits && (payloadEnd || framesConsumed - creditedFrames >= TransferCodec.CREDIT_INTERVAL))
+            notifyCredit();
+    }
+
+    private void onPayload(byte[] payload) {
+        received.add(payload);
+        if (subscribed)
+            notifyCentral(("ACK:" + payload.length).getBytes());
+    }
+
+    private void onSecureMessage(byte[] message) {
+        if (SecureCodec.type(message) == SecureCodec.TYPE_DATA) {
+            ByteBuffer opened = secure.open(message, 0, message.length);
+            if (opened == null) {
+                notifyCentral("NAK".getBytes());
+                return;
+            }
+            onPayload(Arrays.copyOfRange(opened.array(), opened.position(), opened.limit()));
+            return;
+        }
+        if (silentHandshake)
+            return;
+        byte[] answer = secure.onMessage(message, 0, message.length, now());
+        notifyCentral(answer != null ? answer : "NAK".getBytes());
+    }
+
+    private void notifyCredit() {
+        creditedFrames = framesConsumed;
+        creditPending = false;
+        if (subscribed)
+            notifyCentral(TransferCodec.credit(framesConsumed, framesDropped));
+    }
+
+    private byte[] decode(byte[] payload) {
+        if (codec == Compression.CODEC_NONE)
+            return payload;
+        byte[] body = Arrays.copyOfRange(payload, 1, payload.length);
+        if (payload[0] == Compression.CODEC_NONE)
+            return body;
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(Compression.PRESET_DICTIONARY);
+        inflater.setInput(body);
+        byte[] buffer = new byte[FrameAssembler.DEFAULT_MAX_PAYLOAD];
+        try {
+            int length = inflater.inflate(buffer);
+            return Arrays.copyOf(buffer, length);
+        } catch (DataFormatException e) {
+            throw new AssertionError(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void notifyCentral(byte[] payload) {
+        FrameSplitter splitter = new FrameSplitter(payload, mtu);
+        long delay = intervalMillis;
+        while (splitter.hasNext()) {
+            final byte[] frame = splitter.next();
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (connected && subscribed)
+                        callback.onCharacteristicChanged(notifyUuid, frame);
+                }
+            }, delay);
+            delay += intervalMillis;
+        }
+    }
+}
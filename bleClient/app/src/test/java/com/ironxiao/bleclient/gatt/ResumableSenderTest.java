@@ -0,0 +1,269 @@
+package com.ironxiao.bleclient.gatt;
+
+import com.ironxiao.blecore.transfer.TransferCodec;
+import com.ironxiao.blecore.transfer.TransferReceiver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ResumableSenderTest {
+    private static final int CHUNK = 1000;
+    private static final int WINDOW = 4;
+    private static final long HOP_MILLIS = 10;
+    private static final long STALL_MILLIS = 1000;
+
+    private final LoopbackGattClientTransport.Clock clock = new LoopbackGattClientTransport.Clock();
+    private TransferReceiver receiver = new TransferReceiver(64 * 1024);
+    private final byte[] payload = new byte[10 * CHUNK + 123];
+    private final List<Integer> deliveredOffsets = new ArrayList<>();
+    private byte[] received;
+    private int completed = -1;
+    private int failure;
+    private int progressCalls;
+
+    {
+        new Random(3).nextBytes(payload);
+    }
+
+    /**
+     * Takes one message at a time; it reaches the receiver one hop later, and the
+     * ack comes back one hop after that. Messages and acks can be dropped by index.
+     */
+    private class Link implements ResumableSender.Link {
+        final Set<Integer> dropMessages = new HashSet<>();
+        final Set<Integer> dropAcks = new HashSet<>();
+        boolean deaf;
+        boolean busy;
+        int sent;
+        int acks;
+        int epoch;
+
+        @Override
+        public boolean send(final byte[] message) {
+            if (busy)
+                return false;
+            busy = true;
+            final int index = sent++;
+            final int sentEpoch = epoch;
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (sentEpoch != epoch)
+                        return;
+                    busy = false;
+                    if (!deaf && !dropMessages.contains(index))
+                        deliver(message, sentEpoch);
+                    sender.pump();
+                }
+            }, HOP_MILLIS);
+            return true;
+        }
+
+        void deliver(byte[] message, final int sentEpoch) {
+            if (TransferCodec.type(message) == TransferCodec.TYPE_CHUNK)
+                deliveredOffsets.add(TransferCodec.chunkOffset(message, 0));
+            final byte[] ack = receiver.onMessage(message, 0, message.length);
+            if (receiver.getPayload() != null)
+                received = receiver.getPayload();
+            if (ack == null || dropAcks.contains(acks++))
+                return;
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (sentEpoch == epoch)
+                        sender.onPayload(ack);
+                }
+            }, HOP_MILLIS);
+        }
+
+        void disconnect() {
+            epoch++;
+            busy = false;
+            sender.onLinkLost();
+        }
+    }
+
+    private final Link link = new Link();
+
+    private final ResumableSender.Listener listener = new ResumableSender.Listener() {
+        @Override
+        public void onTransferProgress(int ackedBytes, int totalBytes) {
+            progressCalls++;
+        }
+
+        @Override
+        public void onTransferComplete(int bytes) {
+            completed = bytes;
+        }
+
+        @Override
+        public void onTransferFailed(int reason) {
+            failure = reason;
+        }
+    };
+
+    private final ResumableSender sender = new ResumableSender(link, clock, listener, CHUNK, WINDOW, STALL_MILLIS);
+
+    private void start() {
+        sender.onLinkReady();
+        assertTrue(sender.start(payload));
+    }
+
+    @Test
+    public void sendsEveryChunkOnceWithWindowedAcks() {
+        start();
+        assertFalse(sender.start(payload));
+        clock.runFor(10 * 1000);
+
+        assertEquals(payload.length, completed);
+        assertArrayEquals(payload, received);
+        //Begin plus 11 chunks
+        assertEquals(12, link.sent);
+        assertEquals(11, deliveredOffsets.size());
+        assertTrue(progressCalls >= 11 / (WINDOW / 2));
+        assertFalse(sender.isBusy());
+    }
+
+    @Test
+    public void resendsFromLostChunk() {
+        link.dropMessages.add(3);
+        start();
+        clock.runFor(10 * 1000);
+
+        assertEquals(payload.length, completed);
+        assertArrayEquals(payload, received);
+        assertTrue(link.sent > 12);
+    }
+
+    @Test
+    public void resumesAfterReconnectWithoutResendingAckedBytes() {
+        start();
+        while (sender.getAcked() < 4 * CHUNK)
+            clock.runFor(HOP_MILLIS);
+        int acked = sender.getAcked();
+        link.disconnect();
+        clock.runFor(5000);
+        deliveredOffsets.clear();
+
+        sender.onLinkReady();
+        clock.runFor(10 * 1000);
+
+        assertEquals(payload.length, completed);
+        assertArrayEquals(payload, received);
+        for (int offset : deliveredOffsets)
+            assertTrue("resent " + offset, offset >= acked);
+    }
+
+    @Test
+    public void serverThatForgotTheTransferGetsItAgain() {
+        start();
+        while (sender.getAcked() < 2 * CHUNK)
+            clock.runFor(HOP_MILLIS);
+        link.disconnect();
+        //Session evicted while the client was away
+        receiver = new TransferReceiver(64 * 1024);
+
+        sender.onLinkReady();
+        clock.runFor(10 * 1000);
+
+        assertEquals(payload.length, completed);
+        assertArrayEquals(payload, received);
+    }
+
+    @Test
+    public void asksAgainWhenTheFinalAckIsLost() {
+        //Begin and the ack requests at chunks 2, 4, 6, 8, 10 and the last one
+        link.dropAcks.add(6);
+        start();
+        clock.runFor(STALL_MILLIS / 2);
+        assertEquals(-1, completed);
+
+        clock.runFor(2 * STALL_MILLIS);
+        assertEquals(payload.length, completed);
+        assertEquals(0, failure);
+    }
+
+    @Test
+    public void failsWhenServerStaysSilent() {
+        link.deaf = true;
+        start();
+        clock.runFor((ResumableSender.MAX_STALLS + 2) * STALL_MILLIS);
+
+        assertEquals(ResumableSender.FAILURE_TIMEOUT, failure);
+        assertEquals(-1, completed);
+        assertFalse(sender.isBusy());
+    }
+
+    /**
+     * Stands in for the link's channel: tags the payload with the link it was sealed on.
+     */
+    private class EpochSealer implements ResumableSender.Sealer {
+        boolean channel = true;
+
+        @Override
+        public byte[] seal(byte[] plain) {
+            if (!channel)
+                return null;
+            byte[] sealed = new byte[plain.length + 1];
+            sealed[0] = (byte) link.epoch;
+            System.arraycopy(plain, 0, sealed, 1, plain.length);
+            return sealed;
+        }
+    }
+
+    @Test
+    public void sealedPayloadStartsOverUnderNewChannel() {
+        EpochSealer sealer = new EpochSealer();
+        sender.onLinkReady();
+        assertTrue(sender.start(payload, sealer));
+        while (sender.getAcked() < 4 * CHUNK)
+            clock.runFor(HOP_MILLIS);
+        link.disconnect();
+        clock.runFor(5000);
+        deliveredOffsets.clear();
+
+        sender.onLinkReady();
+        clock.runFor(10 * 1000);
+
+        //Nothing sealed under the old keys is resumed
+        assertEquals(0, (int) deliveredOffsets.get(0));
+        assertEquals(payload.length + 1, completed);
+        assertEquals(link.epoch, received[0]);
+        assertArrayEquals(payload, Arrays.copyOfRange(received, 1, received.length));
+    }
+
+    @Test
+    public void sealedPayloadFailsWithoutNewChannel() {
+        EpochSealer sealer = new EpochSealer();
+        sender.onLinkReady();
+        assertTrue(sender.start(payload, sealer));
+        clock.runFor(HOP_MILLIS);
+        link.disconnect();
+
+        sealer.channel = false;
+        sender.onLinkReady();
+        clock.runFor(10 * 1000);
+
+        assertEquals(ResumableSender.FAILURE_NO_CHANNEL, failure);
+        assertEquals(-1, completed);
+        assertFalse(sender.isBusy());
+    }
+
+    @Test
+    public void failsWhenServerRejectsPayload() {
+        receiver = new TransferReceiver(CHUNK);
+        start();
+        clock.runFor(1000);
+
+        assertEquals(ResumableSender.FAILURE_REJECTED, failure);
+        assertEquals(1, link.sent);
+    }
+}
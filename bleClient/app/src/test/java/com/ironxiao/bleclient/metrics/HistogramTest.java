@@ -0,0 +1,84 @@
+package com.ironxiao.bleclient.metrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int index = 1; index < 900; index++)
+            assertEquals(Histogram.highestValue(index - 1) + 1, Histogram.lowestValue(index));
+        for (long value : new long[]{0, 1, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE}) {
+            int index = Histogram.indexOf(value);
+            assertTrue(Histogram.lowestValue(index) <= value);
+            assertTrue(Histogram.highestValue(index) >= value);
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.histogram("latency", "us");
+        for (int value = 1; value <= 10000; value++)
+            histogram.record(value);
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getMean());
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 16);
+        assertEquals(9900, histogram.getValueAtPercentile(99), 9900 / 16);
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new MetricsRegistry().histogram("small", "ms");
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(7);
+
+        assertEquals(0, histogram.getValueAtPercentile(25));
+        assertEquals(3, histogram.getValueAtPercentile(50));
+        assertEquals(7, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void emptyAndReset() {
+        Histogram histogram = new MetricsRegistry().histogram("empty", "ms");
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMean());
+
+        histogram.record(100);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        final Histogram histogram = new MetricsRegistry().histogram("concurrent", "us");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 50000; i++)
+                        histogram.record(random.nextInt(1000000));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(200000, histogram.getCount());
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+    }
+}
@@ -0,0 +1,49 @@
+package com.ironxiao.bleclient.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void sameNameSameInstrument() {
+        MetricsRegistry registry = new MetricsRegistry();
+        assertSame(registry.counter("found"), registry.counter("found"));
+        assertSame(registry.histogram("connect", "ms"), registry.histogram("connect", "ms"));
+        assertSame(registry.statusCounter("gatt.status"), registry.statusCounter("gatt.status"));
+    }
+
+    @Test
+    public void statusCounterKeepsCodesApart() {
+        StatusCounter statuses = new MetricsRegistry().statusCounter("gatt.status");
+        statuses.increment(0);
+        statuses.increment(0);
+        statuses.increment(0x85);
+        statuses.increment(0x101);
+        statuses.increment(-2);
+        statuses.increment(100000);
+
+        assertEquals(2, statuses.get(0));
+        assertEquals(1, statuses.get(0x85));
+        assertEquals(1, statuses.get(0x101));
+        assertEquals(1, statuses.get(-2));
+        assertEquals(1, statuses.getOther());
+    }
+
+    @Test
+    public void dumpListsEveryInstrument() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("scan.found").add(3);
+        registry.statusCounter("gatt.status").increment(0x85);
+        registry.histogram("connect", "ms").record(120);
+        registry.histogram("unused", "ms");
+
+        String dump = registry.dump();
+        assertTrue(dump.contains("scan.found 3\n"));
+        assertTrue(dump.contains("gatt.status 0x85=1\n"));
+        assertTrue(dump.contains("connect count=1 mean=120"));
+        assertTrue(dump.contains("max=120 ms\n"));
+        assertFalse(dump.contains("unused"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.ironxiao.bleclient.transfer;
+
+import com.ironxiao.blecore.transfer.FrameAssembler;
+import com.ironxiao.blecore.transfer.FrameCodec;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BulkSenderTest {
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return payload;
+    }
+
+    @Test
+    public void roundTrip_defaultMtu() {
+        LoopbackTransport transport = new LoopbackTransport();
+        BulkSender sender = new BulkSender(transport, null);
+        byte[] payload = payload(4096);
+        sender.start(payload, FrameCodec.DEFAULT_MTU);
+
+        assertFalse(sender.isBusy());
+        assertEquals(1, transport.payloads.size());
+        assertArrayEquals(payload, transport.payloads.get(0));
+        assertEquals(FrameCodec.DEFAULT_MTU - FrameCodec.ATT_OVERHEAD, transport.maxFrameLength);
+        assertTrue(sender.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void roundTrip_largeMtu() {
+        LoopbackTransport transport = new LoopbackTransport();
+        BulkSender sender = new BulkSender(transport, null);
+        byte[] payload = payload(10000);
+        sender.start(payload, 512);
+
+        assertArrayEquals(payload, transport.payloads.get(0));
+        assertEquals(509, transport.maxFrameLength);
+    }
+
+    @Test
+    public void roundTrip_emptyAndSingleFrame() {
+        LoopbackTransport transport = new LoopbackTransport();
+        BulkSender sender = new BulkSender(transport, null);
+        sender.start(new byte[0], FrameCodec.DEFAULT_MTU);
+        sender.start(payload(5), FrameCodec.DEFAULT_MTU);
+
+        assertEquals(2, transport.payloads.size());
+        assertEquals(0, transport.payloads.get(0).length);
+        assertArrayEquals(payload(5), transport.payloads.get(1));
+        assertEquals(2, transport.frames);
+    }
+
+    @Test
+    public void busyTransport_resumesOnPump() {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.busyEvery = 3;
+        BulkSender sender = new BulkSender(transport, null);
+        byte[] payload = payload(300);
+        sender.start(payload, FrameCodec.DEFAULT_MTU);
+        while (sender.isBusy())
+            sender.pump();
+
+        assertArrayEquals(payload, transport.payloads.get(0));
+    }
+
+    @Test
+    public void sequenceGap_dropsPayload() {
+        FrameSplitter splitter = new FrameSplitter(payload(100), FrameCodec.DEFAULT_MTU);
+        FrameAssembler assembler = new FrameAssembler();
+        assembler.onFrame(splitter.next());
+        splitter.next();
+        while (splitter.hasNext())
+            assertFalse(assembler.onFrame(splitter.next()));
+
+        assertNull(assembler.getPayload());
+        assertTrue(assembler.getDroppedFrames() > 0);
+    }
+
+    @Test
+    public void oversizedPayload_isRejected() {
+        FrameSplitter splitter = new FrameSplitter(payload(100), FrameCodec.DEFAULT_MTU);
+        FrameAssembler assembler = new FrameAssembler(64);
+
+        assertFalse(assembler.onFrame(splitter.next()));
+        assertEquals(1, assembler.getDroppedFrames());
+    }
+}
@@ -0,0 +1,29 @@
+package com.ironxiao.bleclient.transfer;
+
+import com.ironxiao.blecore.transfer.FrameAssembler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory transport that hands every frame straight to a {@link FrameAssembler}.
+ */
+class LoopbackTransport implements FrameTransport {
+    final FrameAssembler assembler = new FrameAssembler();
+    final List<byte[]> payloads = new ArrayList<>();
+    int attempts;
+    int frames;
+    int maxFrameLength;
+    int busyEvery;
+
+    @Override
+    public boolean send(byte[] frame) {
+        if (busyEvery > 0 && ++attempts % busyEvery == 0)
+            return false;
+        frames++;
+        maxFrameLength = Math.max(maxFrameLength, frame.length);
+        if (assembler.onFrame(frame))
+            payloads.add(assembler.getPayload());
+        return true;
+    }
+}
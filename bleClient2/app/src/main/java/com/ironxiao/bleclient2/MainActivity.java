@@ -2,11 +2,8 @@ package com.ironxiao.bleclient2;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.app.ActivityCompat;
-import androidx.core.content.ContextCompat;
 
 
-import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 
 import com.polidea.rxandroidble2.scan.ScanFilter;
@@ -14,20 +11,33 @@ import com.polidea.rxandroidble2.scan.ScanSettings;
 
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
 
+import com.ironxiao.bleclient2.connection.BleLink;
+import com.ironxiao.blecore.BleProtocol;
+import com.ironxiao.blecore.android.BleSupport;
+import com.ironxiao.blecore.scan.AdvertisementParser;
+import com.ironxiao.blecore.scan.ScanScheduler;
+import com.ironxiao.blecore.scan.ServerStatus;
 import com.polidea.rxandroidble2.RxBleClient;
 
 
-import java.util.UUID;
-
 import io.reactivex.Observable;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.BehaviorSubject;
+
+import static com.ironxiao.blecore.BleProtocol.MANUFACTURE_ID;
+import static com.ironxiao.blecore.BleProtocol.UUID_CAPABILITIES;
+import static com.ironxiao.blecore.BleProtocol.UUID_SERVER;
+import static com.ironxiao.blecore.BleProtocol.UUID_SERVER_16;
+import static com.ironxiao.blecore.BleProtocol.UUID_WRITE;
 
 
 public class MainActivity extends AppCompatActivity {
@@ -38,15 +48,10 @@ public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_PERMISSIONS_ACCESS_LOCATION = 0x1;
 
 
-    private static final int MANUFACTURE_ID = 0xAAA;
-    private static final String MANUFACTURE = "Nologic";
-
-    private static final UUID UUID_SETUP = UUID.fromString( "00001ff9-0000-1000-8000-00805f9b34fb" );
-    private static final UUID UUID_REQUEST = UUID.fromString( "00001ffa-0000-1000-8000-00805f9b34fb" );
+    private static final byte[] MANUFACTURE_BYTES = BleProtocol.manufactureData();
 
 
-    private static final ScanSettings scanSettings = new ScanSettings.Builder().setScanMode( ScanSettings.SCAN_MODE_LOW_POWER ).build();
-    private static final ScanFilter scanFilter = new ScanFilter.Builder().setServiceUuid( new ParcelUuid( UUID_SETUP ) ).setManufacturerData( MANUFACTURE_ID, MANUFACTURE.getBytes() ).build();
+    private static final ScanFilter scanFilter = new ScanFilter.Builder().setServiceUuid( new ParcelUuid( UUID_SERVER ) ).setManufacturerData( MANUFACTURE_ID, BleProtocol.manufactureData() ).build();
 
 
     private RxBleClient rxBleClient;
@@ -57,6 +62,19 @@ public class MainActivity extends AppCompatActivity {
 
     private Disposable connectDisposable;
 
+    private Disposable sendDisposable;
+
+    private BleLink bleLink;
+
+    private final Handler handler = new Handler( Looper.getMainLooper() );
+
+    private final ScanScheduler scanScheduler = new ScanScheduler( SystemClock::elapsedRealtime );
+
+    //Every new mode restarts the scan, MODE_OFF ends it
+    private final BehaviorSubject<Integer> scanModes = BehaviorSubject.createDefault( ScanScheduler.MODE_OFF );
+
+    private final Runnable scanTask = this::applyScanMode;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -108,48 +126,109 @@ public class MainActivity extends AppCompatActivity {
         }
 
         if (!accessLocationAllowed()) {
+            toast( "Pls grant location permission first, otherwise cannot search device!" );
             grantAccessLocationPermission();
             return;
         }
 
-        scanSubscription = rxBleClient.scanBleDevices( scanSettings,
-                scanFilter )
+        //Reuse the live link instead of scanning and connecting again
+        if (bleLink != null && connectDisposable != null && !connectDisposable.isDisposed()) {
+            sendMsg( "test".getBytes() );
+            return;
+        }
+
+        if (scanSubscription != null)
+            scanSubscription.dispose();
+        scanSubscription = scanModes
+                .distinctUntilChanged()
+                .switchMap( mode -> mode == ScanScheduler.MODE_OFF
+                        ? Observable.empty()
+                        : rxBleClient.scanBleDevices( new ScanSettings.Builder().setScanMode( mode ).build(), scanFilter ) )
+                // Hardware filters are unreliable on some chipsets, check the raw record too
+                .filter( scanResult -> AdvertisementParser.matches( scanResult.getScanRecord().getBytes(),
+                        UUID_SERVER_16, MANUFACTURE_ID, MANUFACTURE_BYTES ) )
+                // Servers advertise when all their slots are taken
+                .filter( scanResult -> !ServerStatus.isBusy( ServerStatus.find( scanResult.getScanRecord().getBytes(),
+                        MANUFACTURE_ID, MANUFACTURE_BYTES ) ) )
                 .subscribe(
                         scanResult -> {
                             log( "OnSuccess: " + scanResult.toString() );
                             scanSubscription.dispose();
-                            connectDisposable = scanResult.getBleDevice().establishConnection( false )
-                                    .subscribe(
-                                            rxBleConnection -> {
-                                                rxBleConnection.writeCharacteristic( UUID_REQUEST, "test".getBytes() );
-                                            },
-                                            throwable -> {
-                                                log( "senMsg error: " + throwable );
-                                            }
-                                    );
+                            handler.post( this::stopScan );
+                            connect( new BleLink( scanResult.getBleDevice(), UUID_WRITE, UUID_CAPABILITIES ) );
+                            sendMsg( "test".getBytes() );
                         },
                         throwable -> {
                             log( "error" + throwable );
+                            handler.post( this::stopScan );
                         }
 
                 );
+        scanScheduler.start();
+        applyScanMode();
+    }
 
-// When done, just dispose.
+    private void stopScan() {
+        scanScheduler.stop();
+        applyScanMode();
+    }
 
+    /**
+     * Publishes the mode the scheduler wants now and comes back when it may
+     * want another one.
+     */
+    private void applyScanMode() {
+        handler.removeCallbacks( scanTask );
+        scanModes.onNext( scanScheduler.update() );
+        long delay = scanScheduler.nextUpdateDelayMillis();
+        if (delay != ScanScheduler.NO_UPDATE)
+            handler.postDelayed( scanTask, delay );
+    }
 
+    private void connect(BleLink link) {
+        if (bleLink != null)
+            bleLink.release();
+        bleLink = link;
+        //Keeps the shared connection up between sends
+        connectDisposable = link.observeLink()
+                .subscribe(
+                        established -> {
+                            log( "connected, mtu: " + established.getMtu() + " codec: " + established.getCodec() );
+                        },
+                        throwable -> {
+                            log( "connection error: " + throwable );
+                        }
+                );
+    }
+
+    private void sendMsg(byte[] msg) {
+        sendDisposable = bleLink.send( msg )
+                .subscribe(
+                        () -> {
+                            log( "sendMsg done: " + msg.length );
+                        },
+                        throwable -> {
+                            log( "senMsg error: " + throwable );
+                        }
+                );
     }
 
     private boolean hasBleFeature() {
-        return getPackageManager().hasSystemFeature( PackageManager.FEATURE_BLUETOOTH_LE );
+        return BleSupport.hasBleFeature( this );
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacks( scanTask );
         if (scanSubscription != null)
             scanSubscription.dispose();
+        if (sendDisposable != null)
+            sendDisposable.dispose();
         if (connectDisposable != null)
             connectDisposable.dispose();
+        if (bleLink != null)
+            bleLink.release();
         flowDisposable.dispose();
     }
 
@@ -167,30 +246,11 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private boolean btEnabled() {
-        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        return bluetoothAdapter == null || bluetoothAdapter.isEnabled();
-    }
-
-    private boolean osVersionLaterThanP() {
-        return Build.VERSION.SDK_INT > Build.VERSION_CODES.P;
+        return BleSupport.btEnabled( BluetoothAdapter.getDefaultAdapter() );
     }
 
     private void grantAccessLocationPermission() {
-        if (accessLocationAllowed()) return;
-        if (ActivityCompat.shouldShowRequestPermissionRationale( this,
-                Manifest.permission.ACCESS_COARSE_LOCATION )) {
-            //TODO further action
-        } else {
-            if (!osVersionLaterThanP())
-                ActivityCompat.requestPermissions( this,
-                        new String[]{Manifest.permission.ACCESS_COARSE_LOCATION},
-                        REQUEST_PERMISSIONS_ACCESS_LOCATION );
-            else
-                ActivityCompat.requestPermissions( this,
-                        new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
-                        REQUEST_PERMISSIONS_ACCESS_LOCATION );
-        }
-
+        BleSupport.grantAccessLocationPermission( this, REQUEST_PERMISSIONS_ACCESS_LOCATION );
     }
 
     @Override
@@ -208,19 +268,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private boolean accessLocationAllowed() {
-        if (!osVersionLaterThanP()) {
-            return ContextCompat.checkSelfPermission( this,
-                    Manifest.permission.ACCESS_COARSE_LOCATION )
-                    == PackageManager.PERMISSION_GRANTED || ContextCompat.checkSelfPermission( this,
-                    Manifest.permission.ACCESS_FINE_LOCATION )
-                    == PackageManager.PERMISSION_GRANTED;
-
-        }
-        return ContextCompat.checkSelfPermission( this,
-                Manifest.permission.ACCESS_FINE_LOCATION )
-                == PackageManager.PERMISSION_GRANTED;
-
+        return BleSupport.accessLocationAllowed( this );
     }
 
-
 }
\ No newline at end of file
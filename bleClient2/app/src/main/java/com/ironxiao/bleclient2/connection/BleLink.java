@@ -0,0 +1,261 @@
+package com.ironxiao.bleclient2.connection;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.ironxiao.blecore.transfer.Compression;
+import com.ironxiao.blecore.transfer.FrameCodec;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+import com.ironxiao.blecore.transfer.PayloadCompressor;
+import com.polidea.rxandroidble2.RxBleConnection;
+import com.polidea.rxandroidble2.RxBleDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.CompletableSubject;
+import io.reactivex.subjects.PublishSubject;
+
+/**
+ * One shared connection to a provisioning server and the write path on top of it.
+ * <p>
+ * The connection is set up once (MTU, codec negotiation) and replayed to every
+ * subscriber; it stays up while anyone is subscribed and is torn down with the last
+ * one or on {@link #disconnect()}. Payloads are framed and go through a
+ * {@link WriteBatcher}, one write at a time, so small messages share writes and
+ * large ones become long writes cut on frame boundaries. Long writes raise the
+ * connection priority to HIGH until the queue has been empty for a while.
+ */
+public class BleLink {
+    public static final int PREFERRED_MTU = 517;
+    public static final int MAX_PENDING_BYTES = 64 * 1024;
+    public static final long RELAX_DELAY_MILLIS = 2000;
+
+    /** The connection together with what was negotiated on it. */
+    public static final class Link {
+        private final RxBleConnection connection;
+        private final int mtu;
+        private final int codec;
+
+        Link( RxBleConnection connection, int mtu, int codec ) {
+            this.connection = connection;
+            this.mtu = mtu;
+            this.codec = codec;
+        }
+
+        public RxBleConnection getConnection() {
+            return connection;
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        public int getCodec() {
+            return codec;
+        }
+    }
+
+    private final UUID writeUuid;
+    private final UUID capabilitiesUuid;
+    private final PublishSubject<Boolean> disconnectTrigger = PublishSubject.create();
+    private final Observable<Link> links;
+    private final WriteBatcher batcher = new WriteBatcher( MAX_PENDING_BYTES );
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private final CompositeDisposable writes = new CompositeDisposable();
+    private boolean writing;
+    private boolean boosted;
+    private Disposable relax;
+
+    public BleLink( RxBleDevice device, UUID writeUuid, UUID capabilitiesUuid ) {
+        this.writeUuid = writeUuid;
+        this.capabilitiesUuid = capabilitiesUuid;
+        this.links = device.establishConnection( false )
+                .takeUntil( disconnectTrigger )
+                .flatMapSingle( this::setUp )
+                .replay( 1 )
+                .refCount();
+    }
+
+    /**
+     * The live link, set up and shared. Subscribing connects if nobody else holds
+     * the link; later subscribers get the same one without reconnecting.
+     */
+    public Observable<Link> observeLink() {
+        return links;
+    }
+
+    public Observable<RxBleConnection> observeConnection() {
+        return links.map( Link::getConnection );
+    }
+
+    /**
+     * Queues a payload on the live link. Nothing is sent until the result is
+     * subscribed; it completes once the payload was written.
+     */
+    public Completable send( byte[] payload ) {
+        return links.firstOrError().flatMapCompletable( link -> {
+            CompletableSubject sender = CompletableSubject.create();
+            int frameSize = FrameCodec.maxFrameSize( link.getMtu() );
+            List<byte[]> frames = frame( payload, link );
+            boolean queued = frames.size() == 1
+                    ? batcher.offer( frames.get( 0 ), false, sender )
+                    : batcher.offer( concat( frames ), true, sender );
+            if (!queued)
+                return Completable.error( new IllegalStateException( "Write queue full" ) );
+            drain( link, frameSize );
+            return sender;
+        } );
+    }
+
+    public void disconnect() {
+        disconnectTrigger.onNext( true );
+        writes.clear();
+        batcher.failAll( new IllegalStateException( "Disconnected" ) );
+        synchronized (this) {
+            writing = false;
+            boosted = false;
+            relax = null;
+        }
+    }
+
+    public void release() {
+        disconnect();
+        compressor.release();
+    }
+
+    private Single<Link> setUp( RxBleConnection connection ) {
+        return connection.requestMtu( PREFERRED_MTU )
+                .onErrorReturnItem( FrameCodec.DEFAULT_MTU )
+                .flatMap( mtu -> negotiateCodec( connection )
+                        .map( codec -> new Link( connection, mtu, codec ) ) );
+    }
+
+    /**
+     * Servers without the capabilities characteristic get plain payloads.
+     */
+    private Single<Integer> negotiateCodec( RxBleConnection connection ) {
+        if (capabilitiesUuid == null)
+            return Single.just( Compression.CODEC_NONE );
+        return connection.readCharacteristic( capabilitiesUuid )
+                .flatMap( capabilities -> {
+                    if (capabilities.length == 0 || (capabilities[0] & Compression.CAPABILITY_DEFLATE) == 0)
+                        return Single.just( Compression.CODEC_NONE );
+                    return connection.writeCharacteristic( capabilitiesUuid, new byte[]{Compression.CODEC_DEFLATE} )
+                            .map( written -> Compression.CODEC_DEFLATE );
+                } )
+                .onErrorReturnItem( Compression.CODEC_NONE );
+    }
+
+    private List<byte[]> frame( byte[] payload, Link link ) {
+        if (link.getCodec() == Compression.CODEC_NONE)
+            return drainSplitter( new FrameSplitter( payload, link.getMtu() ) );
+        //Frames are copied out of the shared compressor buffer before it is reused
+        synchronized (compressor) {
+            int length = compressor.encode( payload, link.getCodec() );
+            return drainSplitter( new FrameSplitter( compressor.getBuffer(), length, link.getMtu() ) );
+        }
+    }
+
+    private static List<byte[]> drainSplitter( FrameSplitter splitter ) {
+        List<byte[]> frames = new ArrayList<>();
+        while (splitter.hasNext())
+            frames.add( splitter.next() );
+        return frames;
+    }
+
+    private static byte[] concat( List<byte[]> frames ) {
+        int length = 0;
+        for (byte[] frame : frames)
+            length += frame.length;
+        byte[] value = new byte[length];
+        int offset = 0;
+        for (byte[] frame : frames) {
+            System.arraycopy( frame, 0, value, offset, frame.length );
+            offset += frame.length;
+        }
+        return value;
+    }
+
+    /**
+     * Starts the next write unless one is running. Every frame but the last of a
+     * long write has exactly the frame size, so cutting it into batches of that
+     * size keeps each frame in its own ATT write.
+     */
+    private void drain( Link link, int frameSize ) {
+        WriteBatcher.Batch batch;
+        synchronized (this) {
+            if (writing)
+                return;
+            batch = batcher.poll( frameSize );
+            if (batch == null)
+                return;
+            writing = true;
+        }
+        Completable write = batch.isLongWrite()
+                ? boost( link ).andThen( link.getConnection().createNewLongWriteBuilder()
+                .setCharacteristicUuid( writeUuid )
+                .setBytes( batch.getValue() )
+                .setMaxBatchSize( frameSize )
+                .build()
+                .ignoreElements() )
+                : link.getConnection().writeCharacteristic( writeUuid, batch.getValue() ).ignoreElement();
+        writes.add( write.subscribe(
+                () -> {
+                    batch.complete();
+                    onWriteDone( link, frameSize );
+                },
+                throwable -> {
+                    batch.fail( throwable );
+                    onWriteDone( link, frameSize );
+                }
+        ) );
+    }
+
+    private void onWriteDone( Link link, int frameSize ) {
+        synchronized (this) {
+            writing = false;
+        }
+        drain( link, frameSize );
+        scheduleRelax( link );
+    }
+
+    /**
+     * Shortens the connection interval for a bulk transfer. The request is queued
+     * ahead of the write and only fails the write if the link is gone.
+     */
+    private synchronized Completable boost( Link link ) {
+        if (relax != null) {
+            relax.dispose();
+            relax = null;
+        }
+        if (boosted)
+            return Completable.complete();
+        boosted = true;
+        return link.getConnection()
+                .requestConnectionPriority( BluetoothGatt.CONNECTION_PRIORITY_HIGH, 1, TimeUnit.MILLISECONDS )
+                .onErrorComplete();
+    }
+
+    private synchronized void scheduleRelax( Link link ) {
+        if (!boosted || writing || relax != null || batcher.size() > 0)
+            return;
+        relax = Completable.timer( RELAX_DELAY_MILLIS, TimeUnit.MILLISECONDS )
+                .andThen( link.getConnection()
+                        .requestConnectionPriority( BluetoothGatt.CONNECTION_PRIORITY_BALANCED, 1, TimeUnit.MILLISECONDS ) )
+                .onErrorComplete()
+                .subscribe( () -> {
+                    synchronized (BleLink.this) {
+                        boosted = false;
+                        relax = null;
+                    }
+                } );
+        writes.add( relax );
+    }
+}
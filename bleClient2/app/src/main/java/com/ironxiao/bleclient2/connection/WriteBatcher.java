@@ -0,0 +1,146 @@
+package com.ironxiao.bleclient2.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.reactivex.subjects.CompletableSubject;
+
+/**
+ * Payloads waiting for the link, in send order.
+ * <p>
+ * Consecutive payloads that fit in a single frame are packed back to back into one
+ * write of up to a frame size; the server splits them again on the frame headers.
+ * Larger payloads are written on their own as a long write. The queue is bounded
+ * by bytes, so a fast producer is told to back off instead of buffering without limit.
+ */
+public class WriteBatcher {
+
+    public static final class Batch {
+        private final byte[] value;
+        private final boolean longWrite;
+        private final List<CompletableSubject> senders;
+
+        Batch( byte[] value, boolean longWrite, List<CompletableSubject> senders ) {
+            this.value = value;
+            this.longWrite = longWrite;
+            this.senders = senders;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        public boolean isLongWrite() {
+            return longWrite;
+        }
+
+        public int getPayloadCount() {
+            return senders.size();
+        }
+
+        public void complete() {
+            for (CompletableSubject sender : senders)
+                sender.onComplete();
+        }
+
+        public void fail( Throwable error ) {
+            for (CompletableSubject sender : senders)
+                sender.onError( error );
+        }
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final boolean longWrite;
+        final CompletableSubject sender;
+
+        Entry( byte[] value, boolean longWrite, CompletableSubject sender ) {
+            this.value = value;
+            this.longWrite = longWrite;
+            this.sender = sender;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int maxPendingBytes;
+    private int pendingBytes;
+
+    public WriteBatcher( int maxPendingBytes ) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * @param value     one frame, or all frames of a payload for a long write
+     * @param longWrite true if the value is more than one frame
+     * @return false if the queue is full
+     */
+    public synchronized boolean offer( byte[] value, boolean longWrite, CompletableSubject sender ) {
+        //An oversized payload still goes through when nothing else is waiting
+        if (pendingBytes > 0 && pendingBytes + value.length > maxPendingBytes)
+            return false;
+        entries.add( new Entry( value, longWrite, sender ) );
+        pendingBytes += value.length;
+        return true;
+    }
+
+    /**
+     * Takes the next write off the queue.
+     *
+     * @param maxSize largest value of a packed write, the frame size of the link
+     * @return null if the queue is empty
+     */
+    public synchronized Batch poll( int maxSize ) {
+        Entry first = entries.poll();
+        if (first == null)
+            return null;
+        pendingBytes -= first.value.length;
+        List<CompletableSubject> senders = new ArrayList<>( 1 );
+        senders.add( first.sender );
+        if (first.longWrite)
+            return new Batch( first.value, true, senders );
+
+        int length = first.value.length;
+        for (Entry next : entries) {
+            if (next.longWrite || length + next.value.length > maxSize)
+                break;
+            length += next.value.length;
+        }
+        if (length == first.value.length)
+            return new Batch( first.value, false, senders );
+
+        byte[] value = new byte[length];
+        System.arraycopy( first.value, 0, value, 0, first.value.length );
+        int offset = first.value.length;
+        while (offset < length) {
+            Entry next = entries.poll();
+            System.arraycopy( next.value, 0, value, offset, next.value.length );
+            offset += next.value.length;
+            pendingBytes -= next.value.length;
+            senders.add( next.sender );
+        }
+        return new Batch( value, false, senders );
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Fails every waiting payload, e.g. when the link is gone for good.
+     */
+    public void failAll( Throwable error ) {
+        List<Entry> failed;
+        synchronized (this) {
+            failed = new ArrayList<>( entries );
+            entries.clear();
+            pendingBytes = 0;
+        }
+        for (Entry entry : failed)
+            entry.sender.onError( error );
+    }
+}
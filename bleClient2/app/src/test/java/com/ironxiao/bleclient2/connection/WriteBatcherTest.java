@@ -0,0 +1,103 @@
+package com.ironxiao.bleclient2.connection;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import io.reactivex.observers.TestObserver;
+import io.reactivex.subjects.CompletableSubject;
+
+import static org.junit.Assert.*;
+
+public class WriteBatcherTest {
+
+    private static byte[] value(int length, int fill) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) fill);
+        return value;
+    }
+
+    @Test
+    public void packsSmallPayloadsUpToFrameSize() {
+        WriteBatcher batcher = new WriteBatcher(1024);
+        batcher.offer(value(8, 1), false, CompletableSubject.create());
+        batcher.offer(value(8, 2), false, CompletableSubject.create());
+        batcher.offer(value(8, 3), false, CompletableSubject.create());
+
+        WriteBatcher.Batch batch = batcher.poll(20);
+        assertEquals(2, batch.getPayloadCount());
+        assertFalse(batch.isLongWrite());
+        byte[] expected = new byte[16];
+        System.arraycopy(value(8, 1), 0, expected, 0, 8);
+        System.arraycopy(value(8, 2), 0, expected, 8, 8);
+        assertArrayEquals(expected, batch.getValue());
+
+        batch = batcher.poll(20);
+        assertEquals(1, batch.getPayloadCount());
+        assertArrayEquals(value(8, 3), batch.getValue());
+        assertNull(batcher.poll(20));
+        assertEquals(0, batcher.pendingBytes());
+    }
+
+    @Test
+    public void longWriteKeepsOrder() {
+        WriteBatcher batcher = new WriteBatcher(1024);
+        batcher.offer(value(4, 1), false, CompletableSubject.create());
+        batcher.offer(value(100, 2), true, CompletableSubject.create());
+        batcher.offer(value(4, 3), false, CompletableSubject.create());
+
+        assertArrayEquals(value(4, 1), batcher.poll(244).getValue());
+        WriteBatcher.Batch batch = batcher.poll(244);
+        assertTrue(batch.isLongWrite());
+        assertEquals(100, batch.getValue().length);
+        assertArrayEquals(value(4, 3), batcher.poll(244).getValue());
+    }
+
+    @Test
+    public void completesEverySenderOfABatch() {
+        WriteBatcher batcher = new WriteBatcher(1024);
+        CompletableSubject first = CompletableSubject.create();
+        CompletableSubject second = CompletableSubject.create();
+        TestObserver<Void> firstObserver = first.test();
+        TestObserver<Void> secondObserver = second.test();
+        batcher.offer(value(4, 1), false, first);
+        batcher.offer(value(4, 2), false, second);
+
+        batcher.poll(20).complete();
+        firstObserver.assertComplete();
+        secondObserver.assertComplete();
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        WriteBatcher batcher = new WriteBatcher(16);
+        assertTrue(batcher.offer(value(12, 1), false, CompletableSubject.create()));
+        assertFalse(batcher.offer(value(8, 2), false, CompletableSubject.create()));
+        assertTrue(batcher.offer(value(4, 2), false, CompletableSubject.create()));
+        assertEquals(2, batcher.size());
+
+        batcher.poll(20);
+        assertTrue(batcher.offer(value(8, 3), false, CompletableSubject.create()));
+    }
+
+    @Test
+    public void oversizedPayloadPassesAnEmptyQueue() {
+        WriteBatcher batcher = new WriteBatcher(16);
+        assertTrue(batcher.offer(value(64, 1), true, CompletableSubject.create()));
+        assertFalse(batcher.offer(value(1, 1), false, CompletableSubject.create()));
+    }
+
+    @Test
+    public void failAllFailsWaitingPayloads() {
+        WriteBatcher batcher = new WriteBatcher(1024);
+        CompletableSubject sender = CompletableSubject.create();
+        TestObserver<Void> observer = sender.test();
+        batcher.offer(value(4, 1), false, sender);
+
+        IllegalStateException error = new IllegalStateException("Disconnected");
+        batcher.failAll(error);
+        observer.assertError(error);
+        assertEquals(0, batcher.size());
+        assertNull(batcher.poll(20));
+    }
+}
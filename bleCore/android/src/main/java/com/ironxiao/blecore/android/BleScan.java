@@ -0,0 +1,48 @@
+package com.ironxiao.blecore.android;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import com.ironxiao.blecore.BleProtocol;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scan filters and settings for finding servers with the framework scanner.
+ */
+public final class BleScan {
+    private BleScan() {
+    }
+
+    /**
+     * @return a filter on the server's service UUID and manufacturer data prefix
+     */
+    public static List<ScanFilter> serverFilters() {
+        return Collections.singletonList(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(BleProtocol.UUID_SERVER))
+                .setManufacturerData(BleProtocol.MANUFACTURE_ID, BleProtocol.manufactureData())
+                .build());
+    }
+
+    /**
+     * Batched settings if the controller can queue results, otherwise results are
+     * delivered one by one. Servers using extended advertising are seen if the
+     * controller supports it.
+     *
+     * @param reportDelayMillis delay for batched results, 0 to never batch
+     */
+    public static ScanSettings settings(BluetoothAdapter adapter, int scanMode, long reportDelayMillis) {
+        ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(scanMode);
+        if (adapter == null)
+            return builder.build();
+        if (reportDelayMillis > 0 && adapter.isOffloadedScanBatchingSupported())
+            builder.setReportDelay(reportDelayMillis);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && adapter.isLeExtendedAdvertisingSupported())
+            builder.setLegacy(false);
+        return builder.build();
+    }
+}
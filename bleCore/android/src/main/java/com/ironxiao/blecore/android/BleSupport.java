@@ -0,0 +1,64 @@
+package com.ironxiao.blecore.android;
+
+import android.Manifest;
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+
+/**
+ * Checks every app makes before it scans or advertises.
+ */
+public final class BleSupport {
+    private BleSupport() {
+    }
+
+    public static boolean hasBleFeature(Context context) {
+        return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
+    }
+
+    /**
+     * @param adapter null if the device has no Bluetooth, which the feature check reports
+     */
+    public static boolean btEnabled(BluetoothAdapter adapter) {
+        return adapter == null || adapter.isEnabled();
+    }
+
+    /**
+     * Scan results need location access: coarse is enough before Q, Q and later want fine.
+     */
+    public static boolean accessLocationAllowed(Context context) {
+        if (!osVersionLaterThanP()) {
+            return granted(context, Manifest.permission.ACCESS_COARSE_LOCATION)
+                    || granted(context, Manifest.permission.ACCESS_FINE_LOCATION);
+        }
+        return granted(context, Manifest.permission.ACCESS_FINE_LOCATION);
+    }
+
+    /**
+     * Asks for the location permission {@link #accessLocationAllowed} needs; the
+     * answer comes to {@code onRequestPermissionsResult} with {@code requestCode}.
+     * <p>
+     * Callers tell the user why before asking, so the request goes out even when the
+     * system suggests a rationale; after "don't ask again" it is denied right away.
+     */
+    public static void grantAccessLocationPermission(Activity activity, int requestCode) {
+        if (accessLocationAllowed(activity))
+            return;
+        String permission = osVersionLaterThanP() ? Manifest.permission.ACCESS_FINE_LOCATION
+                : Manifest.permission.ACCESS_COARSE_LOCATION;
+        ActivityCompat.requestPermissions(activity, new String[]{permission}, requestCode);
+    }
+
+    private static boolean granted(Context context, String permission) {
+        return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private static boolean osVersionLaterThanP() {
+        return Build.VERSION.SDK_INT > Build.VERSION_CODES.P;
+    }
+}
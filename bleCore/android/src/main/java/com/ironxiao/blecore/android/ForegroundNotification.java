@@ -0,0 +1,46 @@
+package com.ironxiao.blecore.android;
+
+import android.app.Activity;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import androidx.core.app.NotificationCompat;
+
+/**
+ * The ongoing notification of a foreground service that keeps BLE links and
+ * advertising up while no activity is around.
+ */
+public final class ForegroundNotification {
+    public static final String CHANNEL_ID = "ble_service";
+
+    private ForegroundNotification() {
+    }
+
+    /**
+     * @param activity opened when the notification is tapped
+     */
+    public static Notification build(Context context, Class<? extends Activity> activity, int icon,
+                                     CharSequence title, CharSequence text) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+            //Created once, later calls keep what the user changed
+            if (manager.getNotificationChannel(CHANNEL_ID) == null)
+                manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, title,
+                        NotificationManager.IMPORTANCE_LOW));
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0,
+                new Intent(context, activity).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
+        return new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(icon)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,41 @@
+package com.ironxiao.blecore;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Identifiers the server advertises and the clients look for.
+ */
+public final class BleProtocol {
+    //We are Nologic Inc.
+    public static final int MANUFACTURE_ID = 0xAAA;
+    public static final String MANUFACTURE = "Nologic";
+
+    public static final UUID UUID_SERVER = UUID.fromString("00001ff9-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_WRITE_CONTENT = UUID.fromString("00001ffb-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_NOTIFY = UUID.fromString("00001ffc-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_CAPABILITIES = UUID.fromString("00001ffd-0000-1000-8000-00805f9b34fb");
+    //Client Characteristic Configuration Descriptor
+    public static final UUID UUID_CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    /** {@link #UUID_SERVER} as it appears in advertisements. */
+    public static final int UUID_SERVER_16 = uuid16(UUID_SERVER);
+
+    private BleProtocol() {
+    }
+
+    /**
+     * @return a new copy of the manufacturer data prefix
+     */
+    public static byte[] manufactureData() {
+        return MANUFACTURE.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    /**
+     * @return the 16 bit alias of a UUID based on the Bluetooth base UUID
+     */
+    public static int uuid16(UUID uuid) {
+        return (int) (uuid.getMostSignificantBits() >>> 32) & 0xFFFF;
+    }
+}
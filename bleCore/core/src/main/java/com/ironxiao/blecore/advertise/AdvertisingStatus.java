@@ -0,0 +1,104 @@
+package com.ironxiao.blecore.advertise;
+
+/**
+ * What the server tells scanners before they connect, and how often it says it.
+ * <p>
+ * The manufacturer data is the fixed company prefix scanners filter on, followed by
+ * {@code version|flags:u8 freeSlots:u8 sequence:u8}. Clients matching on the prefix
+ * only keep working; newer ones read the status and skip busy or provisioned units
+ * without connecting. The sequence changes with every new status, so scanners that
+ * deduplicate on the advertisement data see the change.
+ * <p>
+ * Idle units advertise fast to be found quickly; units that are serving clients or
+ * already provisioned slow down to leave airtime to the others.
+ */
+public class AdvertisingStatus {
+    public static final int VERSION = 1;
+    public static final int FLAG_PROVISIONED = 1;
+    public static final int FLAG_BUSY = 1 << 1;
+    public static final int STATUS_SIZE = 3;
+
+    /** Same values as {@code AdvertisingSetParameters.INTERVAL_*}, in 0.625 ms units. */
+    public static final int INTERVAL_LOW = 160;
+    public static final int INTERVAL_MEDIUM = 400;
+    public static final int INTERVAL_HIGH = 1600;
+
+    private final byte[] prefix;
+    private final int maxClients;
+    private int connectedClients;
+    private boolean provisioned;
+    private int sequence;
+
+    /**
+     * @param prefix     manufacturer data every advertisement starts with
+     * @param maxClients connections served at once; more make the unit busy
+     */
+    public AdvertisingStatus(byte[] prefix, int maxClients) {
+        if (maxClients < 1 || maxClients > 0xFF)
+            throw new IllegalArgumentException("maxClients: " + maxClients);
+        this.prefix = prefix.clone();
+        this.maxClients = maxClients;
+    }
+
+    /**
+     * @return true if the advertised status changed
+     */
+    public synchronized boolean setConnectedClients(int connectedClients) {
+        int before = getFreeSlots();
+        this.connectedClients = connectedClients;
+        return changed(before != getFreeSlots());
+    }
+
+    /**
+     * @return true if the advertised status changed
+     */
+    public synchronized boolean setProvisioned(boolean provisioned) {
+        boolean changed = this.provisioned != provisioned;
+        this.provisioned = provisioned;
+        return changed(changed);
+    }
+
+    public synchronized boolean isProvisioned() {
+        return provisioned;
+    }
+
+    public synchronized int getFreeSlots() {
+        return Math.max(0, maxClients - connectedClients);
+    }
+
+    public synchronized boolean isBusy() {
+        return getFreeSlots() == 0;
+    }
+
+    public synchronized int getFlags() {
+        return (provisioned ? FLAG_PROVISIONED : 0) | (isBusy() ? FLAG_BUSY : 0);
+    }
+
+    public synchronized int getSequence() {
+        return sequence;
+    }
+
+    public synchronized byte[] getManufacturerData() {
+        byte[] data = new byte[prefix.length + STATUS_SIZE];
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        data[prefix.length] = (byte) (VERSION << 4 | getFlags());
+        data[prefix.length + 1] = (byte) getFreeSlots();
+        data[prefix.length + 2] = (byte) sequence;
+        return data;
+    }
+
+    /**
+     * @return the advertising interval for the current status
+     */
+    public synchronized int getInterval() {
+        if (provisioned || isBusy())
+            return INTERVAL_HIGH;
+        return connectedClients == 0 ? INTERVAL_LOW : INTERVAL_MEDIUM;
+    }
+
+    private boolean changed(boolean changed) {
+        if (changed)
+            sequence = (sequence + 1) & 0xFF;
+        return changed;
+    }
+}
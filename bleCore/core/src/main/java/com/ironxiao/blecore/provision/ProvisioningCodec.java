@@ -0,0 +1,193 @@
+package com.ironxiao.blecore.provision;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of a {@link ProvisioningRecord}.
+ * <pre>
+ * version:u8 field*
+ * field:  tag:3 bits | length:5 bits [length:u8 if the 5 bits are 31] value
+ * </pre>
+ * A one byte field header keeps a typical SSID and password in two 20 byte packets
+ * at the default MTU, against three for the {@code WIFI:} text form. Fields carrying
+ * a default value (WPA, not hidden) are left out; unknown tags are skipped so later
+ * versions can add fields older servers ignore.
+ */
+public final class ProvisioningCodec {
+    public static final int VERSION = 1;
+    public static final int MAX_FIELD_LENGTH = 255;
+
+    /** SSID, 1 to 32 bytes. */
+    public static final int TAG_SSID = 1;
+    /** Password bytes; absent for open networks. */
+    public static final int TAG_PASSWORD = 2;
+    /** One byte {@code ProvisioningRecord.SECURITY_*}; absent means WPA. */
+    public static final int TAG_SECURITY = 3;
+    /** Empty value; present if the network does not broadcast its SSID. */
+    public static final int TAG_HIDDEN = 4;
+    /** Address:u32 prefix:u8 gateway:u32 [dns:u32]. */
+    public static final int TAG_STATIC_IP = 5;
+    /** Server URL, UTF-8. */
+    public static final int TAG_SERVER_URL = 6;
+    /** Extension: first value byte is an extended tag. */
+    public static final int TAG_EXTENSION = 7;
+
+    private static final int LENGTH_EXTENDED = 0x1F;
+    private static final int STATIC_IP_LENGTH = 9;
+    private static final int STATIC_IP_DNS_LENGTH = 13;
+
+    private ProvisioningCodec() {
+    }
+
+    public static int encodedLength(ProvisioningRecord record) {
+        int length = 1 + fieldLength(record.getSsid().length);
+        if (record.getPassword().length > 0)
+            length += fieldLength(record.getPassword().length);
+        if (record.getSecurity() != ProvisioningRecord.SECURITY_WPA)
+            length += fieldLength(1);
+        if (record.isHidden())
+            length += fieldLength(0);
+        if (record.hasStaticIp())
+            length += fieldLength(record.getDns() != 0 ? STATIC_IP_DNS_LENGTH : STATIC_IP_LENGTH);
+        if (record.getServerUrl() != null)
+            length += fieldLength(record.getServerUrl().length);
+        return length;
+    }
+
+    public static byte[] encode(ProvisioningRecord record) {
+        ByteBuffer out = ByteBuffer.allocate(encodedLength(record));
+        encode(record, out);
+        return out.array();
+    }
+
+    /**
+     * @throws java.nio.BufferOverflowException if fewer than {@link #encodedLength} bytes remain
+     */
+    public static void encode(ProvisioningRecord record, ByteBuffer out) {
+        out.put((byte) VERSION);
+        putField(out, TAG_SSID, record.getSsid());
+        if (record.getPassword().length > 0)
+            putField(out, TAG_PASSWORD, record.getPassword());
+        if (record.getSecurity() != ProvisioningRecord.SECURITY_WPA) {
+            putHeader(out, TAG_SECURITY, 1);
+            out.put((byte) record.getSecurity());
+        }
+        if (record.isHidden())
+            putHeader(out, TAG_HIDDEN, 0);
+        if (record.hasStaticIp()) {
+            boolean hasDns = record.getDns() != 0;
+            putHeader(out, TAG_STATIC_IP, hasDns ? STATIC_IP_DNS_LENGTH : STATIC_IP_LENGTH);
+            putInt(out, record.getIpAddress());
+            out.put((byte) record.getPrefixLength());
+            putInt(out, record.getGateway());
+            if (hasDns)
+                putInt(out, record.getDns());
+        }
+        if (record.getServerUrl() != null)
+            putField(out, TAG_SERVER_URL, record.getServerUrl());
+    }
+
+    /**
+     * Decodes the remaining bytes of the buffer.
+     *
+     * @return null if the record is malformed, of an unknown version or has no SSID
+     */
+    public static ProvisioningRecord decode(ByteBuffer in) {
+        if (!in.hasRemaining() || (in.get() & 0xFF) != VERSION)
+            return null;
+        ProvisioningRecord.Builder builder = new ProvisioningRecord.Builder();
+        boolean hasSsid = false;
+        while (in.hasRemaining()) {
+            int header = in.get() & 0xFF;
+            int tag = header >>> 5;
+            int length = header & LENGTH_EXTENDED;
+            if (length == LENGTH_EXTENDED) {
+                if (!in.hasRemaining())
+                    return null;
+                length = in.get() & 0xFF;
+            }
+            if (length > in.remaining())
+                return null;
+            switch (tag) {
+                case TAG_SSID:
+                    if (length == 0 || length > 32)
+                        return null;
+                    builder.setSsid(getBytes(in, length));
+                    hasSsid = true;
+                    break;
+                case TAG_PASSWORD:
+                    builder.setPassword(getBytes(in, length));
+                    break;
+                case TAG_SECURITY: {
+                    if (length != 1)
+                        return null;
+                    int security = in.get() & 0xFF;
+                    if (security > ProvisioningRecord.SECURITY_SAE)
+                        return null;
+                    builder.setSecurity(security);
+                    break;
+                }
+                case TAG_HIDDEN:
+                    if (length != 0)
+                        return null;
+                    builder.setHidden(true);
+                    break;
+                case TAG_STATIC_IP: {
+                    if (length != STATIC_IP_LENGTH && length != STATIC_IP_DNS_LENGTH)
+                        return null;
+                    int address = getInt(in);
+                    int prefixLength = in.get() & 0xFF;
+                    int gateway = getInt(in);
+                    int dns = length == STATIC_IP_DNS_LENGTH ? getInt(in) : 0;
+                    if (prefixLength < 1 || prefixLength > 32)
+                        return null;
+                    builder.setStaticIp(address, prefixLength, gateway, dns);
+                    break;
+                }
+                case TAG_SERVER_URL:
+                    builder.setServerUrl(getBytes(in, length));
+                    break;
+                default:
+                    in.position(in.position() + length);
+                    break;
+            }
+        }
+        return hasSsid ? builder.build() : null;
+    }
+
+    private static int fieldLength(int valueLength) {
+        return (valueLength < LENGTH_EXTENDED ? 1 : 2) + valueLength;
+    }
+
+    private static void putHeader(ByteBuffer out, int tag, int length) {
+        if (length < LENGTH_EXTENDED) {
+            out.put((byte) (tag << 5 | length));
+        } else {
+            out.put((byte) (tag << 5 | LENGTH_EXTENDED));
+            out.put((byte) length);
+        }
+    }
+
+    private static void putField(ByteBuffer out, int tag, byte[] value) {
+        putHeader(out, tag, value.length);
+        out.put(value);
+    }
+
+    //Explicit big-endian, independent of the buffer's order
+    private static void putInt(ByteBuffer out, int value) {
+        out.put((byte) (value >>> 24));
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 8));
+        out.put((byte) value);
+    }
+
+    private static int getInt(ByteBuffer in) {
+        return (in.get() & 0xFF) << 24 | (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 8 | (in.get() & 0xFF);
+    }
+
+    private static byte[] getBytes(ByteBuffer in, int length) {
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+}
@@ -0,0 +1,204 @@
+package com.ironxiao.blecore.provision;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Wi-Fi provisioning data sent from the client to the server, see {@link ProvisioningCodec}.
+ * <p>
+ * SSID, password and server URL are kept as bytes: an SSID is an octet string and
+ * the server hands them to the Wi-Fi stack without decoding them.
+ */
+public final class ProvisioningRecord {
+    public static final int SECURITY_NONE = 0;
+    public static final int SECURITY_WEP = 1;
+    public static final int SECURITY_WPA = 2;
+    public static final int SECURITY_SAE = 3;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] ssid;
+    private final int security;
+    private final byte[] password;
+    private final boolean hidden;
+    private final int ipAddress;
+    private final int prefixLength;
+    private final int gateway;
+    private final int dns;
+    private final byte[] serverUrl;
+
+    private ProvisioningRecord(Builder builder) {
+        ssid = builder.ssid;
+        security = builder.security;
+        password = builder.password;
+        hidden = builder.hidden;
+        ipAddress = builder.ipAddress;
+        prefixLength = builder.prefixLength;
+        gateway = builder.gateway;
+        dns = builder.dns;
+        serverUrl = builder.serverUrl;
+    }
+
+    public byte[] getSsid() {
+        return ssid;
+    }
+
+    public String getSsidString() {
+        return new String(ssid, UTF_8);
+    }
+
+    public int getSecurity() {
+        return security;
+    }
+
+    /**
+     * @return the password, empty for open networks
+     */
+    public byte[] getPassword() {
+        return password;
+    }
+
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    public boolean hasStaticIp() {
+        return prefixLength > 0;
+    }
+
+    /** IPv4 address, most significant byte first; only valid with {@link #hasStaticIp()}. */
+    public int getIpAddress() {
+        return ipAddress;
+    }
+
+    public int getPrefixLength() {
+        return prefixLength;
+    }
+
+    public int getGateway() {
+        return gateway;
+    }
+
+    /** @return the DNS server, or 0 to use the gateway */
+    public int getDns() {
+        return dns;
+    }
+
+    /** @return the server URL, or null if none was given */
+    public byte[] getServerUrl() {
+        return serverUrl;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ProvisioningRecord))
+            return false;
+        ProvisioningRecord other = (ProvisioningRecord) o;
+        return security == other.security
+                && hidden == other.hidden
+                && ipAddress == other.ipAddress
+                && prefixLength == other.prefixLength
+                && gateway == other.gateway
+                && dns == other.dns
+                && Arrays.equals(ssid, other.ssid)
+                && Arrays.equals(password, other.password)
+                && Arrays.equals(serverUrl, other.serverUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(ssid);
+        result = 31 * result + security;
+        result = 31 * result + Arrays.hashCode(password);
+        result = 31 * result + (hidden ? 1 : 0);
+        result = 31 * result + ipAddress;
+        result = 31 * result + prefixLength;
+        result = 31 * result + gateway;
+        result = 31 * result + dns;
+        result = 31 * result + Arrays.hashCode(serverUrl);
+        return result;
+    }
+
+    public static final class Builder {
+        private byte[] ssid;
+        private int security = SECURITY_WPA;
+        private byte[] password = new byte[0];
+        private boolean hidden;
+        private int ipAddress;
+        private int prefixLength;
+        private int gateway;
+        private int dns;
+        private byte[] serverUrl;
+
+        public Builder setSsid(String ssid) {
+            return setSsid(ssid.getBytes(UTF_8));
+        }
+
+        /**
+         * @throws IllegalArgumentException unless the SSID has 1 to 32 bytes
+         */
+        public Builder setSsid(byte[] ssid) {
+            if (ssid.length == 0 || ssid.length > 32)
+                throw new IllegalArgumentException("SSID must have 1 to 32 bytes");
+            this.ssid = ssid;
+            return this;
+        }
+
+        public Builder setSecurity(int security) {
+            if (security < SECURITY_NONE || security > SECURITY_SAE)
+                throw new IllegalArgumentException("Unknown security type " + security);
+            this.security = security;
+            return this;
+        }
+
+        public Builder setPassword(String password) {
+            return setPassword(password.getBytes(UTF_8));
+        }
+
+        public Builder setPassword(byte[] password) {
+            this.password = checkLength(password, "Password");
+            return this;
+        }
+
+        public Builder setHidden(boolean hidden) {
+            this.hidden = hidden;
+            return this;
+        }
+
+        /**
+         * @param dns DNS server, or 0 to use the gateway
+         */
+        public Builder setStaticIp(int ipAddress, int prefixLength, int gateway, int dns) {
+            if (prefixLength < 1 || prefixLength > 32)
+                throw new IllegalArgumentException("Prefix length must be 1 to 32");
+            this.ipAddress = ipAddress;
+            this.prefixLength = prefixLength;
+            this.gateway = gateway;
+            this.dns = dns;
+            return this;
+        }
+
+        public Builder setServerUrl(String serverUrl) {
+            return setServerUrl(serverUrl == null ? null : serverUrl.getBytes(UTF_8));
+        }
+
+        public Builder setServerUrl(byte[] serverUrl) {
+            this.serverUrl = serverUrl == null ? null : checkLength(serverUrl, "Server URL");
+            return this;
+        }
+
+        public ProvisioningRecord build() {
+            if (ssid == null)
+                throw new IllegalStateException("SSID is required");
+            return new ProvisioningRecord(this);
+        }
+
+        private static byte[] checkLength(byte[] value, String name) {
+            if (value.length > ProvisioningCodec.MAX_FIELD_LENGTH)
+                throw new IllegalArgumentException(name + " longer than " + ProvisioningCodec.MAX_FIELD_LENGTH + " bytes");
+            return value;
+        }
+    }
+}
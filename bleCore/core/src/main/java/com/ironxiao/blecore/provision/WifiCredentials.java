@@ -0,0 +1,116 @@
+package com.ironxiao.blecore.provision;
+
+/**
+ * Wi-Fi credentials in the QR-code text form {@code WIFI:S:<ssid>;T:<type>;P:<password>;H:<hidden>;;}.
+ * <p>
+ * Backslash, semicolon, comma, colon and double quote inside a value are escaped
+ * with a backslash.
+ */
+public final class WifiCredentials {
+    public static final String SECURITY_WPA = "WPA";
+    public static final String SECURITY_WEP = "WEP";
+    public static final String SECURITY_NONE = "nopass";
+
+    private static final String PREFIX = "WIFI:";
+
+    private final String ssid;
+    private final String security;
+    private final String password;
+    private final boolean hidden;
+
+    public WifiCredentials(String ssid, String security, String password, boolean hidden) {
+        this.ssid = ssid;
+        this.security = security;
+        this.password = password;
+        this.hidden = hidden;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    public String getSecurity() {
+        return security;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    public String toWifiString() {
+        StringBuilder builder = new StringBuilder(PREFIX.length() + 20 + ssid.length() + password.length() + security.length());
+        builder.append(PREFIX);
+        appendField(builder, 'S', ssid);
+        appendField(builder, 'T', security);
+        appendField(builder, 'P', password);
+        appendField(builder, 'H', hidden ? "true" : "false");
+        return builder.append(';').toString();
+    }
+
+    /**
+     * @return null if the text is not a Wi-Fi credential string or has no SSID
+     */
+    public static WifiCredentials parse(String text) {
+        if (text == null || !text.startsWith(PREFIX))
+            return null;
+        String ssid = null;
+        String security = SECURITY_NONE;
+        String password = "";
+        boolean hidden = false;
+        StringBuilder value = new StringBuilder(text.length());
+        int i = PREFIX.length();
+        int length = text.length();
+        while (i < length && text.charAt(i) != ';') {
+            //Each field is "<key>:<value>;"
+            if (i + 1 >= length || text.charAt(i + 1) != ':')
+                return null;
+            char key = text.charAt(i);
+            value.setLength(0);
+            i += 2;
+            while (i < length && text.charAt(i) != ';') {
+                char c = text.charAt(i++);
+                if (c == '\\' && i < length)
+                    c = text.charAt(i++);
+                value.append(c);
+            }
+            if (i == length)
+                return null;
+            i++;
+            switch (key) {
+                case 'S':
+                    ssid = value.toString();
+                    break;
+                case 'T':
+                    security = value.toString();
+                    break;
+                case 'P':
+                    password = value.toString();
+                    break;
+                case 'H':
+                    hidden = "true".contentEquals(value);
+                    break;
+                default:
+                    //Unknown fields are skipped
+                    break;
+            }
+        }
+        if (ssid == null || ssid.isEmpty())
+            return null;
+        return new WifiCredentials(ssid, security, password, hidden);
+    }
+
+    private static void appendField(StringBuilder builder, char key, String value) {
+        builder.append(key).append(':');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == ';' || c == ',' || c == ':' || c == '"')
+                builder.append('\\');
+            builder.append(c);
+        }
+        builder.append(';');
+    }
+}
@@ -0,0 +1,112 @@
+package com.ironxiao.blecore.scan;
+
+/**
+ * Walks the AD structures of a raw scan record in place.
+ * <p>
+ * A scan record is a sequence of {@code [length][type][data]} structures where
+ * length covers type and data. Nothing here allocates, so it is cheap enough to
+ * run on every advertisement when the controller's hardware filter cannot be trusted.
+ */
+public final class AdvertisementParser {
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /** Bytes 0-11 of the Bluetooth base UUID in over-the-air (little-endian) order. */
+    private static final byte[] BASE_UUID_LE = {
+            (byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80, 0x00, 0x10, 0x00, 0x00
+    };
+
+    private AdvertisementParser() {
+    }
+
+    /**
+     * @return true if the record lists the 16 bit service UUID, either in short form or
+     * as a 128 bit UUID built on the Bluetooth base UUID
+     */
+    public static boolean hasServiceUuid16(byte[] record, int uuid16) {
+        if (record == null)
+            return false;
+        int i = 0;
+        while (i < record.length) {
+            int length = record[i] & 0xFF;
+            if (length == 0 || i + length >= record.length)
+                break;
+            int type = record[i + 1] & 0xFF;
+            int data = i + 2;
+            int end = i + 1 + length;
+            if (type == TYPE_UUID16_COMPLETE || type == TYPE_UUID16_INCOMPLETE) {
+                for (int p = data; p + 1 < end; p += 2) {
+                    if (((record[p] & 0xFF) | ((record[p + 1] & 0xFF) << 8)) == uuid16)
+                        return true;
+                }
+            } else if (type == TYPE_UUID128_COMPLETE || type == TYPE_UUID128_INCOMPLETE) {
+                for (int p = data; p + 15 < end; p += 16) {
+                    if (isBaseUuid16(record, p, uuid16))
+                        return true;
+                }
+            }
+            i = end;
+        }
+        return false;
+    }
+
+    /**
+     * Locates the manufacturer specific data of a company.
+     *
+     * @return {@code offset << 16 | length} of the data following the company ID,
+     * or -1 if the record has none
+     */
+    public static int findManufacturerData(byte[] record, int companyId) {
+        if (record == null)
+            return -1;
+        int i = 0;
+        while (i < record.length) {
+            int length = record[i] & 0xFF;
+            if (length == 0 || i + length >= record.length)
+                break;
+            int end = i + 1 + length;
+            if ((record[i + 1] & 0xFF) == TYPE_MANUFACTURER_DATA && length >= 3
+                    && ((record[i + 2] & 0xFF) | ((record[i + 3] & 0xFF) << 8)) == companyId)
+                return (i + 4) << 16 | (end - i - 4);
+            i = end;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the company's manufacturer data starts with {@code prefix}
+     */
+    public static boolean hasManufacturerData(byte[] record, int companyId, byte[] prefix) {
+        int found = findManufacturerData(record, companyId);
+        if (found < 0)
+            return false;
+        int offset = found >>> 16;
+        int length = found & 0xFFFF;
+        if (length < prefix.length)
+            return false;
+        for (int k = 0; k < prefix.length; k++) {
+            if (record[offset + k] != prefix[k])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The software equivalent of our scan filter: service UUID and manufacturer data.
+     */
+    public static boolean matches(byte[] record, int uuid16, int companyId, byte[] prefix) {
+        return hasServiceUuid16(record, uuid16) && hasManufacturerData(record, companyId, prefix);
+    }
+
+    private static boolean isBaseUuid16(byte[] record, int p, int uuid16) {
+        for (int k = 0; k < BASE_UUID_LE.length; k++) {
+            if (record[p + k] != BASE_UUID_LE[k])
+                return false;
+        }
+        return ((record[p + 12] & 0xFF) | ((record[p + 13] & 0xFF) << 8)) == uuid16
+                && record[p + 14] == 0 && record[p + 15] == 0;
+    }
+}
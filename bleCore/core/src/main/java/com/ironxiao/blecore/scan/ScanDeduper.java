@@ -0,0 +1,146 @@
+package com.ironxiao.blecore.scan;
+
+import java.util.Arrays;
+
+/**
+ * Collapses a stream of advertisements into per-device change events.
+ * <p>
+ * Devices live in a fixed-size open-addressing table keyed by their 48 bit
+ * address, so {@link #offer(long, int, int, long)} never allocates. RSSI is
+ * smoothed with an exponential moving average (alpha 1/4) and a device is only
+ * reported again when its smoothed RSSI moved by at least the threshold or its
+ * advertisement data changed. When the table fills up it is cleared and every
+ * device is reported as new on its next advertisement.
+ * <p>
+ * Not thread safe; feed it from the scan callback thread only.
+ */
+public class ScanDeduper {
+    public static final int RESULT_UNCHANGED = 0;
+    public static final int RESULT_NEW = 1;
+    public static final int RESULT_CHANGED = 2;
+
+    /** RSSI is kept in 1/256 dB so the moving average needs no floating point. */
+    private static final int RSSI_SHIFT = 8;
+    private static final int ALPHA_SHIFT = 2;
+
+    private final long[] keys;
+    private final int[] smoothedRssi;
+    private final int[] reportedRssi;
+    private final int[] dataHash;
+    private final long[] lastSeenMillis;
+    private final int mask;
+    private final int maxSize;
+    private final int rssiThreshold;
+    private int size;
+
+    /**
+     * @param capacity      maximum number of tracked devices
+     * @param rssiThreshold change of the smoothed RSSI in dB that is reported again
+     */
+    public ScanDeduper(int capacity, int rssiThreshold) {
+        int slots = Integer.highestOneBit(Math.max(4, capacity) * 2 - 1) << 1;
+        keys = new long[slots];
+        smoothedRssi = new int[slots];
+        reportedRssi = new int[slots];
+        dataHash = new int[slots];
+        lastSeenMillis = new long[slots];
+        mask = slots - 1;
+        maxSize = capacity;
+        this.rssiThreshold = rssiThreshold << RSSI_SHIFT;
+    }
+
+    /**
+     * @param address  device address from {@link #parseAddress(String)}
+     * @param dataHash hash of the advertisement payload, see {@link #hash(byte[])}
+     * @return one of the {@code RESULT_} values
+     */
+    public int offer(long address, int rssi, int dataHash, long nowMillis) {
+        long key = address + 1;
+        int slot = indexOf(key);
+        int rssiFixed = rssi << RSSI_SHIFT;
+        if (keys[slot] != key) {
+            if (size >= maxSize) {
+                clear();
+                slot = indexOf(key);
+            }
+            keys[slot] = key;
+            smoothedRssi[slot] = rssiFixed;
+            reportedRssi[slot] = rssiFixed;
+            this.dataHash[slot] = dataHash;
+            lastSeenMillis[slot] = nowMillis;
+            size++;
+            return RESULT_NEW;
+        }
+
+        int smoothed = smoothedRssi[slot] + ((rssiFixed - smoothedRssi[slot]) >> ALPHA_SHIFT);
+        smoothedRssi[slot] = smoothed;
+        lastSeenMillis[slot] = nowMillis;
+        if (this.dataHash[slot] != dataHash || Math.abs(smoothed - reportedRssi[slot]) >= rssiThreshold) {
+            this.dataHash[slot] = dataHash;
+            reportedRssi[slot] = smoothed;
+            return RESULT_CHANGED;
+        }
+        return RESULT_UNCHANGED;
+    }
+
+    /**
+     * @return smoothed RSSI in dB, or {@link Integer#MIN_VALUE} for an unknown device
+     */
+    public int getSmoothedRssi(long address) {
+        int slot = indexOf(address + 1);
+        return keys[slot] == address + 1 ? smoothedRssi[slot] >> RSSI_SHIFT : Integer.MIN_VALUE;
+    }
+
+    public long getLastSeenMillis(long address) {
+        int slot = indexOf(address + 1);
+        return keys[slot] == address + 1 ? lastSeenMillis[slot] : 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+    }
+
+    /**
+     * Linear probing; returns the slot holding the key or the empty slot where it belongs.
+     * The table is at most half full, so there is always an empty slot.
+     */
+    private int indexOf(long key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Parses "AA:BB:CC:DD:EE:FF" into a 48 bit value without allocating.
+     */
+    public static long parseAddress(String address) {
+        long value = 0;
+        for (int i = 0, n = address.length(); i < n; i++) {
+            char c = address.charAt(i);
+            if (c == ':')
+                continue;
+            value = (value << 4) | Character.digit(c, 16);
+        }
+        return value;
+    }
+
+    public static int hash(byte[] data) {
+        if (data == null)
+            return 0;
+        int h = 1;
+        for (byte b : data)
+            h = 31 * h + b;
+        return h;
+    }
+}
@@ -0,0 +1,189 @@
+package com.ironxiao.blecore.scan;
+
+/**
+ * Decides which scan mode the radio should be in while looking for servers.
+ * <p>
+ * A scan starts with a short LOW_LATENCY burst, where most nearby servers are
+ * found, then steps down to BALANCED and finally LOW_POWER. A matching
+ * advertisement ({@link #onMatch()}) restarts the burst, since more servers are
+ * likely close by.
+ * <p>
+ * Android cannot change the mode of a running scan, so every mode change is a new
+ * scan start, and the stack silently ignores starts beyond {@link #MAX_STARTS} in
+ * {@link #START_WINDOW_MILLIS}. Mode changes wait until a start is available; a
+ * step down also leaves one start in reserve for the next escalation.
+ * <p>
+ * This is a pure state machine: the caller applies {@link #update()} to the
+ * scanner and calls it again after {@link #nextUpdateDelayMillis()}. It is not
+ * thread safe.
+ */
+public class ScanScheduler {
+
+    public interface Clock {
+        public long nowMillis();
+    }
+
+    /** Same values as {@code ScanSettings.SCAN_MODE_*}. */
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+    //ScanSettings uses -1 for opportunistic scans
+    public static final int MODE_OFF = -2;
+
+    public static final int MAX_STARTS = 5;
+    public static final long START_WINDOW_MILLIS = 30 * 1000;
+
+    public static final long DEFAULT_BURST_MILLIS = 6 * 1000;
+    public static final long DEFAULT_BALANCED_MILLIS = 24 * 1000;
+
+    /** Returned by {@link #nextUpdateDelayMillis()} when nothing will change by itself. */
+    public static final long NO_UPDATE = -1;
+
+    private final Clock clock;
+    private final long burstMillis;
+    private final long balancedMillis;
+
+    //Start times, oldest first from startHead
+    private final long[] starts = new long[MAX_STARTS];
+    private int startHead;
+    private int startCount;
+    private int totalStarts;
+
+    private boolean enabled;
+    private int mode = MODE_OFF;
+    private long escalatedAtMillis;
+
+    public ScanScheduler(Clock clock) {
+        this(clock, DEFAULT_BURST_MILLIS, DEFAULT_BALANCED_MILLIS);
+    }
+
+    public ScanScheduler(Clock clock, long burstMillis, long balancedMillis) {
+        this.clock = clock;
+        this.burstMillis = burstMillis;
+        this.balancedMillis = balancedMillis;
+    }
+
+    /**
+     * Begins scanning with a LOW_LATENCY burst.
+     */
+    public void start() {
+        enabled = true;
+        escalatedAtMillis = clock.nowMillis();
+    }
+
+    public void stop() {
+        enabled = false;
+    }
+
+    /**
+     * A target advertisement was seen: go back to LOW_LATENCY for another burst.
+     */
+    public void onMatch() {
+        if (enabled)
+            escalatedAtMillis = clock.nowMillis();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the mode of the last {@link #update()}
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @return scan starts handed out so far
+     */
+    public int getTotalStarts() {
+        return totalStarts;
+    }
+
+    /**
+     * Works out the mode for now. If it differs from the previous result the
+     * caller stops the scan and starts it again in the new mode, unless it is
+     * {@link #MODE_OFF}; the start has already been counted.
+     *
+     * @return one of the {@code MODE_} values
+     */
+    public int update() {
+        long now = clock.nowMillis();
+        if (!enabled) {
+            mode = MODE_OFF;
+            return mode;
+        }
+        int desired = desiredMode(now);
+        if (desired != mode && freeStarts(now) >= startsNeeded(desired)) {
+            recordStart(now);
+            mode = desired;
+        }
+        return mode;
+    }
+
+    /**
+     * @return delay until {@link #update()} may return something else, or
+     * {@link #NO_UPDATE}
+     */
+    public long nextUpdateDelayMillis() {
+        if (!enabled)
+            return NO_UPDATE;
+        long now = clock.nowMillis();
+        int desired = desiredMode(now);
+        if (desired != mode)
+            return Math.max(0, startAvailableAtMillis(now, startsNeeded(desired)) - now);
+        long elapsed = now - escalatedAtMillis;
+        if (elapsed < burstMillis)
+            return burstMillis - elapsed;
+        if (elapsed < burstMillis + balancedMillis)
+            return burstMillis + balancedMillis - elapsed;
+        return NO_UPDATE;
+    }
+
+    private int desiredMode(long now) {
+        long elapsed = now - escalatedAtMillis;
+        if (elapsed < burstMillis)
+            return MODE_LOW_LATENCY;
+        if (elapsed < burstMillis + balancedMillis)
+            return MODE_BALANCED;
+        return MODE_LOW_POWER;
+    }
+
+    private int startsNeeded(int desired) {
+        return mode == MODE_OFF || desired > mode ? 1 : 2;
+    }
+
+    private int freeStarts(long now) {
+        int free = MAX_STARTS - startCount;
+        for (int i = 0; i < startCount; i++) {
+            if (starts[(startHead + i) % MAX_STARTS] <= now - START_WINDOW_MILLIS)
+                free++;
+        }
+        return free;
+    }
+
+    /**
+     * @return when {@code needed} starts are free, given no further starts
+     */
+    private long startAvailableAtMillis(long now, int needed) {
+        int free = freeStarts(now);
+        for (int i = 0; i < startCount && free < needed; i++) {
+            long start = starts[(startHead + i) % MAX_STARTS];
+            //Expired starts come first and are already counted as free
+            if (start > now - START_WINDOW_MILLIS && ++free >= needed)
+                return start + START_WINDOW_MILLIS;
+        }
+        return now;
+    }
+
+    private void recordStart(long now) {
+        if (startCount < MAX_STARTS) {
+            starts[(startHead + startCount++) % MAX_STARTS] = now;
+        } else {
+            starts[startHead] = now;
+            startHead = (startHead + 1) % MAX_STARTS;
+        }
+        totalStarts++;
+    }
+}
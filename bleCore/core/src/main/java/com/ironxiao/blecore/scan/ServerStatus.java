@@ -0,0 +1,50 @@
+package com.ironxiao.blecore.scan;
+
+import com.ironxiao.blecore.advertise.AdvertisingStatus;
+
+/**
+ * Reads the status a server advertises after its manufacturer data prefix:
+ * {@code version|flags:u8 freeSlots:u8 sequence:u8}. Older servers advertise the
+ * prefix only and have no status.
+ * <p>
+ * Like {@link AdvertisementParser} this works on the raw record and does not
+ * allocate; a status is packed into an int. The layout and flags are those of
+ * {@link AdvertisingStatus}.
+ */
+public final class ServerStatus {
+    /** Returned by {@link #find} for servers without a status. */
+    public static final int UNKNOWN = -1;
+
+    private ServerStatus() {
+    }
+
+    /**
+     * @return {@code flags << 16 | freeSlots << 8 | sequence}, or {@link #UNKNOWN}
+     */
+    public static int find(byte[] record, int companyId, byte[] prefix) {
+        if (!AdvertisementParser.hasManufacturerData(record, companyId, prefix))
+            return UNKNOWN;
+        int found = AdvertisementParser.findManufacturerData(record, companyId);
+        int offset = (found >>> 16) + prefix.length;
+        int length = (found & 0xFFFF) - prefix.length;
+        if (length < AdvertisingStatus.STATUS_SIZE || (record[offset] & 0xFF) >>> 4 != AdvertisingStatus.VERSION)
+            return UNKNOWN;
+        return (record[offset] & 0xF) << 16 | (record[offset + 1] & 0xFF) << 8 | (record[offset + 2] & 0xFF);
+    }
+
+    public static boolean isProvisioned(int status) {
+        return status != UNKNOWN && (status >>> 16 & AdvertisingStatus.FLAG_PROVISIONED) != 0;
+    }
+
+    public static boolean isBusy(int status) {
+        return status != UNKNOWN && (status >>> 16 & AdvertisingStatus.FLAG_BUSY) != 0;
+    }
+
+    public static int getFreeSlots(int status) {
+        return status == UNKNOWN ? -1 : status >>> 8 & 0xFF;
+    }
+
+    public static int getSequence(int status) {
+        return status == UNKNOWN ? -1 : status & 0xFF;
+    }
+}
@@ -0,0 +1,97 @@
+package com.ironxiao.blecore.secure;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * One side of an ephemeral P-256 ECDH exchange. P-256 is what every Android
+ * version we support has, X25519 is not.
+ */
+final class KeyExchange {
+    private static final int COORDINATE_SIZE = 32;
+
+    private final KeyPair keyPair;
+    private final ECParameterSpec params;
+
+    KeyExchange(SecureRandom random) {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+            keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        params = ((ECPublicKey) keyPair.getPublic()).getParams();
+    }
+
+    /**
+     * @return our public key as an uncompressed point
+     */
+    byte[] publicKey() {
+        ECPoint point = ((ECPublicKey) keyPair.getPublic()).getW();
+        byte[] encoded = new byte[SecureCodec.PUBLIC_KEY_SIZE];
+        encoded[0] = 0x04;
+        writeCoordinate(point.getAffineX(), encoded, 1);
+        writeCoordinate(point.getAffineY(), encoded, 1 + COORDINATE_SIZE);
+        return encoded;
+    }
+
+    /**
+     * @return the shared secret, or null if the peer's key is not a point on the curve
+     */
+    byte[] agree(byte[] peerPublicKey) {
+        if (peerPublicKey.length != SecureCodec.PUBLIC_KEY_SIZE || peerPublicKey[0] != 0x04)
+            return null;
+        BigInteger x = readCoordinate(peerPublicKey, 1);
+        BigInteger y = readCoordinate(peerPublicKey, 1 + COORDINATE_SIZE);
+        //Keys off the curve would leak bits of our private key
+        if (!onCurve(x, y))
+            return null;
+        try {
+            PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), params));
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(keyPair.getPrivate());
+            agreement.doPhase(peer, true);
+            return agreement.generateSecret();
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private boolean onCurve(BigInteger x, BigInteger y) {
+        EllipticCurve curve = params.getCurve();
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0)
+            return false;
+        BigInteger left = y.multiply(y).mod(p);
+        BigInteger right = x.multiply(x).add(curve.getA()).multiply(x).add(curve.getB()).mod(p);
+        return left.equals(right);
+    }
+
+    private static void writeCoordinate(BigInteger value, byte[] out, int offset) {
+        byte[] bytes = value.toByteArray();
+        //Drop the sign byte, or pad short values with leading zeros
+        int length = Math.min(bytes.length, COORDINATE_SIZE);
+        System.arraycopy(bytes, bytes.length - length, out, offset + COORDINATE_SIZE - length, length);
+    }
+
+    private static BigInteger readCoordinate(byte[] data, int offset) {
+        byte[] bytes = new byte[COORDINATE_SIZE];
+        System.arraycopy(data, offset, bytes, 0, COORDINATE_SIZE);
+        return new BigInteger(1, bytes);
+    }
+}
@@ -0,0 +1,168 @@
+package com.ironxiao.blecore.secure;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-128-GCM in both directions of an established session, see {@link SecureCodec}.
+ * <p>
+ * Each direction has its own key and a 4 byte IV prefix; the rest of the 12 byte
+ * nonce is the message counter, which also travels in the header. A message is
+ * only opened if its counter is past the last one opened, so replayed and
+ * reordered messages are refused while lost ones do not stop the channel.
+ * <p>
+ * The ciphers, keys, nonces and output buffers are set up once per session and
+ * reused for every message; a sealed or opened message is only valid until the
+ * next call in the same direction. Not thread safe.
+ */
+public class SecureChannel {
+    private static final int TAG_BITS = SecureCodec.TAG_SIZE * 8;
+    private static final long MAX_COUNTER = 0xFFFFFFFFL;
+
+    private final Cipher sealCipher;
+    private final Cipher openCipher;
+    private final SecretKeySpec sealKey;
+    private final SecretKeySpec openKey;
+    private final byte[] sealNonce = new byte[12];
+    private final byte[] openNonce = new byte[12];
+    private long sealCounter;
+    private long openCounter;
+    private byte[] sealBuffer = new byte[256];
+    private byte[] openBuffer = new byte[256];
+
+    SecureChannel(byte[] sealKey, byte[] sealIv, byte[] openKey, byte[] openIv) {
+        try {
+            sealCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            openCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        this.sealKey = new SecretKeySpec(sealKey, "AES");
+        this.openKey = new SecretKeySpec(openKey, "AES");
+        System.arraycopy(sealIv, 0, sealNonce, 0, SessionKeys.IV_SIZE);
+        System.arraycopy(openIv, 0, openNonce, 0, SessionKeys.IV_SIZE);
+    }
+
+    static SecureChannel forClient(SessionKeys keys) {
+        return new SecureChannel(keys.clientKey, keys.clientIv, keys.serverKey, keys.serverIv);
+    }
+
+    static SecureChannel forServer(SessionKeys keys) {
+        return new SecureChannel(keys.serverKey, keys.serverIv, keys.clientKey, keys.clientIv);
+    }
+
+    /**
+     * Encrypts a payload into a {@code data} message, see {@link #getBuffer()}.
+     *
+     * @return the length of the message
+     */
+    public int seal(byte[] data, int offset, int length) {
+        int size = SecureCodec.DATA_OVERHEAD + length;
+        if (sealBuffer.length < size)
+            sealBuffer = new byte[Math.max(size, sealBuffer.length * 2)];
+        long counter = nextSealCounter();
+        SecureCodec.writeDataHeader(sealBuffer, counter);
+        try {
+            sealCipher.init(Cipher.ENCRYPT_MODE, sealKey, new GCMParameterSpec(TAG_BITS, sealNonce));
+            sealCipher.updateAAD(sealBuffer, 0, SecureCodec.DATA_HEADER_SIZE);
+            return SecureCodec.DATA_HEADER_SIZE
+                    + sealCipher.doFinal(data, offset, length, sealBuffer, SecureCodec.DATA_HEADER_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a copy of the sealed payload, e.g. for a sender that holds on to it
+     */
+    public byte[] seal(byte[] payload) {
+        int length = seal(payload, 0, payload.length);
+        byte[] message = new byte[length];
+        System.arraycopy(sealBuffer, 0, message, 0, length);
+        return message;
+    }
+
+    /**
+     * @return the buffer the last {@link #seal} wrote its message to
+     */
+    public byte[] getBuffer() {
+        return sealBuffer;
+    }
+
+    /**
+     * Decrypts a {@code data} message. The result shares the channel's buffer.
+     *
+     * @return the payload, or null if the message is malformed, forged or replayed
+     */
+    public ByteBuffer open(byte[] data, int offset, int length) {
+        if (SecureCodec.type(data, offset, length) != SecureCodec.TYPE_DATA)
+            return null;
+        long counter = SecureCodec.dataCounter(data, offset);
+        if (counter < openCounter)
+            return null;
+        int size = length - SecureCodec.DATA_OVERHEAD;
+        if (openBuffer.length < size)
+            openBuffer = new byte[Math.max(size, openBuffer.length * 2)];
+        setCounter(openNonce, counter);
+        try {
+            openCipher.init(Cipher.DECRYPT_MODE, openKey, new GCMParameterSpec(TAG_BITS, openNonce));
+            openCipher.updateAAD(data, offset, SecureCodec.DATA_HEADER_SIZE);
+            int opened = openCipher.doFinal(data, offset + SecureCodec.DATA_HEADER_SIZE,
+                    length - SecureCodec.DATA_HEADER_SIZE, openBuffer, 0);
+            openCounter = counter + 1;
+            return ByteBuffer.wrap(openBuffer, 0, opened);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the tag over the first {@code length} bytes of a handshake answer
+     * behind them, using up one counter.
+     */
+    void confirm(byte[] message, int length) {
+        nextSealCounter();
+        try {
+            sealCipher.init(Cipher.ENCRYPT_MODE, sealKey, new GCMParameterSpec(TAG_BITS, sealNonce));
+            sealCipher.updateAAD(message, 0, length);
+            sealCipher.doFinal(message, length, 0, message, length);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks the tag {@link #confirm} wrote.
+     */
+    boolean verify(byte[] message, int length) {
+        setCounter(openNonce, openCounter);
+        try {
+            openCipher.init(Cipher.DECRYPT_MODE, openKey, new GCMParameterSpec(TAG_BITS, openNonce));
+            openCipher.updateAAD(message, 0, length);
+            openCipher.doFinal(message, length, SecureCodec.TAG_SIZE, openBuffer, 0);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+        openCounter++;
+        return true;
+    }
+
+    private long nextSealCounter() {
+        if (sealCounter > MAX_COUNTER)
+            throw new IllegalStateException("channel exhausted");
+        long counter = sealCounter++;
+        setCounter(sealNonce, counter);
+        return counter;
+    }
+
+    private static void setCounter(byte[] nonce, long counter) {
+        for (int i = nonce.length - 1; i >= SessionKeys.IV_SIZE; i--) {
+            nonce[i] = (byte) counter;
+            counter >>>= 8;
+        }
+    }
+}
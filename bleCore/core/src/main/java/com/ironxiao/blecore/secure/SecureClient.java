@@ -0,0 +1,141 @@
+package com.ironxiao.blecore.secure;
+
+import java.security.SecureRandom;
+
+/**
+ * Client side of the encrypted channel handshake, see {@link SecureCodec}.
+ * <p>
+ * {@link #start} opens the handshake, resuming with the ticket kept for the server
+ * if there is one, and {@link #onMessage} takes the server's answers until the
+ * channel is established or the handshake failed. The ticket for the next session
+ * goes back to the store. One handshake per link; start again after a reconnect.
+ * <p>
+ * Not thread safe.
+ */
+public class SecureClient {
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_HELLO_SENT = 1;
+    public static final int STATE_RESUME_SENT = 2;
+    public static final int STATE_ESTABLISHED = 3;
+    public static final int STATE_FAILED = 4;
+
+    private final SecureRandom random;
+    private final TicketStore<String> tickets;
+
+    private int state = STATE_IDLE;
+    private String server;
+    private byte[] nonce;
+    private KeyExchange keyExchange;
+    private SessionTicket offered;
+    private SecureChannel channel;
+    private boolean resumed;
+
+    /**
+     * @param tickets tickets by server, shared by all clients of the app
+     */
+    public SecureClient(SecureRandom random, TicketStore<String> tickets) {
+        this.random = random;
+        this.tickets = tickets;
+    }
+
+    /**
+     * @param server key of the server's ticket, e.g. its address
+     * @return the first handshake message to send
+     */
+    public byte[] start(String server, long nowMillis) {
+        reset();
+        this.server = server;
+        nonce = new byte[SecureCodec.NONCE_SIZE];
+        random.nextBytes(nonce);
+        offered = tickets.take(server, nowMillis);
+        if (offered != null) {
+            state = STATE_RESUME_SENT;
+            return SecureCodec.resume(nonce, offered.getId());
+        }
+        return hello();
+    }
+
+    /**
+     * Takes a handshake message of the server.
+     *
+     * @return the next message to send, or null
+     */
+    public byte[] onMessage(byte[] data, int offset, int length, long nowMillis) {
+        int type = SecureCodec.type(data, offset, length);
+        if (state == STATE_HELLO_SENT && type == SecureCodec.TYPE_SERVER_HELLO) {
+            byte[] secret = keyExchange.agree(SecureCodec.publicKey(data, offset));
+            keyExchange = null;
+            if (secret == null) {
+                state = STATE_FAILED;
+                return null;
+            }
+            establish(secret, data, offset, length, nowMillis);
+        } else if (state == STATE_RESUME_SENT && type == SecureCodec.TYPE_RESUMED) {
+            establish(offered.getSecret(), data, offset, length, nowMillis);
+            resumed = state == STATE_ESTABLISHED;
+        } else if (state == STATE_RESUME_SENT && type == SecureCodec.TYPE_RETRY) {
+            //The server forgot the ticket, e.g. after a restart
+            return hello();
+        }
+        return null;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean isEstablished() {
+        return state == STATE_ESTABLISHED;
+    }
+
+    /**
+     * @return true if the channel was resumed from a ticket, without a key exchange
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return the channel, or null until the handshake is done
+     */
+    public SecureChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Drops the channel, e.g. on disconnect. The ticket stays in the store.
+     */
+    public void reset() {
+        state = STATE_IDLE;
+        keyExchange = null;
+        offered = null;
+        channel = null;
+        resumed = false;
+    }
+
+    private byte[] hello() {
+        state = STATE_HELLO_SENT;
+        offered = null;
+        keyExchange = new KeyExchange(random);
+        return SecureCodec.hello(nonce, keyExchange.publicKey());
+    }
+
+    private void establish(byte[] secret, byte[] data, int offset, int length, long nowMillis) {
+        byte[] message = offset == 0 && length == data.length ? data : copy(data, offset, length);
+        SessionKeys keys = SessionKeys.derive(secret, nonce, SecureCodec.nonce(message, 0));
+        SecureChannel established = SecureChannel.forClient(keys);
+        if (!established.verify(message, length - SecureCodec.TAG_SIZE)) {
+            state = STATE_FAILED;
+            return;
+        }
+        channel = established;
+        state = STATE_ESTABLISHED;
+        tickets.put(server, new SessionTicket(SecureCodec.ticketId(message, 0), keys.resumptionSecret, nowMillis));
+    }
+
+    private static byte[] copy(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return copy;
+    }
+}
@@ -0,0 +1,184 @@
+package com.ironxiao.blecore.secure;
+
+import java.util.Arrays;
+
+/**
+ * Messages of the encrypted channel. Each one is sent as an ordinary framed payload.
+ * <pre>
+ * hello:        magic:u16 type:u8 nonce:16 publicKey:65
+ * resume:       magic:u16 type:u8 nonce:16 ticket:16
+ * server hello: magic:u16 type:u8 nonce:16 publicKey:65 ticket:16 confirm:16
+ * resumed:      magic:u16 type:u8 nonce:16 ticket:16 confirm:16
+ * retry:        magic:u16 type:u8
+ * data:         magic:u16 type:u8 counter:u32 ciphertext tag:16
+ * </pre>
+ * The client opens with {@code hello}, its ephemeral P-256 key as an uncompressed
+ * point, and the server answers with its own key; both derive the session keys
+ * from the ECDH secret and the two nonces. A client that holds a ticket from an
+ * earlier session sends {@code resume} instead and the keys come from the secret
+ * behind the ticket, without a key exchange. Servers that do not know the ticket
+ * answer {@code retry} and the client starts over with {@code hello}. Tickets are
+ * used once; every handshake hands out a new one.
+ * <p>
+ * {@code confirm} is the AES-GCM tag over the rest of the server's answer, under
+ * the server's new key, so the client knows both ends derived the same keys.
+ * {@code data} is AES-GCM with the header as associated data. All values are
+ * big-endian. Server capability {@link #CAPABILITY_SECURE} says the server
+ * speaks this protocol.
+ * <p>
+ * The key exchange is not authenticated: it keeps credentials from anyone who
+ * only listens, like LE Secure Connections "Just Works" pairing does, but not
+ * from an active man in the middle.
+ */
+public final class SecureCodec {
+    /** Capabilities bit of servers that take an encrypted channel. */
+    public static final int CAPABILITY_SECURE = 0x20;
+
+    public static final int MAGIC = 0x5EC1;
+
+    public static final int TYPE_HELLO = 1;
+    public static final int TYPE_RESUME = 2;
+    public static final int TYPE_SERVER_HELLO = 3;
+    public static final int TYPE_RESUMED = 4;
+    public static final int TYPE_RETRY = 5;
+    public static final int TYPE_DATA = 6;
+
+    public static final int NONCE_SIZE = 16;
+    /** Uncompressed P-256 point. */
+    public static final int PUBLIC_KEY_SIZE = 65;
+    public static final int TICKET_ID_SIZE = 16;
+    public static final int TAG_SIZE = 16;
+
+    public static final int HELLO_SIZE = 3 + NONCE_SIZE + PUBLIC_KEY_SIZE;
+    public static final int RESUME_SIZE = 3 + NONCE_SIZE + TICKET_ID_SIZE;
+    public static final int SERVER_HELLO_SIZE = 3 + NONCE_SIZE + PUBLIC_KEY_SIZE + TICKET_ID_SIZE + TAG_SIZE;
+    public static final int RESUMED_SIZE = 3 + NONCE_SIZE + TICKET_ID_SIZE + TAG_SIZE;
+    public static final int RETRY_SIZE = 3;
+    public static final int DATA_HEADER_SIZE = 7;
+    /** Bytes a {@code data} message adds to its plaintext. */
+    public static final int DATA_OVERHEAD = DATA_HEADER_SIZE + TAG_SIZE;
+
+    private SecureCodec() {
+    }
+
+    public static byte[] hello(byte[] nonce, byte[] publicKey) {
+        byte[] message = new byte[HELLO_SIZE];
+        writeHeader(message, TYPE_HELLO);
+        System.arraycopy(nonce, 0, message, 3, NONCE_SIZE);
+        System.arraycopy(publicKey, 0, message, 3 + NONCE_SIZE, PUBLIC_KEY_SIZE);
+        return message;
+    }
+
+    public static byte[] resume(byte[] nonce, byte[] ticketId) {
+        byte[] message = new byte[RESUME_SIZE];
+        writeHeader(message, TYPE_RESUME);
+        System.arraycopy(nonce, 0, message, 3, NONCE_SIZE);
+        System.arraycopy(ticketId, 0, message, 3 + NONCE_SIZE, TICKET_ID_SIZE);
+        return message;
+    }
+
+    /**
+     * @return the message with room for the confirm tag at its end
+     */
+    public static byte[] serverHello(byte[] nonce, byte[] publicKey, byte[] ticketId) {
+        byte[] message = new byte[SERVER_HELLO_SIZE];
+        writeHeader(message, TYPE_SERVER_HELLO);
+        System.arraycopy(nonce, 0, message, 3, NONCE_SIZE);
+        System.arraycopy(publicKey, 0, message, 3 + NONCE_SIZE, PUBLIC_KEY_SIZE);
+        System.arraycopy(ticketId, 0, message, 3 + NONCE_SIZE + PUBLIC_KEY_SIZE, TICKET_ID_SIZE);
+        return message;
+    }
+
+    /**
+     * @return the message with room for the confirm tag at its end
+     */
+    public static byte[] resumed(byte[] nonce, byte[] ticketId) {
+        byte[] message = new byte[RESUMED_SIZE];
+        writeHeader(message, TYPE_RESUMED);
+        System.arraycopy(nonce, 0, message, 3, NONCE_SIZE);
+        System.arraycopy(ticketId, 0, message, 3 + NONCE_SIZE, TICKET_ID_SIZE);
+        return message;
+    }
+
+    public static byte[] retry() {
+        byte[] message = new byte[RETRY_SIZE];
+        writeHeader(message, TYPE_RETRY);
+        return message;
+    }
+
+    /**
+     * @return the {@code TYPE_*} of a well formed message, or 0 for any other payload
+     */
+    public static int type(byte[] data, int offset, int length) {
+        if (length < 3 || (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF)) != MAGIC)
+            return 0;
+        int type = data[offset + 2] & 0xFF;
+        switch (type) {
+            case TYPE_HELLO:
+                return length == HELLO_SIZE ? type : 0;
+            case TYPE_RESUME:
+                return length == RESUME_SIZE ? type : 0;
+            case TYPE_SERVER_HELLO:
+                return length == SERVER_HELLO_SIZE ? type : 0;
+            case TYPE_RESUMED:
+                return length == RESUMED_SIZE ? type : 0;
+            case TYPE_RETRY:
+                return length == RETRY_SIZE ? type : 0;
+            case TYPE_DATA:
+                return length >= DATA_OVERHEAD ? type : 0;
+            default:
+                return 0;
+        }
+    }
+
+    public static int type(byte[] message) {
+        return type(message, 0, message.length);
+    }
+
+    /**
+     * @return the nonce of any handshake message but {@code retry}
+     */
+    public static byte[] nonce(byte[] data, int offset) {
+        return Arrays.copyOfRange(data, offset + 3, offset + 3 + NONCE_SIZE);
+    }
+
+    /**
+     * @return the public key of a {@code hello} or {@code server hello}
+     */
+    public static byte[] publicKey(byte[] data, int offset) {
+        int start = offset + 3 + NONCE_SIZE;
+        return Arrays.copyOfRange(data, start, start + PUBLIC_KEY_SIZE);
+    }
+
+    /**
+     * @return the ticket of a {@code resume}, {@code server hello} or {@code resumed}
+     */
+    public static byte[] ticketId(byte[] data, int offset) {
+        int start = offset + 3 + NONCE_SIZE;
+        if ((data[offset + 2] & 0xFF) == TYPE_SERVER_HELLO)
+            start += PUBLIC_KEY_SIZE;
+        return Arrays.copyOfRange(data, start, start + TICKET_ID_SIZE);
+    }
+
+    /**
+     * @return the counter of a {@code data} message, unsigned
+     */
+    public static long dataCounter(byte[] data, int offset) {
+        return ((data[offset + 3] & 0xFFL) << 24) | ((data[offset + 4] & 0xFF) << 16)
+                | ((data[offset + 5] & 0xFF) << 8) | (data[offset + 6] & 0xFF);
+    }
+
+    static void writeDataHeader(byte[] message, long counter) {
+        writeHeader(message, TYPE_DATA);
+        message[3] = (byte) (counter >>> 24);
+        message[4] = (byte) (counter >>> 16);
+        message[5] = (byte) (counter >>> 8);
+        message[6] = (byte) counter;
+    }
+
+    private static void writeHeader(byte[] message, int type) {
+        message[0] = (byte) (MAGIC >>> 8);
+        message[1] = (byte) MAGIC;
+        message[2] = (byte) type;
+    }
+}
@@ -0,0 +1,121 @@
+package com.ironxiao.blecore.secure;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Server side of the encrypted channel of one link, see {@link SecureCodec}.
+ * <p>
+ * {@link #onMessage} answers the client's handshake messages; a client can start
+ * over at any time, which replaces the channel. Tickets live in a store shared by
+ * all links, keyed by ticket id, so a client resumes whatever address it comes
+ * back with.
+ * <p>
+ * Not thread safe.
+ */
+public class SecureServer {
+    private final SecureRandom random;
+    private final TicketStore<ByteBuffer> tickets;
+
+    private SecureChannel channel;
+    private boolean resumed;
+
+    public SecureServer(SecureRandom random, TicketStore<ByteBuffer> tickets) {
+        this.random = random;
+        this.tickets = tickets;
+    }
+
+    /**
+     * Takes a {@code hello} or {@code resume}.
+     *
+     * @return the answer to notify, or null if the message was no valid handshake
+     */
+    public byte[] onMessage(byte[] data, int offset, int length, long nowMillis) {
+        switch (SecureCodec.type(data, offset, length)) {
+            case SecureCodec.TYPE_HELLO:
+                return onHello(data, offset, nowMillis);
+            case SecureCodec.TYPE_RESUME:
+                return onResume(data, offset, nowMillis);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decrypts a {@code data} message of the client. The result shares the
+     * channel's buffer.
+     *
+     * @return the payload, or null without a channel or if the message is not genuine
+     */
+    public ByteBuffer open(byte[] data, int offset, int length) {
+        return channel == null ? null : channel.open(data, offset, length);
+    }
+
+    public boolean isEstablished() {
+        return channel != null;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return the channel, or null before a handshake
+     */
+    public SecureChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Drops the channel, e.g. on disconnect.
+     */
+    public void reset() {
+        channel = null;
+        resumed = false;
+    }
+
+    private byte[] onHello(byte[] data, int offset, long nowMillis) {
+        KeyExchange keyExchange = new KeyExchange(random);
+        byte[] secret = keyExchange.agree(SecureCodec.publicKey(data, offset));
+        if (secret == null)
+            return null;
+        byte[] nonce = newNonce();
+        byte[] ticketId = newTicketId();
+        SessionKeys keys = SessionKeys.derive(secret, SecureCodec.nonce(data, offset), nonce);
+        byte[] answer = SecureCodec.serverHello(nonce, keyExchange.publicKey(), ticketId);
+        establish(keys, answer, ticketId, nowMillis);
+        resumed = false;
+        return answer;
+    }
+
+    private byte[] onResume(byte[] data, int offset, long nowMillis) {
+        SessionTicket ticket = tickets.take(ByteBuffer.wrap(SecureCodec.ticketId(data, offset)), nowMillis);
+        if (ticket == null)
+            return SecureCodec.retry();
+        byte[] nonce = newNonce();
+        byte[] ticketId = newTicketId();
+        SessionKeys keys = SessionKeys.derive(ticket.getSecret(), SecureCodec.nonce(data, offset), nonce);
+        byte[] answer = SecureCodec.resumed(nonce, ticketId);
+        establish(keys, answer, ticketId, nowMillis);
+        resumed = true;
+        return answer;
+    }
+
+    private void establish(SessionKeys keys, byte[] answer, byte[] ticketId, long nowMillis) {
+        channel = SecureChannel.forServer(keys);
+        channel.confirm(answer, answer.length - SecureCodec.TAG_SIZE);
+        tickets.put(ByteBuffer.wrap(ticketId), new SessionTicket(ticketId, keys.resumptionSecret, nowMillis));
+    }
+
+    private byte[] newNonce() {
+        byte[] nonce = new byte[SecureCodec.NONCE_SIZE];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private byte[] newTicketId() {
+        byte[] id = new byte[SecureCodec.TICKET_ID_SIZE];
+        random.nextBytes(id);
+        return id;
+    }
+}
@@ -0,0 +1,65 @@
+package com.ironxiao.blecore.secure;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keys of one session, expanded with HKDF-SHA256 (RFC 5869) from the ECDH secret
+ * or a ticket's secret, salted with both nonces.
+ */
+final class SessionKeys {
+    static final int KEY_SIZE = 16;
+    static final int IV_SIZE = 4;
+    static final int SECRET_SIZE = 32;
+
+    private static final String HMAC = "HmacSHA256";
+    private static final byte[] INFO = "ble-secure v1".getBytes(StandardCharsets.US_ASCII);
+
+    final byte[] clientKey;
+    final byte[] serverKey;
+    final byte[] clientIv;
+    final byte[] serverIv;
+    /** Behind the ticket handed out with these keys. */
+    final byte[] resumptionSecret;
+
+    private SessionKeys(byte[] material) {
+        int offset = 0;
+        clientKey = Arrays.copyOfRange(material, offset, offset += KEY_SIZE);
+        serverKey = Arrays.copyOfRange(material, offset, offset += KEY_SIZE);
+        clientIv = Arrays.copyOfRange(material, offset, offset += IV_SIZE);
+        serverIv = Arrays.copyOfRange(material, offset, offset += IV_SIZE);
+        resumptionSecret = Arrays.copyOfRange(material, offset, offset + SECRET_SIZE);
+        Arrays.fill(material, (byte) 0);
+    }
+
+    static SessionKeys derive(byte[] secret, byte[] clientNonce, byte[] serverNonce) {
+        byte[] salt = new byte[clientNonce.length + serverNonce.length];
+        System.arraycopy(clientNonce, 0, salt, 0, clientNonce.length);
+        System.arraycopy(serverNonce, 0, salt, clientNonce.length, serverNonce.length);
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(salt, HMAC));
+            byte[] prk = mac.doFinal(secret);
+            mac.init(new SecretKeySpec(prk, HMAC));
+            Arrays.fill(prk, (byte) 0);
+            byte[] material = new byte[2 * KEY_SIZE + 2 * IV_SIZE + SECRET_SIZE];
+            byte[] block = new byte[0];
+            for (int offset = 0, i = 1; offset < material.length; i++) {
+                mac.update(block);
+                mac.update(INFO);
+                mac.update((byte) i);
+                block = mac.doFinal();
+                int n = Math.min(block.length, material.length - offset);
+                System.arraycopy(block, 0, material, offset, n);
+                offset += n;
+            }
+            return new SessionKeys(material);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.ironxiao.blecore.secure;
+
+/**
+ * What one side keeps to resume a session without a key exchange: the ticket id
+ * the server handed out and the secret both sides derived with it.
+ */
+public final class SessionTicket {
+    private final byte[] id;
+    private final byte[] secret;
+    private final long issuedMillis;
+
+    public SessionTicket(byte[] id, byte[] secret, long issuedMillis) {
+        this.id = id;
+        this.secret = secret;
+        this.issuedMillis = issuedMillis;
+    }
+
+    /**
+     * @return the id; the array must not be changed
+     */
+    public byte[] getId() {
+        return id;
+    }
+
+    byte[] getSecret() {
+        return secret;
+    }
+
+    public long getIssuedMillis() {
+        return issuedMillis;
+    }
+}
@@ -0,0 +1,63 @@
+package com.ironxiao.blecore.secure;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Session tickets by key: by server address on a client, by ticket id on a server.
+ * <p>
+ * A ticket is handed out once by {@link #take}, as resuming with it issues the
+ * next one. At most {@code capacity} tickets are kept, the oldest go first, and
+ * tickets older than {@code lifetimeMillis} are not handed out any more. Thread
+ * safe, so one store can serve all sessions.
+ */
+public class TicketStore<K> {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_LIFETIME_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final long lifetimeMillis;
+    private final LinkedHashMap<K, SessionTicket> tickets;
+
+    public TicketStore(final int capacity, long lifetimeMillis) {
+        this.lifetimeMillis = lifetimeMillis;
+        this.tickets = new LinkedHashMap<K, SessionTicket>(capacity * 2) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, SessionTicket> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized void put(K key, SessionTicket ticket) {
+        //Reinserted, so it counts as the newest
+        tickets.remove(key);
+        tickets.put(key, ticket);
+    }
+
+    /**
+     * Removes and returns the key's ticket.
+     *
+     * @return null if there is none or it expired
+     */
+    public synchronized SessionTicket take(K key, long nowMillis) {
+        SessionTicket ticket = tickets.remove(key);
+        if (ticket == null || nowMillis - ticket.getIssuedMillis() > lifetimeMillis)
+            return null;
+        return ticket;
+    }
+
+    /**
+     * Drops expired tickets.
+     */
+    public synchronized void evictExpired(long nowMillis) {
+        for (Iterator<SessionTicket> it = tickets.values().iterator(); it.hasNext(); ) {
+            if (nowMillis - it.next().getIssuedMillis() > lifetimeMillis)
+                it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return tickets.size();
+    }
+}
@@ -0,0 +1,92 @@
+package com.ironxiao.blecore.transfer;
+
+/**
+ * Number of frames a sender may have on the way, adapted the way TCP adapts its
+ * congestion window: additive increase, multiplicative decrease.
+ * <p>
+ * Every window's worth of frames the receiver takes grows the window by one;
+ * a sign of congestion halves it. Congestion usually shows several times for
+ * one burst, e.g. a string of refused writes, so the window is halved at most
+ * once until the frames sent at the smaller size came through.
+ * <p>
+ * Not thread safe.
+ */
+public class AimdWindow {
+    private final int initial;
+    private final int min;
+    private final int max;
+
+    private int window;
+    //Frames taken since the window last grew, or since it was halved
+    private int acked;
+    private boolean recovering;
+    private int decreases;
+
+    public AimdWindow(int initial, int min, int max) {
+        if (min < 1 || min > max || initial < min || initial > max)
+            throw new IllegalArgumentException("window " + initial + " not within " + min + ".." + max);
+        this.initial = initial;
+        this.min = min;
+        this.max = max;
+        this.window = initial;
+    }
+
+    public int get() {
+        return window;
+    }
+
+    /**
+     * @param frames frames the receiver took since the last call
+     */
+    public void onAcked(int frames) {
+        if (frames <= 0)
+            return;
+        acked += frames;
+        if (recovering) {
+            if (acked < window)
+                return;
+            recovering = false;
+            acked -= window;
+        }
+        while (acked >= window && window < max) {
+            acked -= window;
+            window++;
+        }
+        if (window == max)
+            acked = 0;
+    }
+
+    /**
+     * Halves the window, unless it was halved for the same burst already.
+     *
+     * @return true if the window shrank
+     */
+    public boolean onCongestion() {
+        if (recovering)
+            return false;
+        recovering = true;
+        acked = 0;
+        decreases++;
+        int halved = Math.max(min, window / 2);
+        if (halved == window)
+            return false;
+        window = halved;
+        return true;
+    }
+
+    /**
+     * Starts over at the initial size, e.g. for a new connection.
+     */
+    public void reset() {
+        window = initial;
+        acked = 0;
+        recovering = false;
+    }
+
+    /**
+     * @return how often congestion was seen, not counting repeats within one burst
+     */
+    public int getDecreases() {
+        return decreases;
+    }
+}
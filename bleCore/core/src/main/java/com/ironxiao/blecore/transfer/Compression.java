@@ -0,0 +1,58 @@
+package com.ironxiao.blecore.transfer;
+
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.provision.ProvisioningRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Payload codecs negotiated per connection. Once a codec is agreed on, every payload
+ * starts with one codec byte, so payloads that would not shrink are sent as
+ * {@link #CODEC_NONE}.
+ * <p>
+ * Deflate runs without zlib header and checksum (the frames are already checked by
+ * the link layer) and with {@link #PRESET_DICTIONARY}, which both sides must share.
+ */
+public final class Compression {
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    /** Bit {@code 1 << codec} is set in the server's capabilities for each codec it decodes. */
+    public static final int CAPABILITY_DEFLATE = 1 << CODEC_DEFLATE;
+
+    /**
+     * Pieces of {@code ProvisioningCodec} records. Deflate can reference it from the
+     * first byte on, which is what gives a record of a few dozen bytes a chance to
+     * shrink: server URL schemes, static IP fields in 192.168.0.0/16, default SSID
+     * prefixes of common routers and the security fields. The most frequent pieces
+     * go last, closest to the data.
+     */
+    public static final byte[] PRESET_DICTIONARY = dictionary();
+
+    private Compression() {
+    }
+
+    private static byte[] dictionary() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ascii(out, "https://http://");
+        //Static IP with and without DNS: address, prefix 24, gateway .1
+        int staticIp = ProvisioningCodec.TAG_STATIC_IP << 5;
+        out.write(new byte[]{(byte) (staticIp | 13), (byte) 192, (byte) 168, 1, 100, 24, (byte) 192, (byte) 168, 1, 1,
+                (byte) 192, (byte) 168, 1, 1}, 0, 14);
+        out.write(new byte[]{(byte) (staticIp | 9), (byte) 192, (byte) 168, 0, 100, 24, (byte) 192, (byte) 168, 0, 1},
+                0, 10);
+        ascii(out, "NETGEAR_dlink-ASUS_Tenda_FAST_MERCURY_ChinaNet-CMCC-Xiaomi_HUAWEI-TP-LINK_");
+        //Hidden, security open and SAE; WPA is the default and left out
+        out.write(ProvisioningCodec.TAG_HIDDEN << 5);
+        int security = ProvisioningCodec.TAG_SECURITY << 5 | 1;
+        out.write(new byte[]{(byte) security, ProvisioningRecord.SECURITY_NONE,
+                (byte) security, ProvisioningRecord.SECURITY_SAE}, 0, 4);
+        return out.toByteArray();
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(Charset.forName("US-ASCII"));
+        out.write(bytes, 0, bytes.length);
+    }
+}
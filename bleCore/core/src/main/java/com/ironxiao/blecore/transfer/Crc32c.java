@@ -0,0 +1,70 @@
+package com.ironxiao.blecore.transfer;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI and ext4. Android has no
+ * {@code java.util.zip.CRC32C}, so this is a table driven version that takes
+ * eight bytes per step.
+ */
+public final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            TABLE[n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLE[n];
+            for (int k = 1; k < 8; k++) {
+                crc = TABLE[crc & 0xFF] ^ (crc >>> 8);
+                TABLE[k * 256 + n] = crc;
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public static int compute(byte[] data, int offset, int length) {
+        return ~update(0xFFFFFFFF, data, offset, length);
+    }
+
+    @Override
+    public void update(int b) {
+        crc = TABLE[(crc ^ b) & 0xFF] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        crc = update(crc, data, offset, length);
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    private static int update(int crc, byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            int low = crc ^ ((data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                    | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24);
+            crc = TABLE[7 * 256 + (low & 0xFF)] ^ TABLE[6 * 256 + ((low >>> 8) & 0xFF)]
+                    ^ TABLE[5 * 256 + ((low >>> 16) & 0xFF)] ^ TABLE[4 * 256 + (low >>> 24)]
+                    ^ TABLE[3 * 256 + (data[offset + 4] & 0xFF)] ^ TABLE[2 * 256 + (data[offset + 5] & 0xFF)]
+                    ^ TABLE[256 + (data[offset + 6] & 0xFF)] ^ TABLE[data[offset + 7] & 0xFF];
+        }
+        for (; offset < end; offset++)
+            crc = TABLE[(crc ^ data[offset]) & 0xFF] ^ (crc >>> 8);
+        return crc;
+    }
+}
@@ -0,0 +1,103 @@
+package com.ironxiao.blecore.transfer;
+
+/**
+ * Rebuilds a payload from the frames produced by {@link FrameSplitter}.
+ * <p>
+ * A frame that is out of sequence drops the partial payload; the sender is
+ * expected to start over with a new first frame.
+ */
+public class FrameAssembler {
+    public static final int DEFAULT_MAX_PAYLOAD = 1 << 20;
+
+    private final int maxPayload;
+    private byte[] buffer;
+    private int received;
+    private int expectedSequence;
+    private int droppedFrames;
+
+    public FrameAssembler() {
+        this(DEFAULT_MAX_PAYLOAD);
+    }
+
+    public FrameAssembler(int maxPayload) {
+        this.maxPayload = maxPayload;
+    }
+
+    /**
+     * @return true when the frame completed a payload, which is then available
+     * from {@link #getPayload()} until the next first frame arrives.
+     */
+    public boolean onFrame(byte[] frame) {
+        return frame != null && onFrame(frame, 0, frame.length);
+    }
+
+    /**
+     * Same as {@link #onFrame(byte[])} for a frame stored in a slice of a larger
+     * array, e.g. a pooled buffer.
+     */
+    public boolean onFrame(byte[] data, int frameOffset, int length) {
+        if (length < FrameCodec.HEADER_SIZE) {
+            drop();
+            return false;
+        }
+        int flags = FrameCodec.flags(data, frameOffset);
+        int sequence = FrameCodec.sequence(data, frameOffset);
+        int headerSize = FrameCodec.HEADER_SIZE;
+
+        if ((flags & FrameCodec.FLAG_FIRST) != 0) {
+            if (length < FrameCodec.FIRST_HEADER_SIZE || sequence != 0) {
+                drop();
+                return false;
+            }
+            int total = FrameCodec.totalLength(data, frameOffset);
+            if (total < 0 || total > maxPayload) {
+                drop();
+                return false;
+            }
+            buffer = new byte[total];
+            received = 0;
+            expectedSequence = 0;
+            headerSize = FrameCodec.FIRST_HEADER_SIZE;
+        } else if (buffer == null || sequence != expectedSequence) {
+            drop();
+            return false;
+        }
+
+        int chunk = length - headerSize;
+        if (received + chunk > buffer.length) {
+            drop();
+            return false;
+        }
+        System.arraycopy(data, frameOffset + headerSize, buffer, received, chunk);
+        received += chunk;
+        expectedSequence = (expectedSequence + 1) & 0xFFFF;
+
+        if ((flags & FrameCodec.FLAG_LAST) == 0)
+            return false;
+        if (received != buffer.length) {
+            drop();
+            return false;
+        }
+        expectedSequence = -1;
+        return true;
+    }
+
+    public byte[] getPayload() {
+        return expectedSequence == -1 ? buffer : null;
+    }
+
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public void reset() {
+        buffer = null;
+        received = 0;
+        expectedSequence = 0;
+    }
+
+    private void drop() {
+        droppedFrames++;
+        reset();
+    }
+}
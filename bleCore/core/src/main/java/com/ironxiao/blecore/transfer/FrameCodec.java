@@ -0,0 +1,85 @@
+package com.ironxiao.blecore.transfer;
+
+/**
+ * Wire format of a segmented payload.
+ * <p>
+ * Every frame starts with a flags byte and a big-endian 16 bit sequence number.
+ * The first frame of a payload additionally carries the total payload length
+ * as a big-endian 32 bit value, so the receiver can size its buffer once.
+ */
+public final class FrameCodec {
+
+    public static final int FLAG_FIRST = 0x01;
+    public static final int FLAG_LAST = 0x02;
+
+    public static final int HEADER_SIZE = 3;
+    public static final int FIRST_HEADER_SIZE = HEADER_SIZE + 4;
+
+    /** ATT opcode + attribute handle that every write spends out of the MTU. */
+    public static final int ATT_OVERHEAD = 3;
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+
+    private FrameCodec() {
+    }
+
+    /** Largest frame that fits into one write for the given ATT MTU. */
+    public static int maxFrameSize(int mtu) {
+        if (mtu < DEFAULT_MTU)
+            mtu = DEFAULT_MTU;
+        if (mtu > MAX_MTU)
+            mtu = MAX_MTU;
+        return mtu - ATT_OVERHEAD;
+    }
+
+    public static int flags(byte[] frame) {
+        return flags(frame, 0);
+    }
+
+    public static int sequence(byte[] frame) {
+        return sequence(frame, 0);
+    }
+
+    public static int totalLength(byte[] frame) {
+        return totalLength(frame, 0);
+    }
+
+    public static int flags(byte[] data, int frameOffset) {
+        return data[frameOffset] & 0xFF;
+    }
+
+    public static int sequence(byte[] data, int frameOffset) {
+        return ((data[frameOffset + 1] & 0xFF) << 8) | (data[frameOffset + 2] & 0xFF);
+    }
+
+    public static int totalLength(byte[] data, int frameOffset) {
+        return ((data[frameOffset + 3] & 0xFF) << 24) | ((data[frameOffset + 4] & 0xFF) << 16)
+                | ((data[frameOffset + 5] & 0xFF) << 8) | (data[frameOffset + 6] & 0xFF);
+    }
+
+    /**
+     * Length of the frame at the start of a write. A client may pack several complete
+     * single-frame payloads back to back into one write; any other frame fills the
+     * rest of the write.
+     */
+    public static int frameLength(byte[] data, int frameOffset, int length) {
+        int flags = flags(data, frameOffset);
+        if ((flags & FLAG_FIRST) == 0 || (flags & FLAG_LAST) == 0 || length < FIRST_HEADER_SIZE)
+            return length;
+        long frameLength = FIRST_HEADER_SIZE + (totalLength(data, frameOffset) & 0xFFFFFFFFL);
+        return frameLength < length ? (int) frameLength : length;
+    }
+
+    static void writeHeader(byte[] frame, int flags, int sequence) {
+        frame[0] = (byte) flags;
+        frame[1] = (byte) (sequence >>> 8);
+        frame[2] = (byte) sequence;
+    }
+
+    static void writeTotalLength(byte[] frame, int totalLength) {
+        frame[3] = (byte) (totalLength >>> 24);
+        frame[4] = (byte) (totalLength >>> 16);
+        frame[5] = (byte) (totalLength >>> 8);
+        frame[6] = (byte) totalLength;
+    }
+}
@@ -0,0 +1,59 @@
+package com.ironxiao.blecore.transfer;
+
+/**
+ * Cuts a payload into frames no larger than the negotiated MTU allows.
+ */
+public class FrameSplitter {
+    private final byte[] payload;
+    private final int length;
+    private final int frameSize;
+    private int offset;
+    private int sequence;
+    private boolean done;
+
+    public FrameSplitter(byte[] payload, int mtu) {
+        this(payload, payload.length, mtu);
+    }
+
+    /**
+     * @param length number of bytes at the start of {@code payload} to send
+     */
+    public FrameSplitter(byte[] payload, int length, int mtu) {
+        this.payload = payload;
+        this.length = length;
+        this.frameSize = FrameCodec.maxFrameSize(mtu);
+    }
+
+    public boolean hasNext() {
+        return !done;
+    }
+
+    /**
+     * Builds the next frame. The returned array is exactly as long as the frame,
+     * because {@code BluetoothGattCharacteristic.setValue} has no length argument.
+     */
+    public byte[] next() {
+        if (done)
+            throw new IllegalStateException("No frames left");
+        boolean first = offset == 0 && sequence == 0;
+        int headerSize = first ? FrameCodec.FIRST_HEADER_SIZE : FrameCodec.HEADER_SIZE;
+        int chunk = Math.min(frameSize - headerSize, length - offset);
+        boolean last = offset + chunk == length;
+        int flags = (first ? FrameCodec.FLAG_FIRST : 0) | (last ? FrameCodec.FLAG_LAST : 0);
+
+        byte[] frame = new byte[headerSize + chunk];
+        FrameCodec.writeHeader(frame, flags, sequence);
+        if (first)
+            FrameCodec.writeTotalLength(frame, length);
+        System.arraycopy(payload, offset, frame, headerSize, chunk);
+
+        offset += chunk;
+        sequence = (sequence + 1) & 0xFFFF;
+        done = last;
+        return frame;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+}
@@ -0,0 +1,65 @@
+package com.ironxiao.blecore.transfer;
+
+import java.util.zip.Deflater;
+
+/**
+ * Encodes payloads as {@code codec:u8 body} for a connection that negotiated a codec.
+ * <p>
+ * The deflater and the output buffer are reused, so the encoded payload is only
+ * valid until the next call of {@link #encode}. Call {@link #release()} when done,
+ * a deflater holds native memory.
+ */
+public class PayloadCompressor {
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private byte[] buffer = new byte[256];
+    private int length;
+
+    /**
+     * Deflates the payload, or stores it as is if that would not make it smaller.
+     *
+     * @return the length of the encoded payload in {@link #getBuffer()}
+     */
+    public int encode(byte[] payload, int codec) {
+        ensureCapacity(1 + payload.length);
+        if (codec == Compression.CODEC_DEFLATE && deflate(payload))
+            return length;
+        buffer[0] = (byte) Compression.CODEC_NONE;
+        System.arraycopy(payload, 0, buffer, 1, payload.length);
+        length = 1 + payload.length;
+        return length;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void release() {
+        deflater.end();
+    }
+
+    private boolean deflate(byte[] payload) {
+        deflater.reset();
+        deflater.setDictionary(Compression.PRESET_DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        //Anything not smaller than the plain payload is of no use
+        int limit = payload.length;
+        int written = 0;
+        while (!deflater.finished() && written < limit)
+            written += deflater.deflate(buffer, 1 + written, limit - written);
+        if (!deflater.finished())
+            return false;
+        buffer[0] = (byte) Compression.CODEC_DEFLATE;
+        length = 1 + written;
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.length < capacity)
+            buffer = new byte[Math.max(capacity, buffer.length * 2)];
+    }
+}
@@ -0,0 +1,71 @@
+package com.ironxiao.blecore.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes {@code codec:u8 body} payloads of a client that negotiated a codec.
+ * <p>
+ * The inflater and output buffer are reused; a decoded payload is only valid until
+ * the next call of {@link #decode}. Call {@link #release()} when done, an inflater
+ * holds native memory.
+ */
+public class PayloadDecompressor {
+    private final Inflater inflater = new Inflater(true);
+    private final int maxLength;
+    private final byte[] probe = new byte[1];
+    private byte[] buffer;
+
+    /**
+     * @param maxLength largest decoded payload accepted, to stop decompression bombs
+     */
+    public PayloadDecompressor(int maxLength) {
+        this.maxLength = maxLength;
+        //Never larger than the limit, which is only checked once the buffer is full
+        this.buffer = new byte[Math.min(512, maxLength)];
+    }
+
+    /**
+     * @return the decoded payload, or null if it is corrupt, larger than the maximum
+     * or uses an unknown codec
+     */
+    public ByteBuffer decode(byte[] data, int offset, int length) {
+        if (length < 1)
+            return null;
+        int codec = data[offset] & 0xFF;
+        if (codec == Compression.CODEC_NONE)
+            return ByteBuffer.wrap(data, offset + 1, length - 1);
+        if (codec != Compression.CODEC_DEFLATE)
+            return null;
+        inflater.reset();
+        inflater.setDictionary(Compression.PRESET_DICTIONARY);
+        inflater.setInput(data, offset + 1, length - 1);
+        int decoded = 0;
+        try {
+            while (!inflater.finished()) {
+                if (decoded == buffer.length) {
+                    //Exactly full is fine if nothing but the end of the stream is left
+                    if (buffer.length >= maxLength)
+                        return inflater.inflate(probe) == 0 && inflater.finished()
+                                ? ByteBuffer.wrap(buffer, 0, decoded) : null;
+                    byte[] grown = new byte[Math.min(maxLength, buffer.length * 2)];
+                    System.arraycopy(buffer, 0, grown, 0, decoded);
+                    buffer = grown;
+                }
+                int n = inflater.inflate(buffer, decoded, buffer.length - decoded);
+                //Truncated stream
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    return null;
+                decoded += n;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        return ByteBuffer.wrap(buffer, 0, decoded);
+    }
+
+    public void release() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,198 @@
+package com.ironxiao.blecore.transfer;
+
+/**
+ * Messages of a resumable transfer. Each one is sent as an ordinary framed payload.
+ * <pre>
+ * begin:  magic:u16 type:u8 id:u32 length:u32 digest:u32
+ * chunk:  magic:u16 type:u8 flags:u8 id:u32 offset:u32 crc:u32 data
+ * ack:    magic:u16 type:u8 status:u8 id:u32 offset:u32
+ * credit: magic:u16 type:u8 consumed:u32 dropped:u32
+ * </pre>
+ * The client announces a transfer with {@code begin}, the CRC-32C of the whole
+ * payload as digest, and then sends it in {@code chunk}s, each with the CRC-32C of
+ * its data. The server notifies an {@code ack} with the number of bytes it holds
+ * whenever a chunk asks for one, and answers {@code begin} the same way, so a
+ * client that sends {@code begin} again after a reconnect learns where to go on.
+ * All values are big-endian. Server capability {@link #CAPABILITY_RESUME} says the
+ * server understands these messages.
+ * <p>
+ * A server with {@link #CAPABILITY_CREDITS} also notifies a {@code credit} with
+ * the number of frames it consumed and dropped on this link, at least every
+ * {@link #CREDIT_INTERVAL} consumed frames, at the end of each payload, and soon
+ * after it had to drop a write command. Both counts only grow and wrap around,
+ * so a lost credit is made up by the next one. Clients that want credits write
+ * the capability as a second byte after their codec choice; see
+ * {@link AimdWindow} for what they do with them.
+ */
+public final class TransferCodec {
+    /** Capabilities bit of servers that accept resumable transfers. */
+    public static final int CAPABILITY_RESUME = 0x80;
+    /** Capabilities bit of servers that notify credits for write commands. */
+    public static final int CAPABILITY_CREDITS = 0x40;
+    /** Consumed frames after which the server notifies a credit at the latest. */
+    public static final int CREDIT_INTERVAL = 4;
+
+    public static final int MAGIC = 0xB17E;
+
+    public static final int TYPE_BEGIN = 1;
+    public static final int TYPE_CHUNK = 2;
+    public static final int TYPE_ACK = 3;
+    public static final int TYPE_CREDIT = 4;
+
+    /** The server should acknowledge this chunk. */
+    public static final int FLAG_ACK_REQUESTED = 0x01;
+
+    /** Offset is what the server holds so far. */
+    public static final int STATUS_OK = 0;
+    /** A chunk was missing or corrupt, go on from offset. */
+    public static final int STATUS_RESEND = 1;
+    /** The whole payload arrived and matched the digest. */
+    public static final int STATUS_COMPLETE = 2;
+    /** The server has no such transfer, e.g. it was evicted; begin again. */
+    public static final int STATUS_UNKNOWN = 3;
+    /** Too large, or the digest did not match; the server dropped the transfer. */
+    public static final int STATUS_FAILED = 4;
+
+    public static final int BEGIN_SIZE = 15;
+    public static final int CHUNK_HEADER_SIZE = 16;
+    public static final int ACK_SIZE = 12;
+    public static final int CREDIT_SIZE = 11;
+
+    private TransferCodec() {
+    }
+
+    public static byte[] begin(int id, int length, int digest) {
+        byte[] message = new byte[BEGIN_SIZE];
+        writeHeader(message, TYPE_BEGIN);
+        writeInt(message, 3, id);
+        writeInt(message, 7, length);
+        writeInt(message, 11, digest);
+        return message;
+    }
+
+    /**
+     * @param offset offset of the chunk's data in the payload
+     */
+    public static byte[] chunk(int id, int flags, byte[] payload, int offset, int length) {
+        byte[] message = new byte[CHUNK_HEADER_SIZE + length];
+        writeHeader(message, TYPE_CHUNK);
+        message[3] = (byte) flags;
+        writeInt(message, 4, id);
+        writeInt(message, 8, offset);
+        writeInt(message, 12, Crc32c.compute(payload, offset, length));
+        System.arraycopy(payload, offset, message, CHUNK_HEADER_SIZE, length);
+        return message;
+    }
+
+    public static byte[] ack(int status, int id, int offset) {
+        byte[] message = new byte[ACK_SIZE];
+        writeHeader(message, TYPE_ACK);
+        message[3] = (byte) status;
+        writeInt(message, 4, id);
+        writeInt(message, 8, offset);
+        return message;
+    }
+
+    public static byte[] credit(int consumed, int dropped) {
+        byte[] message = new byte[CREDIT_SIZE];
+        writeHeader(message, TYPE_CREDIT);
+        writeInt(message, 3, consumed);
+        writeInt(message, 7, dropped);
+        return message;
+    }
+
+    /**
+     * @return the {@code TYPE_*} of a well formed message, or 0 for any other payload
+     */
+    public static int type(byte[] data, int offset, int length) {
+        if (length < 3 || readShort(data, offset) != MAGIC)
+            return 0;
+        int type = data[offset + 2] & 0xFF;
+        switch (type) {
+            case TYPE_BEGIN:
+                return length == BEGIN_SIZE ? type : 0;
+            case TYPE_CHUNK:
+                return length >= CHUNK_HEADER_SIZE ? type : 0;
+            case TYPE_ACK:
+                return length == ACK_SIZE ? type : 0;
+            case TYPE_CREDIT:
+                return length == CREDIT_SIZE ? type : 0;
+            default:
+                return 0;
+        }
+    }
+
+    public static int type(byte[] message) {
+        return type(message, 0, message.length);
+    }
+
+    public static int beginId(byte[] data, int offset) {
+        return readInt(data, offset + 3);
+    }
+
+    public static int beginLength(byte[] data, int offset) {
+        return readInt(data, offset + 7);
+    }
+
+    public static int beginDigest(byte[] data, int offset) {
+        return readInt(data, offset + 11);
+    }
+
+    public static int chunkFlags(byte[] data, int offset) {
+        return data[offset + 3] & 0xFF;
+    }
+
+    public static int chunkId(byte[] data, int offset) {
+        return readInt(data, offset + 4);
+    }
+
+    public static int chunkOffset(byte[] data, int offset) {
+        return readInt(data, offset + 8);
+    }
+
+    public static int chunkCrc(byte[] data, int offset) {
+        return readInt(data, offset + 12);
+    }
+
+    public static int ackStatus(byte[] data, int offset) {
+        return data[offset + 3] & 0xFF;
+    }
+
+    public static int ackId(byte[] data, int offset) {
+        return readInt(data, offset + 4);
+    }
+
+    public static int ackOffset(byte[] data, int offset) {
+        return readInt(data, offset + 8);
+    }
+
+    public static int creditConsumed(byte[] data, int offset) {
+        return readInt(data, offset + 3);
+    }
+
+    public static int creditDropped(byte[] data, int offset) {
+        return readInt(data, offset + 7);
+    }
+
+    private static void writeHeader(byte[] message, int type) {
+        message[0] = (byte) (MAGIC >>> 8);
+        message[1] = (byte) MAGIC;
+        message[2] = (byte) type;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,159 @@
+package com.ironxiao.blecore.transfer;
+
+/**
+ * Server side of a resumable transfer, see {@link TransferCodec}.
+ * <p>
+ * Chunks are only taken in order, so everything up to the received offset has
+ * been checked and the running CRC-32C over it is the digest at that point; a
+ * transfer can go on from there after any number of reconnects. A missing or
+ * corrupt chunk is answered with one {@code STATUS_RESEND}, and the chunks still
+ * on the way behind it are dropped quietly until the client went back.
+ * <p>
+ * One transfer is kept at a time; a {@code begin} with another id replaces it.
+ * The id of the last completed one is remembered, so a client that missed the
+ * final ack is told again instead of sending everything once more.
+ */
+public class TransferReceiver {
+    private final int maxLength;
+    private final Crc32c digest = new Crc32c();
+
+    private byte[] buffer;
+    private int id;
+    private int expectedDigest;
+    private int received;
+    private boolean resendRequested;
+    private boolean hasCompleted;
+    private int completedId;
+    private int completedLength;
+    private byte[] payload;
+
+    public TransferReceiver(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Handles a {@code begin} or {@code chunk} message. If it completed the
+     * transfer, the payload is available from {@link #getPayload()} until the
+     * next call.
+     *
+     * @return the ack to notify, or null
+     */
+    public byte[] onMessage(byte[] data, int offset, int length) {
+        payload = null;
+        switch (TransferCodec.type(data, offset, length)) {
+            case TransferCodec.TYPE_BEGIN:
+                return onBegin(TransferCodec.beginId(data, offset), TransferCodec.beginLength(data, offset),
+                        TransferCodec.beginDigest(data, offset));
+            case TransferCodec.TYPE_CHUNK:
+                return onChunk(data, offset, length);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the payload completed by the last message, or null
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return bytes of the current transfer received so far
+     */
+    public int getReceived() {
+        return received;
+    }
+
+    public boolean isActive() {
+        return buffer != null;
+    }
+
+    /**
+     * Takes back the completion of the last transfer, e.g. because its payload
+     * could not be opened. A client asking for it again starts over.
+     *
+     * @return the ack to notify instead of the completing one
+     */
+    public byte[] rejectCompleted() {
+        hasCompleted = false;
+        payload = null;
+        return TransferCodec.ack(TransferCodec.STATUS_FAILED, completedId, 0);
+    }
+
+    /**
+     * Drops the current transfer and its buffer.
+     */
+    public void reset() {
+        buffer = null;
+        received = 0;
+        resendRequested = false;
+        digest.reset();
+    }
+
+    private byte[] onBegin(int id, int length, int expectedDigest) {
+        if (hasCompleted && id == completedId && length == completedLength)
+            return TransferCodec.ack(TransferCodec.STATUS_COMPLETE, id, length);
+        //The same transfer again after a reconnect: go on where it stopped
+        if (buffer != null && id == this.id && length == buffer.length && expectedDigest == this.expectedDigest) {
+            resendRequested = false;
+            return TransferCodec.ack(TransferCodec.STATUS_OK, id, received);
+        }
+        reset();
+        if (length < 0 || length > maxLength)
+            return TransferCodec.ack(TransferCodec.STATUS_FAILED, id, 0);
+        this.id = id;
+        this.expectedDigest = expectedDigest;
+        buffer = new byte[length];
+        if (length == 0)
+            return complete();
+        return TransferCodec.ack(TransferCodec.STATUS_OK, id, 0);
+    }
+
+    private byte[] onChunk(byte[] data, int offset, int length) {
+        int id = TransferCodec.chunkId(data, offset);
+        if (buffer == null || id != this.id) {
+            if (hasCompleted && id == completedId)
+                return TransferCodec.ack(TransferCodec.STATUS_COMPLETE, id, completedLength);
+            return TransferCodec.ack(TransferCodec.STATUS_UNKNOWN, id, 0);
+        }
+        boolean ackRequested = (TransferCodec.chunkFlags(data, offset) & TransferCodec.FLAG_ACK_REQUESTED) != 0;
+        int chunkOffset = TransferCodec.chunkOffset(data, offset);
+        int dataOffset = offset + TransferCodec.CHUNK_HEADER_SIZE;
+        int dataLength = length - TransferCodec.CHUNK_HEADER_SIZE;
+
+        //Sent again after a resend or a resume, we have it already
+        if (chunkOffset >= 0 && chunkOffset + dataLength <= received)
+            return ackRequested ? TransferCodec.ack(TransferCodec.STATUS_OK, id, received) : null;
+        if (chunkOffset != received || dataLength > buffer.length - received
+                || Crc32c.compute(data, dataOffset, dataLength) != TransferCodec.chunkCrc(data, offset)) {
+            if (resendRequested)
+                return null;
+            resendRequested = true;
+            return TransferCodec.ack(TransferCodec.STATUS_RESEND, id, received);
+        }
+
+        System.arraycopy(data, dataOffset, buffer, received, dataLength);
+        digest.update(data, dataOffset, dataLength);
+        received += dataLength;
+        resendRequested = false;
+        if (received < buffer.length)
+            return ackRequested ? TransferCodec.ack(TransferCodec.STATUS_OK, id, received) : null;
+        return complete();
+    }
+
+    private byte[] complete() {
+        if ((int) digest.getValue() != expectedDigest) {
+            reset();
+            return TransferCodec.ack(TransferCodec.STATUS_FAILED, id, 0);
+        }
+        payload = buffer;
+        hasCompleted = true;
+        completedId = id;
+        completedLength = buffer.length;
+        buffer = null;
+        received = 0;
+        digest.reset();
+        return TransferCodec.ack(TransferCodec.STATUS_COMPLETE, id, completedLength);
+    }
+}
@@ -0,0 +1,65 @@
+package com.ironxiao.blecore.advertise;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdvertisingStatusTest {
+    private static final byte[] MANUFACTURE = "Nologic".getBytes();
+
+    private final AdvertisingStatus status = new AdvertisingStatus(MANUFACTURE, 2);
+
+    @Test
+    public void manufacturerDataKeepsPrefix() {
+        byte[] data = status.getManufacturerData();
+        assertEquals(MANUFACTURE.length + AdvertisingStatus.STATUS_SIZE, data.length);
+        for (int i = 0; i < MANUFACTURE.length; i++)
+            assertEquals(MANUFACTURE[i], data[i]);
+        assertEquals(AdvertisingStatus.VERSION << 4, data[7]);
+        assertEquals(2, data[8]);
+        assertEquals(0, data[9]);
+    }
+
+    @Test
+    public void connectionsUseUpSlots() {
+        assertEquals(AdvertisingStatus.INTERVAL_LOW, status.getInterval());
+
+        assertTrue(status.setConnectedClients(1));
+        assertEquals(1, status.getFreeSlots());
+        assertFalse(status.isBusy());
+        assertEquals(AdvertisingStatus.INTERVAL_MEDIUM, status.getInterval());
+
+        assertTrue(status.setConnectedClients(2));
+        assertTrue(status.isBusy());
+        assertEquals(AdvertisingStatus.INTERVAL_HIGH, status.getInterval());
+        byte[] data = status.getManufacturerData();
+        assertEquals(AdvertisingStatus.VERSION << 4 | AdvertisingStatus.FLAG_BUSY, data[7]);
+        assertEquals(0, data[8]);
+
+        //Already busy: nothing to advertise
+        assertFalse(status.setConnectedClients(3));
+        assertEquals(0, status.getFreeSlots());
+        assertEquals(2, status.getSequence());
+    }
+
+    @Test
+    public void provisionedUnitSlowsDown() {
+        assertTrue(status.setProvisioned(true));
+        assertFalse(status.setProvisioned(true));
+        assertEquals(AdvertisingStatus.FLAG_PROVISIONED, status.getFlags());
+        assertEquals(AdvertisingStatus.INTERVAL_HIGH, status.getInterval());
+        assertEquals(1, status.getManufacturerData()[9]);
+    }
+
+    @Test
+    public void sequenceWraps() {
+        for (int i = 1; i <= 256; i++)
+            assertTrue(status.setConnectedClients(i % 2));
+        assertEquals(0, status.getSequence());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyClients() {
+        new AdvertisingStatus(MANUFACTURE, 256);
+    }
+}
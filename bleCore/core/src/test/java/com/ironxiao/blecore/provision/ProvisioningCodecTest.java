@@ -0,0 +1,156 @@
+package com.ironxiao.blecore.provision;
+
+import com.ironxiao.blecore.transfer.FrameCodec;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProvisioningCodecTest {
+
+    private static ProvisioningRecord typical() {
+        return new ProvisioningRecord.Builder()
+                .setSsid("goke_ofice")
+                .setPassword("goke!wifi")
+                .build();
+    }
+
+    private static int frames(byte[] payload, int mtu) {
+        FrameSplitter splitter = new FrameSplitter(payload, mtu);
+        int frames = 0;
+        while (splitter.hasNext()) {
+            splitter.next();
+            frames++;
+        }
+        return frames;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static ProvisioningRecord randomRecord(Random random) {
+        ProvisioningRecord.Builder builder = new ProvisioningRecord.Builder()
+                .setSsid(randomBytes(random, 1 + random.nextInt(32)))
+                .setSecurity(random.nextInt(4))
+                .setHidden(random.nextBoolean());
+        if (random.nextBoolean())
+            builder.setPassword(randomBytes(random, random.nextInt(ProvisioningCodec.MAX_FIELD_LENGTH + 1)));
+        if (random.nextBoolean())
+            builder.setStaticIp(random.nextInt(), 1 + random.nextInt(32), random.nextInt(), random.nextBoolean() ? random.nextInt() : 0);
+        if (random.nextBoolean())
+            builder.setServerUrl(randomBytes(random, random.nextInt(ProvisioningCodec.MAX_FIELD_LENGTH + 1)));
+        return builder.build();
+    }
+
+    @Test
+    public void roundTripsTypicalRecord() {
+        byte[] encoded = ProvisioningCodec.encode(typical());
+
+        assertEquals(22, encoded.length);
+        ProvisioningRecord decoded = ProvisioningCodec.decode(ByteBuffer.wrap(encoded));
+        assertEquals(typical(), decoded);
+        assertEquals("goke_ofice", decoded.getSsidString());
+        assertEquals(ProvisioningRecord.SECURITY_WPA, decoded.getSecurity());
+        assertFalse(decoded.isHidden());
+        assertFalse(decoded.hasStaticIp());
+        assertNull(decoded.getServerUrl());
+    }
+
+    @Test
+    public void smallerThanTextForm() {
+        byte[] binary = ProvisioningCodec.encode(typical());
+        byte[] text = new WifiCredentials("goke_ofice", WifiCredentials.SECURITY_WPA, "goke!wifi", false).toWifiString().getBytes();
+
+        assertTrue(binary.length * 2 < text.length);
+        assertEquals(2, frames(binary, FrameCodec.DEFAULT_MTU));
+        assertEquals(3, frames(text, FrameCodec.DEFAULT_MTU));
+        assertEquals(1, frames(binary, 185));
+    }
+
+    @Test
+    public void roundTripsAllFields() {
+        ProvisioningRecord record = new ProvisioningRecord.Builder()
+                .setSsid("lab")
+                .setSecurity(ProvisioningRecord.SECURITY_SAE)
+                .setPassword(new byte[40])
+                .setHidden(true)
+                .setStaticIp(0xC0A80164, 24, 0xC0A80101, 0x08080808)
+                .setServerUrl("https://provision.example.com/devices/register")
+                .build();
+        byte[] encoded = ProvisioningCodec.encode(record);
+
+        assertEquals(ProvisioningCodec.encodedLength(record), encoded.length);
+        assertEquals(record, ProvisioningCodec.decode(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    public void decodesFromBufferPosition() {
+        byte[] encoded = ProvisioningCodec.encode(typical());
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 8);
+        buffer.position(4);
+        buffer.put(encoded);
+        buffer.flip();
+        buffer.position(4);
+
+        assertEquals(typical(), ProvisioningCodec.decode(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void skipsUnknownTags() {
+        byte[] encoded = ProvisioningCodec.encode(typical());
+        byte[] extended = Arrays.copyOf(encoded, encoded.length + 4);
+        extended[encoded.length] = (byte) (ProvisioningCodec.TAG_EXTENSION << 5 | 3);
+        extended[encoded.length + 1] = 0x42;
+
+        assertEquals(typical(), ProvisioningCodec.decode(ByteBuffer.wrap(extended)));
+    }
+
+    @Test
+    public void rejectsMalformedRecords() {
+        assertNull(ProvisioningCodec.decode(ByteBuffer.wrap(new byte[0])));
+        //Unknown version
+        assertNull(ProvisioningCodec.decode(ByteBuffer.wrap(new byte[]{2, 0x21, 'a'})));
+        //No SSID
+        assertNull(ProvisioningCodec.decode(ByteBuffer.wrap(new byte[]{1, (byte) 0x80})));
+        //Field longer than the record
+        assertNull(ProvisioningCodec.decode(ByteBuffer.wrap(new byte[]{1, 0x25, 'a'})));
+        //Security with a bad length
+        assertNull(ProvisioningCodec.decode(ByteBuffer.wrap(new byte[]{1, 0x21, 'a', 0x62, 0, 0})));
+    }
+
+    @Test
+    public void fuzzRoundTrip() {
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            ProvisioningRecord record = randomRecord(random);
+            byte[] encoded = ProvisioningCodec.encode(record);
+            assertEquals(ProvisioningCodec.encodedLength(record), encoded.length);
+            assertEquals(record, ProvisioningCodec.decode(ByteBuffer.wrap(encoded)));
+        }
+    }
+
+    @Test
+    public void fuzzCorruptedInputNeverThrows() {
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            byte[] encoded = ProvisioningCodec.encode(randomRecord(random));
+            byte[] corrupted = Arrays.copyOf(encoded, random.nextInt(encoded.length + 1));
+            for (int flips = random.nextInt(4); flips > 0 && corrupted.length > 0; flips--)
+                corrupted[random.nextInt(corrupted.length)] ^= (byte) (1 << random.nextInt(8));
+            ProvisioningRecord decoded = ProvisioningCodec.decode(ByteBuffer.wrap(corrupted));
+            if (decoded != null)
+                assertTrue(decoded.getSsid().length > 0);
+        }
+        for (int i = 0; i < 20000; i++)
+            ProvisioningCodec.decode(ByteBuffer.wrap(randomBytes(random, random.nextInt(64))));
+    }
+}
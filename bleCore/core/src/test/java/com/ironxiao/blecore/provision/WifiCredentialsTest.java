@@ -0,0 +1,52 @@
+package com.ironxiao.blecore.provision;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WifiCredentialsTest {
+
+    @Test
+    public void buildsQrCodeString() {
+        WifiCredentials credentials = new WifiCredentials("goke_ofice", WifiCredentials.SECURITY_WPA, "goke!wifi", false);
+        assertEquals("WIFI:S:goke_ofice;T:WPA;P:goke!wifi;H:false;;", credentials.toWifiString());
+    }
+
+    @Test
+    public void parsesQrCodeString() {
+        WifiCredentials credentials = WifiCredentials.parse("WIFI:S:goke_ofice;T:WPA;P:goke!wifi;H:true;;");
+        assertEquals("goke_ofice", credentials.getSsid());
+        assertEquals("WPA", credentials.getSecurity());
+        assertEquals("goke!wifi", credentials.getPassword());
+        assertTrue(credentials.isHidden());
+    }
+
+    @Test
+    public void escapesSpecialCharacters() {
+        WifiCredentials credentials = new WifiCredentials("a;b:c", WifiCredentials.SECURITY_WPA, "p\\w,\"d\"", false);
+        String text = credentials.toWifiString();
+        assertEquals("WIFI:S:a\\;b\\:c;T:WPA;P:p\\\\w\\,\\\"d\\\";H:false;;", text);
+
+        WifiCredentials parsed = WifiCredentials.parse(text);
+        assertEquals("a;b:c", parsed.getSsid());
+        assertEquals("p\\w,\"d\"", parsed.getPassword());
+    }
+
+    @Test
+    public void fieldsMayComeInAnyOrder() {
+        WifiCredentials credentials = WifiCredentials.parse("WIFI:T:nopass;X:ignored;S:open;;");
+        assertEquals("open", credentials.getSsid());
+        assertEquals(WifiCredentials.SECURITY_NONE, credentials.getSecurity());
+        assertEquals("", credentials.getPassword());
+        assertFalse(credentials.isHidden());
+    }
+
+    @Test
+    public void rejectsMalformedStrings() {
+        assertNull(WifiCredentials.parse(null));
+        assertNull(WifiCredentials.parse("S:abc;;"));
+        assertNull(WifiCredentials.parse("WIFI:T:WPA;;"));
+        assertNull(WifiCredentials.parse("WIFI:S:abc"));
+        assertNull(WifiCredentials.parse("WIFI:Sabc;;"));
+    }
+}
@@ -0,0 +1,62 @@
+package com.ironxiao.blecore.scan;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementParserTest {
+    private static final int UUID_SERVER = 0x1ff9;
+    private static final int MANUFACTURE_ID = 0xAAA;
+    private static final byte[] MANUFACTURE = "Nologic".getBytes();
+
+    /** What bleServer advertises: flags, name, TX power, manufacturer data, service UUID, zero padding. */
+    static byte[] serverRecord() {
+        return new byte[]{
+                0x02, 0x01, 0x06,
+                0x05, 0x09, 'X', 'i', 'a', 'o',
+                0x02, 0x0A, 0x07,
+                0x0A, (byte) 0xFF, (byte) 0xAA, 0x0A, 'N', 'o', 'l', 'o', 'g', 'i', 'c',
+                0x03, 0x03, (byte) 0xF9, 0x1F,
+                0x00, 0x00, 0x00, 0x00
+        };
+    }
+
+    @Test
+    public void matchesServerAdvertisement() {
+        byte[] record = serverRecord();
+        assertTrue(AdvertisementParser.hasServiceUuid16(record, UUID_SERVER));
+        assertTrue(AdvertisementParser.hasManufacturerData(record, MANUFACTURE_ID, MANUFACTURE));
+        assertTrue(AdvertisementParser.matches(record, UUID_SERVER, MANUFACTURE_ID, MANUFACTURE));
+
+        int found = AdvertisementParser.findManufacturerData(record, MANUFACTURE_ID);
+        assertEquals(16, found >>> 16);
+        assertEquals(7, found & 0xFFFF);
+    }
+
+    @Test
+    public void rejectsOtherDevices() {
+        byte[] record = serverRecord();
+        assertFalse(AdvertisementParser.hasServiceUuid16(record, 0x180D));
+        assertFalse(AdvertisementParser.hasManufacturerData(record, 0x004C, MANUFACTURE));
+        assertFalse(AdvertisementParser.hasManufacturerData(record, MANUFACTURE_ID, "Nologix".getBytes()));
+        assertFalse(AdvertisementParser.matches(null, UUID_SERVER, MANUFACTURE_ID, MANUFACTURE));
+    }
+
+    @Test
+    public void matchesLongFormServiceUuid() {
+        byte[] record = {
+                0x11, 0x07,
+                (byte) 0xFB, 0x34, (byte) 0x9B, 0x5F, (byte) 0x80, 0x00, 0x00, (byte) 0x80,
+                0x00, 0x10, 0x00, 0x00, (byte) 0xF9, 0x1F, 0x00, 0x00
+        };
+        assertTrue(AdvertisementParser.hasServiceUuid16(record, UUID_SERVER));
+    }
+
+    @Test
+    public void truncatedRecordIsSafe() {
+        byte[] record = {0x03, 0x03, (byte) 0xF9};
+        assertFalse(AdvertisementParser.hasServiceUuid16(record, UUID_SERVER));
+        byte[] manufacturer = {0x0A, (byte) 0xFF, (byte) 0xAA};
+        assertEquals(-1, AdvertisementParser.findManufacturerData(manufacturer, MANUFACTURE_ID));
+    }
+}
@@ -0,0 +1,71 @@
+package com.ironxiao.blecore.scan;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ScanDeduperTest {
+
+    @Test
+    public void parseAddress() {
+        assertEquals(0xAABBCCDDEEFFL, ScanDeduper.parseAddress("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0x010203040506L, ScanDeduper.parseAddress("01:02:03:04:05:06"));
+        assertEquals(0L, ScanDeduper.parseAddress("00:00:00:00:00:00"));
+    }
+
+    @Test
+    public void repeatedAdvertisementsAreUnchanged() {
+        ScanDeduper deduper = new ScanDeduper(16, 6);
+        assertEquals(ScanDeduper.RESULT_NEW, deduper.offer(1, -60, 7, 0));
+        for (int i = 0; i < 100; i++)
+            assertEquals(ScanDeduper.RESULT_UNCHANGED, deduper.offer(1, -60 + (i % 3), 7, i));
+        assertEquals(1, deduper.size());
+    }
+
+    @Test
+    public void payloadChangeIsReported() {
+        ScanDeduper deduper = new ScanDeduper(16, 6);
+        deduper.offer(1, -60, 7, 0);
+        assertEquals(ScanDeduper.RESULT_CHANGED, deduper.offer(1, -60, 8, 1));
+        assertEquals(ScanDeduper.RESULT_UNCHANGED, deduper.offer(1, -60, 8, 2));
+    }
+
+    @Test
+    public void smoothedRssiDriftIsReported() {
+        ScanDeduper deduper = new ScanDeduper(16, 6);
+        deduper.offer(1, -80, 0, 0);
+        int changes = 0;
+        for (int i = 0; i < 20; i++) {
+            if (deduper.offer(1, -50, 0, i) == ScanDeduper.RESULT_CHANGED)
+                changes++;
+        }
+        assertTrue(changes > 0);
+        assertTrue(deduper.getSmoothedRssi(1) > -55);
+        assertEquals(Integer.MIN_VALUE, deduper.getSmoothedRssi(2));
+    }
+
+    @Test
+    public void fullTableStartsOver() {
+        ScanDeduper deduper = new ScanDeduper(4, 6);
+        for (long address = 0; address < 4; address++)
+            deduper.offer(address, -60, 0, 0);
+        assertEquals(ScanDeduper.RESULT_NEW, deduper.offer(100, -60, 0, 0));
+        assertEquals(1, deduper.size());
+    }
+
+    @Test
+    public void denseStreamKeepsEveryDevice() {
+        ScanDeduper deduper = new ScanDeduper(256, 6);
+        Random random = new Random(1);
+        int reported = 0;
+        for (int i = 0; i < 100000; i++) {
+            long address = 0xC0FFEE000000L + random.nextInt(200);
+            if (deduper.offer(address, -70 + random.nextInt(5), 0, i) != ScanDeduper.RESULT_UNCHANGED)
+                reported++;
+        }
+        assertEquals(200, deduper.size());
+        assertTrue(reported < 1000);
+    }
+}
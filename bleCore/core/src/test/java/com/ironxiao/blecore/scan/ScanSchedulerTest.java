@@ -0,0 +1,186 @@
+package com.ironxiao.blecore.scan;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ScanSchedulerTest {
+    private long now = 1000;
+
+    private final ScanScheduler.Clock clock = new ScanScheduler.Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+
+    //Times the simulated scanner was (re)started
+    private final List<Long> scannerStarts = new ArrayList<>();
+    private int scannerMode = ScanScheduler.MODE_OFF;
+
+    private void apply(ScanScheduler scheduler) {
+        int mode = scheduler.update();
+        if (mode != scannerMode && mode != ScanScheduler.MODE_OFF)
+            scannerStarts.add(now);
+        scannerMode = mode;
+    }
+
+    /**
+     * Drives the scheduler like the app does, up to {@code untilMillis}.
+     */
+    private void runUntil(ScanScheduler scheduler, long untilMillis) {
+        apply(scheduler);
+        while (true) {
+            long delay = scheduler.nextUpdateDelayMillis();
+            if (delay == ScanScheduler.NO_UPDATE || now + delay > untilMillis)
+                break;
+            now += delay;
+            apply(scheduler);
+        }
+        now = untilMillis;
+    }
+
+    private void assertWithinStartLimit() {
+        for (int i = ScanScheduler.MAX_STARTS; i < scannerStarts.size(); i++) {
+            long sinceOlder = scannerStarts.get(i) - scannerStarts.get(i - ScanScheduler.MAX_STARTS);
+            assertTrue("start " + i + " only " + sinceOlder + " ms after start " + (i - ScanScheduler.MAX_STARTS),
+                    sinceOlder >= ScanScheduler.START_WINDOW_MILLIS);
+        }
+    }
+
+    @Test
+    public void stepsDownFromBurst() {
+        ScanScheduler scheduler = new ScanScheduler(clock, 5000, 20000);
+        scheduler.start();
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.update());
+        assertEquals(5000, scheduler.nextUpdateDelayMillis());
+
+        now += 5000;
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.update());
+        assertEquals(20000, scheduler.nextUpdateDelayMillis());
+
+        now += 20000;
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.update());
+        assertEquals(ScanScheduler.NO_UPDATE, scheduler.nextUpdateDelayMillis());
+        assertEquals(3, scheduler.getTotalStarts());
+
+        scheduler.stop();
+        assertEquals(ScanScheduler.MODE_OFF, scheduler.update());
+        assertEquals(ScanScheduler.NO_UPDATE, scheduler.nextUpdateDelayMillis());
+    }
+
+    @Test
+    public void matchRestartsBurst() {
+        ScanScheduler scheduler = new ScanScheduler(clock, 5000, 20000);
+        scheduler.start();
+        runUntil(scheduler, now + 60000);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scannerMode);
+
+        scheduler.onMatch();
+        runUntil(scheduler, now + 1);
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scannerMode);
+
+        //Matches during the burst extend it without another start
+        int starts = scannerStarts.size();
+        now += 4000;
+        scheduler.onMatch();
+        runUntil(scheduler, now + 4000);
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scannerMode);
+        assertEquals(starts, scannerStarts.size());
+    }
+
+    @Test
+    public void stepDownWaitsForStartWithReserve() {
+        ScanScheduler scheduler = new ScanScheduler(clock, 1000, 1000);
+        scheduler.start();
+        apply(scheduler);
+        now += 1000;
+        apply(scheduler);
+        now += 1000;
+        apply(scheduler);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scannerMode);
+        scheduler.onMatch();
+        apply(scheduler);
+        assertEquals(4, scheduler.getTotalStarts());
+
+        //One start left, kept for an escalation
+        now += 1000;
+        apply(scheduler);
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scannerMode);
+        assertEquals(27000, scheduler.nextUpdateDelayMillis());
+
+        //By then the burst is long over
+        now += 27000;
+        apply(scheduler);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scannerMode);
+        assertEquals(5, scheduler.getTotalStarts());
+    }
+
+    @Test
+    public void escalationUsesLastStart() {
+        ScanScheduler scheduler = new ScanScheduler(clock, 1000, 1000);
+        for (int i = 0; i < 2; i++) {
+            scheduler.start();
+            apply(scheduler);
+            now += 1000;
+            apply(scheduler);
+            if (i == 0) {
+                scheduler.stop();
+                apply(scheduler);
+            }
+        }
+        assertEquals(ScanScheduler.MODE_BALANCED, scannerMode);
+        assertEquals(4, scheduler.getTotalStarts());
+
+        scheduler.onMatch();
+        apply(scheduler);
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scannerMode);
+        assertEquals(5, scheduler.getTotalStarts());
+
+        //All starts used: the burst runs on until the window frees up
+        now += 1000;
+        scheduler.onMatch();
+        now += 5000;
+        apply(scheduler);
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scannerMode);
+        assertEquals(5, scheduler.getTotalStarts());
+    }
+
+    @Test
+    public void neverExceedsStartLimit() {
+        Random random = new Random(18);
+        ScanScheduler scheduler = new ScanScheduler(clock, 2000, 3000);
+        scheduler.start();
+        long end = now + 30 * 60 * 1000;
+        while (now < end) {
+            runUntil(scheduler, now + random.nextInt(4000));
+            if (random.nextInt(3) == 0)
+                scheduler.onMatch();
+            if (random.nextInt(200) == 0) {
+                scheduler.stop();
+                apply(scheduler);
+                now += random.nextInt(2000);
+                scheduler.start();
+            }
+        }
+        assertTrue(scannerStarts.size() > 100);
+        assertWithinStartLimit();
+    }
+
+    @Test
+    public void restartAfterStopIsLimitedToo() {
+        ScanScheduler scheduler = new ScanScheduler(clock);
+        for (int i = 0; i < 20; i++) {
+            scheduler.start();
+            runUntil(scheduler, now + 100);
+            scheduler.stop();
+            apply(scheduler);
+        }
+        assertWithinStartLimit();
+        assertEquals(ScanScheduler.MAX_STARTS, scannerStarts.size());
+    }
+}
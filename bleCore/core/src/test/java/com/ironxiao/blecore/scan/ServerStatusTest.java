@@ -0,0 +1,61 @@
+package com.ironxiao.blecore.scan;
+
+import com.ironxiao.blecore.advertise.AdvertisingStatus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServerStatusTest {
+    private static final int MANUFACTURE_ID = 0xAAA;
+    private static final byte[] MANUFACTURE = "Nologic".getBytes();
+
+    /** A server advertising its status after the manufacturer prefix, name in the scan response. */
+    private static byte[] statusRecord(int flags, int freeSlots, int sequence) {
+        return new byte[]{
+                0x02, 0x01, 0x06,
+                0x02, 0x0A, 0x07,
+                0x0D, (byte) 0xFF, (byte) 0xAA, 0x0A, 'N', 'o', 'l', 'o', 'g', 'i', 'c',
+                (byte) (AdvertisingStatus.VERSION << 4 | flags), (byte) freeSlots, (byte) sequence,
+                0x03, 0x03, (byte) 0xF9, 0x1F
+        };
+    }
+
+    @Test
+    public void readsStatus() {
+        int status = ServerStatus.find(statusRecord(0, 3, 200), MANUFACTURE_ID, MANUFACTURE);
+        assertFalse(ServerStatus.isBusy(status));
+        assertFalse(ServerStatus.isProvisioned(status));
+        assertEquals(3, ServerStatus.getFreeSlots(status));
+        assertEquals(200, ServerStatus.getSequence(status));
+        assertTrue(AdvertisementParser.matches(statusRecord(0, 3, 200), 0x1ff9, MANUFACTURE_ID, MANUFACTURE));
+    }
+
+    @Test
+    public void readsFlags() {
+        int busy = ServerStatus.find(statusRecord(AdvertisingStatus.FLAG_BUSY, 0, 1), MANUFACTURE_ID, MANUFACTURE);
+        assertTrue(ServerStatus.isBusy(busy));
+        assertFalse(ServerStatus.isProvisioned(busy));
+
+        int provisioned = ServerStatus.find(statusRecord(AdvertisingStatus.FLAG_PROVISIONED, 2, 1), MANUFACTURE_ID, MANUFACTURE);
+        assertTrue(ServerStatus.isProvisioned(provisioned));
+        assertFalse(ServerStatus.isBusy(provisioned));
+    }
+
+    @Test
+    public void olderServersHaveNoStatus() {
+        int status = ServerStatus.find(AdvertisementParserTest.serverRecord(), MANUFACTURE_ID, MANUFACTURE);
+        assertEquals(ServerStatus.UNKNOWN, status);
+        assertFalse(ServerStatus.isBusy(status));
+        assertFalse(ServerStatus.isProvisioned(status));
+        assertEquals(-1, ServerStatus.getFreeSlots(status));
+    }
+
+    @Test
+    public void ignoresUnknownVersion() {
+        byte[] record = statusRecord(0, 3, 0);
+        record[17] = (byte) (2 << 4);
+        assertEquals(ServerStatus.UNKNOWN, ServerStatus.find(record, MANUFACTURE_ID, MANUFACTURE));
+        assertEquals(ServerStatus.UNKNOWN, ServerStatus.find(null, MANUFACTURE_ID, MANUFACTURE));
+    }
+}
@@ -0,0 +1,195 @@
+package com.ironxiao.blecore.secure;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SecureHandshakeTest {
+    private static final String SERVER = "AA:BB:CC:DD:EE:01";
+
+    private final SecureRandom random = new SecureRandom();
+    private final TicketStore<String> clientTickets = new TicketStore<>(4, 1000);
+    private TicketStore<ByteBuffer> serverTickets = new TicketStore<>(4, 1000);
+    private long now = 1;
+    private int messages;
+
+    /**
+     * Passes messages between both ends in memory until neither has more to say.
+     */
+    private SecureServer handshake(SecureClient client, SecureServer server) {
+        byte[] message = client.start(SERVER, now);
+        while (message != null) {
+            messages++;
+            byte[] answer = server.onMessage(message, 0, message.length, now);
+            if (answer == null)
+                break;
+            messages++;
+            message = client.onMessage(answer, 0, answer.length, now);
+        }
+        return server;
+    }
+
+    private SecureServer newServer() {
+        return new SecureServer(random, serverTickets);
+    }
+
+    private static byte[] open(SecureServer server, byte[] message) {
+        ByteBuffer opened = server.open(message, 0, message.length);
+        if (opened == null)
+            return null;
+        byte[] payload = new byte[opened.remaining()];
+        opened.get(payload);
+        return payload;
+    }
+
+    @Test
+    public void fullHandshakeEstablishesChannel() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        SecureServer server = handshake(client, newServer());
+
+        assertTrue(client.isEstablished());
+        assertTrue(server.isEstablished());
+        assertFalse(client.isResumed());
+        assertEquals(2, messages);
+
+        byte[] password = "P:goke!wifi".getBytes();
+        byte[] sealed = client.getChannel().seal(password);
+        assertEquals(password.length + SecureCodec.DATA_OVERHEAD, sealed.length);
+        assertEquals(-1, indexOf(sealed, "goke".getBytes()));
+        assertArrayEquals(password, open(server, sealed));
+
+        //And back
+        int length = server.getChannel().seal("ok".getBytes(), 0, 2);
+        ByteBuffer opened = client.getChannel().open(server.getChannel().getBuffer(), 0, length);
+        assertEquals("ok", new String(opened.array(), opened.position(), opened.remaining()));
+    }
+
+    @Test
+    public void reconnectResumesWithoutKeyExchange() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        handshake(client, newServer());
+        client.reset();
+        messages = 0;
+
+        byte[] resume = client.start(SERVER, now);
+        assertEquals(SecureCodec.TYPE_RESUME, SecureCodec.type(resume));
+        SecureServer server = newServer();
+        byte[] answer = server.onMessage(resume, 0, resume.length, now);
+        assertEquals(SecureCodec.TYPE_RESUMED, SecureCodec.type(answer));
+        assertNull(client.onMessage(answer, 0, answer.length, now));
+
+        assertTrue(client.isResumed());
+        assertTrue(server.isResumed());
+        byte[] payload = "resumed".getBytes();
+        assertArrayEquals(payload, open(server, client.getChannel().seal(payload)));
+
+        //Each resumption hands out the next ticket
+        client.reset();
+        handshake(client, newServer());
+        assertTrue(client.isResumed());
+    }
+
+    @Test
+    public void forgottenTicketFallsBackToKeyExchange() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        handshake(client, newServer());
+        client.reset();
+        //Server restarted
+        serverTickets = new TicketStore<>(4, 1000);
+        messages = 0;
+
+        SecureServer server = handshake(client, newServer());
+
+        assertEquals(4, messages);
+        assertTrue(client.isEstablished());
+        assertFalse(client.isResumed());
+        byte[] payload = "again".getBytes();
+        assertArrayEquals(payload, open(server, client.getChannel().seal(payload)));
+    }
+
+    @Test
+    public void ticketsExpireAndAreUsedOnce() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        handshake(client, newServer());
+        byte[] resume = client.start(SERVER, now);
+        SecureServer server = newServer();
+        server.onMessage(resume, 0, resume.length, now);
+
+        //Replayed resume
+        assertEquals(SecureCodec.TYPE_RETRY, SecureCodec.type(newServer().onMessage(resume, 0, resume.length, now)));
+
+        now += 2000;
+        client.reset();
+        assertEquals(SecureCodec.TYPE_HELLO, SecureCodec.type(client.start(SERVER, now)));
+    }
+
+    @Test
+    public void tamperedServerHelloFailsHandshake() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        byte[] hello = client.start(SERVER, now);
+        byte[] answer = newServer().onMessage(hello, 0, hello.length, now);
+        //Swap the ticket id
+        answer[answer.length - SecureCodec.TAG_SIZE - 1] ^= 1;
+
+        assertNull(client.onMessage(answer, 0, answer.length, now));
+        assertEquals(SecureClient.STATE_FAILED, client.getState());
+        assertNull(client.getChannel());
+        assertEquals(0, clientTickets.size());
+    }
+
+    @Test
+    public void keyOffTheCurveIsIgnored() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        byte[] hello = client.start(SERVER, now);
+        hello[hello.length - 1] ^= 1;
+
+        SecureServer server = newServer();
+        assertNull(server.onMessage(hello, 0, hello.length, now));
+        assertFalse(server.isEstablished());
+    }
+
+    @Test
+    public void refusesForgedReplayedAndForeignData() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        SecureServer server = handshake(client, newServer());
+        byte[] first = client.getChannel().seal("one".getBytes());
+        byte[] second = client.getChannel().seal("two".getBytes());
+
+        byte[] forged = Arrays.copyOf(second, second.length);
+        forged[SecureCodec.DATA_HEADER_SIZE] ^= 1;
+        assertNull(open(server, forged));
+        //Lost messages do not stop the channel, old ones are refused
+        assertArrayEquals("two".getBytes(), open(server, second));
+        assertNull(open(server, first));
+        assertNull(open(server, second));
+
+        SecureClient other = new SecureClient(random, new TicketStore<String>(4, 1000));
+        handshake(other, newServer());
+        assertNull(open(server, other.getChannel().seal("foreign".getBytes())));
+        assertNull(open(newServer(), client.getChannel().seal("no channel".getBytes())));
+    }
+
+    @Test
+    public void sealsPayloadsLargerThanTheBuffer() {
+        SecureClient client = new SecureClient(random, clientTickets);
+        SecureServer server = handshake(client, newServer());
+        byte[] payload = new byte[4000];
+        random.nextBytes(payload);
+
+        for (int i = 0; i < 3; i++)
+            assertArrayEquals(payload, open(server, client.getChannel().seal(payload)));
+        assertArrayEquals(new byte[0], open(server, client.getChannel().seal(new byte[0])));
+    }
+
+    private static int indexOf(byte[] data, byte[] part) {
+        for (int i = 0; i + part.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + part.length), part))
+                return i;
+        }
+        return -1;
+    }
+}
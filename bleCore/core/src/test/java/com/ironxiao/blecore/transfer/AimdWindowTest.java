@@ -0,0 +1,69 @@
+package com.ironxiao.blecore.transfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AimdWindowTest {
+
+    @Test
+    public void growsByOnePerWindowOfAckedFrames() {
+        AimdWindow window = new AimdWindow(4, 2, 16);
+
+        window.onAcked(3);
+        assertEquals(4, window.get());
+        window.onAcked(1);
+        assertEquals(5, window.get());
+        //Partial credit carries over
+        window.onAcked(5 + 6);
+        assertEquals(7, window.get());
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        AimdWindow window = new AimdWindow(4, 2, 6);
+
+        window.onAcked(1000);
+        assertEquals(6, window.get());
+        window.onCongestion();
+        window.onAcked(6);
+        window.onCongestion();
+        assertEquals(2, window.get());
+        assertFalse(window.onCongestion());
+        assertEquals(2, window.get());
+    }
+
+    @Test
+    public void halvesOncePerBurst() {
+        AimdWindow window = new AimdWindow(16, 2, 32);
+
+        assertTrue(window.onCongestion());
+        assertEquals(8, window.get());
+        assertFalse(window.onCongestion());
+        assertEquals(8, window.get());
+        assertEquals(1, window.getDecreases());
+
+        //Frames sent at the new size came through, a new sign counts again
+        window.onAcked(8);
+        assertEquals(8, window.get());
+        assertTrue(window.onCongestion());
+        assertEquals(4, window.get());
+        assertEquals(2, window.getDecreases());
+    }
+
+    @Test
+    public void resetGoesBackToInitialSize() {
+        AimdWindow window = new AimdWindow(8, 4, 64);
+        window.onCongestion();
+
+        window.reset();
+
+        assertEquals(8, window.get());
+        assertTrue(window.onCongestion());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialMustBeWithinBounds() {
+        new AimdWindow(1, 2, 8);
+    }
+}
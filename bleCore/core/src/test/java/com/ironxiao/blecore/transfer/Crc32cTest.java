@@ -0,0 +1,45 @@
+package com.ironxiao.blecore.transfer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Crc32cTest {
+
+    @Test
+    public void matchesCheckValue() {
+        byte[] data = "123456789".getBytes();
+        assertEquals(0xE3069283, Crc32c.compute(data, 0, data.length));
+        assertEquals(0, Crc32c.compute(data, 0, 0));
+    }
+
+    @Test
+    public void matchesIscsiTestVectors() {
+        //RFC 3720 B.4: 32 bytes of zeros and of 0xFF
+        assertEquals(0x8A9136AA, Crc32c.compute(new byte[32], 0, 32));
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xFF);
+        assertEquals(0x62A8AB43, Crc32c.compute(ones, 0, 32));
+    }
+
+    @Test
+    public void incrementalUpdatesMatchOneShot() {
+        byte[] data = new byte[1000];
+        new Random(7).nextBytes(data);
+        Crc32c crc = new Crc32c();
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(13, data.length - offset);
+            crc.update(data, offset, length);
+            offset += length;
+        }
+        assertEquals(Crc32c.compute(data, 0, data.length), (int) crc.getValue());
+
+        crc.reset();
+        for (byte b : data)
+            crc.update(b);
+        assertEquals(Crc32c.compute(data, 0, data.length), (int) crc.getValue());
+    }
+}
@@ -0,0 +1,77 @@
+package com.ironxiao.blecore.transfer;
+
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.provision.ProvisioningRecord;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class PayloadCompressorTest {
+    private final PayloadCompressor compressor = new PayloadCompressor();
+
+    private static byte[] inflate(byte[] buffer, int length) throws Exception {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(Compression.PRESET_DICTIONARY);
+        inflater.setInput(buffer, 1, length - 1);
+        byte[] out = new byte[64 * 1024];
+        int n = inflater.inflate(out);
+        assertTrue(inflater.finished());
+        inflater.end();
+        return Arrays.copyOf(out, n);
+    }
+
+    @Test
+    public void deflatesRecordWithDictionary() throws Exception {
+        byte[] payload = ProvisioningCodec.encode(new ProvisioningRecord.Builder()
+                .setSsid("TP-LINK_5G_3A7F")
+                .setPassword("goke!wifi")
+                .setStaticIp(0xC0A80132, 24, 0xC0A80101, 0)
+                .setServerUrl("https://iot.example.com".getBytes())
+                .build());
+        int length = compressor.encode(payload, Compression.CODEC_DEFLATE);
+
+        assertEquals(Compression.CODEC_DEFLATE, compressor.getBuffer()[0]);
+        assertTrue(length < payload.length * 5 / 6);
+        assertArrayEquals(payload, inflate(compressor.getBuffer(), length));
+    }
+
+    @Test
+    public void keepsIncompressiblePayloadPlain() {
+        byte[] payload = new byte[300];
+        new Random(5).nextBytes(payload);
+        int length = compressor.encode(payload, Compression.CODEC_DEFLATE);
+
+        assertEquals(payload.length + 1, length);
+        assertEquals(Compression.CODEC_NONE, compressor.getBuffer()[0]);
+        assertArrayEquals(payload, Arrays.copyOfRange(compressor.getBuffer(), 1, length));
+    }
+
+    @Test
+    public void codecNoneOnlyAddsCodecByte() {
+        byte[] payload = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".getBytes();
+        assertEquals(payload.length + 1, compressor.encode(payload, Compression.CODEC_NONE));
+        assertEquals(Compression.CODEC_NONE, compressor.getBuffer()[0]);
+    }
+
+    @Test
+    public void reusesBufferAcrossPayloads() throws Exception {
+        Random random = new Random(9);
+        byte[] buffer = null;
+        for (int i = 0; i < 200; i++) {
+            byte[] payload = new byte[random.nextInt(200)];
+            for (int j = 0; j < payload.length; j++)
+                payload[j] = (byte) ('a' + random.nextInt(4));
+            int length = compressor.encode(payload, Compression.CODEC_DEFLATE);
+            if (compressor.getBuffer()[0] == Compression.CODEC_DEFLATE)
+                assertArrayEquals(payload, inflate(compressor.getBuffer(), length));
+            if (i > 0)
+                assertSame(buffer, compressor.getBuffer());
+            buffer = compressor.getBuffer();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.ironxiao.blecore.transfer;
+
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.provision.ProvisioningRecord;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class PayloadDecompressorTest {
+    private final PayloadDecompressor decompressor = new PayloadDecompressor(4096);
+
+    private static byte[] deflate(byte[] payload, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] out = new byte[payload.length + 64];
+        out[0] = (byte) Compression.CODEC_DEFLATE;
+        int length = 1 + deflater.deflate(out, 1, out.length - 1);
+        deflater.end();
+        return Arrays.copyOf(out, length);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void inflatesWithPresetDictionary() {
+        byte[] payload = ProvisioningCodec.encode(new ProvisioningRecord.Builder()
+                .setSsid("ChinaNet-7Hx2")
+                .setSecurity(ProvisioningRecord.SECURITY_SAE)
+                .setStaticIp(0xC0A80164, 24, 0xC0A80101, 0xC0A80101)
+                .setServerUrl("https://iot.example.com".getBytes())
+                .build());
+        byte[] encoded = deflate(payload, Compression.PRESET_DICTIONARY);
+
+        assertTrue(encoded.length < payload.length);
+        assertArrayEquals(payload, toArray(decompressor.decode(encoded, 0, encoded.length)));
+    }
+
+    @Test
+    public void passesPlainPayloadThrough() {
+        byte[] encoded = {Compression.CODEC_NONE, 1, 2, 3};
+        assertArrayEquals(new byte[]{1, 2, 3}, toArray(decompressor.decode(encoded, 0, encoded.length)));
+    }
+
+    @Test
+    public void growsBufferUpToLimit() {
+        byte[] payload = new byte[4096];
+        Arrays.fill(payload, (byte) 'x');
+        byte[] encoded = deflate(payload, Compression.PRESET_DICTIONARY);
+        assertEquals(4096, decompressor.decode(encoded, 0, encoded.length).remaining());
+
+        //Filling the buffer exactly is no overflow, also for a stream that ends late
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setDictionary(Compression.PRESET_DICTIONARY);
+        deflater.setInput(payload);
+        byte[] late = new byte[128];
+        late[0] = (byte) Compression.CODEC_DEFLATE;
+        int length = 1 + deflater.deflate(late, 1, late.length - 1, Deflater.SYNC_FLUSH);
+        deflater.finish();
+        length += deflater.deflate(late, length, late.length - length);
+        deflater.end();
+        assertEquals(4096, decompressor.decode(late, 0, length).remaining());
+
+        //One byte over the limit is refused, however well it compresses
+        byte[] bomb = deflate(new byte[4097], Compression.PRESET_DICTIONARY);
+        assertNull(decompressor.decode(bomb, 0, bomb.length));
+    }
+
+    @Test
+    public void holdsLimitBelowInitialBuffer() {
+        PayloadDecompressor small = new PayloadDecompressor(100);
+        byte[] fits = deflate(new byte[100], Compression.PRESET_DICTIONARY);
+        assertEquals(100, small.decode(fits, 0, fits.length).remaining());
+
+        byte[] bomb = deflate(new byte[101], Compression.PRESET_DICTIONARY);
+        assertNull(small.decode(bomb, 0, bomb.length));
+        small.release();
+    }
+
+    @Test
+    public void rejectsCorruptInput() {
+        byte[] payload = new byte[200];
+        new Random(1).nextBytes(payload);
+        byte[] encoded = deflate(payload, Compression.PRESET_DICTIONARY);
+
+        assertNull(decompressor.decode(encoded, 0, encoded.length / 2));
+        assertNull(decompressor.decode(new byte[]{7, 1, 2}, 0, 3));
+        assertNull(decompressor.decode(new byte[0], 0, 0));
+        Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            byte[] garbage = new byte[1 + random.nextInt(64)];
+            random.nextBytes(garbage);
+            garbage[0] = (byte) Compression.CODEC_DEFLATE;
+            ByteBuffer decoded = decompressor.decode(garbage, 0, garbage.length);
+            assertTrue(decoded == null || decoded.remaining() <= 4096);
+        }
+        //Still usable afterwards
+        assertArrayEquals(payload, toArray(decompressor.decode(encoded, 0, encoded.length)));
+    }
+}
@@ -0,0 +1,133 @@
+package com.ironxiao.blecore.transfer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TransferReceiverTest {
+    private static final int ID = 42;
+    private static final int CHUNK = 100;
+
+    private final TransferReceiver receiver = new TransferReceiver(4096);
+    private final byte[] payload = new byte[350];
+
+    {
+        new Random(1).nextBytes(payload);
+    }
+
+    private byte[] send(byte[] message) {
+        return receiver.onMessage(message, 0, message.length);
+    }
+
+    private byte[] begin() {
+        return send(TransferCodec.begin(ID, payload.length, Crc32c.compute(payload, 0, payload.length)));
+    }
+
+    private byte[] chunk(int offset, boolean ackRequested) {
+        int length = Math.min(CHUNK, payload.length - offset);
+        return send(TransferCodec.chunk(ID, ackRequested ? TransferCodec.FLAG_ACK_REQUESTED : 0, payload, offset, length));
+    }
+
+    private static void assertAck(int status, int offset, byte[] ack) {
+        assertNotNull(ack);
+        assertEquals(TransferCodec.TYPE_ACK, TransferCodec.type(ack));
+        assertEquals(ID, TransferCodec.ackId(ack, 0));
+        assertEquals(status, TransferCodec.ackStatus(ack, 0));
+        assertEquals(offset, TransferCodec.ackOffset(ack, 0));
+    }
+
+    @Test
+    public void assemblesChunksAndAcksOnRequest() {
+        assertAck(TransferCodec.STATUS_OK, 0, begin());
+        assertNull(chunk(0, false));
+        assertAck(TransferCodec.STATUS_OK, 200, chunk(100, true));
+        assertNull(chunk(200, false));
+        assertNull(receiver.getPayload());
+
+        assertAck(TransferCodec.STATUS_COMPLETE, 350, chunk(300, false));
+        assertArrayEquals(payload, receiver.getPayload());
+        assertFalse(receiver.isActive());
+    }
+
+    @Test
+    public void asksOnceForMissingChunk() {
+        begin();
+        chunk(0, false);
+        assertAck(TransferCodec.STATUS_RESEND, 100, chunk(200, false));
+        //Chunks behind the gap are dropped quietly
+        assertNull(chunk(300, true));
+
+        assertNull(chunk(100, false));
+        chunk(200, false);
+        assertAck(TransferCodec.STATUS_COMPLETE, 350, chunk(300, false));
+        assertArrayEquals(payload, receiver.getPayload());
+    }
+
+    @Test
+    public void rejectsCorruptChunk() {
+        begin();
+        byte[] message = TransferCodec.chunk(ID, 0, payload, 0, CHUNK);
+        message[TransferCodec.CHUNK_HEADER_SIZE + 5] ^= 0x10;
+        assertAck(TransferCodec.STATUS_RESEND, 0, send(message));
+        assertEquals(0, receiver.getReceived());
+    }
+
+    @Test
+    public void resumesWhereTheTransferStopped() {
+        begin();
+        chunk(0, false);
+        chunk(100, false);
+
+        //Reconnected: the same begin learns the offset, earlier chunks are not needed
+        assertAck(TransferCodec.STATUS_OK, 200, begin());
+        chunk(200, false);
+        assertAck(TransferCodec.STATUS_COMPLETE, 350, chunk(300, false));
+        assertArrayEquals(payload, receiver.getPayload());
+
+        //The final ack got lost: asking again does not restart the transfer
+        assertAck(TransferCodec.STATUS_COMPLETE, 350, begin());
+        assertNull(receiver.getPayload());
+    }
+
+    @Test
+    public void rejectedPayloadIsNotCompleteAnyMore() {
+        begin();
+        for (int offset = 0; offset < payload.length; offset += CHUNK)
+            chunk(offset, false);
+        assertNotNull(receiver.getPayload());
+
+        assertAck(TransferCodec.STATUS_FAILED, 0, receiver.rejectCompleted());
+        assertNull(receiver.getPayload());
+        //Asking again starts over instead of hearing it completed
+        assertAck(TransferCodec.STATUS_OK, 0, begin());
+    }
+
+    @Test
+    public void unknownTransferMustBegin() {
+        assertAck(TransferCodec.STATUS_UNKNOWN, 0, chunk(100, false));
+    }
+
+    @Test
+    public void failsOnDigestMismatchOrSize() {
+        send(TransferCodec.begin(ID, payload.length, 0x1234));
+        for (int offset = 0; offset < 300; offset += CHUNK)
+            chunk(offset, false);
+        assertAck(TransferCodec.STATUS_FAILED, 0, chunk(300, false));
+        assertNull(receiver.getPayload());
+        assertFalse(receiver.isActive());
+
+        assertAck(TransferCodec.STATUS_FAILED, 0, send(TransferCodec.begin(ID, 8192, 0)));
+    }
+
+    @Test
+    public void ignoresOtherPayloads() {
+        byte[] text = "ACK:12".getBytes();
+        assertEquals(0, TransferCodec.type(text));
+        assertNull(send(text));
+        byte[] truncated = Arrays.copyOf(TransferCodec.begin(ID, 1, 0), TransferCodec.BEGIN_SIZE - 1);
+        assertEquals(0, TransferCodec.type(truncated));
+    }
+}
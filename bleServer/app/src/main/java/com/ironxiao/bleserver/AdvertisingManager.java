@@ -0,0 +1,192 @@
+package com.ironxiao.bleserver;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import com.ironxiao.blecore.advertise.AdvertisingStatus;
+
+/**
+ * Advertises the server through one {@link AdvertisingSet}, so the status and the
+ * interval can change while advertising instead of restarting it.
+ * <p>
+ * Legacy PDUs carry the service UUID, TX power and status; the device name goes
+ * in the scan response to keep the 31 bytes free for them. Extended PDUs hold
+ * everything at once, as connectable extended advertising cannot be scanned, and
+ * only reach scanners that do not insist on legacy advertisements.
+ * <p>
+ * The stack takes one call per set at a time, so an update is a chain of
+ * callbacks: (disable, new parameters,) new data, enable. Enabling again after
+ * each update also restores advertising after a client connected. Callbacks run
+ * on the given handler's thread.
+ */
+class AdvertisingManager extends AdvertisingSetCallback {
+    private static final String TAG = "XL_BLE_SERVER";
+
+    private static final int STEP_IDLE = 0;
+    private static final int STEP_START = 1;
+    private static final int STEP_DISABLE = 2;
+    private static final int STEP_PARAMETERS = 3;
+    private static final int STEP_DATA = 4;
+    private static final int STEP_ENABLE = 5;
+
+    private final BluetoothAdapter adapter;
+    private final ParcelUuid serviceUuid;
+    private final int manufacturerId;
+    private final AdvertisingStatus status;
+    private final boolean extended;
+    private final Handler handler;
+
+    private AdvertisingSet set;
+    private int step = STEP_IDLE;
+    private int appliedInterval;
+    private boolean dirty;
+
+    /**
+     * @param extended use extended PDUs, only if the controller supports them
+     */
+    AdvertisingManager(BluetoothAdapter adapter, ParcelUuid serviceUuid, int manufacturerId,
+                       AdvertisingStatus status, boolean extended, Handler handler) {
+        this.adapter = adapter;
+        this.serviceUuid = serviceUuid;
+        this.manufacturerId = manufacturerId;
+        this.status = status;
+        this.extended = extended;
+        this.handler = handler;
+    }
+
+    synchronized void start() {
+        if (step != STEP_IDLE || set != null)
+            return;
+        BluetoothLeAdvertiser advertiser = adapter.getBluetoothLeAdvertiser();
+        if (advertiser == null)
+            return;
+        step = STEP_START;
+        appliedInterval = status.getInterval();
+        advertiser.startAdvertisingSet(parameters(appliedInterval), advertiseData(),
+                extended ? null : scanResponse(), null, null, this, handler);
+    }
+
+    synchronized void stop() {
+        BluetoothLeAdvertiser advertiser = adapter.getBluetoothLeAdvertiser();
+        if (advertiser != null && (set != null || step == STEP_START))
+            advertiser.stopAdvertisingSet(this);
+        set = null;
+        step = STEP_IDLE;
+        dirty = false;
+    }
+
+    /**
+     * Publishes the current status, and its interval if that changed.
+     */
+    synchronized void update() {
+        if (set == null)
+            return;
+        if (step != STEP_IDLE) {
+            dirty = true;
+            return;
+        }
+        if (status.getInterval() != appliedInterval) {
+            step = STEP_DISABLE;
+            set.enableAdvertising(false, 0, 0);
+        } else {
+            setData();
+        }
+    }
+
+    private AdvertisingSetParameters parameters(int interval) {
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(!extended)
+                .setConnectable(true)
+                .setScannable(!extended)
+                .setInterval(interval)
+                .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_HIGH)
+                .build();
+    }
+
+    private AdvertiseData advertiseData() {
+        AdvertiseData.Builder builder = new AdvertiseData.Builder()
+                .setIncludeTxPowerLevel(true)
+                .addServiceUuid(serviceUuid)
+                .addManufacturerData(manufacturerId, status.getManufacturerData());
+        if (extended)
+            builder.setIncludeDeviceName(true);
+        return builder.build();
+    }
+
+    private AdvertiseData scanResponse() {
+        return new AdvertiseData.Builder().setIncludeDeviceName(true).build();
+    }
+
+    private void setData() {
+        step = STEP_DATA;
+        set.setAdvertisingData(advertiseData());
+    }
+
+    private void finish() {
+        step = STEP_IDLE;
+        if (dirty) {
+            dirty = false;
+            update();
+        }
+    }
+
+    @Override
+    public synchronized void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower, int status) {
+        if (step != STEP_START)
+            return;
+        if (status != ADVERTISE_SUCCESS) {
+            Log.d(TAG, "advertising set failed: " + status);
+            step = STEP_IDLE;
+            return;
+        }
+        set = advertisingSet;
+        finish();
+    }
+
+    @Override
+    public synchronized void onAdvertisingSetStopped(AdvertisingSet advertisingSet) {
+        if (advertisingSet == set) {
+            set = null;
+            step = STEP_IDLE;
+        }
+    }
+
+    @Override
+    public synchronized void onAdvertisingEnabled(AdvertisingSet advertisingSet, boolean enable, int status) {
+        if (advertisingSet != set)
+            return;
+        if (step == STEP_DISABLE && !enable) {
+            step = STEP_PARAMETERS;
+            appliedInterval = this.status.getInterval();
+            set.setAdvertisingParameters(parameters(appliedInterval));
+        } else if (step == STEP_ENABLE) {
+            finish();
+        }
+    }
+
+    @Override
+    public synchronized void onAdvertisingParametersUpdated(AdvertisingSet advertisingSet, int txPower, int status) {
+        if (advertisingSet != set || step != STEP_PARAMETERS)
+            return;
+        if (status != ADVERTISE_SUCCESS)
+            Log.d(TAG, "advertising parameters not updated: " + status);
+        setData();
+    }
+
+    @Override
+    public synchronized void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+        if (advertisingSet != set || step != STEP_DATA)
+            return;
+        if (status != ADVERTISE_SUCCESS)
+            Log.d(TAG, "advertising data not set: " + status);
+        step = STEP_ENABLE;
+        set.enableAdvertising(true, 0, 0);
+    }
+}
@@ -0,0 +1,159 @@
+package com.ironxiao.bleserver;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+
+import com.ironxiao.bleserver.gatt.GattServerHandler;
+import com.ironxiao.bleserver.gatt.GattServerTransport;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link GattServerTransport} over {@link BluetoothGattServer}. Framework callbacks
+ * are translated to addresses and UUIDs and handed to a {@link GattServerHandler}.
+ */
+class AndroidGattServerTransport extends BluetoothGattServerCallback implements GattServerTransport {
+    private final BluetoothGattService service;
+    private final Map<String, BluetoothDevice> devices = new ConcurrentHashMap<>();
+    private volatile BluetoothGattServer server;
+    private GattServerHandler handler;
+
+    AndroidGattServerTransport(BluetoothGattService service) {
+        this.service = service;
+    }
+
+    void setHandler(GattServerHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Opens the GATT server and publishes the service, unless already open.
+     */
+    void open(Context context, BluetoothManager bluetoothManager) {
+        if (server != null)
+            return;
+        server = bluetoothManager.openGattServer(context, this);
+        server.addService(service);
+    }
+
+    void close() {
+        BluetoothGattServer server = this.server;
+        this.server = null;
+        devices.clear();
+        if (server != null) {
+            server.clearServices();
+            server.close();
+        }
+    }
+
+    @Override
+    public void sendResponse(String address, int requestId, int status, int offset, byte[] value) {
+        BluetoothGattServer server = this.server;
+        BluetoothDevice device = devices.get(address);
+        if (server != null && device != null)
+            server.sendResponse(device, requestId, status, offset, value);
+    }
+
+    @Override
+    public boolean notify(String address, UUID characteristicUuid, byte[] value) {
+        BluetoothGattServer server = this.server;
+        BluetoothDevice device = devices.get(address);
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUuid);
+        if (server == null || device == null || characteristic == null)
+            return false;
+        //The characteristic value is shared by all clients
+        synchronized (characteristic) {
+            characteristic.setValue(value);
+            return server.notifyCharacteristicChanged(device, characteristic, false);
+        }
+    }
+
+    @Override
+    public void cancelConnection(String address) {
+        BluetoothGattServer server = this.server;
+        BluetoothDevice device = devices.get(address);
+        if (server != null && device != null)
+            server.cancelConnection(device);
+    }
+
+    private String track(BluetoothDevice device) {
+        String address = device.getAddress();
+        devices.put(address, device);
+        return address;
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+        super.onConnectionStateChange(device, status, newState);
+        String address = track(device);
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            handler.onConnectionStateChange(address, true);
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            handler.onConnectionStateChange(address, false);
+            devices.remove(address);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+        super.onMtuChanged(device, mtu);
+        handler.onMtuChanged(track(device), mtu);
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+        super.onPhyUpdate(device, txPhy, rxPhy, status);
+        handler.onPhyUpdate(track(device), txPhy, rxPhy, status);
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                            BluetoothGattCharacteristic characteristic) {
+        super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+        handler.onCharacteristicReadRequest(track(device), requestId, offset, characteristic.getUuid());
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic,
+                                             boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
+        handler.onCharacteristicWriteRequest(track(device), requestId, characteristic.getUuid(),
+                preparedWrite, responseNeeded, offset, value);
+    }
+
+    @Override
+    public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+        super.onExecuteWrite(device, requestId, execute);
+        handler.onExecuteWrite(track(device), requestId, execute);
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor,
+                                         boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
+        handler.onDescriptorWriteRequest(track(device), requestId, descriptor.getCharacteristic().getUuid(),
+                descriptor.getUuid(), responseNeeded, offset, value);
+    }
+
+    @Override
+    public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+        super.onDescriptorReadRequest(device, requestId, offset, descriptor);
+        handler.onDescriptorReadRequest(track(device), requestId, offset, descriptor.getCharacteristic().getUuid(),
+                descriptor.getUuid(), descriptor.getValue());
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        super.onNotificationSent(device, status);
+        handler.onNotificationSent(track(device), status);
+    }
+}
@@ -0,0 +1,317 @@
+package com.ironxiao.bleserver;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import com.ironxiao.blecore.BleProtocol;
+import com.ironxiao.blecore.advertise.AdvertisingStatus;
+import com.ironxiao.blecore.android.ForegroundNotification;
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.provision.ProvisioningRecord;
+import com.ironxiao.bleserver.gatt.GattServerHandler;
+import com.ironxiao.bleserver.gatt.RequestDispatcher;
+import com.ironxiao.bleserver.session.ClientSession;
+import com.ironxiao.bleserver.session.SessionTable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static android.bluetooth.BluetoothGattCharacteristic.PERMISSION_READ;
+import static android.bluetooth.BluetoothGattCharacteristic.PERMISSION_WRITE;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_READ;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_WRITE;
+import static android.bluetooth.BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+import static android.bluetooth.BluetoothGattService.SERVICE_TYPE_PRIMARY;
+import static com.ironxiao.blecore.BleProtocol.MANUFACTURE_ID;
+import static com.ironxiao.blecore.BleProtocol.UUID_CAPABILITIES;
+import static com.ironxiao.blecore.BleProtocol.UUID_CCCD;
+import static com.ironxiao.blecore.BleProtocol.UUID_NOTIFY;
+import static com.ironxiao.blecore.BleProtocol.UUID_SERVER;
+import static com.ironxiao.blecore.BleProtocol.UUID_WRITE;
+import static com.ironxiao.blecore.BleProtocol.UUID_WRITE_CONTENT;
+
+/**
+ * Runs the GATT server and the advertising, independent of any activity.
+ * <p>
+ * Started with {@link #ACTION_START} it goes to the foreground and serves until
+ * {@link #stop()}; sessions and the advertising set outlive rotations and the app
+ * going to the background. Activities bind only to show what happens, see
+ * {@link Listener}. Start, stop and advertising callbacks run on the service's own
+ * event thread, requests on the {@link RequestDispatcher}'s workers; nothing runs
+ * on the UI thread but the listener.
+ */
+public class BleServerService extends Service {
+    private static final String TAG = "XL_BLE_SERVER";
+
+    public static final String ACTION_START = "com.ironxiao.bleserver.action.START";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final int MAX_SESSIONS = 32;
+    private static final long SESSION_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    //Clients served at once before we advertise as busy
+    private static final int MAX_CLIENTS = 4;
+    //Requests of one client run in order, different clients in parallel
+    private static final int WORKER_THREADS = 2;
+
+    public interface Listener {
+        /** Something worth showing happened; called on the UI thread. */
+        public void onEvent(String text);
+
+        public void onRunningChanged(boolean running);
+    }
+
+    public class LocalBinder extends Binder {
+        public BleServerService getService() {
+            return BleServerService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+
+    private final AdvertisingStatus advertisingStatus = new AdvertisingStatus(BleProtocol.manufactureData(), MAX_CLIENTS);
+
+    private final SessionTable sessionTable = new SessionTable(MAX_SESSIONS, SESSION_IDLE_TIMEOUT_MILLIS);
+
+    private final BluetoothGattService bluetoothGattService = new BluetoothGattService(UUID_SERVER, SERVICE_TYPE_PRIMARY);
+
+    private final ExecutorService requestExecutor = Executors.newFixedThreadPool(WORKER_THREADS);
+
+    private final AndroidGattServerTransport gattServerTransport = new AndroidGattServerTransport(bluetoothGattService);
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread eventThread;
+
+    private Handler eventHandler;
+
+    private BluetoothManager bluetoothManager;
+
+    private AdvertisingManager advertisingManager;
+
+    private GattServerHandler gattServerHandler;
+
+    private volatile boolean running;
+
+    //Only touched on the UI thread
+    private Listener listener;
+
+    private final GattServerHandler.Listener serverListener = new GattServerHandler.Listener() {
+        @Override
+        public void onConnectionStateChange(String address, boolean connected) {
+            log("onConnectionStateChange:" + address + ", connected: " + connected);
+            publish("onConnectionStateChange" + address + ", connected:" + connected);
+            if (advertisingStatus.setConnectedClients(sessionTable.connectedCount()))
+                updateAdvertising();
+        }
+
+        @Override
+        public void onPayload(String address, ByteBuffer payload) {
+            ClientSession session = sessionTable.get(address);
+            if (session != null)
+                log("onPayload: " + address + ", " + payload.remaining() + " bytes, mtu " + session.getMtu()
+                        + ", phy " + session.getTxPhy() + "/" + session.getRxPhy());
+            ProvisioningRecord record = ProvisioningCodec.decode(payload.duplicate());
+            if (record == null) {
+                publish("onCharacteristicWriteRequest: " + address + ": "
+                        + new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining()));
+                return;
+            }
+            publish("Provision from " + address + ": SSID " + record.getSsidString() + ", security " + record.getSecurity());
+            if (advertisingStatus.setProvisioned(true))
+                updateAdvertising();
+        }
+
+        @Override
+        public void onDescriptorWrite(String address, UUID descriptor, byte[] value) {
+            publish("onDescriptorWriteRequest: " + new String(value));
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BluetoothGattCharacteristic writeCharacteristic = new BluetoothGattCharacteristic(UUID_WRITE,
+                PROPERTY_WRITE | PROPERTY_READ | PROPERTY_WRITE_NO_RESPONSE,
+                PERMISSION_READ | PERMISSION_WRITE);
+        BluetoothGattCharacteristic notifyCharacteristic = new BluetoothGattCharacteristic(UUID_NOTIFY,
+                PROPERTY_NOTIFY | PROPERTY_READ,
+                PERMISSION_READ);
+        //Codecs we decode, read by clients; they write back the one they use
+        BluetoothGattCharacteristic capabilitiesCharacteristic = new BluetoothGattCharacteristic(UUID_CAPABILITIES,
+                PROPERTY_READ | PROPERTY_WRITE,
+                PERMISSION_READ | PERMISSION_WRITE);
+        writeCharacteristic.addDescriptor(new BluetoothGattDescriptor(UUID_WRITE_CONTENT, PERMISSION_READ | PERMISSION_WRITE));
+        bluetoothGattService.addCharacteristic(writeCharacteristic);
+        notifyCharacteristic.addDescriptor(new BluetoothGattDescriptor(UUID_CCCD, PERMISSION_READ | PERMISSION_WRITE));
+        bluetoothGattService.addCharacteristic(notifyCharacteristic);
+        bluetoothGattService.addCharacteristic(capabilitiesCharacteristic);
+
+        eventThread = new HandlerThread("ble-server");
+        eventThread.start();
+        eventHandler = new Handler(eventThread.getLooper());
+
+        bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
+        gattServerHandler = new GattServerHandler(sessionTable, gattServerTransport,
+                UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, serverListener,
+                new RequestDispatcher(requestExecutor, RequestDispatcher.DEFAULT_MAX_PENDING),
+                new GattServerHandler.Scheduler() {
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        eventHandler.postDelayed(task, delayMillis);
+                    }
+                });
+        gattServerTransport.setHandler(gattServerHandler);
+        //Connected clients read the status they saw advertised: flags, free slots, sequence
+        gattServerHandler.setReadHandler(UUID_WRITE, new GattServerHandler.ReadHandler() {
+            @Override
+            public byte[] onRead(ClientSession session) {
+                byte[] data = advertisingStatus.getManufacturerData();
+                return Arrays.copyOfRange(data, data.length - AdvertisingStatus.STATUS_SIZE, data.length);
+            }
+        });
+        //Legacy advertising stays the fallback where the controller has no extended PDUs
+        boolean extended = getResources().getBoolean(R.bool.extended_advertising)
+                && bluetoothAdapter.isLeExtendedAdvertisingSupported();
+        log("extended advertising: " + extended);
+        advertisingManager = new AdvertisingManager(bluetoothAdapter, new ParcelUuid(UUID_SERVER), MANUFACTURE_ID,
+                advertisingStatus, extended, eventHandler);
+    }
+
+    /**
+     * Also restarts the server after the system recreated the service, which
+     * comes without an intent.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null || ACTION_START.equals(intent.getAction())) {
+            startForeground(NOTIFICATION_ID, ForegroundNotification.build(this, MainActivity.class,
+                    R.mipmap.ic_launcher, getString(R.string.app_name), getString(R.string.server_running)));
+            eventHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startServer();
+                }
+            });
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Stops serving and leaves the foreground; the service ends once no activity
+     * is bound any more.
+     */
+    public void stop() {
+        running = false;
+        eventHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopServer();
+            }
+        });
+        stopForeground(true);
+        stopSelf();
+        notifyRunningChanged();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Call on the UI thread; null when the activity goes away.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        listener = null;
+        eventHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopServer();
+                requestExecutor.shutdown();
+            }
+        });
+        eventThread.quitSafely();
+    }
+
+    private void startServer() {
+        //Start GattServer for other's command
+        gattServerTransport.open(this, bluetoothManager);
+
+        //Start BLE Advertise for other's search
+        advertisingManager.start();
+        running = true;
+        notifyRunningChanged();
+    }
+
+    private void stopServer() {
+        sessionTable.clear();
+        gattServerTransport.close();
+
+        advertisingStatus.setConnectedClients(0);
+        advertisingManager.stop();
+    }
+
+    private void updateAdvertising() {
+        eventHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                log("advertise flags " + advertisingStatus.getFlags() + ", free " + advertisingStatus.getFreeSlots()
+                        + ", interval " + advertisingStatus.getInterval());
+                advertisingManager.update();
+            }
+        });
+    }
+
+    private void publish(final String text) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null)
+                    listener.onEvent(text);
+            }
+        });
+    }
+
+    private void notifyRunningChanged() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null)
+                    listener.onRunningChanged(running);
+            }
+        });
+    }
+
+    private static void log(String log) {
+        Log.d(TAG, log);
+    }
+}
@@ -0,0 +1,539 @@
+package com.ironxiao.bleserver.gatt;
+
+import com.ironxiao.bleserver.session.ClientSession;
+import com.ironxiao.bleserver.session.SessionTable;
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.secure.SecureCodec;
+import com.ironxiao.blecore.secure.SecureServer;
+import com.ironxiao.blecore.secure.TicketStore;
+import com.ironxiao.blecore.transfer.Compression;
+import com.ironxiao.blecore.transfer.FrameCodec;
+import com.ironxiao.blecore.transfer.TransferCodec;
+import com.ironxiao.bleserver.transfer.PreparedWriteBuffer;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side of the provisioning protocol, independent of the Android GATT server.
+ * <p>
+ * Reassembles framed writes per client, answers every request that needs a response
+ * and acknowledges each payload with an {@code "ACK:" + length} notification.
+ * Payloads that are {@link TransferCodec} messages belong to a resumable transfer
+ * kept in the client's session; they are acknowledged in the transfer's own terms
+ * and only the completed payload is passed on. One that is refused fails the
+ * transfer instead of completing it.
+ * <p>
+ * A client can set up an encrypted channel on its link with {@link SecureCodec}
+ * handshake messages, which are answered with the server's handshake message
+ * instead of an ACK. Session tickets are kept for all clients, so one that comes
+ * back skips the key exchange. Once the channel is up, the link's payloads must
+ * be sealed; they are opened before they are passed on and anything else is
+ * refused with a NAK. As we offer the channel, provisioning records must always
+ * come sealed, they carry the network's password.
+ * <p>
+ * Clients read the codecs we decode from the capabilities characteristic and write
+ * back the one they use for the rest of the connection. Other characteristics are
+ * served by registered {@link ReadHandler}s and {@link WriteHandler}s; reads nobody
+ * handles are refused rather than left unanswered.
+ * <p>
+ * Requests are handled through a {@link RequestDispatcher}, so the callbacks return
+ * at once. Requests it has no room for are answered with an error on the spot.
+ * Write commands cannot be answered; clients that asked for credits learn from
+ * them how many of their frames were consumed and dropped, and size their window
+ * of frames in flight accordingly.
+ */
+public class GattServerHandler {
+    private static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    private static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    /** Codecs we decode. */
+    public static final int CODECS = Compression.CAPABILITY_DEFLATE;
+    /** Features a client can ask for with a second byte after its codec. */
+    public static final int FEATURES = TransferCodec.CAPABILITY_CREDITS;
+    public static final int CAPABILITIES = CODECS | FEATURES | TransferCodec.CAPABILITY_RESUME
+            | SecureCodec.CAPABILITY_SECURE;
+
+    private static final byte[] NAK = "NAK".getBytes();
+
+    public interface Listener {
+        public void onConnectionStateChange(String address, boolean connected);
+
+        /**
+         * @param payload decoded payload, only valid during the call
+         */
+        public void onPayload(String address, ByteBuffer payload);
+
+        /** A write to a descriptor other than the CCCD. */
+        public void onDescriptorWrite(String address, UUID descriptor, byte[] value);
+    }
+
+    /**
+     * Runs a task later, e.g. on a {@code Handler}; retries of notifications the
+     * busy stack refused go through it.
+     */
+    public interface Scheduler {
+        public void schedule(Runnable task, long delayMillis);
+    }
+
+    public interface ReadHandler {
+        /**
+         * @return the whole value; long reads get the part from their offset
+         */
+        public byte[] onRead(ClientSession session);
+    }
+
+    public interface WriteHandler {
+        /**
+         * @return the {@code STATUS_} to answer with
+         */
+        public int onWrite(ClientSession session, byte[] value);
+    }
+
+    private final SessionTable sessionTable;
+    private final GattServerTransport transport;
+    private final UUID writeUuid;
+    private final UUID cccdUuid;
+    private final Listener listener;
+    private final NotificationSender notificationSender;
+    private final RequestDispatcher dispatcher;
+    private final Map<UUID, ReadHandler> readHandlers = new ConcurrentHashMap<>();
+    private final Map<UUID, WriteHandler> writeHandlers = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final TicketStore<ByteBuffer> tickets =
+            new TicketStore<>(TicketStore.DEFAULT_CAPACITY, TicketStore.DEFAULT_LIFETIME_MILLIS);
+
+    /**
+     * Handles requests on the callback thread.
+     */
+    public GattServerHandler(SessionTable sessionTable, GattServerTransport transport,
+                             UUID writeUuid, UUID notifyUuid, UUID cccdUuid, UUID capabilitiesUuid, Listener listener,
+                             Scheduler scheduler) {
+        this(sessionTable, transport, writeUuid, notifyUuid, cccdUuid, capabilitiesUuid, listener,
+                new RequestDispatcher(RequestDispatcher.DIRECT, Integer.MAX_VALUE), scheduler);
+    }
+
+    public GattServerHandler(SessionTable sessionTable, GattServerTransport transport,
+                             UUID writeUuid, UUID notifyUuid, UUID cccdUuid, UUID capabilitiesUuid, Listener listener,
+                             RequestDispatcher dispatcher, Scheduler scheduler) {
+        this.sessionTable = sessionTable;
+        this.transport = transport;
+        this.writeUuid = writeUuid;
+        this.cccdUuid = cccdUuid;
+        this.listener = listener;
+        this.notificationSender = new NotificationSender(transport, notifyUuid, dispatcher, scheduler);
+        this.dispatcher = dispatcher;
+        setReadHandler(capabilitiesUuid, new ReadHandler() {
+            @Override
+            public byte[] onRead(ClientSession session) {
+                return new byte[]{(byte) CAPABILITIES};
+            }
+        });
+        setWriteHandler(capabilitiesUuid, new WriteHandler() {
+            @Override
+            public int onWrite(ClientSession session, byte[] value) {
+                return selectCodec(session, value);
+            }
+        });
+    }
+
+    public void setReadHandler(UUID characteristic, ReadHandler handler) {
+        readHandlers.put(characteristic, handler);
+    }
+
+    /**
+     * Payload writes to the write characteristic are always handled here.
+     */
+    public void setWriteHandler(UUID characteristic, WriteHandler handler) {
+        writeHandlers.put(characteristic, handler);
+    }
+
+    public RequestDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public SessionTable getSessionTable() {
+        return sessionTable;
+    }
+
+    /**
+     * Frames a payload and notifies it to the client.
+     *
+     * @return false if the client is unknown or not subscribed
+     */
+    public boolean send(String address, byte[] payload) {
+        ClientSession session = sessionTable.get(address);
+        return session != null && notificationSender.send(session, payload);
+    }
+
+    public void onConnectionStateChange(final String address, final boolean connected) {
+        dispatcher.post(address, new Runnable() {
+            @Override
+            public void run() {
+                handleConnectionStateChange(address, connected);
+            }
+        });
+    }
+
+    public void onMtuChanged(final String address, final int mtu) {
+        dispatcher.post(address, new Runnable() {
+            @Override
+            public void run() {
+                ClientSession session = sessionTable.get(address);
+                if (session != null)
+                    session.setMtu(mtu);
+            }
+        });
+    }
+
+    /**
+     * The client raises the PHY for bulk transfers; only successful updates change
+     * what the session records.
+     */
+    public void onPhyUpdate(final String address, final int txPhy, final int rxPhy, final int status) {
+        dispatcher.post(address, new Runnable() {
+            @Override
+            public void run() {
+                ClientSession session = sessionTable.get(address);
+                if (session != null && status == GattServerTransport.STATUS_SUCCESS)
+                    session.setPhy(txPhy, rxPhy);
+            }
+        });
+    }
+
+    public void onCharacteristicReadRequest(final String address, final int requestId, final int offset,
+                                            final UUID characteristic) {
+        boolean queued = dispatcher.offer(address, new Runnable() {
+            @Override
+            public void run() {
+                handleCharacteristicRead(address, requestId, offset, characteristic);
+            }
+        });
+        if (!queued)
+            reject(address, requestId, offset);
+    }
+
+    public void onCharacteristicWriteRequest(final String address, final int requestId, final UUID characteristic,
+                                             final boolean preparedWrite, final boolean responseNeeded,
+                                             final int offset, final byte[] value) {
+        boolean queued = dispatcher.offer(address, new Runnable() {
+            @Override
+            public void run() {
+                handleCharacteristicWrite(address, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
+            }
+        });
+        if (queued)
+            return;
+        if (responseNeeded) {
+            reject(address, requestId, offset);
+        } else if (writeUuid.equals(characteristic)) {
+            //A dropped write command breaks its payload; the assembler resynchronizes on the next one
+            onFrameDropped(address);
+        }
+    }
+
+    public void onExecuteWrite(final String address, final int requestId, final boolean execute) {
+        boolean queued = dispatcher.offer(address, new Runnable() {
+            @Override
+            public void run() {
+                handleExecuteWrite(address, requestId, execute);
+            }
+        });
+        if (!queued)
+            reject(address, requestId, 0);
+    }
+
+    public void onDescriptorWriteRequest(final String address, final int requestId, final UUID characteristic,
+                                         final UUID descriptor, final boolean responseNeeded, final int offset,
+                                         final byte[] value) {
+        boolean queued = dispatcher.offer(address, new Runnable() {
+            @Override
+            public void run() {
+                handleDescriptorWrite(address, requestId, characteristic, descriptor, responseNeeded, offset, value);
+            }
+        });
+        if (!queued && responseNeeded)
+            reject(address, requestId, offset);
+    }
+
+    /**
+     * @param value the stored value, answered for descriptors other than the CCCD
+     */
+    public void onDescriptorReadRequest(final String address, final int requestId, final int offset,
+                                        final UUID characteristic, final UUID descriptor, final byte[] value) {
+        boolean queued = dispatcher.offer(address, new Runnable() {
+            @Override
+            public void run() {
+                handleDescriptorRead(address, requestId, offset, characteristic, descriptor, value);
+            }
+        });
+        if (!queued)
+            reject(address, requestId, offset);
+    }
+
+    public void onNotificationSent(final String address, final int status) {
+        dispatcher.post(address, new Runnable() {
+            @Override
+            public void run() {
+                ClientSession session = sessionTable.get(address);
+                if (session != null)
+                    notificationSender.onNotificationSent(session, status);
+            }
+        });
+    }
+
+    private void reject(String address, int requestId, int offset) {
+        transport.sendResponse(address, requestId, PreparedWriteBuffer.STATUS_INSUFFICIENT_RESOURCES, offset, null);
+    }
+
+    private void handleConnectionStateChange(String address, boolean connected) {
+        if (connected) {
+            if (sessionTable.open(address) == null)
+                transport.cancelConnection(address);
+        } else {
+            sessionTable.onDisconnected(address);
+            sessionTable.evictIdle();
+        }
+        listener.onConnectionStateChange(address, connected);
+    }
+
+    private void handleCharacteristicRead(String address, int requestId, int offset, UUID characteristic) {
+        ClientSession session = sessionFor(address);
+        ReadHandler readHandler = readHandlers.get(characteristic);
+        if (session == null || readHandler == null) {
+            transport.sendResponse(address, requestId, GattServerTransport.STATUS_READ_NOT_PERMITTED, offset, null);
+            return;
+        }
+        byte[] value = readHandler.onRead(session);
+        if (offset > value.length) {
+            transport.sendResponse(address, requestId, PreparedWriteBuffer.STATUS_INVALID_OFFSET, offset, null);
+            return;
+        }
+        transport.sendResponse(address, requestId, GattServerTransport.STATUS_SUCCESS, offset,
+                offset == 0 ? value : Arrays.copyOfRange(value, offset, value.length));
+    }
+
+    private void handleCharacteristicWrite(String address, int requestId, UUID characteristic,
+                                           boolean preparedWrite, boolean responseNeeded,
+                                           int offset, byte[] value) {
+        ClientSession session = sessionFor(address);
+        if (session == null) {
+            if (responseNeeded)
+                transport.sendResponse(address, requestId, PreparedWriteBuffer.STATUS_INSUFFICIENT_RESOURCES, offset, null);
+            return;
+        }
+        if (preparedWrite) {
+            int status = session.getPreparedWrites().append(characteristic, offset, value);
+            //Prepare Write Response echoes the value so the client can verify it
+            if (responseNeeded)
+                transport.sendResponse(address, requestId, status, offset, value);
+            return;
+        }
+        WriteHandler writeHandler = writeHandlers.get(characteristic);
+        if (writeHandler != null && !writeUuid.equals(characteristic)) {
+            int status = writeHandler.onWrite(session, value);
+            if (responseNeeded)
+                transport.sendResponse(address, requestId, status, offset, null);
+            return;
+        }
+        //Respond first so the client can queue its next write while we decode
+        if (responseNeeded)
+            transport.sendResponse(address, requestId, GattServerTransport.STATUS_SUCCESS, offset, null);
+        if (writeUuid.equals(characteristic)) {
+            boolean payloadEnd = onValueWritten(session, value, 0, value.length);
+            //Credits count write commands only, requests got their response
+            if (!responseNeeded && session.onFrameConsumed(payloadEnd))
+                sendCredit(session);
+        }
+    }
+
+    private void handleExecuteWrite(String address, int requestId, boolean execute) {
+        final ClientSession session = sessionTable.get(address);
+        if (session != null) {
+            if (execute) {
+                session.getPreparedWrites().commit(new PreparedWriteBuffer.Consumer() {
+                    @Override
+                    public void onCommitted(UUID uuid, byte[] data, int offset, int length) {
+                        if (writeUuid.equals(uuid))
+                            onValueWritten(session, data, offset, length);
+                    }
+                });
+            } else {
+                session.getPreparedWrites().abort();
+            }
+        }
+        transport.sendResponse(address, requestId, GattServerTransport.STATUS_SUCCESS, 0, null);
+    }
+
+    private void handleDescriptorWrite(String address, int requestId, UUID characteristic, UUID descriptor,
+                                       boolean responseNeeded, int offset, byte[] value) {
+        int status = GattServerTransport.STATUS_SUCCESS;
+        if (cccdUuid.equals(descriptor)) {
+            ClientSession session = sessionFor(address);
+            if (session == null || value == null || value.length != 2) {
+                status = PreparedWriteBuffer.STATUS_INVALID_ATTRIBUTE_LENGTH;
+            } else if (value[0] != 0) {
+                session.subscribe(characteristic);
+            } else {
+                session.unsubscribe(characteristic);
+            }
+        } else {
+            listener.onDescriptorWrite(address, descriptor, value);
+        }
+        if (responseNeeded)
+            transport.sendResponse(address, requestId, status, offset, null);
+    }
+
+    private void handleDescriptorRead(String address, int requestId, int offset,
+                                      UUID characteristic, UUID descriptor, byte[] value) {
+        if (cccdUuid.equals(descriptor)) {
+            ClientSession session = sessionTable.get(address);
+            value = session != null && session.isSubscribed(characteristic)
+                    ? ENABLE_NOTIFICATION_VALUE
+                    : DISABLE_NOTIFICATION_VALUE;
+        }
+        transport.sendResponse(address, requestId, GattServerTransport.STATUS_SUCCESS, offset, value);
+    }
+
+    /**
+     * Session of a device that is talking to us. Devices that connected before the
+     * server started tracking them get a session on their first request.
+     */
+    private ClientSession sessionFor(String address) {
+        ClientSession session = sessionTable.get(address);
+        if (session == null)
+            session = sessionTable.open(address);
+        return session;
+    }
+
+    /**
+     * Takes the client's codec and, in an optional second byte, the
+     * {@link #FEATURES} it wants.
+     */
+    private int selectCodec(ClientSession session, byte[] value) {
+        if (value == null || value.length < 1 || value.length > 2)
+            return PreparedWriteBuffer.STATUS_INVALID_ATTRIBUTE_LENGTH;
+        int codec = value[0] & 0xFF;
+        //Codecs are bits of the one capabilities byte
+        if (codec != Compression.CODEC_NONE && (codec >= 8 || (CODECS & 1 << codec) == 0))
+            return GattServerTransport.STATUS_REQUEST_NOT_SUPPORTED;
+        int features = value.length > 1 ? value[1] & 0xFF : 0;
+        if ((features & ~FEATURES) != 0)
+            return GattServerTransport.STATUS_REQUEST_NOT_SUPPORTED;
+        session.setCodec(codec);
+        if ((features & TransferCodec.CAPABILITY_CREDITS) != 0)
+            session.enableCredits();
+        return GattServerTransport.STATUS_SUCCESS;
+    }
+
+    private void onFrameDropped(final String address) {
+        final ClientSession session = sessionTable.get(address);
+        if (session == null || !session.onFrameDropped())
+            return;
+        //Behind the frames still queued, so the credit counts them as well
+        dispatcher.post(address, new Runnable() {
+            @Override
+            public void run() {
+                sendCredit(session);
+            }
+        });
+    }
+
+    private void sendCredit(ClientSession session) {
+        notificationSender.send(session, session.takeCredit());
+    }
+
+    /**
+     * @return true if a payload was completed
+     */
+    private boolean onValueWritten(ClientSession session, byte[] data, int offset, int length) {
+        boolean completed = false;
+        int end = offset + length;
+        while (offset < end) {
+            int frameLength = FrameCodec.frameLength(data, offset, end - offset);
+            completed |= onFrame(session, data, offset, frameLength);
+            offset += frameLength;
+        }
+        return completed;
+    }
+
+    private boolean onFrame(ClientSession session, byte[] data, int offset, int length) {
+        byte[] payload = session.onFrame(data, offset, length);
+        if (payload == null)
+            return false;
+        ByteBuffer decoded = session.decodePayload(payload);
+        if (decoded == null) {
+            notificationSender.send(session, NAK);
+            return true;
+        }
+        if (decoded.hasArray()) {
+            byte[] array = decoded.array();
+            int start = decoded.arrayOffset() + decoded.position();
+            if (TransferCodec.type(array, start, decoded.remaining()) != 0) {
+                onTransferMessage(session, array, start, decoded.remaining());
+                return true;
+            }
+            int secureType = SecureCodec.type(array, start, decoded.remaining());
+            if (secureType != 0 && secureType != SecureCodec.TYPE_DATA) {
+                onHandshakeMessage(session, array, start, decoded.remaining());
+                return true;
+            }
+        }
+        deliver(session, decoded, true);
+        return true;
+    }
+
+    private void onTransferMessage(ClientSession session, byte[] data, int offset, int length) {
+        byte[] ack = session.onTransferMessage(data, offset, length);
+        byte[] completed = session.getCompletedTransfer();
+        //Acking a refused payload as complete would tell the client it arrived,
+        //e.g. one sealed under the keys of a link that has since dropped
+        if (completed != null && !deliver(session, ByteBuffer.wrap(completed), false))
+            ack = session.rejectCompletedTransfer();
+        if (ack != null)
+            notificationSender.send(session, ack);
+    }
+
+    private void onHandshakeMessage(ClientSession session, byte[] data, int offset, int length) {
+        SecureServer secure = session.getSecure();
+        if (secure == null) {
+            secure = new SecureServer(random, tickets);
+            session.setSecure(secure);
+        }
+        byte[] answer = secure.onMessage(data, offset, length, sessionTable.getClock().nowMillis());
+        notificationSender.send(session, answer != null ? answer : NAK);
+    }
+
+    /**
+     * Opens sealed payloads and passes the payload on.
+     *
+     * @param ack acknowledge it with its length, or refuse it with a NAK
+     * @return false if the payload was refused
+     */
+    private boolean deliver(ClientSession session, ByteBuffer payload, boolean ack) {
+        byte[] array = payload.array();
+        int start = payload.arrayOffset() + payload.position();
+        if (session.isSecure() || SecureCodec.type(array, start, payload.remaining()) == SecureCodec.TYPE_DATA) {
+            //Sealed payloads without a channel cannot be opened either
+            SecureServer secure = session.getSecure();
+            payload = secure != null ? secure.open(array, start, payload.remaining()) : null;
+        } else if (ProvisioningCodec.decode(payload.duplicate()) != null) {
+            //Sent in the clear, the password is out already; refusing it tells the client
+            payload = null;
+        }
+        if (payload == null) {
+            if (ack)
+                notificationSender.send(session, NAK);
+            return false;
+        }
+        int length = payload.remaining();
+        listener.onPayload(session.getAddress(), payload);
+        if (ack)
+            notificationSender.send(session, ("ACK:" + length).getBytes());
+        return true;
+    }
+}
@@ -0,0 +1,27 @@
+package com.ironxiao.bleserver.gatt;
+
+import java.util.UUID;
+
+/**
+ * The GATT server operations the app needs, addressed by device address.
+ * <p>
+ * Requests are delivered to a {@link GattServerHandler}; the transport only carries
+ * responses and notifications back to the client.
+ */
+public interface GattServerTransport {
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_READ_NOT_PERMITTED = 0x02;
+    public static final int STATUS_REQUEST_NOT_SUPPORTED = 0x06;
+
+    public void sendResponse(String address, int requestId, int status, int offset, byte[] value);
+
+    /**
+     * Sends one notification. Completion is reported to
+     * {@link GattServerHandler#onNotificationSent(String, int)}.
+     *
+     * @return false if the stack is busy or the device is gone
+     */
+    public boolean notify(String address, UUID characteristic, byte[] value);
+
+    public void cancelConnection(String address);
+}
@@ -0,0 +1,87 @@
+package com.ironxiao.bleserver.gatt;
+
+import com.ironxiao.bleserver.session.ClientSession;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+
+import java.util.UUID;
+
+/**
+ * Streams payloads to subscribed clients as framed notifications.
+ * <p>
+ * The next frame of a client is only sent after {@code onNotificationSent}
+ * reported the previous one, otherwise the stack drops notifications. A frame the
+ * busy stack refused gets no such callback, so it is retried after a short delay;
+ * a stack that keeps refusing costs the client its queued frames.
+ */
+class NotificationSender {
+    static final long RETRY_DELAY_MILLIS = 20;
+    static final int MAX_RETRIES = 10;
+
+    private final GattServerTransport transport;
+    private final UUID characteristic;
+    private final RequestDispatcher dispatcher;
+    private final GattServerHandler.Scheduler scheduler;
+
+    NotificationSender(GattServerTransport transport, UUID characteristic, RequestDispatcher dispatcher,
+                       GattServerHandler.Scheduler scheduler) {
+        this.transport = transport;
+        this.characteristic = characteristic;
+        this.dispatcher = dispatcher;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return false if the client has not enabled notifications
+     */
+    boolean send(ClientSession session, byte[] payload) {
+        if (!session.isSubscribed(characteristic))
+            return false;
+        FrameSplitter splitter = new FrameSplitter(payload, session.getMtu());
+        while (splitter.hasNext())
+            session.queueNotification(splitter.next());
+        pump(session);
+        return true;
+    }
+
+    void onNotificationSent(ClientSession session, int status) {
+        //A failed frame breaks the payload it belongs to; the client's assembler
+        //resynchronizes on the next first frame, so keep going
+        session.onNotificationSent();
+        pump(session);
+    }
+
+    private void pump(ClientSession session) {
+        byte[] frame = session.pollNotification();
+        if (frame == null)
+            return;
+        if (transport.notify(session.getAddress(), characteristic, frame))
+            return;
+        //Stack busy: keep the frame for the retry, or an earlier send
+        if (session.requeueNotification(frame) > MAX_RETRIES) {
+            //The client resynchronizes on the first frame of a later payload
+            session.clearNotifications();
+            return;
+        }
+        if (session.scheduleNotificationRetry())
+            scheduler.schedule(retry(session), RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * Pumps again in line with the client's other requests.
+     */
+    private Runnable retry(final ClientSession session) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.post(session.getAddress(), new Runnable() {
+                    @Override
+                    public void run() {
+                        session.onNotificationRetry();
+                        if (session.isConnected())
+                            pump(session);
+                    }
+                });
+            }
+        };
+    }
+}
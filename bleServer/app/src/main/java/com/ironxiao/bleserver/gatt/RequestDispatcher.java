@@ -0,0 +1,136 @@
+package com.ironxiao.bleserver.gatt;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Moves request handling off the GATT callback thread.
+ * <p>
+ * Tasks run on a shared executor, but those of one device run one at a time and in
+ * the order they were submitted, so its responses, frames and state changes never
+ * overtake each other; different devices are handled in parallel. The callback only
+ * appends to a queue under a short lock.
+ * <p>
+ * At most {@code maxPending} requests wait at once. {@link #offer} refuses more, so
+ * the caller can answer with an error right away instead of letting a flood of
+ * writes pile up; {@link #post} is for events that must not be lost, like
+ * disconnects.
+ */
+public class RequestDispatcher {
+    public static final int DEFAULT_MAX_PENDING = 256;
+    //Tasks a device runs before it goes to the back of the executor's queue
+    private static final int BATCH_SIZE = 16;
+
+    /** Runs tasks on the calling thread, e.g. for tests. */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private final Executor executor;
+    private final int maxPending;
+    private final Map<String, DeviceQueue> queues = new HashMap<>();
+    private int pending;
+    private int rejected;
+
+    public RequestDispatcher(Executor executor, int maxPending) {
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Queues a request of a device.
+     *
+     * @return false if too many requests are waiting; the task will not run
+     */
+    public boolean offer(String address, Runnable task) {
+        return enqueue(address, task, false);
+    }
+
+    /**
+     * Queues an event of a device, however many requests are waiting.
+     */
+    public void post(String address, Runnable task) {
+        enqueue(address, task, true);
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return requests refused by {@link #offer} so far
+     */
+    public synchronized int getRejected() {
+        return rejected;
+    }
+
+    private boolean enqueue(String address, Runnable task, boolean always) {
+        DeviceQueue queue;
+        synchronized (this) {
+            if (!always && pending >= maxPending) {
+                rejected++;
+                return false;
+            }
+            pending++;
+            queue = queues.get(address);
+            if (queue == null) {
+                queue = new DeviceQueue(address);
+                queues.put(address, queue);
+            }
+            queue.tasks.add(task);
+            if (queue.scheduled)
+                return true;
+            queue.scheduled = true;
+        }
+        executor.execute(queue);
+        return true;
+    }
+
+    /**
+     * The tasks of one device. It is on the executor at most once at a time, and
+     * leaves the map once empty so departed devices cost nothing.
+     */
+    private class DeviceQueue implements Runnable {
+        final String address;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean scheduled;
+
+        DeviceQueue(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Runnable task;
+                synchronized (RequestDispatcher.this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        queues.remove(address);
+                        return;
+                    }
+                }
+                boolean done = false;
+                try {
+                    task.run();
+                    done = true;
+                } finally {
+                    synchronized (RequestDispatcher.this) {
+                        pending--;
+                    }
+                    //A failing task must not stall the device's later ones
+                    if (!done)
+                        executor.execute(this);
+                }
+            }
+            //Let the other devices at the workers
+            executor.execute(this);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.ironxiao.bleserver.session;
+
+import com.ironxiao.bleserver.transfer.ByteBufferPool;
+import com.ironxiao.blecore.secure.SecureServer;
+import com.ironxiao.blecore.transfer.Compression;
+import com.ironxiao.blecore.transfer.FrameAssembler;
+import com.ironxiao.blecore.transfer.FrameCodec;
+import com.ironxiao.blecore.transfer.PayloadDecompressor;
+import com.ironxiao.blecore.transfer.TransferCodec;
+import com.ironxiao.blecore.transfer.TransferReceiver;
+import com.ironxiao.bleserver.transfer.PreparedWriteBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything the server knows about one connected client.
+ * <p>
+ * Fields read from several binder threads are volatile; the frame assembler and
+ * the notification queue are guarded by the session itself.
+ */
+public class ClientSession {
+    public static final int STATE_CONNECTED = 1;
+    public static final int STATE_DISCONNECTED = 0;
+
+    /** Same values as {@code BluetoothDevice.PHY_LE_*}. */
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_CODED = 3;
+
+    private final String address;
+    private final FrameAssembler assembler = new FrameAssembler();
+    private final PreparedWriteBuffer preparedWrites;
+    //Outlives the link, so a client that reconnects can resume its transfer
+    private final TransferReceiver transfers = new TransferReceiver(FrameAssembler.DEFAULT_MAX_PAYLOAD);
+    private final Set<UUID> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final ArrayDeque<byte[]> notifications = new ArrayDeque<>();
+    private boolean notificationInFlight;
+    private int notificationsRefused;
+    private boolean notificationRetryPending;
+    private PayloadDecompressor decompressor;
+    //Write commands of this link, see TransferCodec#CAPABILITY_CREDITS
+    private boolean creditsEnabled;
+    private int framesConsumed;
+    private int framesDropped;
+    private int creditedFrames;
+    private boolean creditPending;
+    //Encrypted channel of this link, see SecureCodec
+    private SecureServer secure;
+
+    private volatile int state = STATE_CONNECTED;
+    private volatile int mtu = FrameCodec.DEFAULT_MTU;
+    private volatile int txPhy = PHY_LE_1M;
+    private volatile int rxPhy = PHY_LE_1M;
+    private volatile long lastActivityMillis;
+    private volatile int codec = Compression.CODEC_NONE;
+
+    ClientSession(String address, ByteBufferPool preparedWritePool, long nowMillis) {
+        this.address = address;
+        this.preparedWrites = new PreparedWriteBuffer(preparedWritePool);
+        this.lastActivityMillis = nowMillis;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean isConnected() {
+        return state == STATE_CONNECTED;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    /**
+     * @param txPhy PHY we send on, i.e. the client's receive PHY
+     */
+    public void setPhy(int txPhy, int rxPhy) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    public long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    public PreparedWriteBuffer getPreparedWrites() {
+        return preparedWrites;
+    }
+
+    /**
+     * Feeds one written value into the session's frame assembler.
+     *
+     * @return the completed payload, or null if more frames are needed
+     */
+    public synchronized byte[] onFrame(byte[] data, int offset, int length) {
+        return assembler.onFrame(data, offset, length) ? assembler.getPayload() : null;
+    }
+
+    /**
+     * Feeds a decoded {@code TransferCodec} message into the session's resumable
+     * transfer. The transfer is kept over disconnects until the session is evicted.
+     *
+     * @return the ack to notify, or null
+     */
+    public synchronized byte[] onTransferMessage(byte[] data, int offset, int length) {
+        return transfers.onMessage(data, offset, length);
+    }
+
+    /**
+     * @return the payload the last transfer message completed, or null
+     */
+    public synchronized byte[] getCompletedTransfer() {
+        return transfers.getPayload();
+    }
+
+    /**
+     * The payload the last transfer completed was refused.
+     *
+     * @return the ack to notify instead of the completing one
+     */
+    public synchronized byte[] rejectCompletedTransfer() {
+        return transfers.rejectCompleted();
+    }
+
+    /**
+     * @return bytes of the unfinished transfer received so far
+     */
+    public synchronized int getTransferReceived() {
+        return transfers.getReceived();
+    }
+
+    /**
+     * @return the {@code Compression.CODEC_*} the client announced for this link
+     */
+    public int getCodec() {
+        return codec;
+    }
+
+    /**
+     * From now on the client's payloads start with a codec byte, unless the
+     * codec is {@code CODEC_NONE}.
+     */
+    public synchronized void setCodec(int codec) {
+        this.codec = codec;
+        if (codec == Compression.CODEC_DEFLATE && decompressor == null)
+            decompressor = new PayloadDecompressor(FrameAssembler.DEFAULT_MAX_PAYLOAD);
+    }
+
+    /**
+     * Undoes the negotiated codec. The result may share the session's buffer
+     * and is only valid until the next call.
+     *
+     * @return null if the payload cannot be decoded
+     */
+    public synchronized ByteBuffer decodePayload(byte[] payload) {
+        if (codec == Compression.CODEC_NONE)
+            return ByteBuffer.wrap(payload);
+        return decompressor.decode(payload, 0, payload.length);
+    }
+
+    /**
+     * The client wants credits for its write commands; counting starts over.
+     */
+    public synchronized void enableCredits() {
+        creditsEnabled = true;
+        framesConsumed = 0;
+        framesDropped = 0;
+        creditedFrames = 0;
+        creditPending = false;
+    }
+
+    public synchronized boolean creditsEnabled() {
+        return creditsEnabled;
+    }
+
+    /**
+     * Counts a write command that was handled.
+     *
+     * @param payloadEnd the frame completed a payload
+     * @return true if a credit is due
+     */
+    public synchronized boolean onFrameConsumed(boolean payloadEnd) {
+        if (!creditsEnabled)
+            return false;
+        framesConsumed++;
+        return payloadEnd || framesConsumed - creditedFrames >= TransferCodec.CREDIT_INTERVAL;
+    }
+
+    /**
+     * Counts a write command the server had no room for.
+     *
+     * @return true if a credit should be queued; false while one is queued already
+     */
+    public synchronized boolean onFrameDropped() {
+        if (!creditsEnabled)
+            return false;
+        framesDropped++;
+        if (creditPending)
+            return false;
+        creditPending = true;
+        return true;
+    }
+
+    /**
+     * @return the credit to notify now
+     */
+    public synchronized byte[] takeCredit() {
+        creditedFrames = framesConsumed;
+        creditPending = false;
+        return TransferCodec.credit(framesConsumed, framesDropped);
+    }
+
+    public synchronized int getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * @return the link's encrypted channel end, or null before the client's first handshake message
+     */
+    public synchronized SecureServer getSecure() {
+        return secure;
+    }
+
+    public synchronized void setSecure(SecureServer secure) {
+        this.secure = secure;
+    }
+
+    /**
+     * @return true once the client established an encrypted channel on this link;
+     * from then on its payloads must be sealed
+     */
+    public synchronized boolean isSecure() {
+        return secure != null && secure.isEstablished();
+    }
+
+    public void subscribe(UUID characteristic) {
+        subscriptions.add(characteristic);
+    }
+
+    public void unsubscribe(UUID characteristic) {
+        subscriptions.remove(characteristic);
+    }
+
+    public boolean isSubscribed(UUID characteristic) {
+        return subscriptions.contains(characteristic);
+    }
+
+    /**
+     * Queues notification frames for this client.
+     */
+    public synchronized void queueNotification(byte[] frame) {
+        notifications.add(frame);
+    }
+
+    /**
+     * Takes the next notification frame to send. Only one notification is in flight
+     * per client: this returns null until {@link #onNotificationSent()} is called.
+     */
+    public synchronized byte[] pollNotification() {
+        if (notificationInFlight || notifications.isEmpty())
+            return null;
+        notificationInFlight = true;
+        return notifications.poll();
+    }
+
+    /**
+     * Puts back a frame the stack refused, ahead of all queued frames.
+     *
+     * @return frames the stack refused in a row
+     */
+    public synchronized int requeueNotification(byte[] frame) {
+        notifications.addFirst(frame);
+        notificationInFlight = false;
+        return ++notificationsRefused;
+    }
+
+    public synchronized void onNotificationSent() {
+        notificationInFlight = false;
+        notificationsRefused = 0;
+    }
+
+    /**
+     * @return false if a retry of the refused frame is already scheduled
+     */
+    public synchronized boolean scheduleNotificationRetry() {
+        if (notificationRetryPending)
+            return false;
+        notificationRetryPending = true;
+        return true;
+    }
+
+    public synchronized void onNotificationRetry() {
+        notificationRetryPending = false;
+    }
+
+    /**
+     * Drops all frames waiting to be notified.
+     */
+    public synchronized void clearNotifications() {
+        notifications.clear();
+        notificationsRefused = 0;
+    }
+
+    public synchronized int pendingNotifications() {
+        return notifications.size() + (notificationInFlight ? 1 : 0);
+    }
+
+    void touch(long nowMillis) {
+        lastActivityMillis = nowMillis;
+    }
+
+    void onConnected(long nowMillis) {
+        state = STATE_CONNECTED;
+        lastActivityMillis = nowMillis;
+    }
+
+    /**
+     * Drops per-link state. The session itself stays in the table until it is
+     * evicted as idle, so a quick reconnect finds it again.
+     */
+    synchronized void onDisconnected(long nowMillis) {
+        state = STATE_DISCONNECTED;
+        mtu = FrameCodec.DEFAULT_MTU;
+        txPhy = PHY_LE_1M;
+        rxPhy = PHY_LE_1M;
+        lastActivityMillis = nowMillis;
+        subscriptions.clear();
+        notifications.clear();
+        notificationInFlight = false;
+        notificationsRefused = 0;
+        assembler.reset();
+        preparedWrites.abort();
+        codec = Compression.CODEC_NONE;
+        creditsEnabled = false;
+        //Keys are per link; a client that comes back resumes with its ticket
+        secure = null;
+        if (decompressor != null) {
+            decompressor.release();
+            decompressor = null;
+        }
+    }
+}
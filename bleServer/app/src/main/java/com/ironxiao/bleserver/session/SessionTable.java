@@ -0,0 +1,137 @@
+package com.ironxiao.bleserver.session;
+
+import com.ironxiao.bleserver.transfer.ByteBufferPool;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions of all clients, keyed by device address.
+ * <p>
+ * {@link #get(String)} is a plain {@link ConcurrentHashMap} lookup and never blocks,
+ * so it is safe to call from every GATT server callback. The table holds at most
+ * {@code maxSessions} entries; disconnected sessions are evicted once they have been
+ * idle for {@code idleTimeoutMillis}.
+ */
+public class SessionTable {
+
+    public interface Clock {
+        public long nowMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** ATT values are at most 512 bytes, so one buffer holds any long write. */
+    private static final int PREPARED_WRITE_BUFFER_SIZE = 512;
+
+    private final ConcurrentHashMap<String, ClientSession> sessions;
+    private final ByteBufferPool preparedWritePool;
+    private final int maxSessions;
+    private final long idleTimeoutMillis;
+    private final Clock clock;
+
+    public SessionTable(int maxSessions, long idleTimeoutMillis) {
+        this(maxSessions, idleTimeoutMillis, SYSTEM_CLOCK);
+    }
+
+    public SessionTable(int maxSessions, long idleTimeoutMillis, Clock clock) {
+        this.sessions = new ConcurrentHashMap<>(maxSessions * 2);
+        this.preparedWritePool = new ByteBufferPool(PREPARED_WRITE_BUFFER_SIZE, maxSessions);
+        this.maxSessions = maxSessions;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the session of the device, or null if it has none
+     */
+    public ClientSession get(String address) {
+        ClientSession session = sessions.get(address);
+        if (session != null)
+            session.touch(clock.nowMillis());
+        return session;
+    }
+
+    /**
+     * Returns the device's session, creating it if needed.
+     *
+     * @return null if the table is full even after evicting idle sessions
+     */
+    public ClientSession open(String address) {
+        long now = clock.nowMillis();
+        ClientSession session = sessions.get(address);
+        if (session != null) {
+            session.onConnected(now);
+            return session;
+        }
+        if (sessions.size() >= maxSessions) {
+            evictIdle();
+            if (sessions.size() >= maxSessions)
+                return null;
+        }
+        session = new ClientSession(address, preparedWritePool, now);
+        ClientSession existing = sessions.putIfAbsent(address, session);
+        if (existing != null) {
+            existing.onConnected(now);
+            return existing;
+        }
+        return session;
+    }
+
+    public void onDisconnected(String address) {
+        ClientSession session = sessions.get(address);
+        if (session != null)
+            session.onDisconnected(clock.nowMillis());
+    }
+
+    /**
+     * Removes disconnected sessions that have been idle for longer than the timeout.
+     *
+     * @return number of evicted sessions
+     */
+    public int evictIdle() {
+        long deadline = clock.nowMillis() - idleTimeoutMillis;
+        int evicted = 0;
+        for (Iterator<ClientSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            ClientSession session = it.next();
+            if (!session.isConnected() && session.getLastActivityMillis() <= deadline) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public Collection<ClientSession> sessions() {
+        return sessions.values();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public int connectedCount() {
+        int count = 0;
+        for (ClientSession session : sessions.values()) {
+            if (session.isConnected())
+                count++;
+        }
+        return count;
+    }
+
+    public void clear() {
+        for (ClientSession session : sessions.values())
+            session.onDisconnected(clock.nowMillis());
+        sessions.clear();
+    }
+}
@@ -0,0 +1,46 @@
+package com.ironxiao.bleserver.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed set of equally sized buffers carved out of one backing array.
+ * <p>
+ * Buffers are handed out cleared and must be given back with {@link #release(ByteBuffer)}.
+ * When the pool is empty {@link #acquire()} returns null instead of allocating.
+ */
+public class ByteBufferPool {
+    private final int bufferSize;
+    private final ArrayDeque<ByteBuffer> free;
+
+    public ByteBufferPool(int bufferSize, int bufferCount) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayDeque<>(bufferCount);
+        ByteBuffer arena = ByteBuffer.allocate(bufferSize * bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            arena.limit((i + 1) * bufferSize);
+            arena.position(i * bufferSize);
+            free.add(arena.slice());
+        }
+    }
+
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null)
+            buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer != null)
+            free.add(buffer);
+    }
+
+    public synchronized int available() {
+        return free.size();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
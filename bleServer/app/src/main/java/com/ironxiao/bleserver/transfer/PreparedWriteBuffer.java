@@ -0,0 +1,101 @@
+package com.ironxiao.bleserver.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Queued prepare-write requests of one client, collected until the client
+ * sends Execute Write.
+ * <p>
+ * Values are stored in buffers from a shared {@link ByteBufferPool}, one buffer
+ * per attribute, and go back to the pool on {@link #commit(Consumer)} or {@link #abort()}.
+ */
+public class PreparedWriteBuffer {
+    /** ATT error codes, identical to the {@code BluetoothGatt.GATT_*} values. */
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_INVALID_OFFSET = 0x07;
+    public static final int STATUS_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+    public static final int STATUS_INSUFFICIENT_RESOURCES = 0x11;
+
+    /** Receives each attribute value when the queue is executed. */
+    public interface Consumer {
+        public void onCommitted(UUID uuid, byte[] data, int offset, int length);
+    }
+
+    private static class Entry {
+        final UUID uuid;
+        final ByteBuffer buffer;
+
+        Entry(UUID uuid, ByteBuffer buffer) {
+            this.uuid = uuid;
+            this.buffer = buffer;
+        }
+    }
+
+    private final ByteBufferPool pool;
+    private final List<Entry> entries = new ArrayList<>(2);
+
+    public PreparedWriteBuffer(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Stores a prepare-write at the given offset of the attribute value.
+     *
+     * @return one of the {@code STATUS_} codes, to be sent back as the response status
+     */
+    public synchronized int append(UUID uuid, int offset, byte[] value) {
+        Entry entry = find(uuid);
+        if (entry == null) {
+            ByteBuffer buffer = pool.acquire();
+            if (buffer == null)
+                return STATUS_INSUFFICIENT_RESOURCES;
+            entry = new Entry(uuid, buffer);
+            entries.add(entry);
+        }
+        ByteBuffer buffer = entry.buffer;
+        if (offset < 0 || offset > buffer.position())
+            return STATUS_INVALID_OFFSET;
+        int length = value == null ? 0 : value.length;
+        if (offset + length > buffer.capacity())
+            return STATUS_INVALID_ATTRIBUTE_LENGTH;
+        int end = Math.max(buffer.position(), offset + length);
+        buffer.position(offset);
+        if (length > 0)
+            buffer.put(value);
+        buffer.position(end);
+        return STATUS_SUCCESS;
+    }
+
+    /**
+     * Hands every queued value to the consumer and empties the queue. The data
+     * passed to the consumer is only valid during the call.
+     */
+    public synchronized void commit(Consumer consumer) {
+        for (Entry entry : entries) {
+            ByteBuffer buffer = entry.buffer;
+            consumer.onCommitted(entry.uuid, buffer.array(), buffer.arrayOffset(), buffer.position());
+        }
+        abort();
+    }
+
+    public synchronized void abort() {
+        for (Entry entry : entries)
+            pool.release(entry.buffer);
+        entries.clear();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private Entry find(UUID uuid) {
+        for (Entry entry : entries) {
+            if (entry.uuid.equals(uuid))
+                return entry;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,682 @@
+package com.ironxiao.bleserver.gatt;
+
+import com.ironxiao.bleserver.session.ClientSession;
+import com.ironxiao.bleserver.session.SessionTable;
+import com.ironxiao.blecore.provision.ProvisioningCodec;
+import com.ironxiao.blecore.provision.ProvisioningRecord;
+import com.ironxiao.blecore.secure.SecureClient;
+import com.ironxiao.blecore.secure.SecureCodec;
+import com.ironxiao.blecore.secure.TicketStore;
+import com.ironxiao.blecore.transfer.Compression;
+import com.ironxiao.blecore.transfer.Crc32c;
+import com.ironxiao.blecore.transfer.FrameAssembler;
+import com.ironxiao.blecore.transfer.FrameSplitter;
+import com.ironxiao.blecore.transfer.TransferCodec;
+import com.ironxiao.bleserver.transfer.PreparedWriteBuffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class GattServerHandlerTest {
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_NOTIFY = UUID.fromString("00001ffc-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID UUID_CAPABILITIES = UUID.fromString("00001ffd-0000-1000-8000-00805f9b34fb");
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:01";
+
+    private static class RecordingListener implements GattServerHandler.Listener {
+        final List<byte[]> payloads = new ArrayList<>();
+        int connections;
+
+        @Override
+        public void onConnectionStateChange(String address, boolean connected) {
+            if (connected)
+                connections++;
+        }
+
+        @Override
+        public void onPayload(String address, ByteBuffer payload) {
+            byte[] copy = new byte[payload.remaining()];
+            payload.get(copy);
+            payloads.add(copy);
+        }
+
+        @Override
+        public void onDescriptorWrite(String address, UUID descriptor, byte[] value) {
+        }
+    }
+
+    private static class ManualScheduler implements GattServerHandler.Scheduler {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> due = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : due)
+                task.run();
+        }
+    }
+
+    private final RecordingServerTransport transport = new RecordingServerTransport();
+    private final RecordingListener listener = new RecordingListener();
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final GattServerHandler handler = new GattServerHandler(new SessionTable(1, 1000), transport,
+            UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, listener, scheduler);
+    private int requestId;
+
+    private void subscribe(String address) {
+        handler.onDescriptorWriteRequest(address, ++requestId, UUID_NOTIFY, UUID_CCCD, true, 0, new byte[]{0x01, 0x00});
+    }
+
+    private void write(String address, byte[] payload, int mtu) {
+        FrameSplitter splitter = new FrameSplitter(payload, mtu);
+        while (splitter.hasNext())
+            handler.onCharacteristicWriteRequest(address, ++requestId, UUID_WRITE, false, false, 0, splitter.next());
+    }
+
+    @Test
+    public void fullSessionTableCancelsConnection() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onConnectionStateChange("AA:BB:CC:DD:EE:02", true);
+
+        assertEquals(2, listener.connections);
+        assertEquals(Arrays.asList("AA:BB:CC:DD:EE:02"), transport.cancelled);
+    }
+
+    @Test
+    public void reassemblesFramesAndNotifiesAck() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onMtuChanged(ADDRESS, 185);
+        subscribe(ADDRESS);
+        assertEquals(GattServerTransport.STATUS_SUCCESS, transport.lastResponse().status);
+
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+        write(ADDRESS, payload, 185);
+
+        assertEquals(1, listener.payloads.size());
+        assertTrue(Arrays.equals(payload, listener.payloads.get(0)));
+        FrameAssembler assembler = new FrameAssembler();
+        assertTrue(assembler.onFrame(transport.notifications.get(0)));
+        assertEquals("ACK:1000", new String(assembler.getPayload()));
+    }
+
+    private byte[] lastNotifiedPayload() {
+        FrameAssembler assembler = new FrameAssembler();
+        assertTrue(assembler.onFrame(transport.notifications.get(transport.notifications.size() - 1)));
+        handler.onNotificationSent(ADDRESS, GattServerTransport.STATUS_SUCCESS);
+        return assembler.getPayload();
+    }
+
+    @Test
+    public void resumesTransferAfterReconnect() {
+        byte[] payload = new byte[900];
+        new Random(5).nextBytes(payload);
+        byte[] begin = TransferCodec.begin(7, payload.length, Crc32c.compute(payload, 0, payload.length));
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        write(ADDRESS, begin, 23);
+        assertEquals(0, TransferCodec.ackOffset(lastNotifiedPayload(), 0));
+        write(ADDRESS, TransferCodec.chunk(7, 0, payload, 0, 300), 23);
+        write(ADDRESS, TransferCodec.chunk(7, 0, payload, 300, 300), 23);
+
+        handler.onConnectionStateChange(ADDRESS, false);
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        write(ADDRESS, begin, 23);
+        byte[] ack = lastNotifiedPayload();
+        assertEquals(TransferCodec.STATUS_OK, TransferCodec.ackStatus(ack, 0));
+        assertEquals(600, TransferCodec.ackOffset(ack, 0));
+        assertTrue(listener.payloads.isEmpty());
+
+        write(ADDRESS, TransferCodec.chunk(7, 0, payload, 600, 300), 23);
+        ack = lastNotifiedPayload();
+        assertEquals(TransferCodec.STATUS_COMPLETE, TransferCodec.ackStatus(ack, 0));
+        assertEquals(1, listener.payloads.size());
+        assertArrayEquals(payload, listener.payloads.get(0));
+    }
+
+    @Test
+    public void notificationsWaitForPreviousOneAndBusyStack() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+
+        //At the default MTU a 60 byte payload needs four frames
+        assertTrue(handler.send(ADDRESS, new byte[60]));
+        assertEquals(1, transport.notifications.size());
+
+        transport.busy = true;
+        handler.onNotificationSent(ADDRESS, GattServerTransport.STATUS_SUCCESS);
+        assertEquals(1, transport.notifications.size());
+        assertEquals(1, scheduler.tasks.size());
+
+        //The refused frame gets no callback, the retry sends it
+        transport.busy = false;
+        scheduler.runAll();
+        assertEquals(2, transport.notifications.size());
+        handler.onNotificationSent(ADDRESS, GattServerTransport.STATUS_SUCCESS);
+        handler.onNotificationSent(ADDRESS, GattServerTransport.STATUS_SUCCESS);
+        assertEquals(4, transport.notifications.size());
+        assertTrue(scheduler.tasks.isEmpty());
+
+        FrameAssembler assembler = new FrameAssembler();
+        boolean complete = false;
+        for (byte[] frame : transport.notifications)
+            complete = assembler.onFrame(frame);
+        assertTrue(complete);
+        assertEquals(60, assembler.getPayload().length);
+    }
+
+    @Test
+    public void stackThatKeepsRefusingDropsQueuedFrames() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        transport.busy = true;
+        assertTrue(handler.send(ADDRESS, new byte[60]));
+
+        for (int i = 0; i < 2 * NotificationSender.MAX_RETRIES && !scheduler.tasks.isEmpty(); i++)
+            scheduler.runAll();
+        assertTrue(scheduler.tasks.isEmpty());
+        assertEquals(0, handler.getSessionTable().get(ADDRESS).pendingNotifications());
+
+        //A later payload goes out whole
+        transport.busy = false;
+        assertTrue(handler.send(ADDRESS, "ACK:5".getBytes()));
+        assertEquals("ACK:5", new String(lastNotifiedPayload()));
+    }
+
+    @Test
+    public void unsubscribedClientGetsNoNotifications() {
+        handler.onConnectionStateChange(ADDRESS, true);
+
+        assertFalse(handler.send(ADDRESS, new byte[8]));
+        assertFalse(handler.send("AA:BB:CC:DD:EE:09", new byte[8]));
+        write(ADDRESS, "hello".getBytes(), 23);
+
+        assertEquals(1, listener.payloads.size());
+        assertTrue(transport.notifications.isEmpty());
+    }
+
+    @Test
+    public void cccdReadReflectsSubscription() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onDescriptorReadRequest(ADDRESS, 1, 0, UUID_NOTIFY, UUID_CCCD, null);
+        assertArrayEquals(new byte[]{0x00, 0x00}, transport.lastResponse().value);
+
+        subscribe(ADDRESS);
+        handler.onDescriptorReadRequest(ADDRESS, 2, 0, UUID_NOTIFY, UUID_CCCD, null);
+        assertArrayEquals(new byte[]{0x01, 0x00}, transport.lastResponse().value);
+    }
+
+    @Test
+    public void malformedCccdWriteIsRejected() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onDescriptorWriteRequest(ADDRESS, 1, UUID_NOTIFY, UUID_CCCD, true, 0, new byte[]{0x01});
+
+        assertEquals(PreparedWriteBuffer.STATUS_INVALID_ATTRIBUTE_LENGTH, transport.lastResponse().status);
+        assertFalse(handler.send(ADDRESS, new byte[8]));
+    }
+
+    @Test
+    public void executedPreparedWriteIsDecoded() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        byte[] frame = new FrameSplitter("prepared".getBytes(), 512).next();
+        handler.onCharacteristicWriteRequest(ADDRESS, 1, UUID_WRITE, true, true, 0, Arrays.copyOfRange(frame, 0, 10));
+        handler.onCharacteristicWriteRequest(ADDRESS, 2, UUID_WRITE, true, true, 10, Arrays.copyOfRange(frame, 10, frame.length));
+        assertTrue(listener.payloads.isEmpty());
+
+        handler.onExecuteWrite(ADDRESS, 3, true);
+
+        assertEquals(3, transport.responses.size());
+        assertEquals("prepared", new String(listener.payloads.get(0)));
+    }
+
+    private static byte[] deflate(byte[] payload) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setDictionary(Compression.PRESET_DICTIONARY);
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] out = new byte[payload.length + 64];
+        out[0] = (byte) Compression.CODEC_DEFLATE;
+        int length = 1 + deflater.deflate(out, 1, out.length - 1);
+        deflater.end();
+        return Arrays.copyOf(out, length);
+    }
+
+    @Test
+    public void advertisesAndAcceptsCodec() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onCharacteristicReadRequest(ADDRESS, 1, 0, UUID_CAPABILITIES);
+        assertArrayEquals(new byte[]{(byte) GattServerHandler.CAPABILITIES}, transport.lastResponse().value);
+
+        handler.onCharacteristicWriteRequest(ADDRESS, 2, UUID_CAPABILITIES, false, true, 0, new byte[]{9});
+        assertEquals(GattServerTransport.STATUS_REQUEST_NOT_SUPPORTED, transport.lastResponse().status);
+
+        handler.onCharacteristicWriteRequest(ADDRESS, 3, UUID_CAPABILITIES, false, true, 0, new byte[]{Compression.CODEC_DEFLATE});
+        assertEquals(GattServerTransport.STATUS_SUCCESS, transport.lastResponse().status);
+        assertEquals(Compression.CODEC_DEFLATE, handler.getSessionTable().get(ADDRESS).getCodec());
+    }
+
+    @Test
+    public void inflatesPayloadsAfterNegotiation() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        handler.onCharacteristicWriteRequest(ADDRESS, 1, UUID_CAPABILITIES, false, true, 0, new byte[]{Compression.CODEC_DEFLATE});
+
+        byte[] json = "{\"wifi\":{\"ssid\":\"lab\",\"password\":\"secret\",\"security\":\"WPA2\",\"hidden\":false}}".getBytes();
+        write(ADDRESS, deflate(json), 23);
+        write(ADDRESS, new byte[]{Compression.CODEC_NONE, 'h', 'i'}, 23);
+
+        assertEquals(2, listener.payloads.size());
+        assertArrayEquals(json, listener.payloads.get(0));
+        assertEquals("hi", new String(listener.payloads.get(1)));
+        FrameAssembler assembler = new FrameAssembler();
+        assertTrue(assembler.onFrame(transport.notifications.get(0)));
+        assertEquals("ACK:" + json.length, new String(assembler.getPayload()));
+    }
+
+    @Test
+    public void codecEndsWithConnection() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onCharacteristicWriteRequest(ADDRESS, 1, UUID_CAPABILITIES, false, true, 0, new byte[]{Compression.CODEC_DEFLATE});
+        handler.onConnectionStateChange(ADDRESS, false);
+        handler.onConnectionStateChange(ADDRESS, true);
+
+        write(ADDRESS, "plain".getBytes(), 23);
+        assertEquals("plain", new String(listener.payloads.get(0)));
+    }
+
+    @Test
+    public void splitsPayloadsPackedIntoOneWrite() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onMtuChanged(ADDRESS, 185);
+
+        byte[] first = new FrameSplitter("one".getBytes(), 185).next();
+        byte[] second = new FrameSplitter("two!".getBytes(), 185).next();
+        byte[] packed = new byte[first.length + second.length];
+        System.arraycopy(first, 0, packed, 0, first.length);
+        System.arraycopy(second, 0, packed, first.length, second.length);
+        handler.onCharacteristicWriteRequest(ADDRESS, ++requestId, UUID_WRITE, false, false, 0, packed);
+
+        assertEquals(2, listener.payloads.size());
+        assertEquals("one", new String(listener.payloads.get(0)));
+        assertEquals("two!", new String(listener.payloads.get(1)));
+    }
+
+    @Test
+    public void recordsLinkParametersUntilDisconnect() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onMtuChanged(ADDRESS, 247);
+        handler.onPhyUpdate(ADDRESS, ClientSession.PHY_LE_2M, ClientSession.PHY_LE_2M, GattServerTransport.STATUS_SUCCESS);
+        //A failed update keeps what was negotiated before
+        handler.onPhyUpdate(ADDRESS, ClientSession.PHY_LE_CODED, ClientSession.PHY_LE_CODED, 0x101);
+
+        ClientSession session = handler.getSessionTable().get(ADDRESS);
+        assertEquals(247, session.getMtu());
+        assertEquals(ClientSession.PHY_LE_2M, session.getTxPhy());
+        assertEquals(ClientSession.PHY_LE_2M, session.getRxPhy());
+
+        handler.onConnectionStateChange(ADDRESS, false);
+        assertEquals(ClientSession.PHY_LE_1M, session.getTxPhy());
+        assertEquals(23, session.getMtu());
+    }
+
+    @Test
+    public void everyReadIsAnswered() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onCharacteristicReadRequest(ADDRESS, 1, 0, UUID_NOTIFY);
+        assertEquals(1, transport.lastResponse().requestId);
+        assertEquals(GattServerTransport.STATUS_READ_NOT_PERMITTED, transport.lastResponse().status);
+
+        final byte[] status = "status: idle".getBytes();
+        handler.setReadHandler(UUID_NOTIFY, new GattServerHandler.ReadHandler() {
+            @Override
+            public byte[] onRead(ClientSession session) {
+                return status;
+            }
+        });
+        handler.onCharacteristicReadRequest(ADDRESS, 2, 0, UUID_NOTIFY);
+        assertArrayEquals(status, transport.lastResponse().value);
+        //Long read continues from the offset
+        handler.onCharacteristicReadRequest(ADDRESS, 3, 8, UUID_NOTIFY);
+        assertEquals("idle", new String(transport.lastResponse().value));
+        handler.onCharacteristicReadRequest(ADDRESS, 4, 13, UUID_NOTIFY);
+        assertEquals(PreparedWriteBuffer.STATUS_INVALID_OFFSET, transport.lastResponse().status);
+    }
+
+    @Test
+    public void registeredWriteHandlerAnswers() {
+        final List<byte[]> written = new ArrayList<>();
+        handler.setWriteHandler(UUID_NOTIFY, new GattServerHandler.WriteHandler() {
+            @Override
+            public int onWrite(ClientSession session, byte[] value) {
+                written.add(value);
+                return value.length == 1 ? GattServerTransport.STATUS_SUCCESS : PreparedWriteBuffer.STATUS_INVALID_ATTRIBUTE_LENGTH;
+            }
+        });
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onCharacteristicWriteRequest(ADDRESS, 1, UUID_NOTIFY, false, true, 0, new byte[]{1});
+        assertEquals(GattServerTransport.STATUS_SUCCESS, transport.lastResponse().status);
+        handler.onCharacteristicWriteRequest(ADDRESS, 2, UUID_NOTIFY, false, true, 0, new byte[]{1, 2});
+        assertEquals(PreparedWriteBuffer.STATUS_INVALID_ATTRIBUTE_LENGTH, transport.lastResponse().status);
+        assertEquals(2, written.size());
+        assertTrue(listener.payloads.isEmpty());
+    }
+
+    @Test
+    public void queuedRequestsRunInOrderAndOverflowIsRefused() {
+        final List<Runnable> queued = new ArrayList<>();
+        RequestDispatcher dispatcher = new RequestDispatcher(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable task) {
+                queued.add(task);
+            }
+        }, 4);
+        GattServerHandler queuedHandler = new GattServerHandler(new SessionTable(1, 1000), transport,
+                UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, listener, dispatcher, scheduler);
+
+        queuedHandler.onConnectionStateChange(ADDRESS, true);
+        queuedHandler.onDescriptorWriteRequest(ADDRESS, 1, UUID_NOTIFY, UUID_CCCD, true, 0, new byte[]{0x01, 0x00});
+        queuedHandler.onCharacteristicReadRequest(ADDRESS, 2, 0, UUID_CAPABILITIES);
+        queuedHandler.onCharacteristicWriteRequest(ADDRESS, 3, UUID_WRITE, false, false, 0,
+                new FrameSplitter("hello".getBytes(), 23).next());
+        //Nothing ran on the callback thread
+        assertTrue(transport.responses.isEmpty());
+        assertEquals(0, listener.connections);
+
+        queuedHandler.onCharacteristicReadRequest(ADDRESS, 4, 0, UUID_CAPABILITIES);
+        assertEquals(1, transport.responses.size());
+        assertEquals(4, transport.lastResponse().requestId);
+        assertEquals(PreparedWriteBuffer.STATUS_INSUFFICIENT_RESOURCES, transport.lastResponse().status);
+
+        while (!queued.isEmpty())
+            queued.remove(0).run();
+        assertEquals(1, listener.connections);
+        assertEquals(3, transport.responses.size());
+        assertEquals(1, transport.responses.get(1).requestId);
+        assertEquals(2, transport.responses.get(2).requestId);
+        assertEquals("hello", new String(listener.payloads.get(0)));
+        assertEquals(1, transport.notifications.size());
+    }
+
+    /**
+     * Reports each notification as sent until no more come, and reassembles them.
+     *
+     * @param queued tasks of the handler's dispatcher, or null if it runs them directly
+     */
+    private List<byte[]> notifiedPayloads(GattServerHandler handler, List<Runnable> queued) {
+        int seen = -1;
+        while (seen != transport.notifications.size()) {
+            seen = transport.notifications.size();
+            handler.onNotificationSent(ADDRESS, GattServerTransport.STATUS_SUCCESS);
+            while (queued != null && !queued.isEmpty())
+                queued.remove(0).run();
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        FrameAssembler assembler = new FrameAssembler();
+        for (byte[] frame : transport.notifications) {
+            if (assembler.onFrame(frame))
+                payloads.add(assembler.getPayload());
+        }
+        return payloads;
+    }
+
+    @Test
+    public void notifiesCreditsToClientsThatAskForThem() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        handler.onCharacteristicWriteRequest(ADDRESS, ++requestId, UUID_CAPABILITIES, false, true, 0,
+                new byte[]{Compression.CODEC_NONE, (byte) TransferCodec.CAPABILITY_CREDITS});
+        assertEquals(GattServerTransport.STATUS_SUCCESS, transport.lastResponse().status);
+
+        //Ten frames: credits after four and eight, and at the end of the payload
+        byte[] payload = new byte[13 + 9 * 17];
+        write(ADDRESS, payload, 23);
+        List<byte[]> notified = notifiedPayloads(handler, null);
+        assertEquals(4, notified.size());
+        int[] consumed = {4, 8, 10};
+        for (int i = 0; i < consumed.length; i++) {
+            byte[] credit = notified.get(i < 2 ? i : 3);
+            assertEquals(TransferCodec.TYPE_CREDIT, TransferCodec.type(credit));
+            assertEquals(consumed[i], TransferCodec.creditConsumed(credit, 0));
+            assertEquals(0, TransferCodec.creditDropped(credit, 0));
+        }
+        assertEquals("ACK:" + payload.length, new String(notified.get(2)));
+
+        handler.onCharacteristicWriteRequest(ADDRESS, ++requestId, UUID_CAPABILITIES, false, true, 0,
+                new byte[]{Compression.CODEC_NONE, 0x01});
+        assertEquals(GattServerTransport.STATUS_REQUEST_NOT_SUPPORTED, transport.lastResponse().status);
+    }
+
+    @Test
+    public void noCreditsUnlessAskedFor() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        write(ADDRESS, new byte[500], 23);
+
+        List<byte[]> notified = notifiedPayloads(handler, null);
+        assertEquals(1, notified.size());
+        assertEquals("ACK:500", new String(notified.get(0)));
+        assertFalse(handler.getSessionTable().get(ADDRESS).creditsEnabled());
+    }
+
+    @Test
+    public void droppedWriteCommandsAreCredited() {
+        final List<Runnable> queued = new ArrayList<>();
+        RequestDispatcher dispatcher = new RequestDispatcher(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(Runnable task) {
+                queued.add(task);
+            }
+        }, 4);
+        GattServerHandler queuedHandler = new GattServerHandler(new SessionTable(1, 1000), transport,
+                UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, listener, dispatcher, scheduler);
+        queuedHandler.onConnectionStateChange(ADDRESS, true);
+        queuedHandler.onDescriptorWriteRequest(ADDRESS, 1, UUID_NOTIFY, UUID_CCCD, true, 0, new byte[]{0x01, 0x00});
+        queuedHandler.onCharacteristicWriteRequest(ADDRESS, 2, UUID_CAPABILITIES, false, true, 0,
+                new byte[]{Compression.CODEC_NONE, (byte) TransferCodec.CAPABILITY_CREDITS});
+        while (!queued.isEmpty())
+            queued.remove(0).run();
+
+        FrameSplitter splitter = new FrameSplitter(new byte[300], 23);
+        for (int i = 0; i < 10; i++)
+            queuedHandler.onCharacteristicWriteRequest(ADDRESS, 3 + i, UUID_WRITE, false, false, 0, splitter.next());
+        //Four queued, six dropped, one credit posted for all of them
+        assertEquals(6, dispatcher.getRejected());
+        assertEquals(6, queuedHandler.getSessionTable().get(ADDRESS).getFramesDropped());
+        while (!queued.isEmpty())
+            queued.remove(0).run();
+
+        //The regular credit after four frames, then the one posted for the drops
+        List<byte[]> notified = notifiedPayloads(queuedHandler, queued);
+        assertEquals(2, notified.size());
+        for (byte[] credit : notified) {
+            assertEquals(4, TransferCodec.creditConsumed(credit, 0));
+            assertEquals(6, TransferCodec.creditDropped(credit, 0));
+        }
+    }
+
+    @Test
+    public void creditsEndWithConnection() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        handler.onCharacteristicWriteRequest(ADDRESS, 1, UUID_CAPABILITIES, false, true, 0,
+                new byte[]{Compression.CODEC_NONE, (byte) TransferCodec.CAPABILITY_CREDITS});
+        assertTrue(handler.getSessionTable().get(ADDRESS).creditsEnabled());
+
+        handler.onConnectionStateChange(ADDRESS, false);
+        assertFalse(handler.getSessionTable().get(ADDRESS).creditsEnabled());
+    }
+
+    private SecureClient handshake(TicketStore<String> tickets) {
+        return handshake(handler, tickets);
+    }
+
+    private SecureClient handshake(GattServerHandler handler, TicketStore<String> tickets) {
+        SecureClient client = new SecureClient(new SecureRandom(), tickets);
+        byte[] message = client.start(ADDRESS, 1);
+        while (message != null) {
+            FrameSplitter splitter = new FrameSplitter(message, 23);
+            while (splitter.hasNext())
+                handler.onCharacteristicWriteRequest(ADDRESS, ++requestId, UUID_WRITE, false, false, 0, splitter.next());
+            List<byte[]> notified = notifiedPayloads(handler, null);
+            byte[] answer = notified.get(notified.size() - 1);
+            message = client.onMessage(answer, 0, answer.length, 1);
+        }
+        return client;
+    }
+
+    private byte[] lastNotified() {
+        List<byte[]> notified = notifiedPayloads(handler, null);
+        return notified.get(notified.size() - 1);
+    }
+
+    @Test
+    public void opensSealedPayloadsAfterHandshake() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        assertFalse(handler.getSessionTable().get(ADDRESS).isSecure());
+
+        SecureClient client = handshake(new TicketStore<String>(4, 1000));
+        assertTrue(client.isEstablished());
+        assertTrue(handler.getSessionTable().get(ADDRESS).isSecure());
+
+        byte[] secret = "P:hunter2".getBytes();
+        write(ADDRESS, client.getChannel().seal(secret), 23);
+        assertEquals(1, listener.payloads.size());
+        assertArrayEquals(secret, listener.payloads.get(0));
+        assertEquals("ACK:" + secret.length, new String(lastNotified()));
+
+        //Plain payloads are refused once the channel is up
+        write(ADDRESS, "plain".getBytes(), 23);
+        assertEquals("NAK", new String(lastNotified()));
+        assertEquals(1, listener.payloads.size());
+    }
+
+    @Test
+    public void sealedPayloadWithoutChannelIsRefused() {
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        SecureClient client = handshake(new TicketStore<String>(4, 1000));
+        byte[] sealed = client.getChannel().seal("late".getBytes());
+
+        handler.onConnectionStateChange(ADDRESS, false);
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        assertFalse(handler.getSessionTable().get(ADDRESS).isSecure());
+        write(ADDRESS, sealed, 23);
+
+        assertEquals("NAK", new String(lastNotified()));
+        assertTrue(listener.payloads.isEmpty());
+    }
+
+    @Test
+    public void reconnectingClientResumesWithTicket() {
+        TicketStore<String> tickets = new TicketStore<>(4, 1000);
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        handshake(tickets);
+
+        handler.onConnectionStateChange(ADDRESS, false);
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        SecureClient client = handshake(tickets);
+
+        assertTrue(client.isResumed());
+        assertEquals(SecureCodec.TYPE_RESUMED, SecureCodec.type(lastNotified()));
+        write(ADDRESS, client.getChannel().seal("again".getBytes()), 23);
+        assertArrayEquals("again".getBytes(), listener.payloads.get(0));
+    }
+
+    @Test
+    public void sealedTransferResumedUnderNewKeysFails() {
+        TicketStore<String> tickets = new TicketStore<>(4, 1000);
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        SecureClient client = handshake(tickets);
+        byte[] sealed = client.getChannel().seal(new byte[100]);
+        byte[] begin = TransferCodec.begin(7, sealed.length, Crc32c.compute(sealed, 0, sealed.length));
+        write(ADDRESS, begin, 23);
+        write(ADDRESS, TransferCodec.chunk(7, 0, sealed, 0, 50), 23);
+
+        //The new link gets new keys, the bytes held so far are sealed under the old ones
+        handler.onConnectionStateChange(ADDRESS, false);
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        client = handshake(tickets);
+        write(ADDRESS, begin, 23);
+        assertEquals(50, TransferCodec.ackOffset(lastNotified(), 0));
+        int notified = notifiedPayloads(handler, null).size();
+        write(ADDRESS, TransferCodec.chunk(7, TransferCodec.FLAG_ACK_REQUESTED, sealed, 50, sealed.length - 50), 23);
+
+        List<byte[]> answers = notifiedPayloads(handler, null);
+        assertEquals(notified + 1, answers.size());
+        byte[] ack = answers.get(notified);
+        assertEquals(TransferCodec.STATUS_FAILED, TransferCodec.ackStatus(ack, 0));
+        assertTrue(listener.payloads.isEmpty());
+
+        //Sealed again under the live channel, a new transfer goes through
+        sealed = client.getChannel().seal(new byte[100]);
+        write(ADDRESS, TransferCodec.begin(8, sealed.length, Crc32c.compute(sealed, 0, sealed.length)), 23);
+        write(ADDRESS, TransferCodec.chunk(8, TransferCodec.FLAG_ACK_REQUESTED, sealed, 0, sealed.length), 23);
+        assertEquals(TransferCodec.STATUS_COMPLETE, TransferCodec.ackStatus(lastNotified(), 0));
+        assertArrayEquals(new byte[100], listener.payloads.get(0));
+    }
+
+    @Test
+    public void plainProvisioningRecordIsRefused() {
+        byte[] record = ProvisioningCodec.encode(new ProvisioningRecord.Builder()
+                .setSsid("lab")
+                .setPassword("hunter22")
+                .build());
+        handler.onConnectionStateChange(ADDRESS, true);
+        subscribe(ADDRESS);
+        write(ADDRESS, record, 23);
+        assertEquals("NAK", new String(lastNotified()));
+        assertTrue(listener.payloads.isEmpty());
+
+        SecureClient client = handshake(new TicketStore<String>(4, 1000));
+        write(ADDRESS, client.getChannel().seal(record), 23);
+        assertArrayEquals(record, listener.payloads.get(0));
+    }
+
+    @Test
+    public void expiredTicketFallsBackToKeyExchange() {
+        final long[] now = {0};
+        GattServerHandler clockedHandler = new GattServerHandler(new SessionTable(1, 1000, new SessionTable.Clock() {
+            @Override
+            public long nowMillis() {
+                return now[0];
+            }
+        }), transport, UUID_WRITE, UUID_NOTIFY, UUID_CCCD, UUID_CAPABILITIES, listener, scheduler);
+        TicketStore<String> tickets = new TicketStore<>(4, 1000);
+        clockedHandler.onConnectionStateChange(ADDRESS, true);
+        clockedHandler.onDescriptorWriteRequest(ADDRESS, 1, UUID_NOTIFY, UUID_CCCD, true, 0, new byte[]{0x01, 0x00});
+        assertTrue(handshake(clockedHandler, tickets).isEstablished());
+
+        //Past the server's ticket lifetime, whatever the session last did
+        now[0] = TicketStore.DEFAULT_LIFETIME_MILLIS + 1;
+        clockedHandler.onConnectionStateChange(ADDRESS, false);
+        clockedHandler.onConnectionStateChange(ADDRESS, true);
+        clockedHandler.onDescriptorWriteRequest(ADDRESS, 2, UUID_NOTIFY, UUID_CCCD, true, 0, new byte[]{0x01, 0x00});
+        SecureClient client = handshake(clockedHandler, tickets);
+
+        assertTrue(client.isEstablished());
+        assertFalse(client.isResumed());
+    }
+}
@@ -0,0 +1,52 @@
+package com.ironxiao.bleserver.gatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * In-memory server transport that records responses and notifications.
+ * With {@code busy} set, notifications are refused like a congested stack does.
+ */
+class RecordingServerTransport implements GattServerTransport {
+    static class Response {
+        final String address;
+        final int requestId;
+        final int status;
+        final byte[] value;
+
+        Response(String address, int requestId, int status, byte[] value) {
+            this.address = address;
+            this.requestId = requestId;
+            this.status = status;
+            this.value = value;
+        }
+    }
+
+    final List<Response> responses = new ArrayList<>();
+    final List<byte[]> notifications = new ArrayList<>();
+    final List<String> cancelled = new ArrayList<>();
+    boolean busy;
+
+    Response lastResponse() {
+        return responses.get(responses.size() - 1);
+    }
+
+    @Override
+    public void sendResponse(String address, int requestId, int status, int offset, byte[] value) {
+        responses.add(new Response(address, requestId, status, value));
+    }
+
+    @Override
+    public boolean notify(String address, UUID characteristic, byte[] value) {
+        if (busy)
+            return false;
+        notifications.add(value);
+        return true;
+    }
+
+    @Override
+    public void cancelConnection(String address) {
+        cancelled.add(address);
+    }
+}
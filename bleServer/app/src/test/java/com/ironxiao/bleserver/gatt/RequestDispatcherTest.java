@@ -0,0 +1,171 @@
+package com.ironxiao.bleserver.gatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RequestDispatcherTest {
+
+    /** Holds tasks until told to run them. */
+    private static class ManualExecutor implements java.util.concurrent.Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void keepsOrderPerDevice() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        RequestDispatcher dispatcher = new RequestDispatcher(pool, Integer.MAX_VALUE);
+        final Map<String, List<Integer>> seen = new HashMap<>();
+        final int devices = 8;
+        final int requests = 2000;
+        final CountDownLatch done = new CountDownLatch(devices * requests);
+        for (int d = 0; d < devices; d++)
+            seen.put("device" + d, Collections.synchronizedList(new ArrayList<Integer>()));
+        for (int i = 0; i < requests; i++) {
+            for (int d = 0; d < devices; d++) {
+                final List<Integer> list = seen.get("device" + d);
+                final int n = i;
+                assertTrue(dispatcher.offer("device" + d, new Runnable() {
+                    @Override
+                    public void run() {
+                        list.add(n);
+                        done.countDown();
+                    }
+                }));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        for (List<Integer> list : seen.values()) {
+            assertEquals(requests, list.size());
+            for (int i = 0; i < requests; i++)
+                assertEquals(i, (int) list.get(i));
+        }
+        assertEquals(0, dispatcher.getPending());
+    }
+
+    @Test
+    public void runsDevicesInParallel() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        RequestDispatcher dispatcher = new RequestDispatcher(pool, 16);
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (String address : new String[]{"a", "b"}) {
+            dispatcher.offer(address, new Runnable() {
+                @Override
+                public void run() {
+                    bothRunning.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        //A slow device would block the other with one shared queue
+        assertTrue(bothRunning.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void refusesRequestsBeyondLimitButNotEvents() {
+        ManualExecutor executor = new ManualExecutor();
+        RequestDispatcher dispatcher = new RequestDispatcher(executor, 3);
+        final AtomicInteger ran = new AtomicInteger();
+        Runnable count = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+        assertTrue(dispatcher.offer("a", count));
+        assertTrue(dispatcher.offer("a", count));
+        assertTrue(dispatcher.offer("b", count));
+        assertFalse(dispatcher.offer("c", count));
+        dispatcher.post("c", count);
+        assertEquals(4, dispatcher.getPending());
+        assertEquals(1, dispatcher.getRejected());
+        //One executor task per device, however many requests it has
+        assertEquals(3, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(4, ran.get());
+        assertEquals(0, dispatcher.getPending());
+        assertTrue(dispatcher.offer("c", count));
+    }
+
+    @Test
+    public void busyDeviceYieldsToOthers() {
+        ManualExecutor executor = new ManualExecutor();
+        RequestDispatcher dispatcher = new RequestDispatcher(executor, Integer.MAX_VALUE);
+        final List<String> order = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            dispatcher.offer("a", new Runnable() {
+                @Override
+                public void run() {
+                    order.add("a");
+                }
+            });
+        }
+        dispatcher.offer("b", new Runnable() {
+            @Override
+            public void run() {
+                order.add("b");
+            }
+        });
+        executor.runAll();
+        assertEquals(41, order.size());
+        assertTrue(order.indexOf("b") < 40);
+    }
+
+    @Test
+    public void failingTaskDoesNotStallDevice() {
+        ManualExecutor executor = new ManualExecutor();
+        RequestDispatcher dispatcher = new RequestDispatcher(executor, Integer.MAX_VALUE);
+        final AtomicInteger ran = new AtomicInteger();
+        dispatcher.offer("a", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("handler bug");
+            }
+        });
+        dispatcher.offer("a", new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        });
+        try {
+            executor.tasks.remove(0).run();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        executor.runAll();
+        assertEquals(1, ran.get());
+        assertEquals(0, dispatcher.getPending());
+    }
+}
@@ -0,0 +1,94 @@
+package com.ironxiao.bleserver.session;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SessionTableTest {
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+
+    private static class ManualClock implements SessionTable.Clock {
+        long now;
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+    private final SessionTable table = new SessionTable(2, 1000, clock);
+
+    @Test
+    public void openReturnsSameSessionForSameDevice() {
+        ClientSession first = table.open("AA:BB:CC:DD:EE:01");
+        first.setMtu(185);
+
+        assertSame(first, table.open("AA:BB:CC:DD:EE:01"));
+        assertSame(first, table.get("AA:BB:CC:DD:EE:01"));
+        assertNull(table.get("AA:BB:CC:DD:EE:02"));
+        assertEquals(185, first.getMtu());
+    }
+
+    @Test
+    public void fullTableRejectsUntilIdleSessionIsEvicted() {
+        table.open("AA:BB:CC:DD:EE:01");
+        table.open("AA:BB:CC:DD:EE:02");
+        assertNull(table.open("AA:BB:CC:DD:EE:03"));
+
+        table.onDisconnected("AA:BB:CC:DD:EE:01");
+        assertNull(table.open("AA:BB:CC:DD:EE:03"));
+
+        clock.now += 1000;
+        assertNotNull(table.open("AA:BB:CC:DD:EE:03"));
+        assertNull(table.get("AA:BB:CC:DD:EE:01"));
+        assertEquals(2, table.connectedCount());
+    }
+
+    @Test
+    public void disconnectResetsLinkState() {
+        ClientSession session = table.open("AA:BB:CC:DD:EE:01");
+        session.setMtu(247);
+        session.subscribe(UUID_WRITE);
+        session.getPreparedWrites().append(UUID_WRITE, 0, new byte[4]);
+
+        table.onDisconnected("AA:BB:CC:DD:EE:01");
+        assertFalse(session.isConnected());
+        assertFalse(session.isSubscribed(UUID_WRITE));
+        assertTrue(session.getPreparedWrites().isEmpty());
+        assertEquals(23, session.getMtu());
+
+        assertSame(session, table.open("AA:BB:CC:DD:EE:01"));
+        assertTrue(session.isConnected());
+    }
+
+    @Test
+    public void connectedSessionsAreNeverEvicted() {
+        table.open("AA:BB:CC:DD:EE:01");
+        clock.now += 10000;
+
+        assertEquals(0, table.evictIdle());
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void notificationsAreSentOneAtATime() {
+        ClientSession session = table.open("AA:BB:CC:DD:EE:01");
+        byte[] first = {1};
+        byte[] second = {2};
+        session.queueNotification(first);
+        session.queueNotification(second);
+
+        assertSame(first, session.pollNotification());
+        assertNull(session.pollNotification());
+
+        session.requeueNotification(first);
+        assertSame(first, session.pollNotification());
+        session.onNotificationSent();
+        assertSame(second, session.pollNotification());
+        session.onNotificationSent();
+        assertEquals(0, session.pendingNotifications());
+    }
+}
@@ -0,0 +1,66 @@
+package com.ironxiao.bleserver.transfer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class PreparedWriteBufferTest {
+    private static final UUID UUID_WRITE = UUID.fromString("00001ffa-0000-1000-8000-00805f9b34fb");
+
+    private static class Captured implements PreparedWriteBuffer.Consumer {
+        byte[] value;
+
+        @Override
+        public void onCommitted(UUID uuid, byte[] data, int offset, int length) {
+            value = Arrays.copyOfRange(data, offset, offset + length);
+        }
+    }
+
+    @Test
+    public void appendsAtOffsetAndCommits() {
+        ByteBufferPool pool = new ByteBufferPool(512, 2);
+        PreparedWriteBuffer prepared = new PreparedWriteBuffer(pool);
+        assertEquals(PreparedWriteBuffer.STATUS_SUCCESS, prepared.append(UUID_WRITE, 0, "hello ".getBytes()));
+        assertEquals(PreparedWriteBuffer.STATUS_SUCCESS, prepared.append(UUID_WRITE, 6, "world".getBytes()));
+        assertEquals(1, pool.available());
+
+        Captured captured = new Captured();
+        prepared.commit(captured);
+        assertEquals("hello world", new String(captured.value));
+        assertTrue(prepared.isEmpty());
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    public void rejectsGapsAndOverflow() {
+        PreparedWriteBuffer prepared = new PreparedWriteBuffer(new ByteBufferPool(8, 1));
+        assertEquals(PreparedWriteBuffer.STATUS_INVALID_OFFSET, prepared.append(UUID_WRITE, 4, new byte[2]));
+        assertEquals(PreparedWriteBuffer.STATUS_INVALID_ATTRIBUTE_LENGTH, prepared.append(UUID_WRITE, 0, new byte[9]));
+    }
+
+    @Test
+    public void exhaustedPoolReportsInsufficientResources() {
+        ByteBufferPool pool = new ByteBufferPool(8, 1);
+        PreparedWriteBuffer first = new PreparedWriteBuffer(pool);
+        PreparedWriteBuffer second = new PreparedWriteBuffer(pool);
+        assertEquals(PreparedWriteBuffer.STATUS_SUCCESS, first.append(UUID_WRITE, 0, new byte[1]));
+        assertEquals(PreparedWriteBuffer.STATUS_INSUFFICIENT_RESOURCES, second.append(UUID_WRITE, 0, new byte[1]));
+
+        first.abort();
+        assertEquals(PreparedWriteBuffer.STATUS_SUCCESS, second.append(UUID_WRITE, 0, new byte[1]));
+    }
+
+    @Test
+    public void overlappingWriteKeepsLongerValue() {
+        PreparedWriteBuffer prepared = new PreparedWriteBuffer(new ByteBufferPool(16, 1));
+        prepared.append(UUID_WRITE, 0, "abcdef".getBytes());
+        prepared.append(UUID_WRITE, 1, "X".getBytes());
+
+        Captured captured = new Captured();
+        prepared.commit(captured);
+        assertEquals("aXcdef", new String(captured.value));
+    }
+}